@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.test.propagation;
+
+import brave.internal.Nullable;
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.CurrentTraceContext.ScopeDecorator;
+import brave.propagation.TraceContext;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests scope decorators which write trace identifiers to a logging context, such as SLF4J's MDC.
+ * Implementations supply the decorator and accessors for that context.
+ */
+public abstract class CorrelationFieldScopeDecoratorTest extends CurrentTraceContextTest {
+
+  protected abstract ScopeDecorator newDecorator();
+
+  @Nullable protected abstract String get(String name);
+
+  protected abstract void put(String name, String value);
+
+  /** Removes all entries from the logging context, not just trace identifiers. */
+  protected abstract void clear();
+
+  @After public void clearLoggingContext() {
+    clear();
+  }
+
+  @Test public void decorateScope_sameContext_returnsInputScope() {
+    ScopeDecorator decorator = newDecorator();
+    try (Scope scope = decorator.decorateScope(context, Scope.NOOP)) {
+      assertThat(decorator.decorateScope(context, Scope.NOOP)).isSameAs(Scope.NOOP);
+      assertThat(decorator.decorateScope(context.toBuilder().build(), Scope.NOOP))
+        .isSameAs(Scope.NOOP);
+      verifyImplicitContext(context);
+    }
+    verifyImplicitContext(null);
+  }
+
+  @Test public void decorateScope_restoresPropertiesItDidntWrite() {
+    ScopeDecorator decorator = newDecorator();
+    put("traceId", "foo");
+    put("sampled", "bar");
+
+    try (Scope scope = decorator.decorateScope(unsampledContext, Scope.NOOP)) {
+      verifyImplicitContext(unsampledContext);
+    }
+
+    assertThat(get("traceId")).isEqualTo("foo");
+    assertThat(get("spanId")).isNull();
+    assertThat(get("sampled")).isEqualTo("bar");
+  }
+
+  @Test public void decorateScope_noticesPropertiesChangedElsewhere() {
+    ScopeDecorator decorator = newDecorator();
+    try (Scope scope = decorator.decorateScope(context, Scope.NOOP)) {
+      clear();
+
+      try (Scope scope2 = decorator.decorateScope(notYetSampledContext, Scope.NOOP)) {
+        verifyImplicitContext(notYetSampledContext);
+        put("spanId", "foo");
+      }
+      verifyImplicitContext(null); // reverted to what was there when the scope opened
+    }
+    verifyImplicitContext(null);
+  }
+
+  @Override protected void verifyImplicitContext(@Nullable TraceContext context) {
+    if (context != null) {
+      assertThat(get("traceId"))
+        .isEqualTo(context.traceIdString());
+      assertThat(get("parentId"))
+        .isEqualTo(context.parentIdString());
+      assertThat(get("spanId"))
+        .isEqualTo(context.spanIdString());
+      assertThat(get("sampled"))
+        .isEqualTo(context.sampled() != null ? context.sampled().toString() : null);
+    } else {
+      assertThat(get("traceId"))
+        .isNull();
+      assertThat(get("parentId"))
+        .isNull();
+      assertThat(get("spanId"))
+        .isNull();
+      assertThat(get("sampled"))
+        .isNull();
+    }
+  }
+}
@@ -15,16 +15,24 @@ package brave;
 
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
+import brave.internal.recorder.PendingSpan;
 import brave.internal.recorder.PendingSpans;
 import brave.propagation.CurrentTraceContext.Scope;
 import brave.propagation.TraceContext;
 
-/** This wraps the public api and guards access to a mutable span. */
+/**
+ * This wraps the public api and guards access to a mutable span.
+ *
+ * <p>Like {@link RealSpan}, writes are ignored once the state was recycled for another span.
+ * Scoped spans are used by one thread, so this doesn't lock.
+ */
 final class RealScopedSpan extends ScopedSpan {
 
   final TraceContext context;
   final Scope scope;
   final MutableSpan state;
+  final int generation;
   final Clock clock;
   final PendingSpans pendingSpans;
   final FinishedSpanHandler finishedSpanHandler;
@@ -32,19 +40,24 @@ final class RealScopedSpan extends ScopedSpan {
   RealScopedSpan(
     TraceContext context,
     Scope scope,
-    MutableSpan state,
-    Clock clock,
+    PendingSpan pendingSpan,
     PendingSpans pendingSpans,
     FinishedSpanHandler finishedSpanHandler
   ) {
     this.context = context;
     this.scope = scope;
     this.pendingSpans = pendingSpans;
-    this.state = state;
-    this.clock = clock;
+    this.state = pendingSpan.state();
+    this.generation = pendingSpan.generation();
+    this.clock = pendingSpan.clock();
     this.finishedSpanHandler = finishedSpanHandler;
   }
 
+  /** Returns true if the state was recycled for another span. */
+  boolean recycled() {
+    return InternalMutableSpan.instance.generation(state) != generation;
+  }
+
   @Override public boolean isNoop() {
     return false;
   }
@@ -54,25 +67,30 @@ final class RealScopedSpan extends ScopedSpan {
   }
 
   @Override public ScopedSpan annotate(String value) {
+    if (recycled()) return this;
     state.annotate(clock.currentTimeMicroseconds(), value);
     return this;
   }
 
   @Override public ScopedSpan tag(String key, String value) {
+    if (recycled()) return this;
     state.tag(key, value);
     return this;
   }
 
   @Override public ScopedSpan error(Throwable throwable) {
+    if (recycled()) return this;
     state.error(throwable);
     return this;
   }
 
   @Override public void finish() {
     scope.close();
-    if (!pendingSpans.remove(context)) return; // don't double-report
+    if (!pendingSpans.finish(context)) return; // don't double-report
+    if (recycled()) return;
     state.finishTimestamp(clock.currentTimeMicroseconds());
     finishedSpanHandler.handle(context, state);
+    pendingSpans.recycle(state);
   }
 
   @Override public boolean equals(Object o) {
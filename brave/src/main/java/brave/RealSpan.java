@@ -15,29 +15,51 @@ package brave;
 
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
+import brave.internal.Nullable;
+import brave.internal.recorder.PendingSpan;
 import brave.internal.recorder.PendingSpans;
 import brave.propagation.TraceContext;
 
-/** This wraps the public api and guards access to a mutable span. */
+/**
+ * This wraps the public api and guards access to a mutable span.
+ *
+ * <p>When {@link Tracing.Builder#recycleSpans() recycling spans}, the state may be reused by
+ * another span after this one finishes. Writes check the {@link PendingSpan#generation()
+ * generation} of the state under its lock, so that a late call, or another instance for the same
+ * context, is ignored instead of corrupting an unrelated span.
+ */
 final class RealSpan extends Span {
 
   final TraceContext context;
   final PendingSpans pendingSpans;
   final MutableSpan state;
+  final int generation;
   final Clock clock;
   final FinishedSpanHandler finishedSpanHandler;
+  /** Present when {@link Tracing.Builder#spanFragmentInterval reporting fragments} */
+  @Nullable final PendingSpan fragmenting;
+  final long fragmentIntervalMicros;
 
   RealSpan(TraceContext context,
     PendingSpans pendingSpans,
-    MutableSpan state,
-    Clock clock,
-    FinishedSpanHandler finishedSpanHandler
+    PendingSpan pendingSpan,
+    FinishedSpanHandler finishedSpanHandler,
+    long fragmentIntervalMicros
   ) {
     this.context = context;
     this.pendingSpans = pendingSpans;
-    this.state = state;
-    this.clock = clock;
+    this.state = pendingSpan.state();
+    this.generation = pendingSpan.generation();
+    this.clock = pendingSpan.clock();
     this.finishedSpanHandler = finishedSpanHandler;
+    this.fragmenting = fragmentIntervalMicros != 0L ? pendingSpan : null;
+    this.fragmentIntervalMicros = fragmentIntervalMicros;
+  }
+
+  /** Returns true if the state was recycled for another span. Callers must hold its lock. */
+  boolean recycled() {
+    return InternalMutableSpan.instance.generation(state) != generation;
   }
 
   @Override public boolean isNoop() {
@@ -58,6 +80,7 @@ final class RealSpan extends Span {
 
   @Override public Span start(long timestamp) {
     synchronized (state) {
+      if (recycled()) return this;
       state.startTimestamp(timestamp);
     }
     return this;
@@ -65,6 +88,7 @@ final class RealSpan extends Span {
 
   @Override public Span name(String name) {
     synchronized (state) {
+      if (recycled()) return this;
       state.name(name);
     }
     return this;
@@ -72,6 +96,7 @@ final class RealSpan extends Span {
 
   @Override public Span kind(Kind kind) {
     synchronized (state) {
+      if (recycled()) return this;
       state.kind(kind);
     }
     return this;
@@ -86,41 +111,56 @@ final class RealSpan extends Span {
     // accept them rather than fail. This for example allows old bridges like to Brave v3 to work
     if ("cs".equals(value)) {
       synchronized (state) {
+        if (recycled()) return this;
         state.kind(Span.Kind.CLIENT);
         state.startTimestamp(timestamp);
       }
     } else if ("sr".equals(value)) {
       synchronized (state) {
+        if (recycled()) return this;
         state.kind(Span.Kind.SERVER);
         state.startTimestamp(timestamp);
       }
     } else if ("cr".equals(value)) {
       synchronized (state) {
+        if (recycled()) return this;
         state.kind(Span.Kind.CLIENT);
       }
       finish(timestamp);
     } else if ("ss".equals(value)) {
       synchronized (state) {
+        if (recycled()) return this;
         state.kind(Span.Kind.SERVER);
       }
       finish(timestamp);
     } else {
+      MutableSpan fragment = null;
       synchronized (state) {
+        if (recycled()) return this;
         state.annotate(timestamp, value);
+        if (fragmenting != null) fragment = fragmenting.fragment(timestamp, fragmentIntervalMicros);
       }
+      if (fragment != null) finishedSpanHandler.handle(context, fragment);
     }
     return this;
   }
 
   @Override public Span tag(String key, String value) {
+    MutableSpan fragment = null;
     synchronized (state) {
+      if (recycled()) return this;
       state.tag(key, value);
+      if (fragmenting != null) {
+        fragment = fragmenting.fragment(clock.currentTimeMicroseconds(), fragmentIntervalMicros);
+      }
     }
+    if (fragment != null) finishedSpanHandler.handle(context, fragment);
     return this;
   }
 
   @Override public Span error(Throwable throwable) {
     synchronized (state) {
+      if (recycled()) return this;
       state.error(throwable);
     }
     return this;
@@ -128,6 +168,7 @@ final class RealSpan extends Span {
 
   @Override public Span remoteServiceName(String remoteServiceName) {
     synchronized (state) {
+      if (recycled()) return this;
       state.remoteServiceName(remoteServiceName);
     }
     return this;
@@ -135,6 +176,7 @@ final class RealSpan extends Span {
 
   @Override public boolean remoteIpAndPort(String remoteIp, int remotePort) {
     synchronized (state) {
+      if (recycled()) return false;
       return state.remoteIpAndPort(remoteIp, remotePort);
     }
   }
@@ -144,20 +186,30 @@ final class RealSpan extends Span {
   }
 
   @Override public void finish(long timestamp) {
-    if (!pendingSpans.remove(context)) return;
+    if (!pendingSpans.finish(context)) return;
     synchronized (state) {
+      if (recycled()) return;
       state.finishTimestamp(timestamp);
     }
     finishedSpanHandler.handle(context, state);
+    pendingSpans.recycle(state);
   }
 
   @Override public void abandon() {
-    pendingSpans.remove(context);
+    if (!pendingSpans.remove(context)) return;
+    synchronized (state) {
+      if (recycled()) return;
+    }
+    pendingSpans.recycle(state);
   }
 
   @Override public void flush() {
-    abandon();
+    boolean removed = pendingSpans.flush(context);
+    synchronized (state) {
+      if (recycled()) return;
+    }
     finishedSpanHandler.handle(context, state);
+    if (removed) pendingSpans.recycle(state);
   }
 
   @Override public String toString() {
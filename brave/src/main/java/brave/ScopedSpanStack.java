@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.internal.Nullable;
+import brave.internal.Platform;
+import brave.internal.recorder.PendingSpan;
+import brave.internal.recorder.PendingSpans;
+import brave.internal.recorder.TracingCounters;
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.TraceContext;
+import java.util.Arrays;
+
+/**
+ * Holds scoped spans in a per-thread stack, when {@link Tracing.Builder#reuseScopedSpans()}. As
+ * scoped spans on a thread finish in the reverse order they started, the same frames are reused
+ * for the next spans at the same depth. Each span gets a small handle, which checks the frame's
+ * generation, so that a handle used after {@link ScopedSpan#finish()} can't affect the next span.
+ *
+ * <p>Spans on the stack aren't in {@link PendingSpans} unless something asks for them by context,
+ * such as {@link Tracer#currentSpan()}. This avoids allocating a {@link PendingSpan} and its weak
+ * reference, and the contention of adding them to a shared map.
+ */
+final class ScopedSpanStack {
+  static final int INITIAL_DEPTH = 4;
+  /** Deeper scoped spans are tracked in {@link PendingSpans}, which bounds memory per thread. */
+  static final int MAX_DEPTH = 64;
+
+  final PendingSpans pendingSpans;
+  final FinishedSpanHandler finishedSpanHandler, orphanedSpanHandler;
+  final boolean trackOrphans;
+  @Nullable final TracingCounters counters;
+  // Frames never reference this, so threads don't keep a closed tracer reachable via the value
+  @SuppressWarnings("ThreadLocalUsage") // intentional: to support multiple Tracer instances
+  final ThreadLocal<Frames> frames = new ThreadLocal<>();
+  volatile boolean closed;
+
+  ScopedSpanStack(PendingSpans pendingSpans, FinishedSpanHandler finishedSpanHandler,
+    FinishedSpanHandler orphanedSpanHandler, boolean trackOrphans,
+    @Nullable TracingCounters counters) {
+    this.pendingSpans = pendingSpans;
+    this.finishedSpanHandler = finishedSpanHandler;
+    this.orphanedSpanHandler = orphanedSpanHandler;
+    this.trackOrphans = trackOrphans;
+    this.counters = counters;
+  }
+
+  /**
+   * Starts a span whose context was just placed in scope, or returns null if the stack is too deep
+   * or closed.
+   */
+  @Nullable ScopedSpan push(String name, TraceContext context, Scope scope) {
+    if (closed) return null;
+    Frames frames = this.frames.get();
+    if (frames == null) this.frames.set(frames = new Frames());
+    if (frames.depth == MAX_DEPTH) return null;
+
+    // Save a map lookup when the parent is the span we started last, which is usually the case
+    Frame parent = frames.depth > 0 ? frames.spans[frames.depth - 1] : null;
+    Clock clock = parent != null && isParent(parent.context, context)
+      ? parent.clock : pendingSpans.newClock(context);
+    MutableSpan state = pendingSpans.newState(context);
+    state.name(name);
+    state.startTimestamp(clock.currentTimeMicroseconds());
+    if (counters != null) counters.spansStarted.increment();
+    Frame frame = frames.push(this, context, scope, state, clock);
+    if (trackOrphans) {
+      frame.caller =
+        new Throwable("Thread " + Thread.currentThread().getName() + " allocated span here");
+    }
+    return new StackScopedSpan(frame, frame.generation, context);
+  }
+
+  /**
+   * Returns a pending span for the context, if its scoped span is on this thread's stack and not
+   * yet tracked. Afterwards, its data is shared with spans returned by {@link Tracer#toSpan}.
+   */
+  @Nullable PendingSpan track(TraceContext context) {
+    Frames frames = this.frames.get();
+    if (frames == null) return null;
+    for (int i = frames.depth - 1; i >= 0; i--) {
+      Frame span = frames.spans[i];
+      if (!span.context.equals(context)) continue;
+      if (span.tracked) return null; // already in pending spans
+      span.tracked = true;
+      return pendingSpans.track(context, span.state, span.clock);
+    }
+    return null;
+  }
+
+  /**
+   * Stops using the stack, and drops this thread's frames. Other threads drop theirs when this is
+   * garbage collected. Spans started afterwards are tracked in {@link PendingSpans}.
+   */
+  void close() {
+    closed = true;
+    frames.remove();
+  }
+
+  static boolean isParent(TraceContext parent, TraceContext child) {
+    return child.parentIdAsLong() == parent.spanId()
+      && child.traceId() == parent.traceId()
+      && child.traceIdHigh() == parent.traceIdHigh();
+  }
+
+  static final class Frames {
+    Frame[] spans = new Frame[INITIAL_DEPTH];
+    int depth;
+
+    Frame push(ScopedSpanStack stack, TraceContext context, Scope scope,
+      MutableSpan state, Clock clock) {
+      if (depth == spans.length) spans = Arrays.copyOf(spans, depth * 2);
+      Frame result = spans[depth];
+      if (result == null) spans[depth] = result = new Frame(this, depth);
+      result.stack = stack;
+      result.context = context;
+      result.scope = scope;
+      result.state = state;
+      result.clock = clock;
+      depth++;
+      return result;
+    }
+
+    /** Pops the span at this index, and reports any above it as orphans, as they never finished. */
+    void pop(int index, long flushTime) {
+      for (int i = depth - 1; i > index; i--) spans[i].orphan(flushTime);
+      for (int i = index; i < depth; i++) spans[i].clear();
+      depth = index;
+    }
+  }
+
+  /**
+   * A span handle, which ignores calls once its frame moved on to another span. This is the same
+   * approach as {@link RealSpan}, which ignores calls once its state was recycled.
+   */
+  static final class StackScopedSpan extends ScopedSpan {
+    final Frame frame;
+    final int generation;
+    final TraceContext context;
+
+    StackScopedSpan(Frame frame, int generation, TraceContext context) {
+      this.frame = frame;
+      this.generation = generation;
+      this.context = context;
+    }
+
+    @Override public boolean isNoop() {
+      return false;
+    }
+
+    @Override public TraceContext context() {
+      return context;
+    }
+
+    @Override public ScopedSpan annotate(String value) {
+      if (frame.generation == generation) {
+        frame.state.annotate(frame.clock.currentTimeMicroseconds(), value);
+      }
+      return this;
+    }
+
+    @Override public ScopedSpan tag(String key, String value) {
+      if (frame.generation == generation) frame.state.tag(key, value);
+      return this;
+    }
+
+    @Override public ScopedSpan error(Throwable throwable) {
+      if (frame.generation == generation) frame.state.error(throwable);
+      return this;
+    }
+
+    @Override public void finish() {
+      if (frame.generation == generation) frame.finish();
+    }
+
+    @Override public String toString() {
+      return "ScopedSpan(" + context + ")";
+    }
+  }
+
+  /** The span state for a position in the stack, reused after the span finishes. */
+  static final class Frame {
+    final Frames frames;
+    final int index;
+    /** Incremented when a span finishes, so that its handle can't affect the next one. */
+    int generation;
+    // Only set while in use, so that idle frames don't reference the tracer
+    ScopedSpanStack stack;
+    TraceContext context;
+    Scope scope;
+    MutableSpan state;
+    Clock clock;
+    boolean tracked;
+    @Nullable Throwable caller;
+
+    Frame(Frames frames, int index) {
+      this.frames = frames;
+      this.index = index;
+    }
+
+    void finish() {
+      TraceContext context = this.context;
+      ScopedSpanStack stack = this.stack;
+      MutableSpan state = this.state;
+      boolean tracked = this.tracked;
+      scope.close();
+      long finishTimestamp = clock.currentTimeMicroseconds();
+      frames.pop(index, finishTimestamp);
+
+      if (tracked) {
+        if (!stack.pendingSpans.finish(context)) return; // don't double-report
+      } else if (stack.counters != null) {
+        stack.counters.spansFinished.increment();
+      }
+      state.finishTimestamp(finishTimestamp);
+      stack.finishedSpanHandler.handle(context, state);
+      stack.pendingSpans.recycle(state);
+    }
+
+    /**
+     * Reports this span like {@link PendingSpans} reports one collected before it finished. Tracked
+     * spans are left to {@link PendingSpans}, which reports them when their context is collected.
+     */
+    void orphan(long flushTime) {
+      if (tracked) return;
+      if (stack.counters != null) stack.counters.spansOrphaned.increment();
+      if (caller != null) {
+        Platform.get().log(
+          "Span " + context + " neither finished nor flushed before its parent finished", caller);
+      }
+      state.annotate(flushTime, "brave.flush");
+      stack.orphanedSpanHandler.handle(context, state);
+      stack.pendingSpans.recycle(state);
+    }
+
+    void clear() {
+      generation++;
+      stack = null;
+      context = null;
+      scope = null;
+      state = null;
+      clock = null;
+      tracked = false;
+      caller = null;
+    }
+  }
+}
@@ -14,12 +14,12 @@
 package brave;
 
 import brave.handler.FinishedSpanHandler;
-import brave.handler.MutableSpan;
 import brave.internal.InternalPropagation;
 import brave.internal.Nullable;
 import brave.internal.Platform;
 import brave.internal.recorder.PendingSpan;
 import brave.internal.recorder.PendingSpans;
+import brave.internal.recorder.TracingCounters;
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.CurrentTraceContext.Scope;
 import brave.propagation.Propagation;
@@ -93,7 +93,12 @@ public class Tracer {
   final PendingSpans pendingSpans;
   final Sampler sampler;
   final CurrentTraceContext currentTraceContext;
-  final boolean traceId128Bit, supportsJoin, alwaysSampleLocal;
+  final boolean traceId128Bit, supportsJoin, alwaysSampleLocal, reuseUnsampledContexts;
+  @Nullable final TracingCounters counters;
+  /** Zero means spans are only reported when finished or flushed. */
+  final long fragmentIntervalMicros;
+  /** Present when scoped spans are reused from a per-thread stack. */
+  @Nullable final ScopedSpanStack scopedSpanStack;
   final AtomicBoolean noop;
 
   Tracer(
@@ -106,6 +111,10 @@ public class Tracer {
     boolean traceId128Bit,
     boolean supportsJoin,
     boolean alwaysSampleLocal,
+    boolean reuseUnsampledContexts,
+    @Nullable TracingCounters counters,
+    long fragmentIntervalMicros,
+    @Nullable ScopedSpanStack scopedSpanStack,
     AtomicBoolean noop
   ) {
     this.clock = clock;
@@ -117,6 +126,11 @@ public class Tracer {
     this.traceId128Bit = traceId128Bit;
     this.supportsJoin = supportsJoin;
     this.alwaysSampleLocal = alwaysSampleLocal;
+    // when sampling locally, unsampled contexts still need to be recorded, so cannot be reused
+    this.reuseUnsampledContexts = reuseUnsampledContexts && !alwaysSampleLocal;
+    this.counters = counters;
+    this.fragmentIntervalMicros = fragmentIntervalMicros;
+    this.scopedSpanStack = scopedSpanStack;
     this.noop = noop;
   }
 
@@ -137,6 +151,10 @@ public class Tracer {
       traceId128Bit,
       supportsJoin,
       alwaysSampleLocal,
+      reuseUnsampledContexts,
+      counters,
+      fragmentIntervalMicros,
+      scopedSpanStack,
       noop
     );
   }
@@ -213,6 +231,7 @@ public class Tracer {
    * created.
    */
   TraceContext decorateContext(TraceContext parent, long parentId, long spanId) {
+    if (spanId == 0L && isReusable(parent)) return parent; // unsampled child
     int flags = InternalPropagation.instance.flags(parent);
     if (spanId != 0L) flags |= FLAG_SHARED;
     return decorateContext(
@@ -265,7 +284,11 @@ public class Tracer {
     }
 
     if ((flags & FLAG_SAMPLED_SET) != FLAG_SAMPLED_SET) { // cheap check for not yet sampled
-      flags = InternalPropagation.sampled(sampler.isSampled(traceId), flags);
+      boolean sampled = sampler.isSampled(traceId);
+      if (counters != null) {
+        (sampled ? counters.samplerSampled : counters.samplerNotSampled).increment();
+      }
+      flags = InternalPropagation.sampled(sampled, flags);
       flags &= ~FLAG_SHARED; // cannot be shared if not yet sampled
     }
 
@@ -373,9 +396,10 @@ public class Tracer {
   Span _toSpan(TraceContext decorated) {
     if (isNoop(decorated)) return new NoopSpan(decorated);
     // allocate a mutable span in case multiple threads call this method.. they'll use the same data
-    PendingSpan pendingSpan = pendingSpans.getOrCreate(decorated, false);
-    return new RealSpan(decorated, pendingSpans, pendingSpan.state(), pendingSpan.clock(),
-      finishedSpanHandler);
+    PendingSpan pendingSpan = scopedSpanStack != null ? scopedSpanStack.track(decorated) : null;
+    if (pendingSpan == null) pendingSpan = pendingSpans.getOrCreate(decorated, false);
+    return new RealSpan(decorated, pendingSpans, pendingSpan, finishedSpanHandler,
+      fragmentIntervalMicros);
   }
 
   /**
@@ -423,7 +447,18 @@ public class Tracer {
    * @param span span to place into scope or null to clear the scope
    */
   public SpanInScope withSpanInScope(@Nullable Span span) {
-    return new SpanInScope(currentTraceContext.newScope(span != null ? span.context() : null));
+    TraceContext context = span != null ? span.context() : null;
+    Scope scope = newScope(context);
+    return scope == Scope.NOOP ? SpanInScope.NOOP : new SpanInScope(scope);
+  }
+
+  /** Avoids scope decoration when a reused context is already in scope. */
+  @SuppressWarnings("ReferenceEquality") // intentional: reused contexts are the same instance
+  Scope newScope(@Nullable TraceContext context) {
+    if (context != null && isReusable(context) && context == currentTraceContext.get()) {
+      return Scope.NOOP;
+    }
+    return currentTraceContext.newScope(context);
   }
 
   /**
@@ -528,6 +563,14 @@ public class Tracer {
     if (parent != null) return decorateContext(parent, parent.spanId(), 0L);
 
     Boolean sampled = samplerFunction.trySample(arg);
+    if (counters != null) {
+      if (sampled == null) {
+        counters.samplerFunctionDeferred.increment();
+      } else {
+        (sampled ? counters.samplerFunctionSampled : counters.samplerFunctionNotSampled)
+          .increment();
+      }
+    }
     SamplingFlags flags = sampled != null ? (sampled ? SAMPLED : NOT_SAMPLED) : EMPTY;
     return newRootContext(InternalPropagation.instance.flags(flags));
   }
@@ -548,18 +591,22 @@ public class Tracer {
   }
 
   ScopedSpan newScopedSpan(String name, TraceContext context) {
-    Scope scope = currentTraceContext.newScope(context);
+    Scope scope = newScope(context);
     if (isNoop(context)) return new NoopScopedSpan(context, scope);
+    if (scopedSpanStack != null) {
+      ScopedSpan result = scopedSpanStack.push(name, context, scope);
+      if (result != null) return result;
+    }
 
     PendingSpan pendingSpan = pendingSpans.getOrCreate(context, true);
-    Clock clock = pendingSpan.clock();
-    MutableSpan state = pendingSpan.state();
-    state.name(name);
-    return new RealScopedSpan(context, scope, state, clock, pendingSpans, finishedSpanHandler);
+    pendingSpan.state().name(name);
+    return new RealScopedSpan(context, scope, pendingSpan, pendingSpans, finishedSpanHandler);
   }
 
   /** A span remains in the scope it was bound to until close is called. */
   public static final class SpanInScope implements Closeable {
+    static final SpanInScope NOOP = new SpanInScope(Scope.NOOP);
+
     final Scope scope;
 
     // This type hides the SPI type and allows us to double-check the SPI didn't return null.
@@ -594,6 +641,22 @@ public class Tracer {
     return (flags & FLAG_SAMPLED) != FLAG_SAMPLED;
   }
 
+  /**
+   * Returns true when a child of this context would be unsampled and otherwise identical, except
+   * its span ID. In this case, we can return the input instead of allocating a new context, which
+   * also means we needn't re-scope it.
+   *
+   * <p>Contexts with extra fields aren't reused, as propagation decoration could make them differ
+   * per span.
+   */
+  boolean isReusable(TraceContext context) {
+    if (!reuseUnsampledContexts || !isDecorated(context) || !context.extra().isEmpty()) {
+      return false;
+    }
+    int flags = InternalPropagation.instance.flags(context);
+    return (flags & (FLAG_SAMPLED_SET | FLAG_SAMPLED | FLAG_SAMPLED_LOCAL)) == FLAG_SAMPLED_SET;
+  }
+
   /**
    * To save overhead, we shouldn't re-decorate a context on operations such as {@link
    * #toSpan(TraceContext)} or {@link #currentSpan()}. As the {@link TraceContext#localRootId()} can
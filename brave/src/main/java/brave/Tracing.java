@@ -14,12 +14,22 @@
 package brave;
 
 import brave.handler.FinishedSpanHandler;
+import brave.handler.SharedSpanMergingFinishedSpanHandler;
+import brave.handler.SpanSpool;
+import brave.handler.TailSamplingFinishedSpanHandler;
 import brave.internal.IpLiteral;
 import brave.internal.Nullable;
 import brave.internal.Platform;
+import brave.internal.SpanLimits;
+import brave.internal.handler.MutableSpanBytesEncoder;
 import brave.internal.handler.NoopAwareFinishedSpanHandler;
+import brave.internal.handler.ZipkinBytesFinishedSpanHandler;
 import brave.internal.handler.ZipkinFinishedSpanHandler;
+import brave.internal.recorder.MutableSpanPool;
+import brave.internal.recorder.OrphanedSpansDrainer;
 import brave.internal.recorder.PendingSpans;
+import brave.internal.recorder.ResyncingClock;
+import brave.internal.recorder.TracingCounters;
 import brave.propagation.B3Propagation;
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.ExtraFieldPropagation;
@@ -28,10 +38,12 @@ import brave.propagation.TraceContext;
 import brave.sampler.Sampler;
 import brave.sampler.SamplerFunction;
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
@@ -135,6 +147,14 @@ public abstract class Tracing implements Closeable {
    */
   public abstract void setNoop(boolean noop);
 
+  /**
+   * Returns a snapshot of counts such as spans started and finished, or null unless {@link
+   * Builder#recordMetrics() recording metrics}.
+   *
+   * @since 5.9
+   */
+  @Nullable public abstract TracingMetrics metrics();
+
   /** Ensures this component can be garbage collected, by making it not {@link #current()} */
   @Override abstract public void close();
 
@@ -142,11 +162,21 @@ public abstract class Tracing implements Closeable {
     String localServiceName = "unknown", localIp;
     int localPort; // zero means null
     Reporter<zipkin2.Span> spanReporter;
+    Sender spanSender;
     Clock clock;
     Sampler sampler = Sampler.ALWAYS_SAMPLE;
     CurrentTraceContext currentTraceContext = CurrentTraceContext.Default.inheritable();
     boolean traceId128Bit = false, supportsJoin = true, alwaysReportSpans = false;
-    boolean trackOrphans = false;
+    boolean trackOrphans = false, stripedPendingSpans = false, reportOrphansInBackground = false;
+    boolean recycleSpans = false, reuseUnsampledContexts = false, recordMetrics = false;
+    boolean reuseScopedSpans = false;
+    TailSamplingFinishedSpanHandler.Builder tailSampling;
+    SharedSpanMergingFinishedSpanHandler.Builder mergeSharedSpans;
+    SpanSpool.Builder spoolSpans;
+    int maxOrphansReportedPerCall = Integer.MAX_VALUE;
+    long spanFragmentIntervalMicros; // zero means disabled
+    int maxTagsPerSpan = Integer.MAX_VALUE, maxAnnotationsPerSpan = Integer.MAX_VALUE;
+    int maxTagValueLength = Integer.MAX_VALUE, maxSpanBytes = Integer.MAX_VALUE;
     Propagation.Factory propagationFactory = B3Propagation.FACTORY;
     ErrorParser errorParser = new ErrorParser();
     Set<FinishedSpanHandler> finishedSpanHandlers = new LinkedHashSet<>(); // dupes not ok
@@ -234,6 +264,39 @@ public abstract class Tracing implements Closeable {
       return this;
     }
 
+    /**
+     * Sends spans to Zipkin via an {@link AsyncReporter} owned by this component. When set, this
+     * overrides {@link #spanReporter(Reporter)}.
+     *
+     * <p>Unlike {@link #spanReporter(Reporter)}, spans are encoded directly into the {@link
+     * Sender#encoding() sender's encoding}, skipping allocation of a {@link zipkin2.Span} per
+     * span. The output is the same. The reporter is closed when this component is {@link
+     * Tracing#close() closed}, but the sender is not.
+     *
+     * <p>For example, here's how to batch send spans via http:
+     *
+     * <pre>{@code
+     * sender = URLConnectionSender.create("http://localhost:9411/api/v2/spans");
+     *
+     * tracingBuilder.spanSender(sender);
+     * }</pre>
+     *
+     * @throws IllegalArgumentException if the sender's encoding is not JSON or PROTO3
+     * @since 5.9
+     */
+    public Builder spanSender(Sender spanSender) {
+      if (spanSender == null) throw new NullPointerException("spanSender == null");
+      switch (spanSender.encoding()) {
+        case JSON:
+        case PROTO3:
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported encoding: " + spanSender.encoding());
+      }
+      this.spanSender = spanSender;
+      return this;
+    }
+
     /**
      * Assigns microsecond-resolution timestamp source for operations like {@link Span#start()}.
      * Defaults to JRE-specific platform time.
@@ -241,6 +304,9 @@ public abstract class Tracing implements Closeable {
      * <p>Note: timestamps are read once per trace, then {@link System#nanoTime() ticks}
      * thereafter. This ensures there's no clock skew problems inside a single trace.
      *
+     * <p>When unset, platform time is read at most once per second, and shared by traces started
+     * in that interval. This avoids overhead of reading the wall clock on each new trace.
+     *
      * See {@link Tracing#clock(TraceContext)}
      */
     public Builder clock(Clock clock) {
@@ -391,8 +457,277 @@ public abstract class Tracing implements Closeable {
       return this;
     }
 
+    /**
+     * When true, in-flight spans are stored in a table striped by hash and keyed on trace and span
+     * IDs, as opposed to a concurrent map of weak context keys. Defaults to false.
+     *
+     * <p>This reduces allocation per span and lock contention when many threads start and finish
+     * spans concurrently. Orphaned spans are still detected by garbage collection of their trace
+     * context, so {@link FinishedSpanHandler#supportsOrphans() orphan handling} is unaffected.
+     *
+     * @since 5.9
+     */
+    public Builder stripedPendingSpans() {
+      this.stripedPendingSpans = true;
+      return this;
+    }
+
+    /**
+     * Limits how many orphaned spans are reported by a single traced operation. Defaults to no
+     * limit.
+     *
+     * <p>Orphans are spans garbage collected before they were finished or flushed. By default,
+     * they are reported on the thread of the next operation, such as {@link Tracer#nextSpan()}.
+     * After a large garbage collection, that thread could invoke {@link
+     * FinishedSpanHandler#supportsOrphans() orphan handlers} thousands of times. Setting a limit
+     * amortizes this work across subsequent operations, in exchange for orphans staying queued
+     * longer.
+     *
+     * @see #reportOrphansInBackground()
+     * @since 5.9
+     */
+    public Builder maxOrphansReportedPerCall(int maxOrphansReportedPerCall) {
+      if (maxOrphansReportedPerCall <= 0) {
+        throw new IllegalArgumentException("maxOrphansReportedPerCall <= 0");
+      }
+      this.maxOrphansReportedPerCall = maxOrphansReportedPerCall;
+      return this;
+    }
+
+    /**
+     * When true, orphaned spans are reported by a daemon thread, as opposed to by traced
+     * operations. Defaults to false.
+     *
+     * <p>This removes orphan reporting from the critical path entirely, at the cost of a thread
+     * per tracing component, which ends when it is {@link Tracing#close() closed}. When set,
+     * {@link #maxOrphansReportedPerCall(int)} is ignored.
+     *
+     * @since 5.9
+     */
+    public Builder reportOrphansInBackground() {
+      this.reportOrphansInBackground = true;
+      return this;
+    }
+
+    /**
+     * When true, span state is reused after all {@link FinishedSpanHandler finished span handlers}
+     * return, as opposed to being left for garbage collection. Defaults to false.
+     *
+     * <p>This reduces allocation per span, but imposes an ownership contract. Handlers must not
+     * hold a reference to the {@link brave.handler.MutableSpan} after {@link
+     * FinishedSpanHandler#handle} returns, unless they say so via {@link
+     * FinishedSpanHandler#retainsSpan()}. Any such handler disables recycling. Instrumentation must
+     * also not modify a {@link Span} after it is finished, as the data could end up in an
+     * unrelated span.
+     *
+     * @since 5.9
+     */
+    public Builder recycleSpans() {
+      this.recycleSpans = true;
+      return this;
+    }
+
+    /**
+     * When true, children of an unsampled span reuse its trace context, as opposed to allocating a
+     * new one with a new span ID. Defaults to false.
+     *
+     * <p>This applies to contexts without {@link TraceContext#extra() extra fields}, and when no
+     * {@link FinishedSpanHandler#alwaysSampleLocal() handler needs to see unsampled spans}. As the
+     * child context is already in scope, {@link Tracer#withSpanInScope(Span)} and {@link
+     * Tracer#startScopedSpan(String)} also skip {@link CurrentTraceContext.ScopeDecorator scope
+     * decorators}, such as log correlation, for these spans.
+     *
+     * <p>The trade-off is that unsampled children share their parent's span ID. For example, logs
+     * will show the span ID of the nearest local root or sampled ancestor, and downstream services
+     * will see that as their parent ID.
+     *
+     * @since 5.9
+     */
+    public Builder reuseUnsampledContexts() {
+      this.reuseUnsampledContexts = true;
+      return this;
+    }
+
+    /**
+     * When true, {@link Tracer#startScopedSpan(String)} reuses span instances from a per-thread
+     * stack, as opposed to allocating them. Defaults to false.
+     *
+     * <p>Scoped spans on a thread finish in the reverse order they started, so the state at each
+     * depth can be reused, and isn't tracked in a map shared by all threads unless something asks
+     * for it, such as {@link Tracer#currentSpan()}. This reduces the overhead of scoped spans in
+     * tight loops, such as around cache lookups. The {@link ScopedSpan} itself is a small handle,
+     * which ignores calls after {@link ScopedSpan#finish()}. The {@link TraceContext} and {@link
+     * CurrentTraceContext.Scope} are still allocated, as other code can see them.
+     *
+     * <p>The trade-off is that {@link Tracer#toSpan(TraceContext)} on another thread doesn't see
+     * the data of a scoped span, so data added there is reported separately, with the same span
+     * ID.
+     *
+     * @since 5.9
+     */
+    public Builder reuseScopedSpans() {
+      this.reuseScopedSpans = true;
+      return this;
+    }
+
+    /**
+     * When true, {@link Tracing#metrics()} returns counts such as spans started, sampling decisions
+     * and handler errors. Defaults to false.
+     *
+     * <p>Counters are striped by thread, so that request threads do not contend on them. When
+     * false, nothing is counted.
+     *
+     * @since 5.9
+     */
+    public Builder recordMetrics() {
+      this.recordMetrics = true;
+      return this;
+    }
+
+    /**
+     * Reports long-running spans in fragments, as opposed to all at once when finished. Defaults
+     * to disabled.
+     *
+     * <p>When a span is tagged or annotated at least this long after it started or its previous
+     * fragment, the tags and annotations added since are passed to {@link
+     * #addFinishedSpanHandler(FinishedSpanHandler) finished span handlers} in a fragment, then
+     * removed from memory. Fragments have the same span ID, but like {@link Span#flush()}, no
+     * finish timestamp. Zipkin merges them into one span. This bounds memory of spans that last
+     * hours, such as streams, and makes them visible before they finish.
+     *
+     * <p>Handlers see each fragment as a separate call to {@link FinishedSpanHandler#handle}. Only
+     * the last has a {@link brave.handler.MutableSpan#finishTimestamp() finish timestamp}. The
+     * others are marked {@link brave.handler.MutableSpan#isFragment()}.
+     *
+     * @since 5.9
+     */
+    public Builder spanFragmentInterval(long interval, TimeUnit unit) {
+      if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.spanFragmentIntervalMicros = unit.toMicros(interval);
+      return this;
+    }
+
+    /**
+     * Limits how many tags each span can have. Defaults to no limit.
+     *
+     * <p>Tags added after the limit are dropped, and counted by the "brave.dropped_tags" tag, which
+     * is not subject to the limit. Replacing the value of an existing tag is always allowed. Limits
+     * are applied as data is added, so a span with a bug that adds thousands of tags never holds
+     * them in memory.
+     *
+     * @see #maxSpanBytes(int)
+     * @since 5.9
+     */
+    public Builder maxTagsPerSpan(int maxTagsPerSpan) {
+      if (maxTagsPerSpan < 0) throw new IllegalArgumentException("maxTagsPerSpan < 0");
+      this.maxTagsPerSpan = maxTagsPerSpan;
+      return this;
+    }
+
+    /**
+     * Limits how many annotations each span can have. Defaults to no limit.
+     *
+     * <p>Annotations added after the limit are dropped, and counted by the
+     * "brave.dropped_annotations" tag.
+     *
+     * @see #maxTagsPerSpan(int)
+     * @since 5.9
+     */
+    public Builder maxAnnotationsPerSpan(int maxAnnotationsPerSpan) {
+      if (maxAnnotationsPerSpan < 0) {
+        throw new IllegalArgumentException("maxAnnotationsPerSpan < 0");
+      }
+      this.maxAnnotationsPerSpan = maxAnnotationsPerSpan;
+      return this;
+    }
+
+    /**
+     * Limits the length of tag values, in characters. Defaults to no limit.
+     *
+     * <p>Longer values, such as SQL statements or message bodies, are truncated and counted by the
+     * "brave.truncated_tags" tag.
+     *
+     * @see #maxTagsPerSpan(int)
+     * @since 5.9
+     */
+    public Builder maxTagValueLength(int maxTagValueLength) {
+      if (maxTagValueLength < 0) throw new IllegalArgumentException("maxTagValueLength < 0");
+      this.maxTagValueLength = maxTagValueLength;
+      return this;
+    }
+
+    /**
+     * Limits the total size of tags and annotations in each span. Defaults to no limit.
+     *
+     * <p>Size is estimated as the characters in tag keys and values, and annotation values, plus
+     * eight bytes per annotation timestamp. This is the same as the UTF-8 size for ASCII text. Tags
+     * and annotations that would exceed the limit are dropped and counted, the same as those over
+     * {@link #maxTagsPerSpan(int)} or {@link #maxAnnotationsPerSpan(int)}.
+     *
+     * @since 5.9
+     */
+    public Builder maxSpanBytes(int maxSpanBytes) {
+      if (maxSpanBytes < 0) throw new IllegalArgumentException("maxSpanBytes < 0");
+      this.maxSpanBytes = maxSpanBytes;
+      return this;
+    }
+
+    /**
+     * Defers the decision to report unsampled spans to Zipkin until their local root finishes. For
+     * example, this can report all traces with errors, while only {@link #sampler(Sampler)
+     * sampling} a small percentage of others. Defaults to disabled.
+     *
+     * <p>This implies all spans are recorded, including unsampled ones. Accordingly, {@link
+     * #addFinishedSpanHandler(FinishedSpanHandler) finished span handlers} also see them. Those
+     * which only want reported spans should check {@link TraceContext#sampled()}.
+     *
+     * @see TailSamplingFinishedSpanHandler
+     * @since 5.9
+     */
+    public Builder tailSampling(TailSamplingFinishedSpanHandler.Builder tailSampling) {
+      if (tailSampling == null) throw new NullPointerException("tailSampling == null");
+      this.tailSampling = tailSampling;
+      return this;
+    }
+
+    /**
+     * Reports one span to Zipkin, instead of two, when a client and server of the same span ID are
+     * in the same process. Defaults to disabled.
+     *
+     * <p>This delays reporting of server spans whose client is remote, by up to the {@link
+     * SharedSpanMergingFinishedSpanHandler.Builder#window(long, TimeUnit) window}. {@link
+     * #addFinishedSpanHandler(FinishedSpanHandler) Finished span handlers} are not affected.
+     *
+     * @see SharedSpanMergingFinishedSpanHandler
+     * @since 5.9
+     */
+    public Builder mergeSharedSpans(SharedSpanMergingFinishedSpanHandler.Builder mergeSharedSpans) {
+      if (mergeSharedSpans == null) throw new NullPointerException("mergeSharedSpans == null");
+      this.mergeSharedSpans = mergeSharedSpans;
+      return this;
+    }
+
+    /**
+     * Queues spans for the {@link #spanSender(Sender) span sender} in memory-mapped files, as
+     * opposed to in memory. This retains spans while the Zipkin collector is unavailable, up to a
+     * disk budget. Defaults to disabled.
+     *
+     * <p>This requires a {@link #spanSender(Sender) span sender}. The spool is closed with this
+     * component.
+     *
+     * @see SpanSpool
+     * @since 5.9
+     */
+    public Builder spoolSpans(SpanSpool.Builder spoolSpans) {
+      if (spoolSpans == null) throw new NullPointerException("spoolSpans == null");
+      this.spoolSpans = spoolSpans;
+      return this;
+    }
+
     public Tracing build() {
-      if (clock == null) clock = Platform.get().clock();
+      // The platform clock can allocate, so we share a tick clock resynced with it periodically
+      if (clock == null) clock = new ResyncingClock(Platform.get().clock());
       if (localIp == null) localIp = Platform.get().linkLocalIp();
       if (spanReporter == null) spanReporter = new LoggingReporter();
       return new Default(this);
@@ -425,6 +760,11 @@ public abstract class Tracing implements Closeable {
     final Clock clock;
     final ErrorParser errorParser;
     final AtomicBoolean noop;
+    @Nullable final TracingCounters counters;
+    @Nullable final OrphanedSpansDrainer orphanedSpansDrainer;
+    @Nullable final AsyncReporter<byte[]> spanSenderReporter;
+    @Nullable final SpanSpool spanSpool;
+    @Nullable final SharedSpanMergingFinishedSpanHandler sharedSpanMerger;
 
     Default(Builder builder) {
       this.clock = builder.clock;
@@ -434,14 +774,53 @@ public abstract class Tracing implements Closeable {
       this.currentTraceContext = builder.currentTraceContext;
       this.sampler = builder.sampler;
       this.noop = new AtomicBoolean();
+      this.counters = builder.recordMetrics ? new TracingCounters() : null;
 
-      FinishedSpanHandler zipkinHandler = builder.spanReporter != Reporter.NOOP
-        ? new ZipkinFinishedSpanHandler(builder.spanReporter, errorParser,
-        builder.localServiceName, builder.localIp, builder.localPort, builder.alwaysReportSpans)
-        : FinishedSpanHandler.NOOP;
+      // Tail sampling decides which unsampled spans to report, so zipkin must not filter them
+      boolean alwaysReportSpans = builder.alwaysReportSpans || builder.tailSampling != null;
+      FinishedSpanHandler zipkinHandler;
+      if (builder.spoolSpans != null && builder.spanSender == null) {
+        throw new IllegalStateException("spoolSpans requires spanSender");
+      }
+      if (builder.spanSender != null) {
+        Sender sender = builder.spanSender;
+        Reporter<byte[]> bytesReporter;
+        if (builder.spoolSpans != null) {
+          this.spanSenderReporter = null;
+          try {
+            bytesReporter = this.spanSpool = builder.spoolSpans.build(sender);
+          } catch (IOException e) {
+            throw new IllegalStateException("couldn't create span spool", e);
+          }
+        } else {
+          this.spanSpool = null;
+          bytesReporter = this.spanSenderReporter = AsyncReporter.builder(sender)
+            .build(ZipkinBytesFinishedSpanHandler.passThroughEncoder(sender.encoding()));
+        }
+        zipkinHandler = new ZipkinBytesFinishedSpanHandler(bytesReporter,
+          MutableSpanBytesEncoder.create(sender.encoding(), errorParser,
+            builder.localServiceName, builder.localIp, builder.localPort),
+          alwaysReportSpans);
+      } else {
+        this.spanSenderReporter = null;
+        this.spanSpool = null;
+        zipkinHandler = builder.spanReporter != Reporter.NOOP
+          ? new ZipkinFinishedSpanHandler(builder.spanReporter, errorParser,
+          builder.localServiceName, builder.localIp, builder.localPort, alwaysReportSpans)
+          : FinishedSpanHandler.NOOP;
+      }
+      if (builder.mergeSharedSpans != null && zipkinHandler != FinishedSpanHandler.NOOP) {
+        zipkinHandler = this.sharedSpanMerger = builder.mergeSharedSpans.build(zipkinHandler);
+      } else {
+        this.sharedSpanMerger = null;
+      }
+      if (builder.tailSampling != null && zipkinHandler != FinishedSpanHandler.NOOP) {
+        zipkinHandler = builder.tailSampling.build(zipkinHandler);
+      }
 
       FinishedSpanHandler finishedSpanHandler =
-        zipkinReportingFinishedSpanHandler(builder.finishedSpanHandlers, zipkinHandler, noop);
+        zipkinReportingFinishedSpanHandler(builder.finishedSpanHandlers, zipkinHandler, counters,
+          noop);
 
       Set<FinishedSpanHandler> orphanedSpanHandlers = new LinkedHashSet<>();
       for (FinishedSpanHandler handler : builder.finishedSpanHandlers) {
@@ -452,19 +831,43 @@ public abstract class Tracing implements Closeable {
       boolean allHandlersSupportOrphans = builder.finishedSpanHandlers.equals(orphanedSpanHandlers);
       if (!allHandlersSupportOrphans) {
         orphanedSpanHandler =
-          zipkinReportingFinishedSpanHandler(orphanedSpanHandlers, zipkinHandler, noop);
+          zipkinReportingFinishedSpanHandler(orphanedSpanHandlers, zipkinHandler, counters, noop);
       }
 
+      int maxOrphansPerCall =
+        builder.reportOrphansInBackground ? 0 : builder.maxOrphansReportedPerCall;
+      // The orphaned span handler is a subset of the finished span handler, so we only check one
+      MutableSpanPool spanPool = builder.recycleSpans && !finishedSpanHandler.retainsSpan()
+        ? new MutableSpanPool() : null;
+      SpanLimits spanLimits = SpanLimits.create(builder.maxTagsPerSpan,
+        builder.maxAnnotationsPerSpan, builder.maxTagValueLength, builder.maxSpanBytes);
+      PendingSpans pendingSpans = PendingSpans.newBuilder(clock, orphanedSpanHandler, noop)
+        .trackOrphans(builder.trackOrphans)
+        .maxOrphansPerCall(maxOrphansPerCall)
+        .spanPool(spanPool)
+        .counters(counters)
+        .spanLimits(spanLimits)
+        .striped(builder.stripedPendingSpans)
+        .build();
+      this.orphanedSpansDrainer =
+        builder.reportOrphansInBackground ? OrphanedSpansDrainer.start(pendingSpans) : null;
+
       this.tracer = new Tracer(
         builder.clock,
         builder.propagationFactory,
         finishedSpanHandler,
-        new PendingSpans(clock, orphanedSpanHandler, builder.trackOrphans, noop),
+        pendingSpans,
         builder.sampler,
         builder.currentTraceContext,
         builder.traceId128Bit || propagationFactory.requires128BitTraceId(),
         builder.supportsJoin && propagationFactory.supportsJoin(),
         finishedSpanHandler.alwaysSampleLocal(),
+        builder.reuseUnsampledContexts,
+        counters,
+        builder.spanFragmentIntervalMicros,
+        builder.reuseScopedSpans
+          ? new ScopedSpanStack(pendingSpans, finishedSpanHandler, orphanedSpanHandler,
+          builder.trackOrphans, counters) : null,
         noop
       );
       // assign current IFF there's no instance already current
@@ -503,24 +906,35 @@ public abstract class Tracing implements Closeable {
       this.noop.set(noop);
     }
 
+    @Override @Nullable public TracingMetrics metrics() {
+      if (counters == null) return null;
+      return new TracingMetrics(counters, tracer.pendingSpans.size());
+    }
+
     @Override public String toString() {
       return tracer.toString();
     }
 
     @Override public void close() {
+      if (orphanedSpansDrainer != null) orphanedSpansDrainer.close();
+      if (tracer.scopedSpanStack != null) tracer.scopedSpanStack.close();
+      // flush held spans before closing what they are reported to
+      if (sharedSpanMerger != null) sharedSpanMerger.close();
+      if (spanSenderReporter != null) spanSenderReporter.close();
+      if (spanSpool != null) spanSpool.close();
       // only set null if we are the outer-most instance
       CURRENT.compareAndSet(this, null);
     }
   }
 
-  static FinishedSpanHandler zipkinReportingFinishedSpanHandler(
-    Set<FinishedSpanHandler> input, FinishedSpanHandler zipkinHandler, AtomicBoolean noop) {
+  static FinishedSpanHandler zipkinReportingFinishedSpanHandler(Set<FinishedSpanHandler> input,
+    FinishedSpanHandler zipkinHandler, @Nullable TracingCounters counters, AtomicBoolean noop) {
     ArrayList<FinishedSpanHandler> defensiveCopy = new ArrayList<>(input);
     // When present, the Zipkin handler is invoked after the user-supplied finished span handlers.
     if (zipkinHandler != FinishedSpanHandler.NOOP) defensiveCopy.add(zipkinHandler);
 
     // Make sure any exceptions caused by handlers don't crash callers
-    return NoopAwareFinishedSpanHandler.create(defensiveCopy, noop);
+    return NoopAwareFinishedSpanHandler.create(defensiveCopy, counters, noop);
   }
 
   Tracing() { // intentionally hidden constructor
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.handler.FinishedSpanHandler;
+import brave.internal.recorder.TracingCounters;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+
+/**
+ * A point-in-time snapshot of the overhead of tracing, returned by {@link Tracing#metrics()}.
+ *
+ * <p>Counts are cumulative since the tracing component was built. To export rates, subtract the
+ * previous snapshot from the current one. Values are read without locking, so a snapshot taken
+ * while spans are in flight may be inconsistent across fields. For example, {@link
+ * #spansFinished()} could briefly exceed {@link #spansStarted()}.
+ *
+ * @see Tracing.Builder#recordMetrics()
+ * @since 5.9
+ */
+public final class TracingMetrics {
+  final long spansStarted, spansFinished, spansAbandoned, spansFlushed, spansOrphaned;
+  final long samplerSampled, samplerNotSampled;
+  final long samplerFunctionSampled, samplerFunctionNotSampled, samplerFunctionDeferred;
+  final long handlerErrors;
+  final int pendingSpans;
+
+  TracingMetrics(TracingCounters counters, int pendingSpans) {
+    spansStarted = counters.spansStarted.sum();
+    spansFinished = counters.spansFinished.sum();
+    spansAbandoned = counters.spansAbandoned.sum();
+    spansFlushed = counters.spansFlushed.sum();
+    spansOrphaned = counters.spansOrphaned.sum();
+    samplerSampled = counters.samplerSampled.sum();
+    samplerNotSampled = counters.samplerNotSampled.sum();
+    samplerFunctionSampled = counters.samplerFunctionSampled.sum();
+    samplerFunctionNotSampled = counters.samplerFunctionNotSampled.sum();
+    samplerFunctionDeferred = counters.samplerFunctionDeferred.sum();
+    handlerErrors = counters.handlerErrors.sum();
+    this.pendingSpans = pendingSpans;
+  }
+
+  /** Count of spans which began recording, whether or not they were explicitly started. */
+  public long spansStarted() {
+    return spansStarted;
+  }
+
+  /** Count of spans passed to finished span handlers via {@link Span#finish()}. */
+  public long spansFinished() {
+    return spansFinished;
+  }
+
+  /** Count of spans dropped via {@link Span#abandon()}. */
+  public long spansAbandoned() {
+    return spansAbandoned;
+  }
+
+  /** Count of spans passed to finished span handlers via {@link Span#flush()}. */
+  public long spansFlushed() {
+    return spansFlushed;
+  }
+
+  /**
+   * Count of spans garbage collected before they were finished, abandoned or flushed. Non-zero
+   * values usually indicate an instrumentation bug.
+   *
+   * @see Tracing.Builder#trackOrphans()
+   */
+  public long spansOrphaned() {
+    return spansOrphaned;
+  }
+
+  /** Count of spans recording now, including orphans which have not yet been reported. */
+  public int pendingSpans() {
+    return pendingSpans;
+  }
+
+  /** Count of new traces the {@link Tracing#sampler() trace ID sampler} decided to sample. */
+  public long samplerSampled() {
+    return samplerSampled;
+  }
+
+  /** Count of new traces the {@link Sampler trace ID sampler} decided not to sample. */
+  public long samplerNotSampled() {
+    return samplerNotSampled;
+  }
+
+  /**
+   * Count of new traces a {@link SamplerFunction}, such as for HTTP requests, decided to sample.
+   */
+  public long samplerFunctionSampled() {
+    return samplerFunctionSampled;
+  }
+
+  /** Count of new traces a {@link SamplerFunction} decided not to sample. */
+  public long samplerFunctionNotSampled() {
+    return samplerFunctionNotSampled;
+  }
+
+  /**
+   * Count of new traces a {@link SamplerFunction} deferred to the {@link Sampler trace ID
+   * sampler}. These are also counted by {@link #samplerSampled()} or {@link #samplerNotSampled()}.
+   */
+  public long samplerFunctionDeferred() {
+    return samplerFunctionDeferred;
+  }
+
+  /** Count of errors raised by {@link FinishedSpanHandler finished span handlers}. */
+  public long handlerErrors() {
+    return handlerErrors;
+  }
+
+  @Override public String toString() {
+    return "TracingMetrics{"
+      + "spansStarted=" + spansStarted
+      + ", spansFinished=" + spansFinished
+      + ", spansAbandoned=" + spansAbandoned
+      + ", spansFlushed=" + spansFlushed
+      + ", spansOrphaned=" + spansOrphaned
+      + ", pendingSpans=" + pendingSpans
+      + ", samplerSampled=" + samplerSampled
+      + ", samplerNotSampled=" + samplerNotSampled
+      + ", samplerFunctionSampled=" + samplerFunctionSampled
+      + ", samplerFunctionNotSampled=" + samplerFunctionNotSampled
+      + ", samplerFunctionDeferred=" + samplerFunctionDeferred
+      + ", handlerErrors=" + handlerErrors
+      + "}";
+  }
+}
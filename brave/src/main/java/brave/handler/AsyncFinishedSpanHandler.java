@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Platform;
+import brave.internal.handler.SpanRingBuffer;
+import brave.internal.recorder.StripedCounter;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import zipkin2.Call;
+
+/**
+ * Moves a finished span handler off the thread that finishes spans. Spans are copied into a
+ * bounded, lock-free ring buffer, and a daemon thread passes them to the delegate's {@link
+ * FinishedSpanHandler#handleBatch(List, List) batch method}.
+ *
+ * <p>Here's an example, which keeps request threads from waiting on a slow handler:
+ * <pre>{@code
+ * asyncHandler = AsyncFinishedSpanHandler.newBuilder(slowHandler)
+ *   .backpressure(Backpressure.DROP_OLDEST)
+ *   .build();
+ *
+ * tracingBuilder.addFinishedSpanHandler(asyncHandler);
+ * // when done
+ * asyncHandler.close();
+ * }</pre>
+ *
+ * <h3>Behavior differences with a synchronous handler</h3>
+ *
+ * <p>As the delegate runs later, it cannot drop spans from later handlers: this always returns
+ * true. Its changes to a span are also invisible to later handlers, including Zipkin, as it
+ * receives a {@link MutableSpan#MutableSpan(MutableSpan) copy}.
+ *
+ * @since 5.9
+ */
+public final class AsyncFinishedSpanHandler extends FinishedSpanHandler implements Closeable {
+  /** What to do when a span is finished while the buffer is full. */
+  public enum Backpressure {
+    /** Drops the span being finished. This is the default. */
+    DROP_NEWEST,
+    /** Drops the oldest span in the buffer, to make room for the span being finished. */
+    DROP_OLDEST,
+    /**
+     * Blocks the thread finishing the span until there is room, up to {@link
+     * Builder#blockTimeout(long, TimeUnit)}, then drops it.
+     */
+    BLOCK
+  }
+
+  public static Builder newBuilder(FinishedSpanHandler delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    final FinishedSpanHandler delegate;
+    int capacity = 8192, batchSize = 256;
+    Backpressure backpressure = Backpressure.DROP_NEWEST;
+    long blockTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+    Builder(FinishedSpanHandler delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /**
+     * Maximum spans waiting to be handled, rounded up to a power of two no less than two. Defaults
+     * to 8192.
+     */
+    public Builder capacity(int capacity) {
+      if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+      this.capacity = capacity;
+      return this;
+    }
+
+    /** Maximum spans handled before checking the buffer again. Defaults to 256. */
+    public Builder batchSize(int batchSize) {
+      if (batchSize < 1) throw new IllegalArgumentException("batchSize < 1");
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    /** Defaults to {@link Backpressure#DROP_NEWEST}. */
+    public Builder backpressure(Backpressure backpressure) {
+      if (backpressure == null) throw new NullPointerException("backpressure == null");
+      this.backpressure = backpressure;
+      return this;
+    }
+
+    /** Used with {@link Backpressure#BLOCK}. Defaults to one second. */
+    public Builder blockTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.blockTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /** Starts a daemon thread, which ends when the result is {@link #close() closed}. */
+    public AsyncFinishedSpanHandler build() {
+      AsyncFinishedSpanHandler result = new AsyncFinishedSpanHandler(this);
+      Thread thread = new Thread(result.new Consumer(), "brave-async-finished-span-handler");
+      thread.setDaemon(true);
+      result.thread = thread;
+      thread.start();
+      return result;
+    }
+  }
+
+  /** How long the consumer waits when there's no work, unless woken by a producer. */
+  static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  /** How long a blocked producer waits before checking for room again. */
+  static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  static final long CLOSE_TIMEOUT_MILLIS = 1000L;
+
+  final FinishedSpanHandler delegate;
+  final SpanRingBuffer buffer;
+  final int batchSize;
+  final Backpressure backpressure;
+  final long blockTimeoutNanos;
+  final boolean alwaysSampleLocal, supportsOrphans;
+  final AtomicLong publishedCount = new AtomicLong(), droppedCount = new AtomicLong(),
+    handledCount = new AtomicLong();
+  /** Producers between their {@link #closed} check and offer. The consumer waits for them. */
+  final StripedCounter producing = new StripedCounter();
+  volatile Thread thread;
+  volatile boolean consumerIdle, closed;
+
+  AsyncFinishedSpanHandler(Builder builder) {
+    delegate = builder.delegate;
+    buffer = new SpanRingBuffer(builder.capacity);
+    batchSize = builder.batchSize;
+    backpressure = builder.backpressure;
+    blockTimeoutNanos = builder.blockTimeoutNanos;
+    // these are read once, so we can cache them
+    alwaysSampleLocal = delegate.alwaysSampleLocal();
+    supportsOrphans = delegate.supportsOrphans();
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    // Marking before checking closed means the consumer cannot exit before our offer is visible
+    producing.increment();
+    try {
+      if (closed) {
+        droppedCount.incrementAndGet();
+        return true;
+      }
+
+      // Copy as later handlers, notably Zipkin, can modify the span while we are processing it
+      MutableSpan copy = new MutableSpan(span);
+      if (buffer.offer(context, copy) || offerWhenFull(context, copy)) {
+        publishedCount.incrementAndGet();
+        if (consumerIdle) LockSupport.unpark(thread);
+      } else {
+        droppedCount.incrementAndGet();
+      }
+      return true;
+    } finally {
+      producing.add(-1L);
+    }
+  }
+
+  boolean offerWhenFull(TraceContext context, MutableSpan span) {
+    switch (backpressure) {
+      case DROP_OLDEST:
+        do {
+          if (buffer.dropOldest()) droppedCount.incrementAndGet();
+        } while (!buffer.offer(context, span));
+        return true;
+      case BLOCK:
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        do {
+          LockSupport.unpark(thread); // in case the consumer is idle
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0L || closed) return false;
+          LockSupport.parkNanos(this, Math.min(remaining, BLOCK_PARK_NANOS));
+        } while (!buffer.offer(context, span));
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  @Override public boolean alwaysSampleLocal() {
+    return alwaysSampleLocal;
+  }
+
+  @Override public boolean supportsOrphans() {
+    return supportsOrphans;
+  }
+
+  /** Returns the count of spans accepted into the buffer. */
+  public long publishedCount() {
+    return publishedCount.get();
+  }
+
+  /** Returns the count of spans dropped due to backpressure or being {@link #close() closed}. */
+  public long droppedCount() {
+    return droppedCount.get();
+  }
+
+  /** Returns the count of spans passed to the delegate, including those which raised errors. */
+  public long handledCount() {
+    return handledCount.get();
+  }
+
+  /**
+   * Stops accepting spans, and waits up to a second for the delegate to handle those already in the
+   * buffer.
+   */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    Thread thread = this.thread;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override public String toString() {
+    return "AsyncFinishedSpanHandler{" + delegate + "}";
+  }
+
+  final class Consumer implements Runnable {
+    final TraceContext[] contexts = new TraceContext[batchSize];
+    final MutableSpan[] spans = new MutableSpan[batchSize];
+    // views of the above arrays, so that we can pass batches without copying
+    final List<TraceContext> contextList = Arrays.asList(contexts);
+    final List<MutableSpan> spanList = Arrays.asList(spans);
+
+    @Override public void run() {
+      while (true) {
+        int count = buffer.drainTo(contexts, spans, batchSize);
+        if (count > 0) {
+          handleBatch(count);
+          continue;
+        }
+        if (closed) {
+          // we only exit after the buffer is drained, including offers in progress when closed
+          if (producing.sum() == 0L && buffer.size() == 0) return;
+          LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+          continue;
+        }
+        consumerIdle = true;
+        // double-check, as a producer may have published before seeing the idle flag
+        if (buffer.size() == 0) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        consumerIdle = false;
+      }
+    }
+
+    void handleBatch(int count) {
+      try {
+        delegate.handleBatch(contextList.subList(0, count), spanList.subList(0, count));
+      } catch (Throwable t) {
+        Call.propagateIfFatal(t);
+        Platform.get().log("error handling batch of {0} spans", count, t);
+      }
+      handledCount.addAndGet(count);
+      Arrays.fill(contexts, 0, count, null);
+      Arrays.fill(spans, 0, count, null);
+    }
+  }
+}
@@ -15,8 +15,11 @@ package brave.handler;
 
 import brave.Span;
 import brave.Tracer;
+import brave.internal.Platform;
 import brave.internal.recorder.PendingSpans;
 import brave.propagation.TraceContext;
+import java.util.List;
+import zipkin2.Call;
 
 /**
  * Triggered on each finished span except when spans that are {@link Span#isNoop() no-op}.
@@ -57,7 +60,7 @@ public abstract class FinishedSpanHandler {
    * instrumentation policy approach to this mechanism as it results in less overhead.
    *
    * <p>Implementations should not hold a reference to it after this method returns. This is to
-   * allow object recycling.
+   * allow object recycling. If you must, override {@link #retainsSpan()}.
    *
    * @param context the trace context which is {@link TraceContext#sampled()} or {@link
    * TraceContext#sampledLocal()}. This includes identifiers and potentially {@link
@@ -70,6 +73,35 @@ public abstract class FinishedSpanHandler {
    */
   public abstract boolean handle(TraceContext context, MutableSpan span);
 
+  /**
+   * Handles spans delivered together, such as those drained from a queue by {@link
+   * AsyncFinishedSpanHandler}, or orphans reported at the same time. By default, this calls {@link
+   * #handle(TraceContext, MutableSpan)} for each span, in order. An error handling one span is
+   * logged, and doesn't prevent handling the others.
+   *
+   * <p>Override this to amortize per-call costs, such as locks, syscalls or encoder setup, across
+   * many spans. Unlike {@code handle}, there is no return value: composite handlers which need to
+   * drop spans from later handlers keep the default, which stops at a handler returning false.
+   *
+   * <p>Like {@code handle}, implementations should not hold a reference to the lists or their
+   * spans after this method returns, unless they say so via {@link #retainsSpan()}.
+   *
+   * @param contexts the trace context of each span, at the same index as {@code spans}
+   * @param spans spans to handle, at the same index as their {@code contexts}
+   * @since 5.9
+   */
+  public void handleBatch(List<TraceContext> contexts, List<MutableSpan> spans) {
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      TraceContext context = contexts.get(i);
+      try {
+        handle(context, spans.get(i));
+      } catch (Throwable t) {
+        Call.propagateIfFatal(t);
+        Platform.get().log("error handling span {0}", context, t);
+      }
+    }
+  }
+
   /**
    * Normally, {@link #handle(TraceContext, MutableSpan)} is only called upon explicit termination
    * of a span: {@link Span#finish()}, {@link Span#finish(long)} or {@link Span#flush()}. When this
@@ -126,6 +158,22 @@ public abstract class FinishedSpanHandler {
     return false;
   }
 
+  /**
+   * Returns true if this handler holds a reference to the {@link MutableSpan} after {@link
+   * #handle(TraceContext, MutableSpan) handle} returns. For example, it queues the span for
+   * processing on another thread. Defaults to false.
+   *
+   * <p>When {@link brave.Tracing.Builder#recycleSpans() recycling spans}, the tracer reuses span
+   * state once all handlers return. If any handler returns true here, recycling is disabled, so
+   * that the retained span isn't overwritten by another trace. Like {@link #supportsOrphans()},
+   * this value should be constant, as it is only read once.
+   *
+   * @since 5.9
+   */
+  public boolean retainsSpan() {
+    return false;
+  }
+
   /**
    * When true, all spans become real spans even if they aren't sampled remotely. This allows
    * finished span handlers (such as metrics) to consider attributes that are not always visible
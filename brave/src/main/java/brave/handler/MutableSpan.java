@@ -15,10 +15,12 @@ package brave.handler;
 
 import brave.Span.Kind;
 import brave.Tracer;
+import brave.internal.InternalMutableSpan;
 import brave.internal.IpLiteral;
 import brave.internal.Nullable;
+import brave.internal.SpanLimits;
 import brave.propagation.TraceContext;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -28,6 +30,25 @@ import java.util.Locale;
  * mutated without synchronization.
  */
 public final class MutableSpan implements Cloneable {
+  static {
+    InternalMutableSpan.instance = new InternalMutableSpan() {
+      @Override public void clear(MutableSpan span) {
+        span.clear();
+      }
+
+      @Override public MutableSpan fragment(MutableSpan span) {
+        return span.fragment();
+      }
+
+      @Override public void limits(MutableSpan span, @Nullable SpanLimits limits) {
+        span.limits = limits;
+      }
+
+      @Override public int generation(MutableSpan span) {
+        return span.generation;
+      }
+    };
+  }
 
   public interface TagConsumer<T> {
     /** @see brave.Span#tag(String, String) */
@@ -62,21 +83,75 @@ public final class MutableSpan implements Cloneable {
    * like array allocation and object reference size.
    */
   Kind kind;
-  boolean shared;
+  boolean shared, fragment;
   long startTimestamp, finishTimestamp;
   String name, localServiceName, localIp, remoteServiceName, remoteIp;
   int localPort, remotePort;
 
-  /** To reduce the amount of allocation use a pair-indexed list for tag (key, value). */
-  ArrayList<String> tags;
-  /** Also use pair indexing for annotations, but type object to store (startTimestamp, value). */
-  ArrayList<Object> annotations;
+  /**
+   * To reduce the amount of allocation use a pair-indexed array for tag (key, value). This is lazy
+   * initialized and grows as needed, so only {@link #tagCount} pairs are valid.
+   */
+  String[] tags;
+  int tagCount;
+  /**
+   * Annotations are stored as parallel arrays, so that timestamps are not boxed. These are lazy
+   * initialized and grow as needed, so only {@link #annotationCount} entries are valid.
+   */
+  long[] annotationTimestamps;
+  String[] annotationValues;
+  int annotationCount;
   Throwable error;
 
+  /** Enforced by {@link #tag(String, String)} and {@link #annotate(long, String)} when present. */
+  @Nullable SpanLimits limits;
+  /** Estimated size of tags and annotations, only tracked when there are {@link #limits}. */
+  int sizeInBytes;
+  /** Lazy initialized when a limit is first exceeded, indexed by {@link #DROPPED_TAGS} etc. */
+  @Nullable int[] limitCounts;
+  /** Incremented on {@link #clear()}, so that wrappers can tell when this instance was reused. */
+  int generation;
+
+  static final int DROPPED_TAGS = 0, DROPPED_ANNOTATIONS = 1, TRUNCATED_TAGS = 2;
+  static final String[] LIMIT_COUNT_KEYS = {
+    SpanLimits.DROPPED_TAGS, SpanLimits.DROPPED_ANNOTATIONS, SpanLimits.TRUNCATED_TAGS
+  };
+
   public MutableSpan() {
-    // this cheats because it will not need to grow unless there are more than 5 tags
-    tags = new ArrayList<>();
-    // lazy initialize annotations
+    // lazy initialize tags and annotations
+  }
+
+  /**
+   * Copies all data from the input, for handlers that process a span after {@link
+   * FinishedSpanHandler#handle} returns.
+   *
+   * @since 5.9
+   */
+  public MutableSpan(MutableSpan toCopy) {
+    if (toCopy == null) throw new NullPointerException("toCopy == null");
+    kind = toCopy.kind;
+    shared = toCopy.shared;
+    fragment = toCopy.fragment;
+    startTimestamp = toCopy.startTimestamp;
+    finishTimestamp = toCopy.finishTimestamp;
+    name = toCopy.name;
+    localServiceName = toCopy.localServiceName;
+    localIp = toCopy.localIp;
+    remoteServiceName = toCopy.remoteServiceName;
+    remoteIp = toCopy.remoteIp;
+    localPort = toCopy.localPort;
+    remotePort = toCopy.remotePort;
+    if (toCopy.tagCount > 0) {
+      tags = Arrays.copyOf(toCopy.tags, toCopy.tagCount * 2);
+      tagCount = toCopy.tagCount;
+    }
+    if (toCopy.annotationCount > 0) {
+      annotationTimestamps =
+        Arrays.copyOf(toCopy.annotationTimestamps, toCopy.annotationCount);
+      annotationValues = Arrays.copyOf(toCopy.annotationValues, toCopy.annotationCount);
+      annotationCount = toCopy.annotationCount;
+    }
+    error = toCopy.error;
   }
 
   /** Returns true if there was no data added. Usually this indicates an instrumentation bug. */
@@ -92,11 +167,42 @@ public final class MutableSpan implements Cloneable {
       && remoteIp == null
       && localPort == 0
       && remotePort == 0
-      && tags.isEmpty()
-      && annotations == null
+      && tagCount == 0
+      && annotationCount == 0
       && error == null;
   }
 
+  /** Resets all data, retaining tag and annotation arrays, so that this instance can be reused */
+  void clear() {
+    kind = null;
+    shared = fragment = false;
+    startTimestamp = finishTimestamp = 0L;
+    name = localServiceName = localIp = remoteServiceName = remoteIp = null;
+    localPort = remotePort = 0;
+    if (tagCount > 0) Arrays.fill(tags, 0, tagCount * 2, null);
+    tagCount = 0;
+    if (annotationCount > 0) Arrays.fill(annotationValues, 0, annotationCount, null);
+    annotationCount = 0;
+    error = null;
+    limits = null;
+    sizeInBytes = 0;
+    limitCounts = null;
+    generation++;
+  }
+
+  /** Copies this span, then resets tags and annotations, retaining their arrays. */
+  MutableSpan fragment() {
+    MutableSpan result = new MutableSpan(this);
+    result.fragment = true;
+    if (tagCount > 0) Arrays.fill(tags, 0, tagCount * 2, null);
+    tagCount = 0;
+    if (annotationCount > 0) Arrays.fill(annotationValues, 0, annotationCount, null);
+    annotationCount = 0;
+    sizeInBytes = 0; // counters are in the fragment, so start again
+    limitCounts = null;
+    return result;
+  }
+
   /** Returns the {@link brave.Span#name(String) span name} or null */
   @Nullable public String name() {
     return name;
@@ -221,10 +327,8 @@ public final class MutableSpan implements Cloneable {
   /** Returns true if an annotation with the given value exists in this span. */
   public boolean containsAnnotation(String value) {
     if (value == null) throw new NullPointerException("value == null");
-    if (annotations == null) return false;
-
-    for (int i = 0, length = annotations.size(); i < length; i += 2) {
-      if (value.equals(annotations.get(i + 1))) return true;
+    for (int i = 0; i < annotationCount; i++) {
+      if (value.equals(annotationValues[i])) return true;
     }
     return false;
   }
@@ -233,9 +337,18 @@ public final class MutableSpan implements Cloneable {
   public void annotate(long timestamp, String value) {
     if (value == null) throw new NullPointerException("value == null");
     if (timestamp == 0L) return;
-    if (annotations == null) annotations = new ArrayList<>();
-    annotations.add(timestamp);
-    annotations.add(value);
+    if (limits != null && !withinAnnotationLimits(value)) return;
+    if (annotationValues == null) {
+      annotationTimestamps = new long[2];
+      annotationValues = new String[2];
+    } else if (annotationCount == annotationValues.length) {
+      int newLength = annotationCount * 2;
+      annotationTimestamps = Arrays.copyOf(annotationTimestamps, newLength);
+      annotationValues = Arrays.copyOf(annotationValues, newLength);
+    }
+    annotationTimestamps[annotationCount] = timestamp;
+    annotationValues[annotationCount] = value;
+    annotationCount++;
   }
 
   /** @see brave.Span#error(Throwable) */
@@ -252,11 +365,8 @@ public final class MutableSpan implements Cloneable {
   @Nullable public String tag(String key) {
     if (key == null) throw new NullPointerException("key == null");
     if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
-    String result = null;
-    for (int i = 0, length = tags.size(); i < length; i += 2) {
-      if (key.equals(tags.get(i))) result = tags.get(i + 1);
-    }
-    return result;
+    int i = indexOfTag(key);
+    return i != -1 ? tags[i + 1] : null;
   }
 
   /** @see brave.Span#tag(String, String) */
@@ -264,68 +374,154 @@ public final class MutableSpan implements Cloneable {
     if (key == null) throw new NullPointerException("key == null");
     if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
     if (value == null) throw new NullPointerException("value of " + key + " == null");
-    for (int i = 0, length = tags.size(); i < length; i += 2) {
-      if (key.equals(tags.get(i))) {
-        tags.set(i + 1, value);
-        return;
+    int i = indexOfTag(key);
+    if (limits != null && (value = limitTag(i, key, value)) == null) return;
+    putTag(i, key, value);
+  }
+
+  void putTag(int i, String key, String value) {
+    if (i != -1) {
+      tags[i + 1] = value;
+      return;
+    }
+    if (tags == null) {
+      tags = new String[10]; // this will not need to grow unless there are more than 5 tags
+    } else if (tagCount * 2 == tags.length) {
+      tags = Arrays.copyOf(tags, tags.length * 2);
+    }
+    i = tagCount * 2;
+    tags[i] = key;
+    tags[i + 1] = value;
+    tagCount++;
+  }
+
+  /**
+   * Returns the value to add, which is truncated if too long, or null if the tag should be dropped.
+   *
+   * @param i the index of an existing tag with the same key or -1
+   */
+  @Nullable String limitTag(int i, String key, String value) {
+    SpanLimits limits = this.limits;
+    int valueLength = value.length();
+    boolean truncate = valueLength > limits.maxTagValueLength;
+    if (truncate) {
+      valueLength = limits.maxTagValueLength;
+      // don't split a surrogate pair
+      if (valueLength > 0 && Character.isHighSurrogate(value.charAt(valueLength - 1))) {
+        valueLength--;
       }
     }
-    tags.add(key);
-    tags.add(value);
+    int size = i != -1 ? valueLength - tags[i + 1].length() : key.length() + valueLength;
+    if ((i == -1 && tagCount - limitCountTags() >= limits.maxTags)
+      || size > limits.maxSpanBytes - sizeInBytes) {
+      incrementLimitCount(DROPPED_TAGS);
+      return null;
+    }
+    sizeInBytes += size;
+    if (!truncate) return value;
+    incrementLimitCount(TRUNCATED_TAGS);
+    return value.substring(0, valueLength);
+  }
+
+  boolean withinAnnotationLimits(String value) {
+    int size = value.length() + 8; // includes the timestamp
+    if (annotationCount >= limits.maxAnnotations || size > limits.maxSpanBytes - sizeInBytes) {
+      incrementLimitCount(DROPPED_ANNOTATIONS);
+      return false;
+    }
+    sizeInBytes += size;
+    return true;
+  }
+
+  /** Updates the counter tag, which is not subject to limits. */
+  void incrementLimitCount(int index) {
+    if (limitCounts == null) limitCounts = new int[LIMIT_COUNT_KEYS.length];
+    String key = LIMIT_COUNT_KEYS[index];
+    putTag(indexOfTag(key), key, String.valueOf(++limitCounts[index]));
+  }
+
+  /** Returns the count of tags added by {@link #incrementLimitCount(int)}. */
+  int limitCountTags() {
+    if (limitCounts == null) return 0;
+    int result = 0;
+    for (int count : limitCounts) {
+      if (count > 0) result++;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the index of the key in the pair-indexed tags array or -1.
+   *
+   * <p>Well-known keys, such as "http.path", are usually string constants, so the same instance.
+   * We compare by reference before calling equals, as identity is cheaper to check.
+   */
+  @SuppressWarnings("ReferenceEquality") // intentional: fast path for interned keys
+  int indexOfTag(String key) {
+    for (int i = 0, length = tagCount * 2; i < length; i += 2) {
+      String next = tags[i];
+      if (next == key || key.equals(next)) return i;
+    }
+    return -1;
   }
 
   public <T> void forEachTag(TagConsumer<T> tagConsumer, T target) {
-    for (int i = 0, length = tags.size(); i < length; i += 2) {
-      tagConsumer.accept(target, tags.get(i), tags.get(i + 1));
+    String[] tags = this.tags;
+    for (int i = 0, length = tagCount * 2; i < length; i += 2) {
+      tagConsumer.accept(target, tags[i], tags[i + 1]);
     }
   }
 
   /** Allows you to update values for redaction purposes */
   public void forEachTag(TagUpdater tagUpdater) {
-    for (int i = 0, length = tags.size(); i < length; i += 2) {
-      String value = tags.get(i + 1);
-      String newValue = tagUpdater.update(tags.get(i), value);
-      if (updateOrRemove(tags, i, value, newValue)) {
-        length -= 2;
-        i -= 2;
-      }
+    int j = 0; // index to write to, which is behind i when tags are removed
+    for (int i = 0, length = tagCount * 2; i < length; i += 2) {
+      String key = tags[i], newValue = tagUpdater.update(key, tags[i + 1]);
+      if (newValue == null) continue;
+      tags[j] = key;
+      tags[j + 1] = newValue;
+      j += 2;
     }
+    if (j < tagCount * 2) Arrays.fill(tags, j, tagCount * 2, null);
+    tagCount = j / 2;
   }
 
   /**
    * Allows you to copy all data into a different target, such as a different span model or logs.
    */
   public <T> void forEachAnnotation(AnnotationConsumer<T> annotationConsumer, T target) {
-    if (annotations == null) return;
-    for (int i = 0, length = annotations.size(); i < length; i += 2) {
-      long timestamp = (long) annotations.get(i);
-      annotationConsumer.accept(target, timestamp, annotations.get(i + 1).toString());
+    long[] timestamps = annotationTimestamps;
+    String[] values = annotationValues;
+    for (int i = 0, length = annotationCount; i < length; i++) {
+      annotationConsumer.accept(target, timestamps[i], values[i]);
     }
   }
 
   /** Allows you to update values for redaction purposes */
   public void forEachAnnotation(AnnotationUpdater annotationUpdater) {
-    if (annotations == null) return;
-    for (int i = 0, length = annotations.size(); i < length; i += 2) {
-      String value = annotations.get(i + 1).toString();
-      String newValue = annotationUpdater.update((long) annotations.get(i), value);
-      if (updateOrRemove(annotations, i, value, newValue)) {
-        length -= 2;
-        i -= 2;
-      }
+    int j = 0; // index to write to, which is behind i when annotations are removed
+    for (int i = 0; i < annotationCount; i++) {
+      long timestamp = annotationTimestamps[i];
+      String newValue = annotationUpdater.update(timestamp, annotationValues[i]);
+      if (newValue == null) continue;
+      annotationTimestamps[j] = timestamp;
+      annotationValues[j] = newValue;
+      j++;
     }
+    if (j < annotationCount) Arrays.fill(annotationValues, j, annotationCount, null);
+    annotationCount = j;
   }
 
-  /** Returns true if the key/value was removed from the pair-indexed list at index {@code i} */
-  static boolean updateOrRemove(ArrayList list, int i, Object value, @Nullable Object newValue) {
-    if (newValue == null) {
-      list.remove(i);
-      list.remove(i);
-      return true;
-    } else if (!value.equals(newValue)) {
-      list.set(i + 1, newValue);
-    }
-    return false;
+  /**
+   * Returns true if this is a fragment of a span still in progress, as opposed to a finished span.
+   * Fragments are reported when {@link brave.Tracing.Builder#spanFragmentInterval(long,
+   * java.util.concurrent.TimeUnit) configured}. Handlers that aggregate finished spans, such as
+   * metrics, should skip them.
+   *
+   * @since 5.9
+   */
+  public boolean isFragment() {
+    return fragment;
   }
 
   /** Returns true if the span ID is {@link #setShared() shared} with a remote client. */
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.internal.Nullable;
+import brave.internal.recorder.StripedCounter;
+import brave.internal.recorder.StripedLongArray;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aggregates rate, errors and duration (RED) metrics from all spans, including those not sampled
+ * to Zipkin. This allows a low sample rate without losing accuracy of request metrics.
+ *
+ * <p>Spans are grouped by name, kind, local and remote service name, and whether they had an
+ * error. Durations are recorded in a log-linear histogram, with a relative error of at most 1/16.
+ *
+ * <p>Here's an example, which reports 1% of traces, yet exports metrics for all requests:
+ * <pre>{@code
+ * redMetrics = RedMetricsFinishedSpanHandler.newBuilder().build();
+ * tracing = Tracing.newBuilder()
+ *   .sampler(Sampler.create(0.01f))
+ *   .addFinishedSpanHandler(redMetrics)
+ *   ...
+ *
+ * // periodically
+ * for (RedMetricsFinishedSpanHandler.Metric metric : redMetrics.snapshot()) {
+ *   export(metric.name(), metric.count(), metric.percentileMicros(0.99));
+ * }
+ * }</pre>
+ *
+ * <h3>Cardinality</h3>
+ * Span names should be low cardinality, but instrumentation bugs can violate this. To bound
+ * memory, no more than {@link Builder#maxKeys(int)} groups are created. Spans which would create
+ * more are only counted by {@link #overflowCount()}.
+ *
+ * @since 5.9
+ */
+public final class RedMetricsFinishedSpanHandler extends FinishedSpanHandler {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int maxKeys = 1000;
+
+    Builder() {
+    }
+
+    /** Maximum groups of span name, kind, service names and error status. Defaults to 1000. */
+    public Builder maxKeys(int maxKeys) {
+      if (maxKeys < 1) throw new IllegalArgumentException("maxKeys < 1");
+      this.maxKeys = maxKeys;
+      return this;
+    }
+
+    public RedMetricsFinishedSpanHandler build() {
+      return new RedMetricsFinishedSpanHandler(this);
+    }
+  }
+
+  /** Sub-buckets per power of two. 4 bits bounds the relative error of a bucket to 1/16. */
+  static final int SUB_BUCKET_BITS = 4, SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  /** Durations are clamped to about 19 hours, which keeps the bucket count at 528. */
+  static final long MAX_DURATION_MICROS = (1L << 36) - 1;
+  static final int BUCKET_COUNT = bucketIndex(MAX_DURATION_MICROS) + 1;
+
+  /** Returns a bucket whose values share their most significant bits. */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) return (int) value; // exact for small values
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+    return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /** Returns the smallest value in the bucket. */
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKET_COUNT) return index;
+    int shift = index / SUB_BUCKET_COUNT - 1, subBucket = index % SUB_BUCKET_COUNT;
+    return (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+  }
+
+  static final ThreadLocal<Key> LOOKUP_KEY = new ThreadLocal<>();
+
+  final int maxKeys;
+  final ConcurrentMap<Key, Aggregate> aggregates = new ConcurrentHashMap<>();
+  final AtomicInteger keyCount = new AtomicInteger();
+  final StripedCounter overflowCount = new StripedCounter();
+
+  RedMetricsFinishedSpanHandler(Builder builder) {
+    maxKeys = builder.maxKeys;
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    if (span.isFragment()) return true; // the span is counted once, when it finishes
+    Key lookupKey = LOOKUP_KEY.get();
+    if (lookupKey == null) LOOKUP_KEY.set(lookupKey = new Key());
+    lookupKey.set(span);
+
+    Aggregate aggregate = aggregates.get(lookupKey);
+    if (aggregate == null) aggregate = newAggregate(lookupKey);
+    if (aggregate == null) {
+      overflowCount.increment();
+      return true;
+    }
+
+    long start = span.startTimestamp(), finish = span.finishTimestamp();
+    aggregate.record(start != 0L && finish != 0L ? Math.max(0L, finish - start) : -1L);
+    return true;
+  }
+
+  /** Returns null if there are already too many groups. */
+  @Nullable Aggregate newAggregate(Key lookupKey) {
+    if (keyCount.incrementAndGet() > maxKeys) {
+      keyCount.decrementAndGet();
+      return null;
+    }
+    Key key = lookupKey.copy(); // the lookup key is reused, so we need a copy to store
+    Aggregate result = new Aggregate(key), previous = aggregates.putIfAbsent(key, result);
+    if (previous != null) { // lost race
+      keyCount.decrementAndGet();
+      return previous;
+    }
+    return result;
+  }
+
+  @Override public boolean alwaysSampleLocal() {
+    return true;
+  }
+
+  /** Returns the count of spans not aggregated, as {@link Builder#maxKeys(int)} was reached. */
+  public long overflowCount() {
+    return overflowCount.sum();
+  }
+
+  /**
+   * Returns cumulative metrics for each group of spans seen so far. Values are read without
+   * locking, so a snapshot may not include spans handled concurrently.
+   */
+  public List<Metric> snapshot() {
+    List<Metric> result = new ArrayList<>(keyCount.get());
+    for (Aggregate aggregate : aggregates.values()) result.add(aggregate.snapshot());
+    return result;
+  }
+
+  @Override public String toString() {
+    return "RedMetricsFinishedSpanHandler{keys=" + keyCount.get() + "}";
+  }
+
+  /** Cumulative metrics of a group of spans. */
+  public static final class Metric {
+    final Key key;
+    final long count, durationCount, durationSumMicros;
+    final long[] buckets;
+
+    Metric(Key key, long count, long durationCount, long durationSumMicros, long[] buckets) {
+      this.key = key;
+      this.count = count;
+      this.durationCount = durationCount;
+      this.durationSumMicros = durationSumMicros;
+      this.buckets = buckets;
+    }
+
+    /** @see MutableSpan#name() */
+    @Nullable public String name() {
+      return key.name;
+    }
+
+    /** @see MutableSpan#kind() */
+    @Nullable public Kind kind() {
+      return key.kind;
+    }
+
+    /** @see MutableSpan#localServiceName() */
+    @Nullable public String localServiceName() {
+      return key.localServiceName;
+    }
+
+    /** @see MutableSpan#remoteServiceName() */
+    @Nullable public String remoteServiceName() {
+      return key.remoteServiceName;
+    }
+
+    /** True when spans in this group had an {@link MutableSpan#error() error} or "error" tag. */
+    public boolean error() {
+      return key.error;
+    }
+
+    /** Count of spans handled in this group. */
+    public long count() {
+      return count;
+    }
+
+    /** Count of spans with both a start and finish timestamp, which contribute to duration. */
+    public long durationCount() {
+      return durationCount;
+    }
+
+    /** Sum of span durations in microseconds, useful to compute a mean. */
+    public long durationSumMicros() {
+      return durationSumMicros;
+    }
+
+    /**
+     * Returns the upper bound of the histogram bucket that includes the given percentile of
+     * durations, or zero if there were none.
+     *
+     * @param percentile between 0.0 and 1.0. For example, 0.99 is the 99th percentile.
+     */
+    public long percentileMicros(double percentile) {
+      if (percentile < 0.0 || percentile > 1.0) {
+        throw new IllegalArgumentException("percentile must be between 0.0 and 1.0");
+      }
+      long total = 0L;
+      for (long bucket : buckets) total += bucket;
+      if (total == 0L) return 0L;
+
+      long rank = Math.max(1L, (long) Math.ceil(percentile * total)), seen = 0L;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank) return bucketLowerBound(i + 1) - 1;
+      }
+      return MAX_DURATION_MICROS; // unreachable unless concurrently modified
+    }
+
+    @Override public String toString() {
+      return "Metric{" + key + ", count=" + count + ", p50=" + percentileMicros(0.5)
+        + ", p99=" + percentileMicros(0.99) + "}";
+    }
+  }
+
+  static final class Aggregate {
+    final Key key;
+    final StripedCounter count = new StripedCounter(), durationSum = new StripedCounter();
+    final StripedLongArray buckets = new StripedLongArray(BUCKET_COUNT);
+
+    Aggregate(Key key) {
+      this.key = key;
+    }
+
+    /** @param durationMicros negative when unknown */
+    void record(long durationMicros) {
+      count.increment();
+      if (durationMicros < 0L) return;
+      durationMicros = Math.min(durationMicros, MAX_DURATION_MICROS);
+      durationSum.add(durationMicros);
+      buckets.increment(bucketIndex(durationMicros));
+    }
+
+    Metric snapshot() {
+      long[] copy = new long[BUCKET_COUNT];
+      buckets.sumTo(copy);
+      long durationCount = 0L;
+      for (long bucket : copy) durationCount += bucket;
+      return new Metric(key, count.sum(), durationCount, durationSum.sum(), copy);
+    }
+  }
+
+  /** Mutable so that a thread-local instance can be used for lookups. */
+  static final class Key {
+    String name, localServiceName, remoteServiceName;
+    Kind kind;
+    boolean error;
+    int hashCode;
+
+    void set(MutableSpan span) {
+      set(span.name(), span.kind(), span.localServiceName(), span.remoteServiceName(),
+        span.error() != null || span.tag("error") != null);
+    }
+
+    void set(String name, Kind kind, String localServiceName, String remoteServiceName,
+      boolean error) {
+      this.name = name;
+      this.kind = kind;
+      this.localServiceName = localServiceName;
+      this.remoteServiceName = remoteServiceName;
+      this.error = error;
+      int h = 1;
+      h *= 1000003;
+      h ^= name == null ? 0 : name.hashCode();
+      h *= 1000003;
+      h ^= kind == null ? 0 : kind.hashCode();
+      h *= 1000003;
+      h ^= localServiceName == null ? 0 : localServiceName.hashCode();
+      h *= 1000003;
+      h ^= remoteServiceName == null ? 0 : remoteServiceName.hashCode();
+      h *= 1000003;
+      h ^= error ? 1231 : 1237;
+      hashCode = h;
+    }
+
+    Key copy() {
+      Key result = new Key();
+      result.set(name, kind, localServiceName, remoteServiceName, error);
+      return result;
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof Key)) return false;
+      Key that = (Key) o;
+      return hashCode == that.hashCode
+        && error == that.error
+        && kind == that.kind
+        && equal(name, that.name)
+        && equal(localServiceName, that.localServiceName)
+        && equal(remoteServiceName, that.remoteServiceName);
+    }
+
+    static boolean equal(@Nullable Object a, @Nullable Object b) {
+      return a == null ? b == null : a.equals(b); // Java 6 can't use Objects.equals
+    }
+
+    @Override public String toString() {
+      return "name=" + name + ", kind=" + kind + ", localServiceName=" + localServiceName
+        + ", remoteServiceName=" + remoteServiceName + ", error=" + error;
+    }
+  }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Platform;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Call;
+
+/**
+ * Merges a {@link TraceContext#shared() shared} span with the span of the same ID that started it,
+ * when both are in the same process. For example, this reports one span instead of two when a
+ * client calls a server in the same JVM.
+ *
+ * <p>A shared span, such as a server, usually finishes before its caller. Shared spans are held
+ * for up to {@link Builder#window(long, TimeUnit)}. If the caller finishes in that time, the
+ * shared span's tags and annotations are added to it, along with "sr" and "ss" annotations for the
+ * shared span's start and finish. The result is passed to the delegate as one span. Otherwise,
+ * both are passed to the delegate unchanged.
+ *
+ * <p>Here's an example:
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *   .mergeSharedSpans(SharedSpanMergingFinishedSpanHandler.newBuilder())
+ *   ...
+ * }</pre>
+ *
+ * <h3>Latency</h3>
+ * Shared spans whose caller is in another process are passed to the delegate when their window
+ * expires. Expiration is checked when other spans are handled, and by a daemon thread which runs
+ * once per window while any span is held, so that idle processes still report. When more than
+ * {@link Builder#maxSpans(int)} are held, the oldest are passed on early.
+ *
+ * <p>{@link #close() Closing} passes all held spans to the delegate. This happens implicitly when
+ * the handler was configured via {@link brave.Tracing.Builder#mergeSharedSpans(Builder)}.
+ *
+ * @since 5.9
+ */
+public final class SharedSpanMergingFinishedSpanHandler extends FinishedSpanHandler
+  implements Closeable {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    long windowNanos = TimeUnit.SECONDS.toNanos(1);
+    int maxSpans = 1000;
+
+    Builder() {
+    }
+
+    /** How long to hold a shared span, waiting for its caller to finish. Defaults to 1 second. */
+    public Builder window(long duration, TimeUnit unit) {
+      if (duration <= 0) throw new IllegalArgumentException("duration <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.windowNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /** Maximum shared spans held, waiting for their caller to finish. Defaults to 1000. */
+    public Builder maxSpans(int maxSpans) {
+      if (maxSpans < 1) throw new IllegalArgumentException("maxSpans < 1");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /**
+     * @param delegate receives merged spans, and those which were not merged. This is usually
+     * configured implicitly, via {@link brave.Tracing.Builder#mergeSharedSpans(Builder)}.
+     */
+    public SharedSpanMergingFinishedSpanHandler build(FinishedSpanHandler delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      return new SharedSpanMergingFinishedSpanHandler(this, delegate);
+    }
+  }
+
+  final FinishedSpanHandler delegate;
+  final boolean alwaysSampleLocal, supportsOrphans;
+  final long windowNanos;
+  final int maxSpans;
+  // Insertion order means the first entry is the oldest, which expires first
+  final LinkedHashMap<SpanKey, Held> held = new LinkedHashMap<>(); // guarded by itself
+  /** Size of {@link #held}, readable without its lock. Written while holding it. */
+  volatile int heldCount;
+  final AtomicLong mergedCount = new AtomicLong();
+  volatile Thread flusher; // lazy, as most processes never receive a shared span
+  volatile boolean closed;
+
+  SharedSpanMergingFinishedSpanHandler(Builder builder, FinishedSpanHandler delegate) {
+    this.delegate = delegate;
+    alwaysSampleLocal = delegate.alwaysSampleLocal();
+    supportsOrphans = delegate.supportsOrphans();
+    windowNanos = builder.windowNanos;
+    maxSpans = builder.maxSpans;
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    if (span.isFragment()) return delegate.handle(context, span); // only merge finished spans
+    // Most spans are not shared, and there's nothing to merge or expire while none are held.
+    if (!context.shared() && heldCount == 0) return delegate.handle(context, span);
+    if (context.shared() && closed) return delegate.handle(context, span); // nothing will flush
+    long now = System.nanoTime();
+    List<Held> expired;
+    Held shared = null, replaced = null;
+    SpanKey key = new SpanKey(context);
+    synchronized (held) {
+      // Expire first, so that we don't merge a span we should have already passed on
+      expired = removeExpired(now, context.shared() ? maxSpans - 1 : maxSpans);
+      if (context.shared()) {
+        replaced = held.put(key, new Held(context, span, now)); // only when instrumentation is odd
+      } else {
+        shared = held.remove(key);
+      }
+      heldCount = held.size();
+    }
+
+    if (replaced != null) forward(replaced.context, replaced.span);
+    forwardAll(expired);
+
+    if (context.shared()) { // held or forwarded as expired
+      if (flusher == null) startFlusher();
+      return true;
+    }
+    if (shared != null) {
+      merge(span, shared.span);
+      mergedCount.incrementAndGet();
+    }
+    return delegate.handle(context, span);
+  }
+
+  /** Returns held spans past their window or in excess of the size, or null if none. */
+  List<Held> removeExpired(long now, int maxSize) {
+    List<Held> result = null;
+    Iterator<Held> oldest = held.values().iterator();
+    while (oldest.hasNext()) {
+      Held next = oldest.next();
+      if (held.size() <= maxSize && now - next.timestamp < windowNanos) break;
+      oldest.remove();
+      if (result == null) result = new ArrayList<>();
+      result.add(next);
+    }
+    return result;
+  }
+
+  /**
+   * Passes held spans past their window to the delegate. This is called periodically, so you only
+   * need to call it when you want expired spans reported sooner.
+   */
+  public void flushExpired() {
+    List<Held> expired;
+    synchronized (held) {
+      expired = removeExpired(System.nanoTime(), maxSpans);
+      heldCount = held.size();
+    }
+    forwardAll(expired);
+  }
+
+  /** Stops the flushing thread and passes all held spans to the delegate. */
+  @Override public void close() {
+    closed = true;
+    Thread flusher = this.flusher;
+    if (flusher != null) flusher.interrupt();
+    List<Held> all;
+    synchronized (held) {
+      all = removeExpired(System.nanoTime(), 0);
+      heldCount = 0;
+    }
+    forwardAll(all);
+  }
+
+  void startFlusher() {
+    synchronized (held) {
+      if (flusher != null || closed) return;
+      Thread thread = new Thread(new Flusher(this), "brave-shared-span-flusher");
+      thread.setDaemon(true);
+      flusher = thread;
+      thread.start();
+    }
+  }
+
+  static final class Flusher implements Runnable {
+    final SharedSpanMergingFinishedSpanHandler handler;
+    final long windowMillis;
+
+    Flusher(SharedSpanMergingFinishedSpanHandler handler) {
+      this.handler = handler;
+      this.windowMillis = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(handler.windowNanos));
+    }
+
+    @Override public void run() {
+      while (!handler.closed) {
+        try {
+          Thread.sleep(windowMillis);
+          handler.flushExpired();
+        } catch (InterruptedException e) {
+          return; // closed
+        } catch (Throwable t) {
+          Call.propagateIfFatal(t);
+          // Handlers are guarded, so this is unexpected. Don't let a bug stop flushing.
+          Platform.get().log("error flushing shared spans", t);
+        }
+      }
+    }
+  }
+
+  /** Adds data from the shared span, without overwriting that of the caller. */
+  static void merge(MutableSpan caller, MutableSpan shared) {
+    if (caller.error() == null) caller.error(shared.error());
+    shared.forEachTag(MergeTag.INSTANCE, caller);
+    shared.forEachAnnotation(MergeAnnotation.INSTANCE, caller);
+    caller.annotate(shared.startTimestamp(), "sr"); // ignored when zero
+    caller.annotate(shared.finishTimestamp(), "ss");
+  }
+
+  enum MergeTag implements MutableSpan.TagConsumer<MutableSpan> {
+    INSTANCE;
+
+    @Override public void accept(MutableSpan target, String key, String value) {
+      if (target.tag(key) == null) target.tag(key, value);
+    }
+  }
+
+  enum MergeAnnotation implements MutableSpan.AnnotationConsumer<MutableSpan> {
+    INSTANCE;
+
+    @Override public void accept(MutableSpan target, long timestamp, String value) {
+      target.annotate(timestamp, value);
+    }
+  }
+
+  void forwardAll(List<Held> spans) {
+    if (spans == null) return;
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Held next = spans.get(i);
+      forward(next.context, next.span);
+    }
+  }
+
+  void forward(TraceContext context, MutableSpan span) {
+    try {
+      delegate.handle(context, span);
+    } catch (Throwable t) {
+      Call.propagateIfFatal(t);
+      Platform.get().log("error handling span {0}", context, t);
+    }
+  }
+
+  @Override public boolean alwaysSampleLocal() {
+    return alwaysSampleLocal;
+  }
+
+  /** We hold shared spans until their caller finishes. */
+  @Override public boolean retainsSpan() {
+    return true;
+  }
+
+  @Override public boolean supportsOrphans() {
+    return supportsOrphans;
+  }
+
+  /** Returns the count of shared spans merged into their caller. */
+  public long mergedCount() {
+    return mergedCount.get();
+  }
+
+  /** Returns the count of shared spans waiting for their caller to finish. */
+  public int bufferedCount() {
+    return heldCount;
+  }
+
+  @Override public String toString() {
+    return "SharedSpanMergingFinishedSpanHandler{" + (closed ? "closed, " : "") + delegate + "}";
+  }
+
+  static final class Held {
+    final TraceContext context;
+    final MutableSpan span;
+    final long timestamp;
+
+    Held(TraceContext context, MutableSpan span, long timestamp) {
+      this.context = context;
+      this.span = span;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /** Identifies a span regardless of the shared flag, so that both sides share a key. */
+  static final class SpanKey {
+    final long traceIdHigh, traceId, spanId;
+
+    SpanKey(TraceContext context) {
+      traceIdHigh = context.traceIdHigh();
+      traceId = context.traceId();
+      spanId = context.spanId();
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof SpanKey)) return false;
+      SpanKey that = (SpanKey) o;
+      return traceIdHigh == that.traceIdHigh && traceId == that.traceId && spanId == that.spanId;
+    }
+
+    @Override public int hashCode() {
+      int h = 1;
+      h *= 1000003;
+      h ^= (int) ((traceIdHigh >>> 32) ^ traceIdHigh);
+      h *= 1000003;
+      h ^= (int) ((traceId >>> 32) ^ traceId);
+      h *= 1000003;
+      h ^= (int) ((spanId >>> 32) ^ spanId);
+      return h;
+    }
+  }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.internal.Nullable;
+import brave.internal.Platform;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Call;
+
+/**
+ * Writes spans to a stream in a compact binary format, for offline analysis with {@link
+ * SpanLogReader}. This is an alternative to logging JSON, which is about ten times larger.
+ *
+ * <p>Strings that repeat, such as span names, service names, tag keys and annotations, are written
+ * once per stream, in a dictionary record before the first span that uses them. Afterwards, spans
+ * refer to them by number. IDs are written as raw longs, and timestamps as varints, relative to the
+ * span's start where possible.
+ *
+ * <p>Here's an example, which logs all local spans, even those not sampled to Zipkin:
+ * <pre>{@code
+ * spanLog = SpanLogFinishedSpanHandler.newBuilder()
+ *   .alwaysSampleLocal(true)
+ *   .build(new BufferedOutputStream(new FileOutputStream("spans.log")));
+ * tracing = Tracing.newBuilder()
+ *   .addFinishedSpanHandler(spanLog)
+ *   ...
+ * }</pre>
+ *
+ * <h3>Format</h3>
+ * The stream starts with the bytes "BSL" followed by a version byte. Each record starts with a
+ * type: a dictionary record is a UTF-8 string, and a span record is span data whose strings are
+ * either null, inline or a dictionary number. The {@link MutableSpan#error() error} is written as
+ * the "error" tag, unless the span already has one, as a {@link Throwable} cannot be read back.
+ *
+ * <p>Writes are synchronized, and buffering is up to the stream. If a write fails, no more spans
+ * are written, as the stream may have a partial record.
+ *
+ * @since 5.9
+ */
+public final class SpanLogFinishedSpanHandler extends FinishedSpanHandler
+  implements Closeable, Flushable {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    boolean alwaysSampleLocal;
+    int maxDictionarySize = 4096;
+
+    Builder() {
+    }
+
+    /**
+     * When true, spans not sampled to Zipkin are also written. Defaults to false.
+     *
+     * @see FinishedSpanHandler#alwaysSampleLocal()
+     */
+    public Builder alwaysSampleLocal(boolean alwaysSampleLocal) {
+      this.alwaysSampleLocal = alwaysSampleLocal;
+      return this;
+    }
+
+    /**
+     * Maximum strings written to the dictionary, which bounds memory used by the writer and reader.
+     * Strings seen after the dictionary is full are written inline. Defaults to 4096.
+     */
+    public Builder maxDictionarySize(int maxDictionarySize) {
+      if (maxDictionarySize < 0) throw new IllegalArgumentException("maxDictionarySize < 0");
+      this.maxDictionarySize = maxDictionarySize;
+      return this;
+    }
+
+    /**
+     * Writes the header to the stream, which is closed when the result is.
+     *
+     * @throws IOException if the header couldn't be written.
+     */
+    public SpanLogFinishedSpanHandler build(OutputStream out) throws IOException {
+      if (out == null) throw new NullPointerException("out == null");
+      out.write(HEADER);
+      return new SpanLogFinishedSpanHandler(this, out);
+    }
+  }
+
+  static final Charset UTF_8 = Charset.forName("UTF-8"); // StandardCharsets isn't in Java 6
+  static final byte[] HEADER = {'B', 'S', 'L', 1};
+
+  static final int RECORD_DICTIONARY = 1, RECORD_SPAN = 2;
+  /** A string reference is one of these, or {@link #STRING_DICTIONARY} plus its number. */
+  static final int STRING_NULL = 0, STRING_INLINE = 1, STRING_DICTIONARY = 2;
+
+  static final int FLAG_TRACE_ID_HIGH = 1, FLAG_PARENT_ID = 1 << 1, FLAG_SAMPLED_SET = 1 << 2,
+    FLAG_SAMPLED = 1 << 3, FLAG_SAMPLED_LOCAL = 1 << 4, FLAG_DEBUG = 1 << 5, FLAG_SHARED = 1 << 6,
+    FLAG_FINISHED = 1 << 7;
+
+  final boolean alwaysSampleLocal;
+  final int maxDictionarySize;
+  final OutputStream out; // guarded by this
+  final Map<String, Integer> dictionary = new HashMap<>(); // guarded by this
+  // Dictionary records must precede the span that uses them, so we buffer them separately
+  final Buffer dictionaryBuffer = new Buffer(), spanBuffer = new Buffer(); // guarded by this
+  final WriteTag writeTag = new WriteTag();
+  final WriteAnnotation writeAnnotation = new WriteAnnotation();
+  final AtomicLong droppedCount = new AtomicLong();
+  boolean closed; // guarded by this
+
+  SpanLogFinishedSpanHandler(Builder builder, OutputStream out) {
+    alwaysSampleLocal = builder.alwaysSampleLocal;
+    maxDictionarySize = builder.maxDictionarySize;
+    this.out = out;
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    synchronized (this) {
+      if (closed) {
+        droppedCount.incrementAndGet();
+        return true;
+      }
+      int dictionarySize = dictionary.size();
+      try {
+        try {
+          writeSpan(context, span);
+        } catch (Throwable t) {
+          // Nothing reached the stream, so forget strings numbered for this span and carry on
+          removeDictionaryEntries(dictionarySize);
+          droppedCount.incrementAndGet();
+          Call.propagateIfFatal(t);
+          Platform.get().log("error writing span {0}", context, t);
+          return true;
+        }
+        dictionaryBuffer.writeTo(out);
+        spanBuffer.writeTo(out);
+      } catch (Throwable t) {
+        closed = true; // the stream may have a partial record, so don't write any more
+        droppedCount.incrementAndGet();
+        Call.propagateIfFatal(t);
+        Platform.get().log("error writing span {0}; no more spans will be written", context, t);
+      } finally {
+        dictionaryBuffer.reset();
+        spanBuffer.reset();
+      }
+    }
+    return true;
+  }
+
+  /** Removes entries numbered at or after the size, which were never written to the stream. */
+  void removeDictionaryEntries(int size) {
+    if (dictionary.size() == size) return;
+    Iterator<Integer> numbers = dictionary.values().iterator();
+    while (numbers.hasNext()) {
+      if (numbers.next() >= size) numbers.remove();
+    }
+  }
+
+  void writeSpan(TraceContext context, MutableSpan span) {
+    Buffer b = spanBuffer;
+    long start = span.startTimestamp(), finish = span.finishTimestamp();
+    int flags = 0;
+    if (context.traceIdHigh() != 0L) flags |= FLAG_TRACE_ID_HIGH;
+    if (context.parentIdAsLong() != 0L) flags |= FLAG_PARENT_ID;
+    Boolean sampled = context.sampled();
+    if (sampled != null) flags |= sampled ? FLAG_SAMPLED_SET | FLAG_SAMPLED : FLAG_SAMPLED_SET;
+    if (context.sampledLocal()) flags |= FLAG_SAMPLED_LOCAL;
+    if (context.debug()) flags |= FLAG_DEBUG;
+    if (context.shared() || span.shared()) flags |= FLAG_SHARED;
+    if (finish != 0L) flags |= FLAG_FINISHED;
+
+    b.writeVarint(RECORD_SPAN);
+    b.writeVarint(flags);
+    if (context.traceIdHigh() != 0L) b.writeLong(context.traceIdHigh());
+    b.writeLong(context.traceId());
+    if (context.parentIdAsLong() != 0L) b.writeLong(context.parentIdAsLong());
+    b.writeLong(context.spanId());
+
+    Kind kind = span.kind();
+    b.writeVarint(kind != null ? kind.ordinal() + 1 : 0);
+    writeString(b, span.name(), true);
+    b.writeSignedVarint(start);
+    if (finish != 0L) b.writeSignedVarint(finish - start);
+    writeString(b, span.localServiceName(), true);
+    writeString(b, span.localIp(), true);
+    b.writeVarint(span.localPort());
+    writeString(b, span.remoteServiceName(), true);
+    writeString(b, span.remoteIp(), true);
+    b.writeVarint(span.remotePort());
+
+    // Tags and annotations end with a null string, so we don't need to count them first
+    Throwable error = span.error();
+    if (error != null && span.tag("error") == null) {
+      String message = error.getMessage(); // same as the default ErrorParser
+      writeTag.accept(this, "error", message != null ? message : error.getClass().getSimpleName());
+    }
+    span.forEachTag(writeTag, this);
+    b.writeVarint(STRING_NULL);
+    writeAnnotation.start = start;
+    span.forEachAnnotation(writeAnnotation, this);
+    b.writeVarint(STRING_NULL);
+  }
+
+  /** @param intern false for high cardinality strings, such as tag values */
+  void writeString(Buffer b, @Nullable String string, boolean intern) {
+    if (string == null) {
+      b.writeVarint(STRING_NULL);
+      return;
+    }
+    if (intern) {
+      Integer number = dictionary.get(string);
+      if (number == null && dictionary.size() < maxDictionarySize) {
+        number = dictionary.size();
+        dictionary.put(string, number);
+        dictionaryBuffer.writeVarint(RECORD_DICTIONARY);
+        dictionaryBuffer.writeUtf8(string);
+      }
+      if (number != null) {
+        b.writeVarint(STRING_DICTIONARY + number);
+        return;
+      }
+    }
+    b.writeVarint(STRING_INLINE);
+    b.writeUtf8(string);
+  }
+
+  final class WriteTag implements MutableSpan.TagConsumer<SpanLogFinishedSpanHandler> {
+    @Override public void accept(SpanLogFinishedSpanHandler target, String key, String value) {
+      writeString(spanBuffer, key, true);
+      writeString(spanBuffer, value, false);
+    }
+  }
+
+  final class WriteAnnotation
+    implements MutableSpan.AnnotationConsumer<SpanLogFinishedSpanHandler> {
+    long start; // guarded by the handler
+
+    @Override
+    public void accept(SpanLogFinishedSpanHandler target, long timestamp, String value) {
+      writeString(spanBuffer, value, true);
+      spanBuffer.writeSignedVarint(timestamp - start);
+    }
+  }
+
+  @Override public boolean alwaysSampleLocal() {
+    return alwaysSampleLocal;
+  }
+
+  /** Returns the count of spans not written, due to an error or after {@link #close()}. */
+  public long droppedCount() {
+    return droppedCount.get();
+  }
+
+  @Override public synchronized void flush() throws IOException {
+    if (!closed) out.flush();
+  }
+
+  /** Closes the underlying stream. Spans handled afterwards are dropped. */
+  @Override public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    out.close();
+  }
+
+  @Override public String toString() {
+    return "SpanLogFinishedSpanHandler{" + out + "}";
+  }
+
+  /** A growable byte array, reused across spans. */
+  static final class Buffer {
+    byte[] buf = new byte[256];
+    int pos;
+
+    void ensureCapacity(int byteCount) {
+      int required = pos + byteCount;
+      if (required <= buf.length) return;
+      buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+    }
+
+    /** Writes an unsigned base 128 varint, as used in protocol buffers. */
+    void writeVarint(long v) {
+      ensureCapacity(10);
+      while ((v & ~0x7fL) != 0L) {
+        buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      buf[pos++] = (byte) v;
+    }
+
+    /** Writes a varint in zig-zag encoding, so that small negative numbers are also small. */
+    void writeSignedVarint(long v) {
+      writeVarint((v << 1) ^ (v >> 63));
+    }
+
+    /** Writes a big-endian long, as IDs are random and wouldn't benefit from a varint. */
+    void writeLong(long v) {
+      ensureCapacity(8);
+      for (int shift = 56; shift >= 0; shift -= 8) buf[pos++] = (byte) (v >>> shift);
+    }
+
+    /** Writes the length of the UTF-8 encoded string, followed by its bytes. */
+    void writeUtf8(String v) {
+      byte[] bytes = v.getBytes(UTF_8);
+      writeVarint(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buf, pos, bytes.length);
+      pos += bytes.length;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      if (pos != 0) out.write(buf, 0, pos);
+    }
+
+    void reset() {
+      pos = 0;
+    }
+  }
+}
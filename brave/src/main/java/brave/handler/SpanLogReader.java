@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static brave.handler.SpanLogFinishedSpanHandler.FLAG_DEBUG;
+import static brave.handler.SpanLogFinishedSpanHandler.FLAG_FINISHED;
+import static brave.handler.SpanLogFinishedSpanHandler.FLAG_PARENT_ID;
+import static brave.handler.SpanLogFinishedSpanHandler.FLAG_SAMPLED;
+import static brave.handler.SpanLogFinishedSpanHandler.FLAG_SAMPLED_LOCAL;
+import static brave.handler.SpanLogFinishedSpanHandler.FLAG_SAMPLED_SET;
+import static brave.handler.SpanLogFinishedSpanHandler.FLAG_SHARED;
+import static brave.handler.SpanLogFinishedSpanHandler.FLAG_TRACE_ID_HIGH;
+import static brave.handler.SpanLogFinishedSpanHandler.HEADER;
+import static brave.handler.SpanLogFinishedSpanHandler.RECORD_DICTIONARY;
+import static brave.handler.SpanLogFinishedSpanHandler.RECORD_SPAN;
+import static brave.handler.SpanLogFinishedSpanHandler.STRING_DICTIONARY;
+import static brave.handler.SpanLogFinishedSpanHandler.STRING_INLINE;
+import static brave.handler.SpanLogFinishedSpanHandler.STRING_NULL;
+import static brave.handler.SpanLogFinishedSpanHandler.UTF_8;
+
+/**
+ * Reads spans written by {@link SpanLogFinishedSpanHandler}, one at a time.
+ *
+ * <p>Here's an example, which prints slow spans:
+ * <pre>{@code
+ * try (SpanLogReader reader = SpanLogReader.create(new FileInputStream("spans.log"))) {
+ *   while (reader.next()) {
+ *     MutableSpan span = reader.span();
+ *     if (span.finishTimestamp() - span.startTimestamp() > 1000000L) {
+ *       System.out.println(reader.context() + " " + span);
+ *     }
+ *   }
+ * }
+ * }</pre>
+ *
+ * <p>The stream is read a byte at a time, so should be buffered.
+ *
+ * @since 5.9
+ */
+public final class SpanLogReader implements Closeable {
+  /**
+   * Reads and checks the header of the stream.
+   *
+   * @throws IOException if the stream wasn't written by {@link SpanLogFinishedSpanHandler}
+   */
+  public static SpanLogReader create(InputStream in) throws IOException {
+    if (in == null) throw new NullPointerException("in == null");
+    SpanLogReader result = new SpanLogReader(in);
+    byte[] header = new byte[HEADER.length];
+    result.readFully(header);
+    if (!Arrays.equals(header, HEADER)) throw new IOException("not a span log");
+    return result;
+  }
+
+  final InputStream in;
+  final List<String> dictionary = new ArrayList<>();
+  TraceContext context;
+  MutableSpan span;
+
+  SpanLogReader(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Reads the next span, returning false at the end of the stream.
+   *
+   * @throws EOFException if the stream ends in a partial record, such as after a crash.
+   */
+  public boolean next() throws IOException {
+    while (true) {
+      int type = in.read(); // record types are a single byte varint
+      if (type == -1) {
+        context = null;
+        span = null;
+        return false;
+      }
+      switch (type) {
+        case RECORD_DICTIONARY:
+          dictionary.add(readUtf8());
+          continue;
+        case RECORD_SPAN:
+          readSpan();
+          return true;
+        default:
+          throw new IOException("unexpected record type " + type);
+      }
+    }
+  }
+
+  /** Returns the context of the span last read by {@link #next()}. */
+  public TraceContext context() {
+    if (context == null) throw new IllegalStateException("next() didn't return true");
+    return context;
+  }
+
+  /**
+   * Returns the span last read by {@link #next()}. Its {@link MutableSpan#error() error} is never
+   * set: instead, there is an "error" tag.
+   */
+  public MutableSpan span() {
+    if (span == null) throw new IllegalStateException("next() didn't return true");
+    return span;
+  }
+
+  void readSpan() throws IOException {
+    int flags = (int) readVarint();
+    TraceContext.Builder context = TraceContext.newBuilder();
+    if ((flags & FLAG_TRACE_ID_HIGH) != 0) context.traceIdHigh(readLong());
+    context.traceId(readLong());
+    if ((flags & FLAG_PARENT_ID) != 0) context.parentId(readLong());
+    context.spanId(readLong());
+    if ((flags & FLAG_SAMPLED_SET) != 0) context.sampled((flags & FLAG_SAMPLED) != 0);
+    if ((flags & FLAG_SAMPLED_LOCAL) != 0) context.sampledLocal(true);
+    if ((flags & FLAG_DEBUG) != 0) context.debug(true);
+    if ((flags & FLAG_SHARED) != 0) context.shared(true);
+    this.context = context.build();
+
+    MutableSpan span = new MutableSpan();
+    int kind = (int) readVarint();
+    // use ordinal comparison to defend against version skew
+    if (kind > 0 && kind <= Kind.values().length) span.kind(Kind.values()[kind - 1]);
+    String name = readString();
+    if (name != null) span.name(name);
+    long start = readSignedVarint();
+    span.startTimestamp(start);
+    if ((flags & FLAG_FINISHED) != 0) span.finishTimestamp(start + readSignedVarint());
+    String localServiceName = readString();
+    if (localServiceName != null) span.localServiceName(localServiceName);
+    span.localIp(readString());
+    span.localPort((int) readVarint());
+    String remoteServiceName = readString();
+    if (remoteServiceName != null) span.remoteServiceName(remoteServiceName);
+    String remoteIp = readString();
+    span.remoteIpAndPort(remoteIp, (int) readVarint());
+    if ((flags & FLAG_SHARED) != 0) span.setShared();
+
+    String key;
+    while ((key = readString()) != null) span.tag(key, readString());
+    String value;
+    while ((value = readString()) != null) span.annotate(start + readSignedVarint(), value);
+    this.span = span;
+  }
+
+  @Nullable String readString() throws IOException {
+    long reference = readVarint();
+    if (reference == STRING_NULL) return null;
+    if (reference == STRING_INLINE) return readUtf8();
+    long number = reference - STRING_DICTIONARY;
+    if (number >= dictionary.size()) throw new IOException("undefined string " + number);
+    return dictionary.get((int) number);
+  }
+
+  String readUtf8() throws IOException {
+    long length = readVarint();
+    if (length > Integer.MAX_VALUE) throw new IOException("string too long: " + length);
+    byte[] bytes = new byte[(int) length];
+    readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  long readVarint() throws IOException {
+    long result = 0L;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readByte();
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new IOException("malformed varint");
+  }
+
+  long readSignedVarint() throws IOException {
+    long v = readVarint();
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  long readLong() throws IOException {
+    long result = 0L;
+    for (int i = 0; i < 8; i++) result = (result << 8) | readByte();
+    return result;
+  }
+
+  int readByte() throws IOException {
+    int b = in.read();
+    if (b == -1) throw new EOFException();
+    return b;
+  }
+
+  void readFully(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      int count = in.read(bytes, offset, bytes.length - offset);
+      if (count == -1) throw new EOFException();
+      offset += count;
+    }
+  }
+
+  @Override public void close() throws IOException {
+    in.close();
+  }
+
+  @Override public String toString() {
+    return "SpanLogReader{" + in + "}";
+  }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Nullable;
+import brave.internal.Platform;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import zipkin2.Call;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.Sender;
+
+/**
+ * Spools encoded spans to memory-mapped files, and sends them with a daemon thread. Unlike an
+ * in-memory queue, spans outlive an outage of the Zipkin collector, up to a fixed disk budget, and
+ * even a restart of the process.
+ *
+ * <p>Spans are appended to the newest of a set of segment files. When a segment is full, a new
+ * one is created, unless there are already {@link Builder#maxSegments(int)}, in which case spans
+ * are dropped. The sender thread reads the oldest segment, and deletes it once all its spans were
+ * sent. When sending fails, it retries the same spans after {@link Builder#retryInterval(long,
+ * TimeUnit)}. Segments left by a previous process in the same directory are sent first, starting
+ * after the last span that process sent.
+ *
+ * <p>Here's an example, which uses up to 128MiB of disk while the collector is unavailable:
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *   .spanSender(URLConnectionSender.create("http://localhost:9411/api/v2/spans"))
+ *   .spoolSpans(SpanSpool.newBuilder(new File("/var/spool/zipkin")))
+ *   ...
+ * }</pre>
+ *
+ * <h3>Overhead</h3>
+ * Appending reserves space in the segment with an atomic increment, then copies the span into the
+ * mapped file. There are no locks or syscalls unless a new segment is needed, and data is never
+ * forced to disk, except on {@link #flush()}. This means spans not yet written back by the
+ * operating system are lost on a crash of the host, but not on a crash of the process.
+ *
+ * @since 5.9
+ */
+public final class SpanSpool implements Reporter<byte[]>, Closeable, Flushable {
+  public static Builder newBuilder(File directory) {
+    return new Builder(directory);
+  }
+
+  public static final class Builder {
+    final File directory;
+    int segmentSize = 8 * 1024 * 1024, maxSegments = 16;
+    long retryIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+    Builder(File directory) {
+      if (directory == null) throw new NullPointerException("directory == null");
+      this.directory = directory;
+    }
+
+    /** Size of each segment file in bytes. Defaults to 8MiB. */
+    public Builder segmentSize(int segmentSize) {
+      if (segmentSize < 64) throw new IllegalArgumentException("segmentSize < 64");
+      this.segmentSize = segmentSize & ~3; // records are aligned to four bytes
+      return this;
+    }
+
+    /** Maximum count of segment files, which bounds disk usage. Defaults to 16. */
+    public Builder maxSegments(int maxSegments) {
+      if (maxSegments < 2) throw new IllegalArgumentException("maxSegments < 2");
+      this.maxSegments = maxSegments;
+      return this;
+    }
+
+    /** How long to wait before sending again, after a failure. Defaults to one second. */
+    public Builder retryInterval(long interval, TimeUnit unit) {
+      if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.retryIntervalNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    /**
+     * Recovers segments left by a previous process, then starts a daemon thread which sends spans
+     * until the result is {@link #close() closed}.
+     *
+     * @param sender receives spans already encoded in its {@link Sender#encoding() encoding}. This
+     * is usually configured implicitly, via {@link brave.Tracing.Builder#spoolSpans(Builder)}.
+     * @throws IOException if the directory cannot be created or a segment cannot be mapped.
+     */
+    public SpanSpool build(Sender sender) throws IOException {
+      if (sender == null) throw new NullPointerException("sender == null");
+      SpanSpool result = new SpanSpool(this, sender);
+      Thread thread = new Thread(result.new Replayer(), "brave-span-spool");
+      thread.setDaemon(true);
+      result.thread = thread;
+      thread.start();
+      return result;
+    }
+  }
+
+  static final String SEGMENT_PREFIX = "spans-", SEGMENT_SUFFIX = ".spool";
+  /** How long the sender thread waits when there's nothing to send. */
+  static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  static final long CLOSE_TIMEOUT_MILLIS = 1000L;
+  /** Conservative overhead of a list message of one span, across encodings. */
+  static final int MESSAGE_OVERHEAD = 6;
+
+  final File directory;
+  final int segmentSize, maxSegments;
+  final long retryIntervalNanos;
+  final Sender sender;
+  final int messageMaxBytes;
+  final ArrayDeque<Segment> segments = new ArrayDeque<>(); // guarded by this, oldest first
+  final AtomicInteger segmentCount = new AtomicInteger();
+  final AtomicReference<Segment> writing = new AtomicReference<>();
+  final AtomicLong spooledCount = new AtomicLong(), droppedCount = new AtomicLong(),
+    sentCount = new AtomicLong();
+  long nextSequence; // guarded by this
+  volatile Thread thread;
+  volatile boolean closed;
+
+  SpanSpool(Builder builder, Sender sender) throws IOException {
+    directory = builder.directory;
+    segmentSize = builder.segmentSize;
+    maxSegments = builder.maxSegments;
+    retryIntervalNanos = builder.retryIntervalNanos;
+    this.sender = sender;
+    messageMaxBytes = sender.messageMaxBytes();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("couldn't create directory " + directory);
+    }
+    recoverSegments();
+    writing.set(addSegment()); // even if recovered segments are over budget
+  }
+
+  /** Appends the encoded span to the current segment, or drops it when the disk budget is used. */
+  @Override public void report(byte[] span) {
+    if (span == null) throw new NullPointerException("span == null");
+    int recordSize = Segment.recordSize(span.length);
+    // Spans larger than a message would be retried forever, so we drop them up front
+    if (closed || span.length == 0 || recordSize > segmentSize - Segment.HEADER_SIZE
+      || span.length + MESSAGE_OVERHEAD > messageMaxBytes) {
+      droppedCount.incrementAndGet();
+      return;
+    }
+
+    Segment segment = writing.get();
+    while (segment != null) {
+      if (segment.tryAppend(span, recordSize)) {
+        spooledCount.incrementAndGet();
+        return;
+      }
+      segment = roll(segment);
+    }
+    droppedCount.incrementAndGet();
+  }
+
+  /** Returns the segment to write to after the input is full, or null if over the disk budget. */
+  @Nullable Segment roll(Segment full) {
+    Segment current = writing.get();
+    if (current != full) return current; // another thread already rolled
+    if (segmentCount.get() >= maxSegments) return null; // avoid locking while over budget
+    synchronized (this) {
+      current = writing.get();
+      if (current != full) return current;
+      Segment next = newSegment();
+      if (next == null) return null; // keep writing smaller spans to the current segment
+      full.seal(); // before publishing the next segment, so sealed segments are never written
+      writing.set(next);
+      return next;
+    }
+  }
+
+  /** Creates and maps a new segment, or returns null if over the disk budget or on error. */
+  @Nullable synchronized Segment newSegment() {
+    if (segmentCount.get() >= maxSegments) return null;
+    try {
+      return addSegment();
+    } catch (IOException e) {
+      Platform.get().log("couldn't create segment in {0}", directory, e);
+      return null;
+    }
+  }
+
+  synchronized Segment addSegment() throws IOException {
+    File file = new File(directory, SEGMENT_PREFIX + nextSequence++ + SEGMENT_SUFFIX);
+    Segment result = Segment.map(file, segmentSize, false);
+    segments.add(result);
+    segmentCount.incrementAndGet();
+    return result;
+  }
+
+  /** Adds segments left by a previous process, ordered by their sequence. */
+  synchronized void recoverSegments() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    List<Long> sequences = new ArrayList<>();
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+      try {
+        sequences.add(Long.parseLong(
+          name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+      } catch (NumberFormatException e) {
+        // not a segment we made
+      }
+    }
+    Long[] sorted = sequences.toArray(new Long[0]);
+    Arrays.sort(sorted);
+    for (Long sequence : sorted) {
+      File file = new File(directory, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+      segments.add(Segment.map(file, (int) file.length(), true));
+      segmentCount.incrementAndGet();
+      nextSequence = sequence + 1;
+    }
+  }
+
+  @Nullable synchronized Segment oldestSegment() {
+    return segments.peek();
+  }
+
+  /** Only call this when the segment is sealed, as it cannot be accessed afterwards. */
+  synchronized void deleteSegment(Segment segment) {
+    segments.remove(segment);
+    segmentCount.decrementAndGet();
+    // Unmap first, as otherwise the disk space isn't reclaimed until GC, or deletion fails
+    Platform.get().unmap(segment.buffer);
+    if (!segment.file.delete()) Platform.get().log("couldn't delete {0}", segment.file, null);
+  }
+
+  /** Returns the count of spans written to a segment. */
+  public long spooledCount() {
+    return spooledCount.get();
+  }
+
+  /** Returns the count of spans dropped, as they were over the disk budget or too large. */
+  public long droppedCount() {
+    return droppedCount.get();
+  }
+
+  /** Returns the count of spans accepted by the sender. */
+  public long sentCount() {
+    return sentCount.get();
+  }
+
+  /** Returns the count of segment files, including the one being written. */
+  public int segmentCount() {
+    return segmentCount.get();
+  }
+
+  /** Forces data in all segments to disk. This is never done implicitly. */
+  @Override public synchronized void flush() {
+    for (Segment segment : segments) segment.buffer.force();
+  }
+
+  /**
+   * Stops accepting spans, and waits up to a second for the sender thread to send those already
+   * spooled. Unsent spans remain on disk, to be sent by the next instance using this directory.
+   */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    Thread thread = this.thread;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  @Override public String toString() {
+    return "SpanSpool{" + directory + ", " + sender + "}";
+  }
+
+  final class Replayer implements Runnable {
+    final List<byte[]> batch = new ArrayList<>();
+    boolean failing; // so that we log once per outage
+
+    @Override public void run() {
+      while (true) {
+        Segment segment = oldestSegment();
+        if (segment == null) return; // unexpected, as we never delete the segment being written
+        boolean sealed = segment != writing.get();
+        int nextPosition = segment.readBatch(batch, messageMaxBytes);
+        if (batch.isEmpty()) {
+          if (sealed && segment.isDrained()) {
+            deleteSegment(segment);
+            continue;
+          }
+          if (closed) return;
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+          continue;
+        }
+
+        if (send()) {
+          segment.acknowledge(nextPosition);
+          sentCount.addAndGet(batch.size());
+        } else if (closed) {
+          return; // leave the rest on disk
+        } else {
+          LockSupport.parkNanos(this, retryIntervalNanos);
+        }
+        batch.clear();
+      }
+    }
+
+    boolean send() {
+      try {
+        sender.sendSpans(batch).execute();
+        failing = false;
+        return true;
+      } catch (Throwable t) {
+        Call.propagateIfFatal(t);
+        if (!failing) Platform.get().log("couldn't send spans to {0}; will retry", sender, t);
+        failing = true;
+        return false;
+      }
+    }
+  }
+
+  /**
+   * A memory-mapped file which starts with the four-byte position of the next record to send,
+   * followed by records. Each record is a four-byte length followed by that many bytes, padded to
+   * four bytes. The length is written after the bytes, so a zero length means the record is not yet
+   * written, or there are no more records.
+   */
+  static final class Segment {
+    static final int HEADER_SIZE = 4;
+
+    static int recordSize(int length) {
+      return 4 + ((length + 3) & ~3);
+    }
+
+    static Segment map(File file, int capacity, boolean recovered) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        if (!recovered) raf.setLength(capacity); // new files are filled with zeros
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        return new Segment(file, buffer, recovered);
+      } finally {
+        raf.close(); // the mapping remains valid
+      }
+    }
+
+    final File file;
+    final MappedByteBuffer buffer;
+    final int capacity;
+    /** Bytes reserved by writers, including failed attempts past the capacity. */
+    final AtomicInteger reserved = new AtomicInteger(HEADER_SIZE);
+    /** Bytes whose writers are done. When equal to {@link #reserved}, no write is in progress. */
+    final AtomicInteger written = new AtomicInteger(HEADER_SIZE);
+    int readPosition = HEADER_SIZE; // only accessed by the sender thread
+
+    Segment(File file, MappedByteBuffer buffer, boolean recovered) {
+      this.file = file;
+      this.buffer = buffer;
+      this.capacity = buffer.capacity();
+      if (recovered) { // only read, starting after what the last process sent
+        reserved.set(capacity);
+        written.set(capacity);
+        int acknowledged = capacity >= HEADER_SIZE ? buffer.getInt(0) : capacity;
+        if (acknowledged >= HEADER_SIZE && acknowledged <= capacity) readPosition = acknowledged;
+      } else {
+        buffer.putInt(0, HEADER_SIZE);
+      }
+    }
+
+    boolean tryAppend(byte[] span, int recordSize) {
+      // Checking first keeps the reservation from overflowing while over the disk budget
+      if (reserved.get() > capacity - recordSize) return false;
+      int position = reserved.getAndAdd(recordSize);
+      if (position > capacity - recordSize) {
+        // The sender waits for all reservations, even those that didn't fit
+        written.addAndGet(recordSize);
+        return false;
+      }
+      ByteBuffer duplicate = buffer.duplicate(); // absolute bulk puts aren't in Java 6
+      duplicate.position(position + 4);
+      duplicate.put(span);
+      // Commits the record. The sender could see a plain write before the bytes it describes, as
+      // the memory model doesn't order it after them. A release write pairs with the acquire in
+      // readBatch, so a sender that reads the length also reads the bytes written before it.
+      Platform.get().putIntRelease(buffer, position, span.length);
+      written.addAndGet(recordSize);
+      return true;
+    }
+
+    /**
+     * Fails future appends, so that once {@link #written} catches up to {@link #reserved}, the
+     * segment can be deleted. Call this before a new segment is published to writers.
+     */
+    void seal() {
+      while (true) {
+        int current = reserved.get();
+        if (current >= capacity) return; // no append can fit
+        if (reserved.compareAndSet(current, capacity)) {
+          written.addAndGet(capacity - current);
+          return;
+        }
+      }
+    }
+
+    /**
+     * Adds committed records from the read position to the batch, up to the message size. Returns
+     * the position after the last record added.
+     */
+    int readBatch(List<byte[]> batch, int messageMaxBytes) {
+      int position = readPosition, messageSize = MESSAGE_OVERHEAD - 1;
+      while (position <= capacity - 4) {
+        int length = Platform.get().getIntAcquire(buffer, position); // see tryAppend
+        if (length == 0) break; // not yet committed, or no more records
+        messageSize += length + 1; // includes a delimiter, which is the rest of the overhead
+        if (!batch.isEmpty() && messageSize > messageMaxBytes) break;
+        byte[] span = new byte[length];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position + 4);
+        duplicate.get(span);
+        batch.add(span);
+        position += recordSize(length);
+      }
+      return position;
+    }
+
+    /** Records that spans before the position were sent, so that a restart doesn't resend them. */
+    void acknowledge(int position) {
+      readPosition = position;
+      buffer.putInt(0, position);
+    }
+
+    /** Returns true if all records were read. Only meaningful when {@link #seal() sealed}. */
+    boolean isDrained() {
+      if (written.get() != reserved.get()) return false;
+      // A plain read is enough, as writers update written after their length, and we just read it
+      return readPosition > capacity - 4 || buffer.getInt(readPosition) == 0;
+    }
+  }
+}
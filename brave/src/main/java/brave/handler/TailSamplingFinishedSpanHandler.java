@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Platform;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Call;
+
+/**
+ * Buffers unsampled spans by {@link TraceContext#localRootId() local root}, and decides whether to
+ * keep them when the local root finishes. Kept spans are passed to the delegate, as are spans
+ * {@link TraceContext#sampled() sampled} up front. Others are dropped.
+ *
+ * <p>For example, this keeps all traces with errors or that took longer than a second, while
+ * otherwise sampling 1% of traces:
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *   .sampler(Sampler.create(0.01f))
+ *   .tailSampling(TailSamplingFinishedSpanHandler.newBuilder()
+ *     .keepSlowerThan(1, TimeUnit.SECONDS))
+ *   ...
+ * }</pre>
+ *
+ * <h3>Memory</h3>
+ * As this {@link #alwaysSampleLocal() records all spans}, buffering is bounded. When more than
+ * {@link Builder#maxSpans(int)} are waiting for a decision, the oldest traces are evicted, and
+ * their spans dropped. A local trace with more than {@link Builder#maxSpansPerTrace(int)} spans has
+ * the excess dropped. Spans which finish after their local root have the same outcome, as long as
+ * the decision is recent.
+ *
+ * <h3>Scope</h3>
+ * Decisions are local: this cannot know what other services did with the same trace. Data from a
+ * kept trace can appear broken if its upstream or downstream did not also keep it.
+ *
+ * @since 5.9
+ */
+public final class TailSamplingFinishedSpanHandler extends FinishedSpanHandler {
+  /** Decides if a local trace should be kept, even though it wasn't sampled up front. */
+  public interface TracePredicate {
+    /**
+     * @param spans finished spans in the local trace, where the last is the local root.
+     * @return true to keep the trace
+     */
+    boolean test(List<MutableSpan> spans);
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    boolean keepErrors = true;
+    long keepSlowerThanMicros; // zero means disabled
+    final List<TracePredicate> predicates = new ArrayList<>();
+    int maxSpans = 10000, maxSpansPerTrace = 1000;
+    int stripes = stripeCount(Runtime.getRuntime().availableProcessors());
+
+    Builder() {
+    }
+
+    /** When true, traces with a span that has an error are kept. Defaults to true. */
+    public Builder keepErrors(boolean keepErrors) {
+      this.keepErrors = keepErrors;
+      return this;
+    }
+
+    /** Keeps traces when their local root took at least this long. Defaults to disabled. */
+    public Builder keepSlowerThan(long duration, TimeUnit unit) {
+      if (duration <= 0) throw new IllegalArgumentException("duration <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.keepSlowerThanMicros = unit.toMicros(duration);
+      return this;
+    }
+
+    /** Keeps traces when the predicate returns true. */
+    public Builder addPredicate(TracePredicate predicate) {
+      if (predicate == null) throw new NullPointerException("predicate == null");
+      this.predicates.add(predicate);
+      return this;
+    }
+
+    /** Maximum spans waiting for a decision, across all traces. Defaults to 10000. */
+    public Builder maxSpans(int maxSpans) {
+      if (maxSpans < 1) throw new IllegalArgumentException("maxSpans < 1");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /** Maximum spans waiting for a decision in one local trace. Defaults to 1000. */
+    public Builder maxSpansPerTrace(int maxSpansPerTrace) {
+      if (maxSpansPerTrace < 1) throw new IllegalArgumentException("maxSpansPerTrace < 1");
+      this.maxSpansPerTrace = maxSpansPerTrace;
+      return this;
+    }
+
+    /**
+     * @param delegate receives spans sampled up front, and those of kept traces. This is usually
+     * configured implicitly, via {@link brave.Tracing.Builder#tailSampling(Builder)}.
+     */
+    public TailSamplingFinishedSpanHandler build(FinishedSpanHandler delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      return new TailSamplingFinishedSpanHandler(this, delegate);
+    }
+  }
+
+  static final int MAX_STRIPES = 64;
+  /** How many decisions are remembered per stripe, for spans that finish after their root. */
+  static final int MAX_DECISIONS_PER_STRIPE = 256;
+
+  static int stripeCount(int requested) {
+    int result = 1;
+    while (result < requested && result < MAX_STRIPES) result <<= 1;
+    return result;
+  }
+
+  final FinishedSpanHandler delegate;
+  final boolean keepErrors, supportsOrphans;
+  final long keepSlowerThanMicros;
+  final TracePredicate[] predicates; // Array ensures no iterators are created at runtime
+  final int maxSpansPerStripe, maxSpansPerTrace;
+  final Stripe[] stripes;
+  final int stripeMask;
+  final AtomicLong keptCount = new AtomicLong(), droppedCount = new AtomicLong(),
+    evictedCount = new AtomicLong();
+
+  TailSamplingFinishedSpanHandler(Builder builder, FinishedSpanHandler delegate) {
+    this.delegate = delegate;
+    keepErrors = builder.keepErrors;
+    keepSlowerThanMicros = builder.keepSlowerThanMicros;
+    predicates = builder.predicates.toArray(new TracePredicate[0]);
+    supportsOrphans = delegate.supportsOrphans();
+    int stripeCount = stripeCount(builder.stripes);
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe();
+    stripeMask = stripeCount - 1;
+    maxSpansPerStripe = Math.max(1, builder.maxSpans / stripeCount);
+    maxSpansPerTrace = builder.maxSpansPerTrace;
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    if (Boolean.TRUE.equals(context.sampled())) return delegate.handle(context, span);
+
+    long localRootId = context.localRootId();
+    Stripe stripe = stripes[spread(localRootId) & stripeMask];
+    LocalTrace decided;
+    synchronized (stripe) {
+      Object decision = stripe.decisions.get(localRootId);
+      if (decision == null) {
+        decided = stripe.add(localRootId, context, span, this);
+      } else if (!(decision instanceof Boolean)) { // the local root is being decided
+        stripe.addStraggler(localRootId, decision, context, span, this);
+        return true;
+      } else if ((Boolean) decision) {
+        decided = null;
+        keptCount.incrementAndGet();
+      } else {
+        droppedCount.incrementAndGet();
+        return true;
+      }
+    }
+
+    if (decided == null) { // already kept, so forward this straggler
+      forward(context, span);
+    } else if (decided != Stripe.PENDING) {
+      decide(stripe, localRootId, decided);
+    }
+    return true; // later handlers may want to see this span, even if we drop it
+  }
+
+  void decide(Stripe stripe, long localRootId, LocalTrace trace) {
+    boolean keep = keep(trace.spans);
+    Object pending;
+    synchronized (stripe) {
+      pending = stripe.decisions.put(localRootId, keep);
+    }
+    resolve(trace, keep);
+    // Spans that finished while we were deciding
+    if (pending instanceof LocalTrace) resolve((LocalTrace) pending, keep);
+  }
+
+  void resolve(LocalTrace trace, boolean keep) {
+    if (!keep) {
+      droppedCount.addAndGet(trace.spans.size());
+      return;
+    }
+    keptCount.addAndGet(trace.spans.size());
+    for (int i = 0, length = trace.spans.size(); i < length; i++) {
+      forward(trace.contexts.get(i), trace.spans.get(i));
+    }
+  }
+
+  void forward(TraceContext context, MutableSpan span) {
+    try {
+      delegate.handle(context, span);
+    } catch (Throwable t) {
+      Call.propagateIfFatal(t);
+      Platform.get().log("error handling span {0}", context, t);
+    }
+  }
+
+  boolean keep(List<MutableSpan> spans) {
+    if (keepErrors) {
+      for (int i = 0, length = spans.size(); i < length; i++) {
+        MutableSpan span = spans.get(i);
+        if (span.error() != null || span.tag("error") != null) return true;
+      }
+    }
+    if (keepSlowerThanMicros != 0L) {
+      MutableSpan localRoot = spans.get(spans.size() - 1);
+      long start = localRoot.startTimestamp(), finish = localRoot.finishTimestamp();
+      if (start != 0L && finish != 0L && finish - start >= keepSlowerThanMicros) return true;
+    }
+    for (TracePredicate predicate : predicates) {
+      try {
+        if (predicate.test(spans)) return true;
+      } catch (Throwable t) {
+        Call.propagateIfFatal(t);
+        Platform.get().log("error testing predicate {0}", predicate, t);
+      }
+    }
+    return false;
+  }
+
+  void evicted(int count) {
+    evictedCount.addAndGet(count);
+  }
+
+  /** All spans are recorded, as the sampling decision is deferred until the local root finishes */
+  @Override public boolean alwaysSampleLocal() {
+    return true;
+  }
+
+  /** We hold spans until their local root finishes. */
+  @Override public boolean retainsSpan() {
+    return true;
+  }
+
+  @Override public boolean supportsOrphans() {
+    return supportsOrphans;
+  }
+
+  /** Returns the count of unsampled spans passed to the delegate, as their trace was kept. */
+  public long keptCount() {
+    return keptCount.get();
+  }
+
+  /** Returns the count of unsampled spans dropped, as their trace was not kept. */
+  public long droppedCount() {
+    return droppedCount.get();
+  }
+
+  /** Returns the count of spans dropped to bound memory, before their trace was decided. */
+  public long evictedCount() {
+    return evictedCount.get();
+  }
+
+  /** Returns the approximate count of spans waiting for a decision. */
+  public int bufferedCount() {
+    int result = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        result += stripe.spanCount;
+      }
+    }
+    return result;
+  }
+
+  @Override public String toString() {
+    return "TailSamplingFinishedSpanHandler{" + delegate + "}";
+  }
+
+  /** Mixes the high bits into the low ones, as they select the stripe. */
+  static int spread(long localRootId) {
+    int h = (int) (localRootId ^ (localRootId >>> 32));
+    return h ^ (h >>> 16);
+  }
+
+  static final class LocalTrace {
+    final List<TraceContext> contexts = new ArrayList<>();
+    final List<MutableSpan> spans = new ArrayList<>();
+  }
+
+  static final class Stripe {
+    /** Returned by {@link #add} when the trace is not yet ready for a decision. */
+    static final LocalTrace PENDING = new LocalTrace();
+    /** Decision of a local root being decided, until a span finishes in the meantime. */
+    static final Object DECIDING = new Object();
+
+    // Insertion order means the first entry is the oldest trace, which we evict first
+    final LinkedHashMap<Long, LocalTrace> traces = new LinkedHashMap<>(); // guarded by this
+    /**
+     * Values are a {@link Boolean} once decided. Before that, they are {@link #DECIDING}, or a
+     * {@link LocalTrace} of spans which finished while the local root was being decided.
+     */
+    final Map<Long, Object> decisions = new LinkedHashMap<Long, Object>() { // guarded by this
+      @Override protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+        // pending decisions are resolved shortly, so don't lose their stragglers
+        return size() > MAX_DECISIONS_PER_STRIPE && eldest.getValue() instanceof Boolean;
+      }
+    };
+    int spanCount; // guarded by this
+
+    /** Returns the local trace if the input is its root, or {@link #PENDING}. */
+    LocalTrace add(long localRootId, TraceContext context, MutableSpan span,
+      TailSamplingFinishedSpanHandler handler) {
+      LocalTrace trace = traces.get(localRootId);
+      // A fragment of the local root is buffered like a child, as the root is still in progress
+      boolean isLocalRoot = context.spanId() == localRootId && !span.isFragment();
+      if (trace == null) {
+        trace = new LocalTrace();
+        if (!isLocalRoot) traces.put(localRootId, trace); // a lone local root needn't be buffered
+      }
+
+      if (trace.spans.size() < handler.maxSpansPerTrace || isLocalRoot) {
+        trace.contexts.add(context);
+        trace.spans.add(span);
+        spanCount++;
+      } else {
+        handler.evicted(1);
+      }
+
+      if (isLocalRoot) {
+        if (traces.remove(localRootId) == null) { // was never added
+          spanCount--;
+        } else {
+          spanCount -= trace.spans.size();
+        }
+        // In the same critical section, so that children finishing next aren't buffered anew
+        decisions.put(localRootId, DECIDING);
+        return trace;
+      }
+
+      evictOldest(handler);
+      return PENDING;
+    }
+
+    /** Buffers a span which finished while its local root was being decided. */
+    void addStraggler(long localRootId, Object decision, TraceContext context, MutableSpan span,
+      TailSamplingFinishedSpanHandler handler) {
+      LocalTrace stragglers;
+      if (decision instanceof LocalTrace) {
+        stragglers = (LocalTrace) decision;
+      } else {
+        decisions.put(localRootId, stragglers = new LocalTrace());
+      }
+      if (stragglers.spans.size() < handler.maxSpansPerTrace) {
+        stragglers.contexts.add(context);
+        stragglers.spans.add(span);
+      } else {
+        handler.evicted(1);
+      }
+    }
+
+    void evictOldest(TailSamplingFinishedSpanHandler handler) {
+      Iterator<LocalTrace> oldest = traces.values().iterator();
+      while (spanCount > handler.maxSpansPerStripe && oldest.hasNext()) {
+        int evicted = oldest.next().spans.size();
+        oldest.remove();
+        spanCount -= evicted;
+        handler.evicted(evicted);
+      }
+    }
+  }
+}
@@ -82,6 +82,15 @@ public final class HexCodec {
     writeHexByte(data, pos + 14, (byte) (v & 0xff));
   }
 
+  /** Like {@link #writeHexLong(char[], int, long)}, except writes US-ASCII bytes. */
+  public static void writeHexLong(byte[] data, int pos, long v) {
+    for (int shift = 56; shift >= 0; shift -= 8, pos += 2) {
+      int b = (int) (v >>> shift) & 0xff;
+      data[pos + 0] = (byte) HEX_DIGITS[(b >> 4) & 0xf];
+      data[pos + 1] = (byte) HEX_DIGITS[b & 0xf];
+    }
+  }
+
   static final char[] HEX_DIGITS =
     {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
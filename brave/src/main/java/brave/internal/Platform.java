@@ -14,9 +14,16 @@
 package brave.internal;
 
 import brave.Clock;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.SecureRandom;
 import java.util.Enumeration;
 import java.util.Random;
@@ -69,6 +76,58 @@ public abstract class Platform {
     return null;
   }
 
+  /** Returns true if the thread is a virtual thread, which are only available in JRE 21+. */
+  public boolean isVirtual(Thread thread) {
+    return false;
+  }
+
+  /** Returns true if this runtime can create virtual threads. */
+  public boolean supportsVirtualThreads() {
+    return false;
+  }
+
+  /**
+   * Releases the memory or file mapping of a direct buffer now, as opposed to when it is garbage
+   * collected. This allows a mapped file to be deleted on Windows, and its disk space reclaimed
+   * everywhere. The buffer must not be accessed afterwards, as that would crash the JVM.
+   *
+   * @return false if this runtime cannot release the buffer, which will happen on GC instead
+   */
+  public boolean unmap(ByteBuffer buffer) {
+    if (!buffer.isDirect()) return false;
+    try { // sun.nio.ch.DirectBuffer.cleaner().clean(), which is inaccessible in JRE 9+
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner == null) return false; // a duplicate or slice
+      Method clean = cleaner.getClass().getMethod("clean");
+      clean.setAccessible(true);
+      clean.invoke(cleaner);
+      return true;
+    } catch (Exception e) {
+      log("couldn't unmap buffer", e);
+      return false;
+    }
+  }
+
+  /**
+   * Like {@link ByteBuffer#putInt(int, int)} on a big-endian buffer, except that writes before it
+   * are visible to a thread that reads the value via {@link #getIntAcquire(ByteBuffer, int)}. The
+   * index must be a multiple of four.
+   */
+  public void putIntRelease(ByteBuffer buffer, int index, int value) {
+    synchronized (buffer) { // the lock orders both sides, as there's no portable fence until JRE 9
+      buffer.putInt(index, value);
+    }
+  }
+
+  /** Reads a value written by {@link #putIntRelease(ByteBuffer, int, int)}. */
+  public int getIntAcquire(ByteBuffer buffer, int index) {
+    synchronized (buffer) {
+      return buffer.getInt(index);
+    }
+  }
+
   public static Platform get() {
     return PLATFORM;
   }
@@ -98,6 +157,15 @@ public abstract class Platform {
 
   /** Attempt to match the host runtime to a capable Platform implementation. */
   static Platform findPlatform() {
+    // Find JRE 21 new methods
+    try {
+      return new Jre21(Thread.class.getMethod("isVirtual"));
+    } catch (NoSuchMethodException e) {
+      // pre JRE 21
+    } catch (IllegalAccessException e) {
+      // unexpected as the method is public
+    }
+
     // Find JRE 9 new methods
     try {
       Class zoneId = Class.forName("java.time.ZoneId");
@@ -152,7 +220,112 @@ public abstract class Platform {
     };
   }
 
+  static class Jre21 extends Jre9 {
+    /** Resolved once, as {@link Method#invoke} checks access and boxes on each call. */
+    final MethodHandle isVirtual;
+
+    @IgnoreJRERequirement Jre21(Method isVirtual) throws IllegalAccessException {
+      this.isVirtual = MethodHandles.publicLookup().unreflect(isVirtual)
+        .asType(MethodType.methodType(boolean.class, Thread.class));
+    }
+
+    @IgnoreJRERequirement @Override public boolean isVirtual(Thread thread) {
+      try {
+        return (boolean) isVirtual.invokeExact(thread);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new AssertionError(t); // Thread.isVirtual declares no checked exceptions
+      }
+    }
+
+    @Override public boolean supportsVirtualThreads() {
+      return true;
+    }
+
+    @Override public String toString() {
+      return "Jre21{}";
+    }
+  }
+
   static class Jre9 extends Jre7 {
+    /** Bound {@code VarHandle} accessors, or null if they couldn't be resolved. */
+    @Nullable final MethodHandle setRelease, getAcquire;
+
+    @IgnoreJRERequirement Jre9() {
+      MethodHandle put = null, get = null;
+      try {
+        put = byteBufferIntAccessor("SET_RELEASE",
+          MethodType.methodType(void.class, ByteBuffer.class, int.class, int.class));
+        get = byteBufferIntAccessor("GET_ACQUIRE",
+          MethodType.methodType(int.class, ByteBuffer.class, int.class));
+      } catch (Exception e) {
+        log("couldn't resolve VarHandle accessors", e);
+        put = get = null;
+      }
+      setRelease = put;
+      getAcquire = get;
+    }
+
+    /**
+     * Uses reflection so that this compiles on JRE 8. The result is a method handle as opposed to a
+     * {@code VarHandle}, as the latter's methods can't be invoked reflectively.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // intentional: VarHandle.AccessMode is JRE 9+
+    @IgnoreJRERequirement
+    static MethodHandle byteBufferIntAccessor(String accessMode, MethodType type) throws Exception {
+      Object intView = MethodHandles.class
+        .getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class)
+        .invoke(null, int[].class, ByteOrder.BIG_ENDIAN);
+      Class accessModeClass = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+      MethodHandle invoker = (MethodHandle) MethodHandles.class
+        .getMethod("varHandleExactInvoker", accessModeClass, MethodType.class)
+        .invoke(null, Enum.valueOf(accessModeClass, accessMode), type);
+      return invoker.bindTo(intView);
+    }
+
+    @IgnoreJRERequirement @Override
+    public void putIntRelease(ByteBuffer buffer, int index, int value) {
+      if (setRelease == null) {
+        super.putIntRelease(buffer, index, value);
+        return;
+      }
+      try {
+        setRelease.invokeExact(buffer, index, value);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new AssertionError(t); // the accessor declares no checked exceptions
+      }
+    }
+
+    @IgnoreJRERequirement @Override public int getIntAcquire(ByteBuffer buffer, int index) {
+      if (getAcquire == null) return super.getIntAcquire(buffer, index);
+      try {
+        return (int) getAcquire.invokeExact(buffer, index);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new AssertionError(t); // the accessor declares no checked exceptions
+      }
+    }
+
+    /** Uses {@code sun.misc.Unsafe.invokeCleaner}, exported by the jdk.unsupported module */
+    @Override public boolean unmap(ByteBuffer buffer) {
+      if (!buffer.isDirect()) return false;
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+          .invoke(theUnsafe.get(null), buffer);
+        return true;
+      } catch (Exception e) { // including when the buffer is a duplicate or slice
+        log("couldn't unmap buffer", e);
+        return false;
+      }
+    }
+
     @IgnoreJRERequirement @Override public Clock clock() {
       return new Clock() {
         // we could use jdk.internal.misc.VM to do this more efficiently, but it is internal
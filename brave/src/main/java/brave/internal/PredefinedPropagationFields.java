@@ -18,25 +18,56 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
-/** Copy-on-write keeps propagation changes in a child context from affecting its parent */
+/**
+ * Copy-on-write keeps propagation changes in a child context from affecting its parent.
+ *
+ * <p>The values array is never modified once published. Fields of a child context share their
+ * parent's array until a field is written, so that deep call trees which don't change baggage only
+ * allocate the fields object itself.
+ */
 public class PredefinedPropagationFields extends PropagationFields<String, String> {
   final String[] fieldNames;
   volatile String[] values; // guarded by this, copy on write
 
   protected PredefinedPropagationFields(String... fieldNames) {
+    this.fieldNames = checkFieldNames(fieldNames);
+  }
+
+  /**
+   * Shares the parent's values until a field is written, so that creating fields for a child
+   * context doesn't copy them.
+   */
+  protected PredefinedPropagationFields(PredefinedPropagationFields parent, String... fieldNames) {
+    if (parent == null) throw new NullPointerException("parent == null");
+    // Names are usually the same instance, as they come from the same factory: skip checks
+    this.fieldNames = fieldNames;
+    if (fieldNames != parent.fieldNames) {
+      checkFieldNames(fieldNames);
+      checkSameFields(parent);
+    }
+    this.values = parent.values;
+  }
+
+  /**
+   * Adopts the values, such as those extracted from a request, instead of copying them. The array
+   * must not be modified afterwards.
+   */
+  protected PredefinedPropagationFields(String[] fieldNames, String[] values) {
+    this(fieldNames);
+    if (values != null && values.length != fieldNames.length) {
+      throw new IllegalArgumentException("values.length != fieldNames.length");
+    }
+    this.values = values;
+  }
+
+  static String[] checkFieldNames(String[] fieldNames) {
     if (fieldNames == null) throw new NullPointerException("fieldNames == null");
     if (fieldNames.length == 0) throw new NullPointerException("fieldNames is empty");
     for (int i = 0; i < fieldNames.length; i++) {
       if (fieldNames[i] == null) throw new NullPointerException("fieldNames[" + i + "] == null");
       if (fieldNames[i].isEmpty()) throw new NullPointerException("fieldNames[" + i + "] is empty");
     }
-    this.fieldNames = fieldNames;
-  }
-
-  protected PredefinedPropagationFields(PredefinedPropagationFields parent, String... fieldNames) {
-    this(fieldNames);
-    checkSameFields(parent);
-    this.values = parent.values;
+    return fieldNames;
   }
 
   @Override public String get(String name) {
@@ -101,15 +132,26 @@ public class PredefinedPropagationFields extends PropagationFields<String, Strin
     checkSameFields(predefinedParent);
     String[] parentValues = predefinedParent.values;
     if (parentValues == null) return;
-    for (int i = 0; i < parentValues.length; i++) {
-      if (parentValues[i] != null && get(i) == null) { // extracted wins vs parent
-        put(i, parentValues[i]);
+
+    synchronized (this) {
+      String[] elements = values;
+      if (elements == null) { // nothing to merge, so share the parent's values
+        values = parentValues;
+        return;
+      }
+      String[] merged = null;
+      for (int i = 0; i < parentValues.length; i++) {
+        if (parentValues[i] == null || elements[i] != null) continue; // extracted wins vs parent
+        if (merged == null) merged = Arrays.copyOf(elements, elements.length);
+        merged[i] = parentValues[i];
       }
+      if (merged != null) values = merged; // copy at most once
     }
   }
 
   void checkSameFields(PredefinedPropagationFields predefinedParent) {
-    if (!Arrays.equals(fieldNames, predefinedParent.fieldNames)) {
+    if (fieldNames != predefinedParent.fieldNames
+      && !Arrays.equals(fieldNames, predefinedParent.fieldNames)) {
       throw new IllegalStateException(
         String.format("Mixed name configuration unsupported: found %s, expected %s",
           Arrays.toString(fieldNames), Arrays.toString(predefinedParent.fieldNames))
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+/**
+ * Limits enforced by {@link brave.handler.MutableSpan} while a span is recorded, as configured by
+ * {@link brave.Tracing.Builder#maxTagsPerSpan(int)} and similar. When there are no limits,
+ * components hold null instead of an instance, so that there is no overhead.
+ */
+public final class SpanLimits {
+  /** Tag keys of counters added to spans which exceeded a limit. */
+  public static final String DROPPED_TAGS = "brave.dropped_tags",
+    DROPPED_ANNOTATIONS = "brave.dropped_annotations",
+    TRUNCATED_TAGS = "brave.truncated_tags";
+
+  /** Returns null if all arguments are {@link Integer#MAX_VALUE}, which means no limit. */
+  @Nullable public static SpanLimits create(int maxTags, int maxAnnotations,
+    int maxTagValueLength, int maxSpanBytes) {
+    if (maxTags == Integer.MAX_VALUE && maxAnnotations == Integer.MAX_VALUE
+      && maxTagValueLength == Integer.MAX_VALUE && maxSpanBytes == Integer.MAX_VALUE) {
+      return null;
+    }
+    return new SpanLimits(maxTags, maxAnnotations, maxTagValueLength, maxSpanBytes);
+  }
+
+  public final int maxTags, maxAnnotations, maxTagValueLength, maxSpanBytes;
+
+  SpanLimits(int maxTags, int maxAnnotations, int maxTagValueLength, int maxSpanBytes) {
+    this.maxTags = maxTags;
+    this.maxAnnotations = maxAnnotations;
+    this.maxTagValueLength = maxTagValueLength;
+    this.maxSpanBytes = maxSpanBytes;
+  }
+
+  @Override public String toString() {
+    return "SpanLimits{"
+      + "maxTags=" + maxTags
+      + ", maxAnnotations=" + maxAnnotations
+      + ", maxTagValueLength=" + maxTagValueLength
+      + ", maxSpanBytes=" + maxSpanBytes
+      + "}";
+  }
+}
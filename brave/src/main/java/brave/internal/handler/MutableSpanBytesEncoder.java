@@ -0,0 +1,614 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.ErrorParser;
+import brave.handler.MutableSpan;
+import brave.handler.MutableSpan.AnnotationConsumer;
+import brave.handler.MutableSpan.TagConsumer;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.util.Arrays;
+import java.util.Locale;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+
+import static brave.internal.handler.WriteBuffer.utf8SizeInBytes;
+import static brave.internal.handler.WriteBuffer.varintSizeInBytes;
+
+/**
+ * Encodes a {@link MutableSpan} directly into Zipkin's JSON v2 or proto3 format, without
+ * allocating an intermediate {@link Span}.
+ *
+ * <p>The output is the same as {@link MutableSpanConverter} followed by {@link
+ * zipkin2.codec.SpanBytesEncoder}, so the same normalization applies: names are lower-cased,
+ * annotations are sorted and de-duplicated, tags are sorted by key, etc. The only known difference
+ * is that Zipkin's JSON encoder appends NUL padding when a string includes U+2028 or U+2029, which
+ * is a bug we don't copy.
+ *
+ * <p>Encoding uses a buffer reused by the calling thread, so the only allocation for a typical
+ * span is the resulting byte array.
+ */
+// internal until we figure out how the api should sit.
+public abstract class MutableSpanBytesEncoder {
+  /** Above this size, a thread's buffer is discarded instead of reused. */
+  static final int MAX_REUSED_BUFFER_SIZE = 64 * 1024;
+
+  public static MutableSpanBytesEncoder create(Encoding encoding, ErrorParser errorParser,
+    String localServiceName, @Nullable String localIp, int localPort) {
+    if (encoding == null) throw new NullPointerException("encoding == null");
+    switch (encoding) {
+      case JSON:
+        return new JsonV2(errorParser, localServiceName, localIp, localPort);
+      case PROTO3:
+        return new Proto3(errorParser, localServiceName, localIp, localPort);
+      default:
+        throw new IllegalArgumentException("Unsupported encoding: " + encoding.name());
+    }
+  }
+
+  static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<>();
+
+  static Scratch scratch() {
+    Scratch scratch = SCRATCH.get();
+    if (scratch == null) {
+      scratch = new Scratch();
+      SCRATCH.set(scratch);
+    }
+    return scratch;
+  }
+
+  final ErrorParser errorParser;
+  final String localServiceName;
+  @Nullable final String localIp;
+  final int localPort;
+  final EndpointFields localEndpoint;
+
+  MutableSpanBytesEncoder(ErrorParser errorParser, String localServiceName,
+    @Nullable String localIp, int localPort) {
+    if (errorParser == null) throw new NullPointerException("errorParser == null");
+    this.errorParser = errorParser;
+    if (localServiceName == null) throw new NullPointerException("localServiceName == null");
+    this.localServiceName = localServiceName;
+    this.localIp = localIp;
+    this.localPort = localPort;
+    this.localEndpoint = new EndpointFields();
+    this.localEndpoint.set(localServiceName, localIp, localPort, scratch());
+  }
+
+  public abstract Encoding encoding();
+
+  /** Returns the encoded span, which is the same as what {@link ZipkinFinishedSpanHandler} sends */
+  public byte[] encode(TraceContext context, MutableSpan span) {
+    // Same as MutableSpanConverter: this adds the "error" tag before we read tags
+    if (span.error() != null && span.tag("error") == null) {
+      errorParser.error(span.error(), span);
+    }
+
+    Scratch scratch = scratch();
+    try {
+      scratch.read(this, context, span);
+      write(scratch, scratch.buffer);
+      return scratch.buffer.toByteArray();
+    } finally {
+      scratch.clear();
+    }
+  }
+
+  abstract void write(Scratch span, WriteBuffer b);
+
+  @Override public String toString() {
+    return getClass().getSimpleName();
+  }
+
+  /** Span data read from a {@link MutableSpan} and normalized the same way as {@link Span} */
+  static final class Scratch implements TagConsumer<Scratch>, AnnotationConsumer<Scratch> {
+    final WriteBuffer buffer = new WriteBuffer(512);
+    final EndpointFields remoteEndpointFields = new EndpointFields();
+    final EndpointFields spanLocalEndpointFields = new EndpointFields();
+
+    long traceIdHigh, traceId, parentId, id;
+    @Nullable Span.Kind kind;
+    @Nullable String name;
+    long timestamp, duration;
+    EndpointFields localEndpoint;
+    @Nullable EndpointFields remoteEndpoint;
+    boolean debug, shared;
+
+    // key, value pairs, sorted by key
+    String[] tags = new String[20];
+    int tagCount;
+    // sorted by timestamp, then value
+    long[] annotationTimestamps = new long[4];
+    String[] annotationValues = new String[4];
+    int annotationCount;
+
+    // Caches the last IPv6 address normalized by Zipkin
+    String lastIpv6;
+    Endpoint lastIpv6Endpoint;
+
+    void read(MutableSpanBytesEncoder encoder, TraceContext context, MutableSpan span) {
+      traceIdHigh = context.traceIdHigh();
+      traceId = context.traceId();
+      id = context.spanId();
+      // Zipkin drops a parent ID that is the same as the span ID
+      parentId = context.parentIdAsLong() != id ? context.parentIdAsLong() : 0L;
+      debug = context.debug();
+
+      // use ordinal comparison to defend against version skew
+      brave.Span.Kind kind = span.kind();
+      this.kind = kind != null && kind.ordinal() < Span.Kind.values().length
+        ? Span.Kind.values()[kind.ordinal()] : null;
+      name = lowerCaseOrNull(span.name());
+
+      long start = span.startTimestamp(), finish = span.finishTimestamp();
+      timestamp = start;
+      duration = start != 0 && finish != 0L ? Math.max(finish - start, 1) : 0L;
+
+      String serviceName = span.localServiceName(), ip = span.localIp();
+      int port = span.localPort();
+      if (serviceName == null) serviceName = encoder.localServiceName;
+      if (ip == null) ip = encoder.localIp;
+      if (port <= 0) port = encoder.localPort;
+      if (encoder.localServiceName.equals(serviceName)
+        && (encoder.localIp == null ? ip == null : encoder.localIp.equals(ip))
+        && encoder.localPort == port) {
+        localEndpoint = encoder.localEndpoint;
+      } else {
+        spanLocalEndpointFields.set(serviceName, ip, port, this);
+        localEndpoint = spanLocalEndpointFields;
+      }
+
+      String remoteServiceName = span.remoteServiceName(), remoteIp = span.remoteIp();
+      if (remoteServiceName != null || remoteIp != null) {
+        remoteEndpointFields.set(remoteServiceName, remoteIp, span.remotePort(), this);
+        remoteEndpoint = remoteEndpointFields;
+      }
+
+      span.forEachTag(this, this);
+      sortTags();
+      span.forEachAnnotation(this, this);
+      sortAndDedupeAnnotations();
+
+      // Zipkin ignores the shared flag on client spans
+      shared = span.shared() && this.kind != Span.Kind.CLIENT;
+    }
+
+    @Override public void accept(Scratch target, String key, String value) {
+      int i = tagCount * 2;
+      if (i == tags.length) tags = Arrays.copyOf(tags, i * 2);
+      tags[i] = key;
+      tags[i + 1] = value;
+      tagCount++;
+    }
+
+    @Override public void accept(Scratch target, long timestamp, String value) {
+      int i = annotationCount;
+      if (i == annotationValues.length) {
+        annotationTimestamps = Arrays.copyOf(annotationTimestamps, i * 2);
+        annotationValues = Arrays.copyOf(annotationValues, i * 2);
+      }
+      annotationTimestamps[i] = timestamp;
+      annotationValues[i] = value;
+      annotationCount++;
+    }
+
+    /** Insertion sort, as there are usually few tags, and they are often added in order. */
+    void sortTags() {
+      String[] tags = this.tags;
+      for (int i = 2, length = tagCount * 2; i < length; i += 2) {
+        String key = tags[i], value = tags[i + 1];
+        int j = i - 2;
+        for (; j >= 0 && tags[j].compareTo(key) > 0; j -= 2) {
+          tags[j + 2] = tags[j];
+          tags[j + 3] = tags[j + 1];
+        }
+        tags[j + 2] = key;
+        tags[j + 3] = value;
+      }
+    }
+
+    void sortAndDedupeAnnotations() {
+      long[] timestamps = annotationTimestamps;
+      String[] values = annotationValues;
+      for (int i = 1; i < annotationCount; i++) {
+        long timestamp = timestamps[i];
+        String value = values[i];
+        int j = i - 1;
+        for (; j >= 0 && compare(timestamps[j], values[j], timestamp, value) > 0; j--) {
+          timestamps[j + 1] = timestamps[j];
+          values[j + 1] = values[j];
+        }
+        timestamps[j + 1] = timestamp;
+        values[j + 1] = value;
+      }
+
+      int j = 0; // index to write to, which is behind i when duplicates are removed
+      for (int i = 0; i < annotationCount; i++) {
+        if (j > 0 && timestamps[j - 1] == timestamps[i] && values[j - 1].equals(values[i])) {
+          continue;
+        }
+        timestamps[j] = timestamps[i];
+        values[j] = values[i];
+        j++;
+      }
+      if (j < annotationCount) Arrays.fill(values, j, annotationCount, null);
+      annotationCount = j;
+    }
+
+    static int compare(long leftTimestamp, String leftValue, long rightTimestamp,
+      String rightValue) {
+      if (leftTimestamp != rightTimestamp) return leftTimestamp < rightTimestamp ? -1 : 1;
+      return leftValue.compareTo(rightValue);
+    }
+
+    /** Returns Zipkin's normalized form of an IPv6 literal, which can also be IPv4-mapped. */
+    Endpoint normalizeIpv6(String ip) {
+      if (!ip.equals(lastIpv6)) {
+        lastIpv6Endpoint = Endpoint.newBuilder().ip(ip).build();
+        lastIpv6 = ip;
+      }
+      return lastIpv6Endpoint;
+    }
+
+    /** Drops references to span data, so that it isn't retained by the thread. */
+    void clear() {
+      Arrays.fill(tags, 0, tagCount * 2, null);
+      tagCount = 0;
+      Arrays.fill(annotationValues, 0, annotationCount, null);
+      annotationCount = 0;
+      name = null;
+      localEndpoint = remoteEndpoint = null;
+      spanLocalEndpointFields.serviceName = remoteEndpointFields.serviceName = null;
+      if (buffer.buf.length > MAX_REUSED_BUFFER_SIZE) {
+        buffer.buf = new byte[512];
+      }
+      buffer.reset();
+    }
+  }
+
+  /** Endpoint data normalized the same way as {@link Endpoint} */
+  static final class EndpointFields {
+    @Nullable String serviceName, ipv4, ipv6;
+    @Nullable byte[] ipv6Bytes;
+    int port;
+
+    void set(@Nullable String serviceName, @Nullable String ip, int port, Scratch scratch) {
+      this.serviceName = lowerCaseOrNull(serviceName);
+      this.port = Math.max(port, 0);
+      ipv4 = ipv6 = null;
+      ipv6Bytes = null;
+      if (ip == null) return;
+      if (ip.indexOf(':') == -1) { // IpLiteral already extracted IPv4 embedded in IPv6
+        ipv4 = ip;
+        return;
+      }
+      Endpoint normalized = scratch.normalizeIpv6(ip);
+      ipv4 = normalized.ipv4();
+      ipv6 = normalized.ipv6();
+      ipv6Bytes = normalized.ipv6Bytes();
+    }
+
+    boolean isEmpty() {
+      return serviceName == null && ipv4 == null && ipv6 == null && port == 0;
+    }
+  }
+
+  @Nullable static String lowerCaseOrNull(@Nullable String value) {
+    if (value == null || value.isEmpty()) return null;
+    return value.toLowerCase(Locale.ROOT);
+  }
+
+  static final class JsonV2 extends MutableSpanBytesEncoder {
+    JsonV2(ErrorParser errorParser, String localServiceName, @Nullable String localIp,
+      int localPort) {
+      super(errorParser, localServiceName, localIp, localPort);
+    }
+
+    @Override public Encoding encoding() {
+      return Encoding.JSON;
+    }
+
+    @Override void write(Scratch span, WriteBuffer b) {
+      b.writeAscii("{\"traceId\":\"");
+      if (span.traceIdHigh != 0L) b.writeLongHex(span.traceIdHigh);
+      b.writeLongHex(span.traceId);
+      b.writeByte('"');
+      if (span.parentId != 0L) {
+        b.writeAscii(",\"parentId\":\"");
+        b.writeLongHex(span.parentId);
+        b.writeByte('"');
+      }
+      b.writeAscii(",\"id\":\"");
+      b.writeLongHex(span.id);
+      b.writeByte('"');
+      if (span.kind != null) {
+        b.writeAscii(",\"kind\":\"");
+        b.writeAscii(span.kind.name());
+        b.writeByte('"');
+      }
+      if (span.name != null) {
+        b.writeAscii(",\"name\":\"");
+        b.writeJsonEscaped(span.name);
+        b.writeByte('"');
+      }
+      if (span.timestamp != 0L) {
+        b.writeAscii(",\"timestamp\":");
+        b.writeAscii(span.timestamp);
+      }
+      if (span.duration != 0L) {
+        b.writeAscii(",\"duration\":");
+        b.writeAscii(span.duration);
+      }
+      if (!span.localEndpoint.isEmpty()) {
+        b.writeAscii(",\"localEndpoint\":");
+        writeEndpoint(span.localEndpoint, b);
+      }
+      if (span.remoteEndpoint != null && !span.remoteEndpoint.isEmpty()) {
+        b.writeAscii(",\"remoteEndpoint\":");
+        writeEndpoint(span.remoteEndpoint, b);
+      }
+      if (span.annotationCount > 0) {
+        b.writeAscii(",\"annotations\":[");
+        for (int i = 0; i < span.annotationCount; i++) {
+          if (i > 0) b.writeByte(',');
+          b.writeAscii("{\"timestamp\":");
+          b.writeAscii(span.annotationTimestamps[i]);
+          b.writeAscii(",\"value\":\"");
+          b.writeJsonEscaped(span.annotationValues[i]);
+          b.writeAscii("\"}");
+        }
+        b.writeByte(']');
+      }
+      if (span.tagCount > 0) {
+        b.writeAscii(",\"tags\":{");
+        for (int i = 0, length = span.tagCount * 2; i < length; i += 2) {
+          if (i > 0) b.writeByte(',');
+          b.writeByte('"');
+          b.writeJsonEscaped(span.tags[i]);
+          b.writeAscii("\":\"");
+          b.writeJsonEscaped(span.tags[i + 1]);
+          b.writeByte('"');
+        }
+        b.writeByte('}');
+      }
+      if (span.debug) b.writeAscii(",\"debug\":true");
+      if (span.shared) b.writeAscii(",\"shared\":true");
+      b.writeByte('}');
+    }
+
+    static void writeEndpoint(EndpointFields endpoint, WriteBuffer b) {
+      b.writeByte('{');
+      boolean wroteField = false;
+      if (endpoint.serviceName != null) {
+        b.writeAscii("\"serviceName\":\"");
+        b.writeJsonEscaped(endpoint.serviceName);
+        b.writeByte('"');
+        wroteField = true;
+      }
+      if (endpoint.ipv4 != null) {
+        if (wroteField) b.writeByte(',');
+        b.writeAscii("\"ipv4\":\"");
+        b.writeAscii(endpoint.ipv4);
+        b.writeByte('"');
+        wroteField = true;
+      }
+      if (endpoint.ipv6 != null) {
+        if (wroteField) b.writeByte(',');
+        b.writeAscii("\"ipv6\":\"");
+        b.writeAscii(endpoint.ipv6);
+        b.writeByte('"');
+        wroteField = true;
+      }
+      if (endpoint.port != 0) {
+        if (wroteField) b.writeByte(',');
+        b.writeAscii("\"port\":");
+        b.writeAscii(endpoint.port);
+      }
+      b.writeByte('}');
+    }
+  }
+
+  /**
+   * Writes a {@code ListOfSpans} message with one span, which is the same as Zipkin's {@code
+   * SpanBytesEncoder.PROTO3.encode(span)}.
+   */
+  static final class Proto3 extends MutableSpanBytesEncoder {
+    // Field keys are (field number << 3) | wire type
+    static final int
+      SPAN = (1 << 3) | 2,
+      TRACE_ID = (1 << 3) | 2,
+      PARENT_ID = (2 << 3) | 2,
+      ID = (3 << 3) | 2,
+      KIND = 4 << 3,
+      NAME = (5 << 3) | 2,
+      TIMESTAMP = (6 << 3) | 1,
+      DURATION = 7 << 3,
+      LOCAL_ENDPOINT = (8 << 3) | 2,
+      REMOTE_ENDPOINT = (9 << 3) | 2,
+      ANNOTATION = (10 << 3) | 2,
+      TAG = (11 << 3) | 2,
+      DEBUG = 12 << 3,
+      SHARED = 13 << 3;
+    static final int
+      SERVICE_NAME = (1 << 3) | 2,
+      IPV4 = (2 << 3) | 2,
+      IPV6 = (3 << 3) | 2,
+      PORT = 4 << 3;
+    static final int
+      ANNOTATION_TIMESTAMP = (1 << 3) | 1,
+      ANNOTATION_VALUE = (2 << 3) | 2;
+    static final int
+      TAG_KEY = (1 << 3) | 2,
+      TAG_VALUE = (2 << 3) | 2;
+
+    Proto3(ErrorParser errorParser, String localServiceName, @Nullable String localIp,
+      int localPort) {
+      super(errorParser, localServiceName, localIp, localPort);
+    }
+
+    @Override public Encoding encoding() {
+      return Encoding.PROTO3;
+    }
+
+    @Override void write(Scratch span, WriteBuffer b) {
+      int localEndpointSize = sizeOf(span.localEndpoint);
+      int remoteEndpointSize = span.remoteEndpoint != null ? sizeOf(span.remoteEndpoint) : 0;
+
+      int spanSize = 2 + (span.traceIdHigh != 0L ? 16 : 8);
+      if (span.parentId != 0L) spanSize += 10;
+      spanSize += 10;
+      if (span.kind != null) spanSize += 2;
+      if (span.name != null) spanSize += sizeOfString(span.name);
+      if (span.timestamp != 0L) spanSize += 9;
+      if (span.duration != 0L) spanSize += 1 + varintSizeInBytes(span.duration);
+      if (localEndpointSize != 0) spanSize += sizeOfMessage(localEndpointSize);
+      if (remoteEndpointSize != 0) spanSize += sizeOfMessage(remoteEndpointSize);
+      for (int i = 0; i < span.annotationCount; i++) {
+        spanSize += sizeOfMessage(sizeOfAnnotation(span, i));
+      }
+      for (int i = 0, length = span.tagCount * 2; i < length; i += 2) {
+        spanSize += sizeOfMessage(sizeOfTag(span, i));
+      }
+      if (span.debug) spanSize += 2;
+      if (span.shared) spanSize += 2;
+
+      b.writeByte(SPAN);
+      b.writeVarint(spanSize);
+
+      b.writeByte(TRACE_ID);
+      if (span.traceIdHigh != 0L) {
+        b.writeByte(16);
+        writeLongBe(span.traceIdHigh, b);
+      } else {
+        b.writeByte(8);
+      }
+      writeLongBe(span.traceId, b);
+      if (span.parentId != 0L) {
+        b.writeByte(PARENT_ID);
+        b.writeByte(8);
+        writeLongBe(span.parentId, b);
+      }
+      b.writeByte(ID);
+      b.writeByte(8);
+      writeLongBe(span.id, b);
+      if (span.kind != null) {
+        b.writeByte(KIND);
+        b.writeByte(span.kind.ordinal() + 1); // the proto enum reserves zero for unspecified
+      }
+      if (span.name != null) writeString(NAME, span.name, b);
+      if (span.timestamp != 0L) {
+        b.writeByte(TIMESTAMP);
+        b.writeLongLe(span.timestamp);
+      }
+      if (span.duration != 0L) {
+        b.writeByte(DURATION);
+        b.writeVarint(span.duration);
+      }
+      if (localEndpointSize != 0) {
+        writeEndpoint(LOCAL_ENDPOINT, span.localEndpoint, localEndpointSize, b);
+      }
+      if (remoteEndpointSize != 0) {
+        writeEndpoint(REMOTE_ENDPOINT, span.remoteEndpoint, remoteEndpointSize, b);
+      }
+      for (int i = 0; i < span.annotationCount; i++) {
+        b.writeByte(ANNOTATION);
+        b.writeVarint(sizeOfAnnotation(span, i));
+        long timestamp = span.annotationTimestamps[i];
+        if (timestamp != 0L) {
+          b.writeByte(ANNOTATION_TIMESTAMP);
+          b.writeLongLe(timestamp);
+        }
+        writeString(ANNOTATION_VALUE, span.annotationValues[i], b);
+      }
+      for (int i = 0, length = span.tagCount * 2; i < length; i += 2) {
+        b.writeByte(TAG);
+        b.writeVarint(sizeOfTag(span, i));
+        writeString(TAG_KEY, span.tags[i], b);
+        writeString(TAG_VALUE, span.tags[i + 1], b);
+      }
+      if (span.debug) {
+        b.writeByte(DEBUG);
+        b.writeByte(1);
+      }
+      if (span.shared) {
+        b.writeByte(SHARED);
+        b.writeByte(1);
+      }
+    }
+
+    static void writeEndpoint(int key, EndpointFields endpoint, int size, WriteBuffer b) {
+      b.writeByte(key);
+      b.writeVarint(size);
+      if (endpoint.serviceName != null) writeString(SERVICE_NAME, endpoint.serviceName, b);
+      if (endpoint.ipv4 != null) {
+        b.writeByte(IPV4);
+        b.writeByte(4);
+        b.writeIpv4Bytes(endpoint.ipv4);
+      }
+      if (endpoint.ipv6Bytes != null) {
+        b.writeByte(IPV6);
+        b.writeByte(16);
+        b.write(endpoint.ipv6Bytes);
+      }
+      if (endpoint.port != 0) {
+        b.writeByte(PORT);
+        b.writeVarint(endpoint.port);
+      }
+    }
+
+    static void writeString(int key, String value, WriteBuffer b) {
+      b.writeByte(key);
+      b.writeVarint(utf8SizeInBytes(value));
+      b.writeUtf8(value);
+    }
+
+    static void writeLongBe(long v, WriteBuffer b) {
+      b.ensureCapacity(8);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        b.buf[b.pos++] = (byte) (v >>> shift);
+      }
+    }
+
+    /** Returns zero when the endpoint is empty, as Zipkin doesn't write empty endpoints. */
+    static int sizeOf(EndpointFields endpoint) {
+      int result = 0;
+      if (endpoint.serviceName != null) result += sizeOfString(endpoint.serviceName);
+      if (endpoint.ipv4 != null) result += 6;
+      if (endpoint.ipv6Bytes != null) result += 18;
+      if (endpoint.port != 0) result += 1 + varintSizeInBytes(endpoint.port);
+      return result;
+    }
+
+    static int sizeOfAnnotation(Scratch span, int i) {
+      int result = sizeOfString(span.annotationValues[i]);
+      if (span.annotationTimestamps[i] != 0L) result += 9;
+      return result;
+    }
+
+    static int sizeOfTag(Scratch span, int i) {
+      return sizeOfString(span.tags[i]) + sizeOfString(span.tags[i + 1]);
+    }
+
+    static int sizeOfString(String value) {
+      return sizeOfMessage(utf8SizeInBytes(value));
+    }
+
+    /** Returns the size of a length-prefixed field with a one byte key */
+    static int sizeOfMessage(int length) {
+      return 1 + varintSizeInBytes(length) + length;
+    }
+  }
+}
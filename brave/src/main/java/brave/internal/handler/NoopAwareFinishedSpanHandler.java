@@ -15,7 +15,9 @@ package brave.internal.handler;
 
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.internal.Nullable;
 import brave.internal.Platform;
+import brave.internal.recorder.TracingCounters;
 import brave.propagation.TraceContext;
 import java.util.Arrays;
 import java.util.List;
@@ -28,29 +30,41 @@ import zipkin2.Call;
  */
 public abstract class NoopAwareFinishedSpanHandler extends FinishedSpanHandler {
   public static FinishedSpanHandler create(List<FinishedSpanHandler> handlers, AtomicBoolean noop) {
+    return create(handlers, null, noop);
+  }
+
+  /** @param counters when present, errors raised by handlers are counted. */
+  public static FinishedSpanHandler create(List<FinishedSpanHandler> handlers,
+    @Nullable TracingCounters counters, AtomicBoolean noop) {
     if (handlers.isEmpty()) return FinishedSpanHandler.NOOP;
 
     if (handlers.size() == 1) {
       FinishedSpanHandler onlyHandler = handlers.get(0);
-      return onlyHandler == FinishedSpanHandler.NOOP ? onlyHandler : new Single(onlyHandler, noop);
+      return onlyHandler == FinishedSpanHandler.NOOP
+        ? onlyHandler : new Single(onlyHandler, counters, noop);
     }
 
-    boolean alwaysSampleLocal = false, supportsOrphans = false;
+    boolean alwaysSampleLocal = false, supportsOrphans = false, retainsSpan = false;
     for (FinishedSpanHandler handler : handlers) {
       if (handler.alwaysSampleLocal()) alwaysSampleLocal = true;
       if (handler.supportsOrphans()) supportsOrphans = true;
+      if (handler.retainsSpan()) retainsSpan = true;
     }
-    return new Multiple(handlers, noop, alwaysSampleLocal, supportsOrphans);
+    return new Multiple(handlers, counters, noop, alwaysSampleLocal, supportsOrphans,
+      retainsSpan);
   }
 
+  @Nullable final TracingCounters counters;
   final AtomicBoolean noop;
-  boolean alwaysSampleLocal, supportsOrphans;
+  boolean alwaysSampleLocal, supportsOrphans, retainsSpan;
 
-  NoopAwareFinishedSpanHandler(AtomicBoolean noop, boolean alwaysSampleLocal,
-    boolean supportsOrphans) {
+  NoopAwareFinishedSpanHandler(@Nullable TracingCounters counters, AtomicBoolean noop,
+    boolean alwaysSampleLocal, boolean supportsOrphans, boolean retainsSpan) {
+    this.counters = counters;
     this.noop = noop;
     this.alwaysSampleLocal = alwaysSampleLocal;
     this.supportsOrphans = supportsOrphans;
+    this.retainsSpan = retainsSpan;
   }
 
   @Override public final boolean handle(TraceContext context, MutableSpan span) {
@@ -59,11 +73,17 @@ public abstract class NoopAwareFinishedSpanHandler extends FinishedSpanHandler {
       return doHandle(context, span);
     } catch (Throwable t) {
       Call.propagateIfFatal(t);
+      if (counters != null) counters.handlerErrors.increment();
       Platform.get().log("error handling {0}", context, t);
       return false;
     }
   }
 
+  @Override public void handleBatch(List<TraceContext> contexts, List<MutableSpan> spans) {
+    if (noop.get()) return;
+    super.handleBatch(contexts, spans); // handles each span, so that one error doesn't drop all
+  }
+
   @Override public final boolean alwaysSampleLocal() {
     return alwaysSampleLocal;
   }
@@ -72,13 +92,18 @@ public abstract class NoopAwareFinishedSpanHandler extends FinishedSpanHandler {
     return supportsOrphans;
   }
 
+  @Override public final boolean retainsSpan() {
+    return retainsSpan;
+  }
+
   abstract boolean doHandle(TraceContext context, MutableSpan span);
 
   static final class Single extends NoopAwareFinishedSpanHandler {
     final FinishedSpanHandler delegate;
 
-    Single(FinishedSpanHandler delegate, AtomicBoolean noop) {
-      super(noop, delegate.alwaysSampleLocal(), delegate.supportsOrphans());
+    Single(FinishedSpanHandler delegate, @Nullable TracingCounters counters, AtomicBoolean noop) {
+      super(counters, noop, delegate.alwaysSampleLocal(), delegate.supportsOrphans(),
+        delegate.retainsSpan());
       this.delegate = delegate;
     }
 
@@ -86,6 +111,18 @@ public abstract class NoopAwareFinishedSpanHandler extends FinishedSpanHandler {
       return delegate.handle(context, span);
     }
 
+    /** Passes the batch through, so that the delegate can amortize work across spans. */
+    @Override public void handleBatch(List<TraceContext> contexts, List<MutableSpan> spans) {
+      if (noop.get()) return;
+      try {
+        delegate.handleBatch(contexts, spans);
+      } catch (Throwable t) {
+        Call.propagateIfFatal(t);
+        if (counters != null) counters.handlerErrors.increment();
+        Platform.get().log("error handling batch of {0} spans", spans.size(), t);
+      }
+    }
+
     @Override public String toString() {
       return delegate.toString();
     }
@@ -94,9 +131,10 @@ public abstract class NoopAwareFinishedSpanHandler extends FinishedSpanHandler {
   static final class Multiple extends NoopAwareFinishedSpanHandler {
     final FinishedSpanHandler[] handlers; // Array ensures no iterators are created at runtime
 
-    Multiple(List<FinishedSpanHandler> handlers, AtomicBoolean noop, boolean alwaysSampleLocal,
-      boolean supportsOrphans) {
-      super(noop, alwaysSampleLocal, supportsOrphans);
+    Multiple(List<FinishedSpanHandler> handlers, @Nullable TracingCounters counters,
+      AtomicBoolean noop, boolean alwaysSampleLocal, boolean supportsOrphans,
+      boolean retainsSpan) {
+      super(counters, noop, alwaysSampleLocal, supportsOrphans, retainsSpan);
       this.handlers = handlers.toArray(new FinishedSpanHandler[0]);
     }
 
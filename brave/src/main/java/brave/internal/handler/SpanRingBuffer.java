@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of finished spans, preallocated to a power of two capacity.
+ *
+ * <p>This is Dmitry Vyukov's bounded MPMC queue: each slot has a sequence number which says
+ * whether it is ready to be written or read in the current lap around the ring. Producers and
+ * consumers claim a slot by CAS on the tail or head respectively, then publish by advancing the
+ * slot's sequence. Multiple consumers are supported so that producers can drop the oldest entry
+ * when the queue is full.
+ */
+public final class SpanRingBuffer {
+  final int mask;
+  final AtomicLongArray sequences;
+  final TraceContext[] contexts;
+  final MutableSpan[] spans;
+  final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+
+  /**
+   * @param capacity rounded up to the next power of two. The minimum is two, as with one slot, a
+   * published sequence would be the same as a free one in the next lap.
+   */
+  public SpanRingBuffer(int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+    if (capacity > 1 << 30) throw new IllegalArgumentException("capacity > 2^30");
+    int size = 2;
+    while (size < capacity) size <<= 1;
+    mask = size - 1;
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) sequences.set(i, i);
+    contexts = new TraceContext[size];
+    spans = new MutableSpan[size];
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /** Returns the approximate count of spans in the buffer. */
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0L, Math.min(size, capacity()));
+  }
+
+  /** Returns false if the buffer was full. */
+  public boolean offer(TraceContext context, MutableSpan span) {
+    while (true) {
+      long pos = tail.get();
+      int index = (int) pos & mask;
+      long sequence = sequences.get(index);
+      if (sequence == pos) {
+        if (!tail.compareAndSet(pos, pos + 1)) continue; // lost a race to another producer
+        contexts[index] = context;
+        spans[index] = span;
+        sequences.lazySet(index, pos + 1); // publishes the above writes to the consumer
+        return true;
+      } else if (sequence < pos) {
+        return false; // the slot hasn't been consumed since the last lap
+      }
+      // otherwise, another producer claimed the slot since we read the tail
+    }
+  }
+
+  /**
+   * Moves up to {@code max} of the oldest spans into the arrays, and returns the count moved.
+   */
+  public int drainTo(TraceContext[] contextsOut, MutableSpan[] spansOut, int max) {
+    int count = 0;
+    while (count < max) {
+      long pos = claimOldest();
+      if (pos == -1L) break;
+      int index = (int) pos & mask;
+      contextsOut[count] = contexts[index];
+      spansOut[count] = spans[index];
+      release(index, pos);
+      count++;
+    }
+    return count;
+  }
+
+  /** Discards the oldest span, returning false if the buffer was empty. */
+  public boolean dropOldest() {
+    long pos = claimOldest();
+    if (pos == -1L) return false;
+    release((int) pos & mask, pos);
+    return true;
+  }
+
+  /** Returns the position of the oldest span, which must be released, or -1 if empty. */
+  long claimOldest() {
+    while (true) {
+      long pos = head.get();
+      long sequence = sequences.get((int) pos & mask);
+      if (sequence == pos + 1) {
+        if (head.compareAndSet(pos, pos + 1)) return pos;
+      } else if (sequence < pos + 1) {
+        return -1L; // the slot hasn't been published
+      }
+      // otherwise, another consumer claimed the slot since we read the head
+    }
+  }
+
+  void release(int index, long pos) {
+    contexts[index] = null;
+    spans[index] = null;
+    sequences.lazySet(index, pos + mask + 1); // ready to be written in the next lap
+  }
+
+  @Override public String toString() {
+    return "SpanRingBuffer{capacity=" + capacity() + ", size=" + size() + "}";
+  }
+}
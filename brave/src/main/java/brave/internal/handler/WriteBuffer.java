@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer, reused across spans encoded by the same thread.
+ *
+ * <p>The UTF-8, JSON escaping and varint logic is from {@code zipkin2.internal.WriteBuffer} and
+ * {@code zipkin2.internal.JsonEscaper}, copy/pasted here as they are not public api. It is
+ * important to keep them in sync, as we are expected to produce the same bytes as Zipkin's
+ * encoders.
+ */
+final class WriteBuffer {
+  static final char[] HEX_DIGITS =
+    {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  byte[] buf;
+  int pos;
+
+  WriteBuffer(int initialCapacity) {
+    buf = new byte[initialCapacity];
+  }
+
+  /** Returns a copy of the bytes written since the last {@link #reset()}. */
+  byte[] toByteArray() {
+    return Arrays.copyOf(buf, pos);
+  }
+
+  void reset() {
+    pos = 0;
+  }
+
+  void ensureCapacity(int byteCount) {
+    int required = pos + byteCount;
+    if (required <= buf.length) return;
+    buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+  }
+
+  void writeByte(int b) {
+    ensureCapacity(1);
+    buf[pos++] = (byte) b;
+  }
+
+  void writeAscii(String v) {
+    int length = v.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      buf[pos++] = (byte) v.charAt(i);
+    }
+  }
+
+  /** Writes a lower-hex ID without allocating a string */
+  void writeLongHex(long v) {
+    ensureCapacity(16);
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      buf[pos++] = (byte) HEX_DIGITS[(int) (v >>> shift) & 0xf];
+    }
+  }
+
+  /** Writes the decimal representation of the number, like {@link Long#toString(long)}. */
+  void writeAscii(long v) {
+    if (v == 0) {
+      writeByte('0');
+      return;
+    } else if (v == Long.MIN_VALUE) {
+      writeAscii("-9223372036854775808");
+      return;
+    }
+    if (v < 0) {
+      writeByte('-');
+      v = -v;
+    }
+    int digits = asciiSizeInBytes(v);
+    ensureCapacity(digits);
+    int end = pos + digits;
+    for (int i = end - 1; i >= pos; i--, v /= 10) {
+      buf[i] = (byte) ('0' + v % 10);
+    }
+    pos = end;
+  }
+
+  static int asciiSizeInBytes(long positive) {
+    int result = 1;
+    while ((positive /= 10) != 0) result++;
+    return result;
+  }
+
+  /** Writes four bytes of a dotted-decimal IPv4 literal, which was previously validated. */
+  void writeIpv4Bytes(String ipv4) {
+    ensureCapacity(4);
+    int octet = 0;
+    for (int i = 0, length = ipv4.length(); i < length; i++) {
+      char c = ipv4.charAt(i);
+      if (c == '.') {
+        buf[pos++] = (byte) octet;
+        octet = 0;
+      } else {
+        octet = octet * 10 + (c - '0');
+      }
+    }
+    buf[pos++] = (byte) octet;
+  }
+
+  void write(byte[] v) {
+    ensureCapacity(v.length);
+    System.arraycopy(v, 0, buf, pos, v.length);
+    pos += v.length;
+  }
+
+  void writeUtf8(String string) {
+    writeUtf8(string, 0, string.length());
+  }
+
+  /** This replaces malformed surrogates with '?' the same way as Zipkin's encoder. */
+  void writeUtf8(String string, int from, int to) {
+    ensureCapacity((to - from) * 3); // a surrogate pair is 4 bytes for two chars
+    byte[] buf = this.buf;
+    int pos = this.pos;
+    for (int i = from; i < to; i++) {
+      char ch = string.charAt(i);
+      if (ch < 0x80) { // 7-bit ASCII character
+        buf[pos++] = (byte) ch;
+      } else if (ch < 0x800) { // 11-bit character
+        buf[pos++] = (byte) (0xc0 | (ch >> 6));
+        buf[pos++] = (byte) (0x80 | (ch & 0x3f));
+      } else if (ch < 0xd800 || ch > 0xdfff) { // 16-bit character
+        buf[pos++] = (byte) (0xe0 | (ch >> 12));
+        buf[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (ch & 0x3f));
+      } else { // Possibly a 21-bit character
+        if (!Character.isHighSurrogate(ch)) { // Malformed or not UTF-8
+          buf[pos++] = '?';
+          continue;
+        }
+        if (i == to - 1) { // Truncated or not UTF-8
+          buf[pos++] = '?';
+          break;
+        }
+        char low = string.charAt(++i);
+        if (!Character.isLowSurrogate(low)) { // Malformed or not UTF-8
+          buf[pos++] = '?';
+          buf[pos++] = (byte) (Character.isHighSurrogate(low) ? '?' : low);
+          continue;
+        }
+        // Write the 21-bit character using 4 bytes
+        // See http://www.unicode.org/versions/Unicode7.0.0/ch03.pdf#G2630
+        int codePoint = Character.toCodePoint(ch, low);
+        buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+      }
+    }
+    this.pos = pos;
+  }
+
+  static int utf8SizeInBytes(String string) {
+    int sizeInBytes = 0;
+    for (int i = 0, len = string.length(); i < len; i++) {
+      char ch = string.charAt(i);
+      if (ch < 0x80) {
+        sizeInBytes++; // 7-bit ASCII character
+      } else if (ch < 0x800) {
+        sizeInBytes += 2; // 11-bit character
+      } else if (ch < 0xd800 || ch > 0xdfff) {
+        sizeInBytes += 3; // 16-bit character
+      } else {
+        int low = i + 1 < len ? string.charAt(i + 1) : 0;
+        if (ch > 0xdbff || low < 0xdc00 || low > 0xdfff) {
+          sizeInBytes++; // A malformed surrogate, which yields '?'.
+        } else {
+          // A 21-bit character
+          sizeInBytes += 4;
+          i++;
+        }
+      }
+    }
+    return sizeInBytes;
+  }
+
+  // Escape table adapted from Gson, like zipkin2.internal.JsonEscaper
+  static final String[] REPLACEMENT_CHARS;
+  static final String U2028 = "\\u2028", U2029 = "\\u2029";
+
+  static {
+    REPLACEMENT_CHARS = new String[128];
+    for (int i = 0; i <= 0x1f; i++) {
+      REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+    }
+    REPLACEMENT_CHARS['"'] = "\\\"";
+    REPLACEMENT_CHARS['\\'] = "\\\\";
+    REPLACEMENT_CHARS['\t'] = "\\t";
+    REPLACEMENT_CHARS['\b'] = "\\b";
+    REPLACEMENT_CHARS['\n'] = "\\n";
+    REPLACEMENT_CHARS['\r'] = "\\r";
+    REPLACEMENT_CHARS['\f'] = "\\f";
+  }
+
+  /** Writes the string as UTF-8, escaping characters not allowed in a JSON string. */
+  void writeJsonEscaped(String string) {
+    int afterReplacement = 0, length = string.length();
+    for (int i = 0; i < length; i++) {
+      char c = string.charAt(i);
+      String replacement;
+      if (c < 0x80) {
+        replacement = REPLACEMENT_CHARS[c];
+        if (replacement == null) continue;
+      } else if (c == 0x2028) {
+        replacement = U2028;
+      } else if (c == 0x2029) {
+        replacement = U2029;
+      } else {
+        continue;
+      }
+      if (afterReplacement < i) writeUtf8(string, afterReplacement, i);
+      writeAscii(replacement);
+      afterReplacement = i + 1;
+    }
+    if (afterReplacement < length) writeUtf8(string, afterReplacement, length);
+  }
+
+  void writeVarint(int v) {
+    ensureCapacity(5);
+    while ((v & ~0x7f) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+  }
+
+  void writeVarint(long v) {
+    ensureCapacity(10);
+    while ((v & ~0x7fL) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+  }
+
+  void writeLongLe(long v) {
+    ensureCapacity(8);
+    for (int i = 0; i < 8; i++, v >>>= 8) {
+      buf[pos++] = (byte) (v & 0xff);
+    }
+  }
+
+  static int varintSizeInBytes(int v) {
+    if ((v & (0xffffffff << 7)) == 0) return 1;
+    if ((v & (0xffffffff << 14)) == 0) return 2;
+    if ((v & (0xffffffff << 21)) == 0) return 3;
+    if ((v & (0xffffffff << 28)) == 0) return 4;
+    return 5;
+  }
+
+  static int varintSizeInBytes(long v) {
+    int result = 1;
+    while ((v & ~0x7fL) != 0) {
+      result++;
+      v >>>= 7;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.List;
+import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Like {@link ZipkinFinishedSpanHandler}, except spans are encoded directly into the format of the
+ * sender, as opposed to converting to {@link zipkin2.Span} first.
+ */
+public final class ZipkinBytesFinishedSpanHandler extends FinishedSpanHandler {
+  final Reporter<byte[]> spanReporter;
+  final MutableSpanBytesEncoder encoder;
+  final boolean alwaysReportSpans;
+
+  public ZipkinBytesFinishedSpanHandler(Reporter<byte[]> spanReporter,
+    MutableSpanBytesEncoder encoder, boolean alwaysReportSpans) {
+    if (spanReporter == null) throw new NullPointerException("spanReporter == null");
+    if (encoder == null) throw new NullPointerException("encoder == null");
+    this.spanReporter = spanReporter;
+    this.encoder = encoder;
+    this.alwaysReportSpans = alwaysReportSpans;
+  }
+
+  /** @see ZipkinFinishedSpanHandler#handle(TraceContext, MutableSpan) */
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    if (!alwaysReportSpans && !Boolean.TRUE.equals(context.sampled())) return true;
+
+    spanReporter.report(encoder.encode(context, span));
+    return true;
+  }
+
+  @Override public boolean supportsOrphans() {
+    return true;
+  }
+
+  @Override public String toString() {
+    return spanReporter.toString();
+  }
+
+  /**
+   * Used to pass already encoded spans to {@link zipkin2.reporter.AsyncReporter}, which otherwise
+   * would encode them.
+   */
+  public static BytesEncoder<byte[]> passThroughEncoder(Encoding encoding) {
+    if (encoding == null) throw new NullPointerException("encoding == null");
+    return new PassThroughEncoder(encoding);
+  }
+
+  static final class PassThroughEncoder implements BytesEncoder<byte[]> {
+    final Encoding encoding;
+
+    PassThroughEncoder(Encoding encoding) {
+      this.encoding = encoding;
+    }
+
+    @Override public Encoding encoding() {
+      return encoding;
+    }
+
+    @Override public int sizeInBytes(byte[] input) {
+      return input.length;
+    }
+
+    @Override public byte[] encode(byte[] input) {
+      return input;
+    }
+
+    @Override public byte[] encodeList(List<byte[]> input) {
+      return BytesMessageEncoder.forEncoding(encoding).encode(input);
+    }
+
+    @Override public String toString() {
+      return "PassThroughEncoder{" + encoding + "}";
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.propagation;
+
+import brave.internal.Nullable;
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.TraceContext;
+
+/**
+ * A {@link CorrelationFieldScopeDecorator} for correlation contexts that are thread-local, such as
+ * logging MDCs. This remembers the trace context last written on each thread, instead of reading
+ * all correlation properties on every scope change.
+ *
+ * <p>Only "spanId" is read, to verify the properties weren't changed by something else. When the
+ * properties already reflect the context placed in scope, nothing is written and the input scope
+ * is returned as-is. Otherwise, only the properties whose value changed are written, via {@link
+ * #replaceAll(String[], int)}. Implementations should override that when the underlying context can
+ * update many properties in one operation.
+ */
+public abstract class CachingCorrelationFieldScopeDecorator extends CorrelationFieldScopeDecorator {
+  static final String[] FIELD_NAMES = {"traceId", "parentId", "spanId", "sampled"};
+  static final int TRACE_ID = 0, PARENT_ID = 1, SPAN_ID = 2, SAMPLED = 3;
+  static final int ALL_FIELDS = (1 << FIELD_NAMES.length) - 1;
+  static final int CONTEXT = 0, VALUES = 1;
+
+  /**
+   * Per-thread state: the context last written and a reusable values array. This only uses JDK
+   * types, so that it doesn't pin the application's class loader after scopes are closed. When
+   * absent, the correlation properties weren't written by this decorator.
+   */
+  @SuppressWarnings("ThreadLocalUsage") // intentional: state is per decorator instance
+  final ThreadLocal<Object[]> written = new ThreadLocal<>();
+
+  @Override public Scope decorateScope(@Nullable TraceContext currentSpan, Scope scope) {
+    Object[] written = this.written.get();
+    if (written == null || !isCurrent(written)) {
+      String[] previous = new String[FIELD_NAMES.length];
+      boolean empty = true;
+      for (int i = 0; i < previous.length; i++) {
+        if ((previous[i] = get(FIELD_NAMES[i])) != null) empty = false;
+      }
+      if (written == null) {
+        this.written.set(written = new Object[] {null, new String[FIELD_NAMES.length]});
+      }
+      if (!empty) { // properties we didn't write, so restore them verbatim on close
+        update(written, null, currentSpan, true);
+        return new RevertToValuesScope(previous, scope);
+      }
+      written[CONTEXT] = null;
+    }
+
+    TraceContext previous = (TraceContext) written[CONTEXT];
+    if (sameFields(previous, currentSpan)) return scope; // nothing to write or to revert
+    update(written, previous, currentSpan, false);
+    return new RevertToContextScope(written, previous, scope);
+  }
+
+  /**
+   * Replaces the correlation properties flagged as changed. Null values are removed.
+   *
+   * <p>The default implementation calls {@link #put(String, String)} or {@link #remove(String)}
+   * for each changed property.
+   *
+   * @param values property values in order "traceId", "parentId", "spanId" and "sampled".
+   * @param changed bit set of indexes into values which should be written.
+   */
+  protected void replaceAll(String[] values, int changed) {
+    for (int i = 0; i < values.length; i++) {
+      if (isChanged(changed, i)) replace(FIELD_NAMES[i], values[i]);
+    }
+  }
+
+  /** Returns true if the property at this index should be written. */
+  protected static boolean isChanged(int changed, int index) {
+    return (changed & (1 << index)) != 0;
+  }
+
+  /** Returns the name of the property at this index. */
+  protected static String fieldName(int index) {
+    return FIELD_NAMES[index];
+  }
+
+  /** Returns true if the correlation properties still reflect the last context written. */
+  boolean isCurrent(Object[] written) {
+    TraceContext context = (TraceContext) written[CONTEXT];
+    String spanId = get("spanId");
+    return context != null ? context.spanIdString().equals(spanId) : spanId == null;
+  }
+
+  /** Writes properties of the next context, skipping those the previous one has unless all. */
+  void update(Object[] written, @Nullable TraceContext previous, @Nullable TraceContext next,
+    boolean all) {
+    String[] values = (String[]) written[VALUES];
+    int changed = all ? ALL_FIELDS : 0;
+    for (int i = 0; i < values.length; i++) {
+      String value = values[i] = field(next, i);
+      if (!all && !equal(value, field(previous, i))) changed |= 1 << i;
+    }
+    if (changed != 0) replaceAll(values, changed);
+    written[CONTEXT] = next;
+  }
+
+  static @Nullable String field(@Nullable TraceContext context, int index) {
+    if (context == null) return null;
+    switch (index) {
+      case TRACE_ID:
+        return context.traceIdString();
+      case PARENT_ID:
+        return context.parentIdString();
+      case SPAN_ID:
+        return context.spanIdString();
+      case SAMPLED:
+        Boolean sampled = context.sampled();
+        return sampled != null ? sampled.toString() : null;
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  @SuppressWarnings("ReferenceEquality") // intentional: identity is a fast path
+  static boolean sameFields(@Nullable TraceContext a, @Nullable TraceContext b) {
+    if (a == b) return true;
+    if (a == null || b == null) return false;
+    return a.traceIdHigh() == b.traceIdHigh()
+      && a.traceId() == b.traceId()
+      && a.parentIdAsLong() == b.parentIdAsLong()
+      && a.spanId() == b.spanId()
+      && equal(a.sampled(), b.sampled());
+  }
+
+  static boolean equal(@Nullable Object a, @Nullable Object b) {
+    return a == null ? b == null : a.equals(b); // Java 6 can't use Objects.equals
+  }
+
+  final class RevertToContextScope implements Scope {
+    final Object[] written;
+    @Nullable final TraceContext previous;
+    final Scope delegate;
+
+    RevertToContextScope(Object[] written, @Nullable TraceContext previous, Scope delegate) {
+      this.written = written;
+      this.previous = previous;
+      this.delegate = delegate;
+    }
+
+    @Override public void close() {
+      delegate.close();
+      if (isCurrent(written)) {
+        update(written, (TraceContext) written[CONTEXT], previous, false);
+      } else { // something else changed the properties
+        update(written, null, previous, true);
+      }
+    }
+  }
+
+  final class RevertToValuesScope implements Scope {
+    final String[] previous;
+    final Scope delegate;
+
+    RevertToValuesScope(String[] previous, Scope delegate) {
+      this.previous = previous;
+      this.delegate = delegate;
+    }
+
+    @Override public void close() {
+      delegate.close();
+      replaceAll(previous, ALL_FIELDS);
+      written.remove(); // we no longer know what the properties are
+    }
+  }
+}
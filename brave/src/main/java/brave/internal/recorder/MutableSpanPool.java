@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Recycles {@link MutableSpan} instances after all {@link FinishedSpanHandler finished span
+ * handlers} are done with them. This must only be used when no handler {@link
+ * FinishedSpanHandler#retainsSpan() retains spans}.
+ *
+ * <p>Spans are held in a fixed array of slots, where each thread probes a few slots selected by
+ * its ID. This is bounded and lock-free, and unlike a thread-local pool, spans released by one
+ * thread can be acquired by another. This is important as spans are often started on a request
+ * thread and finished on a callback thread. When the pool is empty or full, we fall back to
+ * allocation or garbage collection respectively.
+ */
+public final class MutableSpanPool {
+  static final int PROBES = 4;
+
+  /** Returns sixteen slots per available processor, rounded to a power of two. */
+  static int defaultSize() {
+    return size(Runtime.getRuntime().availableProcessors() * 16);
+  }
+
+  static int size(int requested) {
+    if (requested < PROBES) throw new IllegalArgumentException("size < " + PROBES);
+    int result = PROBES;
+    while (result < requested && result < (1 << 16)) result <<= 1;
+    return result;
+  }
+
+  final AtomicReferenceArray<MutableSpan> slots;
+  final int mask;
+
+  public MutableSpanPool() {
+    this(defaultSize());
+  }
+
+  MutableSpanPool(int size) {
+    size = size(size);
+    slots = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+  }
+
+  /** Returns a pooled span, or a new one if none were available. */
+  MutableSpan acquire() {
+    int start = start();
+    for (int i = 0; i < PROBES; i++) {
+      int index = (start + i) & mask;
+      MutableSpan span = slots.get(index);
+      if (span != null && slots.compareAndSet(index, span, null)) return span;
+    }
+    return new MutableSpan();
+  }
+
+  /**
+   * Clears the span and returns it to the pool, unless the pool is full. This clears under the
+   * span's lock, so that wrappers which check its generation under the same lock never write to
+   * it once it is reused.
+   */
+  void release(MutableSpan span) {
+    synchronized (span) {
+      InternalMutableSpan.instance.clear(span);
+    }
+    int start = start();
+    for (int i = 0; i < PROBES; i++) {
+      int index = (start + i) & mask;
+      if (slots.get(index) == null && slots.compareAndSet(index, null, span)) return;
+    }
+  }
+
+  int start() {
+    return (int) Thread.currentThread().getId() * PROBES;
+  }
+
+  @Override public String toString() {
+    return "MutableSpanPool{size=" + slots.length() + "}";
+  }
+}
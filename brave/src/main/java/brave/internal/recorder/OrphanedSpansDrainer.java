@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.internal.Platform;
+import java.io.Closeable;
+import zipkin2.Call;
+
+/**
+ * Reports orphaned spans on a daemon thread, as opposed to on the critical path of unrelated traced
+ * operations. This is used with {@link PendingSpans} configured to report zero orphans per call.
+ *
+ * <p>The thread blocks on the reference queue, so it is idle unless spans are garbage collected.
+ */
+public final class OrphanedSpansDrainer implements Runnable, Closeable {
+  /** How long to block on the queue before checking if we were closed. */
+  static final long POLL_TIMEOUT_MILLIS = 1000L;
+
+  /** Starts a daemon thread which reports orphans until {@link #close() closed}. */
+  public static OrphanedSpansDrainer start(PendingSpans pendingSpans) {
+    if (pendingSpans == null) throw new NullPointerException("pendingSpans == null");
+    OrphanedSpansDrainer result = new OrphanedSpansDrainer(pendingSpans);
+    Thread thread = new Thread(result, "brave-orphaned-spans-drainer");
+    thread.setDaemon(true);
+    result.thread = thread;
+    thread.start();
+    return result;
+  }
+
+  final PendingSpans pendingSpans;
+  volatile Thread thread;
+  volatile boolean closed;
+
+  OrphanedSpansDrainer(PendingSpans pendingSpans) {
+    this.pendingSpans = pendingSpans;
+  }
+
+  @Override public void run() {
+    while (!closed) {
+      try {
+        pendingSpans.reportOrphanedSpans(POLL_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        return; // closed
+      } catch (Throwable t) {
+        Call.propagateIfFatal(t);
+        // Handlers are guarded, so this is unexpected. Don't let a bug stop orphan reporting.
+        Platform.get().log("error reporting orphaned spans", t);
+      }
+    }
+  }
+
+  /** Stops the thread. Spans orphaned after this point are not reported. */
+  @Override public void close() {
+    closed = true;
+    Thread thread = this.thread;
+    if (thread != null) thread.interrupt();
+  }
+
+  @Override public String toString() {
+    return "OrphanedSpansDrainer{" + (closed ? "closed" : "running") + "}";
+  }
+}
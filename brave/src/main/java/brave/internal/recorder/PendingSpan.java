@@ -15,14 +15,19 @@ package brave.internal.recorder;
 
 import brave.Clock;
 import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
+import brave.internal.Nullable;
 
 public final class PendingSpan {
   final MutableSpan state;
+  final int generation;
   final TickClock clock;
   volatile Throwable caller;
+  long lastFragmentTimestamp; // guarded by state
 
   PendingSpan(MutableSpan state, TickClock clock) {
     this.state = state;
+    this.generation = InternalMutableSpan.instance.generation(state);
     this.clock = clock;
   }
 
@@ -31,8 +36,34 @@ public final class PendingSpan {
     return state;
   }
 
+  /**
+   * Returns the generation of {@link #state()} when this was created. When it no longer matches,
+   * the state was recycled for another span, so must not be written.
+   */
+  public int generation() {
+    return generation;
+  }
+
   /** Returns a clock that ensures startTimestamp consistency across the trace */
   public Clock clock() {
     return clock;
   }
+
+  /**
+   * Returns a fragment with the tags and annotations added since the span started or the last
+   * fragment, if at least the interval has passed. Otherwise, returns null. Callers must hold the
+   * lock on {@link #state()}.
+   *
+   * <p>Fragments have the same IDs as the span, but no finish timestamp, so that Zipkin merges
+   * them as data arrives.
+   */
+  @Nullable public MutableSpan fragment(long timestamp, long intervalMicros) {
+    if (lastFragmentTimestamp == 0L) {
+      long startTimestamp = state.startTimestamp();
+      lastFragmentTimestamp = startTimestamp != 0L ? startTimestamp : timestamp;
+    }
+    if (timestamp - lastFragmentTimestamp < intervalMicros) return null;
+    lastFragmentTimestamp = timestamp;
+    return InternalMutableSpan.instance.fragment(state);
+  }
 }
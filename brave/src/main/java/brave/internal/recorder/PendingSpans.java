@@ -17,13 +17,17 @@ import brave.Clock;
 import brave.Tracer;
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
 import brave.internal.InternalPropagation;
 import brave.internal.Nullable;
 import brave.internal.Platform;
+import brave.internal.SpanLimits;
 import brave.propagation.TraceContext;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -41,42 +45,154 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <p>The internal implementation is derived from WeakConcurrentMap by Rafael Winterhalter. See
  * https://github.com/raphw/weak-lock-free/blob/master/src/main/java/com/blogspot/mydailyjava/weaklockfree/WeakConcurrentMap.java
  */
-public final class PendingSpans extends ReferenceQueue<TraceContext> {
+public class PendingSpans extends ReferenceQueue<TraceContext> {
   // Even though we only put by RealKey, we allow get and remove by LookupKey
-  final ConcurrentMap<Object, PendingSpan> delegate = new ConcurrentHashMap<>(64);
+  // Null when a subtype such as StripedPendingSpans manages storage.
+  @Nullable final ConcurrentMap<Object, PendingSpan> delegate;
   final Clock clock;
+  /** Present when {@link #clock} is shared by local root spans */
+  @Nullable final ResyncingClock resyncingClock;
   final FinishedSpanHandler orphanedSpanHandler;
   final boolean trackOrphans;
+  /** Zero means orphans are only reported via {@link #reportOrphanedSpans(long)}. */
+  final int maxOrphansPerCall;
+  @Nullable final MutableSpanPool spanPool;
+  @Nullable final TracingCounters counters;
+  @Nullable final SpanLimits spanLimits;
   final AtomicBoolean noop;
 
+  /**
+   * Returns a builder for pending spans. This is usually called implicitly by {@link
+   * brave.Tracing.Builder#build()}.
+   */
+  public static Builder newBuilder(Clock clock, FinishedSpanHandler orphanedSpanHandler,
+    AtomicBoolean noop) {
+    return new Builder(clock, orphanedSpanHandler, noop);
+  }
+
+  public static final class Builder {
+    final Clock clock;
+    final FinishedSpanHandler orphanedSpanHandler;
+    final AtomicBoolean noop;
+    boolean trackOrphans, striped;
+    int maxOrphansPerCall = Integer.MAX_VALUE, stripeCount; // zero is the default stripe count
+    @Nullable MutableSpanPool spanPool;
+    @Nullable TracingCounters counters;
+    @Nullable SpanLimits spanLimits;
+
+    Builder(Clock clock, FinishedSpanHandler orphanedSpanHandler, AtomicBoolean noop) {
+      if (clock == null) throw new NullPointerException("clock == null");
+      if (orphanedSpanHandler == null) {
+        throw new NullPointerException("orphanedSpanHandler == null");
+      }
+      if (noop == null) throw new NullPointerException("noop == null");
+      this.clock = clock;
+      this.orphanedSpanHandler = orphanedSpanHandler;
+      this.noop = noop;
+    }
+
+    /** When true, logs the caller which allocated a span when it is orphaned. */
+    public Builder trackOrphans(boolean trackOrphans) {
+      this.trackOrphans = trackOrphans;
+      return this;
+    }
+
+    /**
+     * Bounds the orphans reported by a call to {@link PendingSpans#getOrCreate} or {@link
+     * PendingSpans#remove}. Zero means those calls never report orphans. Defaults to no bound.
+     */
+    public Builder maxOrphansPerCall(int maxOrphansPerCall) {
+      if (maxOrphansPerCall < 0) throw new IllegalArgumentException("maxOrphansPerCall < 0");
+      this.maxOrphansPerCall = maxOrphansPerCall;
+      return this;
+    }
+
+    /**
+     * When present, span state is taken from this pool, and returned to it on {@link
+     * PendingSpans#recycle(MutableSpan)}.
+     */
+    public Builder spanPool(@Nullable MutableSpanPool spanPool) {
+      this.spanPool = spanPool;
+      return this;
+    }
+
+    /** When present, span lifecycle events are counted. */
+    public Builder counters(@Nullable TracingCounters counters) {
+      this.counters = counters;
+      return this;
+    }
+
+    /** When present, limits tags and annotations added to each span. */
+    public Builder spanLimits(@Nullable SpanLimits spanLimits) {
+      this.spanLimits = spanLimits;
+      return this;
+    }
+
+    /** When true, builds {@link StripedPendingSpans}. */
+    public Builder striped(boolean striped) {
+      this.striped = striped;
+      return this;
+    }
+
+    /** Overrides the stripe count, which is rounded up to a power of two. Visible for testing. */
+    Builder stripeCount(int stripeCount) {
+      if (stripeCount < 1) throw new IllegalArgumentException("stripeCount < 1");
+      this.striped = true;
+      this.stripeCount = stripeCount;
+      return this;
+    }
+
+    public PendingSpans build() {
+      if (striped) return new StripedPendingSpans(this);
+      return new PendingSpans(this, new ConcurrentHashMap<Object, PendingSpan>(64));
+    }
+  }
+
   public PendingSpans(Clock clock, FinishedSpanHandler orphanedSpanHandler, boolean trackOrphans,
     AtomicBoolean noop) {
-    this.clock = clock;
-    this.orphanedSpanHandler = orphanedSpanHandler;
-    this.trackOrphans = trackOrphans;
-    this.noop = noop;
+    this(newBuilder(clock, orphanedSpanHandler, noop).trackOrphans(trackOrphans),
+      new ConcurrentHashMap<Object, PendingSpan>(64));
+  }
+
+  PendingSpans(Builder builder, @Nullable ConcurrentMap<Object, PendingSpan> delegate) {
+    this.delegate = delegate;
+    this.clock = builder.clock;
+    this.resyncingClock = clock instanceof ResyncingClock ? (ResyncingClock) clock : null;
+    this.orphanedSpanHandler = builder.orphanedSpanHandler;
+    this.trackOrphans = builder.trackOrphans;
+    this.maxOrphansPerCall = builder.maxOrphansPerCall;
+    this.spanPool = builder.spanPool;
+    this.counters = builder.counters;
+    this.spanLimits = builder.spanLimits;
+    this.noop = builder.noop;
   }
 
   public PendingSpan getOrCreate(TraceContext context, boolean start) {
     if (context == null) throw new NullPointerException("context == null");
     reportOrphanedSpans();
-    PendingSpan result = delegate.get(context);
+    PendingSpan result = get(context);
     if (result != null) return result;
 
-    MutableSpan data = new MutableSpan();
-    if (context.shared()) data.setShared();
+    MutableSpan data = newState(context);
 
     // save overhead calculating time if the parent is in-progress (usually is)
     TickClock clock = getClockFromParent(context);
-    if (clock == null) {
+    if (clock == null && resyncingClock != null) {
+      clock = resyncingClock.tickClock();
+      if (start) data.startTimestamp(clock.currentTimeMicroseconds());
+    } else if (clock == null) {
       clock = new TickClock(this.clock.currentTimeMicroseconds(), System.nanoTime());
       if (start) data.startTimestamp(clock.baseEpochMicros);
     } else if (start) {
       data.startTimestamp(clock.currentTimeMicroseconds());
     }
     PendingSpan newSpan = new PendingSpan(data, clock);
-    PendingSpan previousSpan = delegate.putIfAbsent(new RealKey(context, this), newSpan);
-    if (previousSpan != null) return previousSpan; // lost race
+    PendingSpan previousSpan = putIfAbsent(context, newSpan);
+    if (previousSpan != null) { // lost race
+      recycle(data);
+      return previousSpan;
+    }
+    if (counters != null) counters.spansStarted.increment();
 
     if (trackOrphans) {
       newSpan.caller =
@@ -85,6 +201,38 @@ public final class PendingSpans extends ReferenceQueue<TraceContext> {
     return newSpan;
   }
 
+  /**
+   * Returns state for a span that isn't tracked here until {@link #track}, such as one in a
+   * per-thread stack. Pass it to {@link #recycle(MutableSpan)} after all handlers are done.
+   */
+  public MutableSpan newState(TraceContext context) {
+    MutableSpan result = spanPool != null ? spanPool.acquire() : new MutableSpan();
+    if (context.shared()) result.setShared();
+    if (spanLimits != null) InternalMutableSpan.instance.limits(result, spanLimits);
+    return result;
+  }
+
+  /** Returns the clock of the parent, if in progress, or a new one for a span not tracked here. */
+  public Clock newClock(TraceContext context) {
+    TickClock clock = getClockFromParent(context);
+    if (clock != null) return clock;
+    if (resyncingClock != null) return resyncingClock.tickClock();
+    return new TickClock(this.clock.currentTimeMicroseconds(), System.nanoTime());
+  }
+
+  /**
+   * Starts tracking a span created with {@link #newState} and {@link #newClock}. Returns the
+   * pending span already tracked for this context, if there was one.
+   */
+  public PendingSpan track(TraceContext context, MutableSpan state, Clock clock) {
+    if (!(clock instanceof TickClock)) {
+      throw new IllegalArgumentException("clock not from newClock");
+    }
+    PendingSpan newSpan = new PendingSpan(state, (TickClock) clock);
+    PendingSpan previousSpan = putIfAbsent(context, newSpan);
+    return previousSpan != null ? previousSpan : newSpan;
+  }
+
   /** Trace contexts are equal only on trace ID and span ID. try to get the parent's clock */
   @Nullable TickClock getClockFromParent(TraceContext context) {
     long parentId = context.parentIdAsLong();
@@ -93,39 +241,135 @@ public final class PendingSpans extends ReferenceQueue<TraceContext> {
     PendingSpan parent = null;
     if (context.shared() || parentId != 0L) {
       long spanId = parentId != 0L ? parentId : context.spanId();
-      parent = delegate.get(InternalPropagation.instance.newTraceContext(
-        0,
-        context.traceIdHigh(),
-        context.traceId(),
-        0,
-        0,
-        spanId,
-        Collections.emptyList()
-      ));
+      parent = getUnshared(context.traceIdHigh(), context.traceId(), spanId);
     }
     return parent != null ? parent.clock : null;
   }
 
   /** @see brave.Span#abandon() */
   public boolean remove(TraceContext context) {
+    return remove(context, counters != null ? counters.spansAbandoned : null);
+  }
+
+  /** Like {@link #remove(TraceContext)}, except counted as finished. */
+  public boolean finish(TraceContext context) {
+    return remove(context, counters != null ? counters.spansFinished : null);
+  }
+
+  /** Like {@link #remove(TraceContext)}, except counted as flushed. */
+  public boolean flush(TraceContext context) {
+    return remove(context, counters != null ? counters.spansFlushed : null);
+  }
+
+  boolean remove(TraceContext context, @Nullable StripedCounter counter) {
     if (context == null) throw new NullPointerException("context == null");
-    PendingSpan last = delegate.remove(context);
+    PendingSpan last = removeKey(context);
     reportOrphanedSpans(); // also clears the reference relating to the recent remove
-    return last != null;
+    if (last == null) return false;
+    if (counter != null) counter.increment();
+    return true;
   }
 
-  /** Reports spans orphaned by garbage collection. */
+  /** Returns the approximate count of spans in progress, including orphans not yet reported. */
+  public int size() {
+    return delegate.size();
+  }
+
+  /**
+   * Returns span state to the pool, if {@link brave.Tracing.Builder#recycleSpans() recycling}.
+   * Only call this after {@link #remove(TraceContext)} returned true and all handlers are done.
+   */
+  public void recycle(MutableSpan state) {
+    if (spanPool != null) spanPool.release(state);
+  }
+
+  /** Returns the pending span associated with the context or null if there is none. */
+  @Nullable PendingSpan get(TraceContext context) {
+    return delegate.get(context);
+  }
+
+  /** Returns the pending span of the given IDs that is not shared, or null if there is none. */
+  @Nullable PendingSpan getUnshared(long traceIdHigh, long traceId, long spanId) {
+    LookupKey lookupKey = LookupKey.current();
+    lookupKey.set(traceIdHigh, traceId, spanId, false);
+    return delegate.get(lookupKey);
+  }
+
+  /** Returns any existing span associated with the context, or null if the input was added. */
+  @Nullable PendingSpan putIfAbsent(TraceContext context, PendingSpan newSpan) {
+    return delegate.putIfAbsent(new RealKey(context, this), newSpan);
+  }
+
+  /** Returns the pending span removed for this context, or null if there was none. */
+  @Nullable PendingSpan removeKey(TraceContext context) {
+    return delegate.remove(context);
+  }
+
+  /** Returns the pending span removed for this cleared key, or null if there was none. */
+  @Nullable PendingSpan removeOrphan(RealKey contextKey) {
+    return delegate.remove(contextKey);
+  }
+
+  /** Reports spans orphaned by garbage collection, up to the limit per call. */
   void reportOrphanedSpans() {
-    RealKey contextKey;
+    if (maxOrphansPerCall == 0) return;
+    RealKey contextKey = (RealKey) poll();
+    if (contextKey == null) return;
     // This is called on critical path of unrelated traced operations. If we have orphaned spans, be
     // careful to not penalize the performance of the caller. It is better to cache time when
     // flushing a span than hurt performance of unrelated operations by calling
-    // currentTimeMicroseconds N times
-    long flushTime = 0L;
-    boolean noop = orphanedSpanHandler == FinishedSpanHandler.NOOP || this.noop.get();
-    while ((contextKey = (RealKey) poll()) != null) {
-      PendingSpan value = delegate.remove(contextKey);
-      if (noop || value == null) continue;
+    // currentTimeMicroseconds N times. For the same reason, we stop after a bounded amount of work
+    // and leave the remaining orphans to the next caller.
+    OrphanBatch batch = null;
+    int i = 0;
+    do {
+      // Most polled keys are for spans already removed normally, as the default map cannot clear
+      // them. Don't allocate a batch unless there are orphans.
+      PendingSpan value = removeOrphan(contextKey);
+      if (value == null) continue;
+      if (batch == null) batch = new OrphanBatch();
+      batch.add(contextKey, value);
+    } while (++i < maxOrphansPerCall && (contextKey = (RealKey) poll()) != null);
+    if (batch != null) batch.report();
+  }
+
+  /**
+   * Blocks up to the timeout for an orphaned span, then reports it and any others already queued.
+   * This is used by {@link OrphanedSpansDrainer} when callers do not report orphans.
+   *
+   * @return false if no orphans were available before the timeout
+   */
+  boolean reportOrphanedSpans(long timeoutMillis) throws InterruptedException {
+    RealKey contextKey = (RealKey) remove(timeoutMillis);
+    if (contextKey == null) return false;
+    OrphanBatch batch = null;
+    do {
+      PendingSpan value = removeOrphan(contextKey);
+      if (value == null) continue; // already removed explicitly
+      if (batch == null) batch = new OrphanBatch();
+      batch.add(contextKey, value);
+    } while ((contextKey = (RealKey) poll()) != null);
+    if (batch != null) batch.report();
+    return true;
+  }
+
+  /**
+   * Collects orphans removed together, so that the handler can {@link
+   * FinishedSpanHandler#handleBatch(List, List) process them as a batch}.
+   */
+  final class OrphanBatch {
+    final boolean noop =
+      orphanedSpanHandler == FinishedSpanHandler.NOOP || PendingSpans.this.noop.get();
+    final List<TraceContext> contexts = new ArrayList<>();
+    final List<MutableSpan> spans = new ArrayList<>();
+    long flushTime; // read lazily, as most orphans are removed already
+
+    void add(RealKey contextKey, PendingSpan value) {
+      if (counters != null) counters.spansOrphaned.increment();
+      if (noop) {
+        recycle(value.state);
+        return;
+      }
       if (flushTime == 0L) flushTime = clock.currentTimeMicroseconds();
 
       boolean isEmpty = value.state.isEmpty();
@@ -144,10 +388,19 @@ public final class PendingSpans extends ReferenceQueue<TraceContext> {
           : "Span " + context + " neither finished nor flushed before GC";
         Platform.get().log(message, caller);
       }
-      if (isEmpty) continue;
-
+      if (isEmpty) {
+        recycle(value.state);
+        return;
+      }
       value.state.annotate(flushTime, "brave.flush");
-      orphanedSpanHandler.handle(context, value.state);
+      contexts.add(context);
+      spans.add(value.state);
+    }
+
+    void report() {
+      if (spans.isEmpty()) return;
+      orphanedSpanHandler.handleBatch(contexts, spans);
+      for (int i = 0, length = spans.size(); i < length; i++) recycle(spans.get(i));
     }
   }
 
@@ -158,7 +411,7 @@ public final class PendingSpans extends ReferenceQueue<TraceContext> {
    * <p>Since {@linkplain TraceContext}'s hash code is final, it is used directly both here and in
    * lookup keys.
    */
-  static final class RealKey extends WeakReference<TraceContext> {
+  static class RealKey extends WeakReference<TraceContext> {
     final int hashCode;
 
     // Copy the identity fields from the trace context, so we can use them when the reference clears
@@ -201,6 +454,18 @@ public final class PendingSpans extends ReferenceQueue<TraceContext> {
    * the real key, it would fail in equals comparison.
    */
   static final class LookupKey {
+    static final ThreadLocal<LookupKey> CURRENT = new ThreadLocal<>();
+
+    /** Returns a key reused by the calling thread, which is safe as it is only read by get. */
+    static LookupKey current() {
+      LookupKey result = CURRENT.get();
+      if (result == null) {
+        result = new LookupKey();
+        CURRENT.set(result);
+      }
+      return result;
+    }
+
     long traceIdHigh, traceId, spanId;
     boolean shared;
     int hashCode;
@@ -236,8 +501,8 @@ public final class PendingSpans extends ReferenceQueue<TraceContext> {
 
     /** Resolves hash code collisions */
     @Override public boolean equals(Object other) {
-      RealKey that = (RealKey) other;
-      TraceContext thatContext = that.get();
+      if (!(other instanceof RealKey)) return false;
+      TraceContext thatContext = ((RealKey) other).get();
       if (thatContext == null) return false;
       return traceIdHigh == thatContext.traceIdHigh()
         && traceId == thatContext.traceId()
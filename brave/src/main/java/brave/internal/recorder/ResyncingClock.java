@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the wall clock at most once per interval, and otherwise derives epoch microseconds from
+ * {@link System#nanoTime()}. This is used when the clock isn't {@link
+ * brave.Tracing.Builder#clock(Clock) configured}, as the platform clock can allocate.
+ *
+ * <p>All local root spans started in the same interval share one {@link TickClock}, so that
+ * starting a trace doesn't allocate a clock, either. Resyncing bounds drift between the
+ * monotonic and wall clocks, for example due to NTP adjustments.
+ */
+public final class ResyncingClock implements Clock {
+  static final long DEFAULT_RESYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  final Clock wallClock;
+  final long resyncIntervalNanos;
+  volatile TickClock current;
+
+  public ResyncingClock(Clock wallClock) {
+    this(wallClock, DEFAULT_RESYNC_INTERVAL_NANOS);
+  }
+
+  ResyncingClock(Clock wallClock, long resyncIntervalNanos) {
+    if (wallClock == null) throw new NullPointerException("wallClock == null");
+    this.wallClock = wallClock;
+    this.resyncIntervalNanos = resyncIntervalNanos;
+    this.current = new TickClock(wallClock.currentTimeMicroseconds(), System.nanoTime());
+  }
+
+  /** Returns the clock for a new local root span, resyncing with the wall clock when stale. */
+  TickClock tickClock() {
+    TickClock result = current;
+    long tickNanos = System.nanoTime();
+    if (tickNanos - result.baseTickNanos >= resyncIntervalNanos) {
+      // Racing threads may both resync, which is harmless as the result is about the same.
+      current = result = new TickClock(wallClock.currentTimeMicroseconds(), tickNanos);
+    }
+    return result;
+  }
+
+  @Override public long currentTimeMicroseconds() {
+    return tickClock().currentTimeMicroseconds();
+  }
+
+  @Override public String toString() {
+    return "ResyncingClock{" + wallClock + "}";
+  }
+}
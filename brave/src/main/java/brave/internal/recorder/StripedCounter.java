@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads updates across cells selected by thread, similar to Java 8's {@code
+ * LongAdder}. We cannot use that type, as this library supports Java 6.
+ *
+ * <p>Each cell is padded to its own cache line, so that threads updating different cells do not
+ * contend. Unlike {@code LongAdder}, threads are not rehashed on contention. This is fine as
+ * counters here are updated once per span, not in a tight loop.
+ */
+public final class StripedCounter {
+  static final int MAX_CELLS = 64;
+  /** Cells are 8 longs (64 bytes) apart, which is a common cache line size. */
+  static final int PADDING_SHIFT = 3;
+
+  static int cellCount(int requested) {
+    int result = 1;
+    while (result < requested && result < MAX_CELLS) result <<= 1;
+    return result;
+  }
+
+  final AtomicLongArray cells;
+  final int cellMask;
+
+  public StripedCounter() {
+    this(cellCount(Runtime.getRuntime().availableProcessors()));
+  }
+
+  StripedCounter(int cellCount) {
+    cellCount = cellCount(cellCount);
+    cells = new AtomicLongArray(cellCount << PADDING_SHIFT);
+    cellMask = cellCount - 1;
+  }
+
+  public void increment() {
+    add(1L);
+  }
+
+  public void add(long value) {
+    cells.getAndAdd(cellIndex(Thread.currentThread().getId()), value);
+  }
+
+  /** Returns the sum of all cells, which is not atomic with regards to concurrent updates. */
+  public long sum() {
+    long result = 0L;
+    for (int i = 0, length = cells.length(); i < length; i += 1 << PADDING_SHIFT) {
+      result += cells.get(i);
+    }
+    return result;
+  }
+
+  int cellIndex(long threadId) {
+    int h = (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32); // spreads sequential thread IDs
+    return (h & cellMask) << PADDING_SHIFT;
+  }
+
+  @Override public String toString() {
+    return Long.toString(sum());
+  }
+}
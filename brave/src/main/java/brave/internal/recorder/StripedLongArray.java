@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An array of counters striped the same way as {@link StripedCounter}, for example histogram
+ * buckets.
+ *
+ * <p>Each cell is a separate array, allocated the first time a thread selecting it increments. This
+ * keeps the footprint of rarely updated arrays at a single cell, regardless of processor count.
+ */
+public final class StripedLongArray {
+  final AtomicReferenceArray<AtomicLongArray> cells;
+  final int length, cellMask;
+
+  public StripedLongArray(int length) {
+    this(length, StripedCounter.cellCount(Runtime.getRuntime().availableProcessors()));
+  }
+
+  StripedLongArray(int length, int cellCount) {
+    cellCount = StripedCounter.cellCount(cellCount);
+    this.cells = new AtomicReferenceArray<>(cellCount);
+    this.length = length;
+    this.cellMask = cellCount - 1;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public void increment(int index) {
+    cell(cellIndex(Thread.currentThread().getId())).getAndIncrement(index);
+  }
+
+  /**
+   * Adds the sum of each index across all cells to the corresponding element of {@code result},
+   * which is not atomic with regards to concurrent updates.
+   */
+  public void sumTo(long[] result) {
+    for (int c = 0, cellCount = cells.length(); c < cellCount; c++) {
+      AtomicLongArray cell = cells.get(c);
+      if (cell == null) continue;
+      for (int i = 0; i < length; i++) result[i] += cell.get(i);
+    }
+  }
+
+  AtomicLongArray cell(int cellIndex) {
+    AtomicLongArray result = cells.get(cellIndex);
+    if (result != null) return result;
+    cells.compareAndSet(cellIndex, null, new AtomicLongArray(length));
+    return cells.get(cellIndex); // either ours or the one that won the race
+  }
+
+  int cellIndex(long threadId) {
+    int h = (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32); // spreads sequential thread IDs
+    return h & cellMask;
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+
+import static brave.internal.InternalPropagation.FLAG_SHARED;
+
+/**
+ * Alternative to the default {@link PendingSpans}, which stores in-flight spans in a hash table
+ * keyed directly on trace ID, span ID and the shared flag.
+ *
+ * <p>The default uses a {@link java.util.concurrent.ConcurrentHashMap}, which implies a map node
+ * and a weak key per span, and a new lookup context when reading the parent's clock. Here, each
+ * entry is itself the weak reference to the owning context. This halves allocation per span, and
+ * lookups never allocate. As entries are weak references registered with this queue, orphans are
+ * still reported when their context is garbage collected.
+ *
+ * <p>The table is partitioned into a power of two number of stripes, each guarded by its own lock.
+ * This keeps contention low when many request threads start and finish spans at the same time.
+ */
+public final class StripedPendingSpans extends PendingSpans {
+  static final int INITIAL_CAPACITY = 16; // per stripe, must be a power of two
+  static final int MAX_STRIPES = 1 << 10;
+
+  /** Returns four stripes per available processor, rounded to a power of two. */
+  static int defaultStripeCount() {
+    return stripeCount(Runtime.getRuntime().availableProcessors() * 4);
+  }
+
+  static int stripeCount(int requested) {
+    if (requested < 1) throw new IllegalArgumentException("stripes < 1");
+    int result = 1;
+    while (result < requested && result < MAX_STRIPES) result <<= 1;
+    return result;
+  }
+
+  final Stripe[] stripes;
+  final int stripeMask, stripeShift;
+
+  /** Use {@link PendingSpans#newBuilder} with {@link PendingSpans.Builder#striped(boolean)}. */
+  StripedPendingSpans(PendingSpans.Builder builder) {
+    super(builder, null);
+    int stripeCount =
+      builder.stripeCount != 0 ? stripeCount(builder.stripeCount) : defaultStripeCount();
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe();
+    stripeMask = stripeCount - 1;
+    stripeShift = Integer.numberOfTrailingZeros(stripeCount);
+  }
+
+  @Override @Nullable PendingSpan get(TraceContext context) {
+    return get(context.hashCode(),
+      context.traceIdHigh(), context.traceId(), context.spanId(), context.shared());
+  }
+
+  @Override @Nullable PendingSpan getUnshared(long traceIdHigh, long traceId, long spanId) {
+    int hashCode = LookupKey.generateHashCode(traceIdHigh, traceId, spanId, false);
+    return get(hashCode, traceIdHigh, traceId, spanId, false);
+  }
+
+  @Nullable PendingSpan get(int hashCode, long traceIdHigh, long traceId, long spanId,
+    boolean shared) {
+    int h = spread(hashCode);
+    Stripe stripe = stripes[h & stripeMask];
+    synchronized (stripe) {
+      Entry[] table = stripe.table;
+      Entry e = table[(h >>> stripeShift) & (table.length - 1)];
+      for (; e != null; e = e.next) {
+        if (e.matches(hashCode, traceIdHigh, traceId, spanId, shared)) return e.value;
+      }
+    }
+    return null;
+  }
+
+  @Override @Nullable PendingSpan putIfAbsent(TraceContext context, PendingSpan newSpan) {
+    int hashCode = context.hashCode();
+    long traceIdHigh = context.traceIdHigh(), traceId = context.traceId();
+    long spanId = context.spanId();
+    boolean shared = context.shared();
+    int h = spread(hashCode);
+    Stripe stripe = stripes[h & stripeMask];
+    synchronized (stripe) {
+      Entry[] table = stripe.table;
+      int i = (h >>> stripeShift) & (table.length - 1);
+      for (Entry e = table[i]; e != null; e = e.next) {
+        if (e.matches(hashCode, traceIdHigh, traceId, spanId, shared)) return e.value;
+      }
+      table[i] = new Entry(context, this, newSpan, table[i]);
+      if (++stripe.size > (table.length >>> 1) + (table.length >>> 2)) stripe.resize(stripeShift);
+    }
+    return null;
+  }
+
+  @Override @Nullable PendingSpan removeKey(TraceContext context) {
+    int hashCode = context.hashCode();
+    long traceIdHigh = context.traceIdHigh(), traceId = context.traceId();
+    long spanId = context.spanId();
+    boolean shared = context.shared();
+    int h = spread(hashCode);
+    Stripe stripe = stripes[h & stripeMask];
+    synchronized (stripe) {
+      Entry[] table = stripe.table;
+      int i = (h >>> stripeShift) & (table.length - 1);
+      for (Entry e = table[i], previous = null; e != null; previous = e, e = e.next) {
+        if (!e.matches(hashCode, traceIdHigh, traceId, spanId, shared)) continue;
+        stripe.unlink(i, previous, e);
+        e.clear(); // we no longer need to be notified when the context is collected
+        return e.value;
+      }
+    }
+    return null;
+  }
+
+  @SuppressWarnings("ReferenceEquality") // intentional: the collected key is the entry itself
+  @Override @Nullable PendingSpan removeOrphan(RealKey contextKey) {
+    int h = spread(contextKey.hashCode);
+    Stripe stripe = stripes[h & stripeMask];
+    synchronized (stripe) {
+      Entry[] table = stripe.table;
+      int i = (h >>> stripeShift) & (table.length - 1);
+      for (Entry e = table[i], previous = null; e != null; previous = e, e = e.next) {
+        if (e != contextKey) continue;
+        stripe.unlink(i, previous, e);
+        return e.value;
+      }
+    }
+    return null; // already removed explicitly
+  }
+
+  @Override public int size() {
+    int result = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        result += stripe.size;
+      }
+    }
+    return result;
+  }
+
+  /** Mixes the high bits into the low ones, as they select the stripe. */
+  static int spread(int hashCode) {
+    return hashCode ^ (hashCode >>> 16);
+  }
+
+  static final class Stripe {
+    Entry[] table = new Entry[INITIAL_CAPACITY]; // guarded by this
+    int size; // guarded by this
+
+    void unlink(int i, @Nullable Entry previous, Entry e) {
+      if (previous == null) {
+        table[i] = e.next;
+      } else {
+        previous.next = e.next;
+      }
+      size--;
+    }
+
+    /** Doubles the table, rehashing entries into their new buckets. */
+    void resize(int stripeShift) {
+      Entry[] oldTable = table, newTable = new Entry[oldTable.length << 1];
+      int mask = newTable.length - 1;
+      for (Entry head : oldTable) {
+        for (Entry e = head, next; e != null; e = next) {
+          next = e.next;
+          int i = (spread(e.hashCode) >>> stripeShift) & mask;
+          e.next = newTable[i];
+          newTable[i] = e;
+        }
+      }
+      table = newTable;
+    }
+  }
+
+  /** A weak key that holds its value, so that there is only one allocation per span. */
+  static final class Entry extends RealKey {
+    final PendingSpan value;
+    Entry next; // guarded by the stripe
+
+    Entry(TraceContext context, ReferenceQueue<TraceContext> queue, PendingSpan value,
+      @Nullable Entry next) {
+      super(context, queue);
+      this.value = value;
+      this.next = next;
+    }
+
+    /** Cleared entries never match, as they are only reachable from the reference queue. */
+    boolean matches(int hashCode, long traceIdHigh, long traceId, long spanId, boolean shared) {
+      return this.hashCode == hashCode
+        && this.traceId == traceId
+        && this.spanId == spanId
+        && this.traceIdHigh == traceIdHigh
+        && ((flags & FLAG_SHARED) == FLAG_SHARED) == shared
+        && get() != null;
+    }
+  }
+
+  @Override public String toString() {
+    List<Object> keys = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        for (Entry head : stripe.table) {
+          for (Entry e = head; e != null; e = e.next) keys.add(e);
+        }
+      }
+    }
+    return "StripedPendingSpans" + keys;
+  }
+}
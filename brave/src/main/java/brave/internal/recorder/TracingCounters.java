@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+/**
+ * Counters updated by the tracer, when {@link brave.Tracing.Builder#recordMetrics() recording
+ * metrics}. Otherwise, components hold null instead of an instance, so that there is no overhead.
+ *
+ * @see brave.TracingMetrics
+ */
+public final class TracingCounters {
+  public final StripedCounter spansStarted = new StripedCounter();
+  public final StripedCounter spansFinished = new StripedCounter();
+  public final StripedCounter spansAbandoned = new StripedCounter();
+  public final StripedCounter spansFlushed = new StripedCounter();
+  public final StripedCounter spansOrphaned = new StripedCounter();
+  public final StripedCounter samplerSampled = new StripedCounter();
+  public final StripedCounter samplerNotSampled = new StripedCounter();
+  public final StripedCounter samplerFunctionSampled = new StripedCounter();
+  public final StripedCounter samplerFunctionNotSampled = new StripedCounter();
+  public final StripedCounter samplerFunctionDeferred = new StripedCounter();
+  public final StripedCounter handlerErrors = new StripedCounter();
+
+  @Override public String toString() {
+    return "TracingCounters{"
+      + "spansStarted=" + spansStarted
+      + ", spansFinished=" + spansFinished
+      + ", spansAbandoned=" + spansAbandoned
+      + ", spansFlushed=" + spansFlushed
+      + ", spansOrphaned=" + spansOrphaned
+      + ", samplerSampled=" + samplerSampled
+      + ", samplerNotSampled=" + samplerNotSampled
+      + ", samplerFunctionSampled=" + samplerFunctionSampled
+      + ", samplerFunctionNotSampled=" + samplerFunctionNotSampled
+      + ", samplerFunctionDeferred=" + samplerFunctionDeferred
+      + ", handlerErrors=" + handlerErrors
+      + "}";
+  }
+}
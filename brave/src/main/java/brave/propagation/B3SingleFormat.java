@@ -16,6 +16,7 @@ package brave.propagation;
 import brave.internal.HexCodec;
 import brave.internal.Nullable;
 import brave.internal.Platform;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 
@@ -78,9 +79,35 @@ public final class B3SingleFormat {
    * array or byte buffer values. For example, {@link ByteBuffer#wrap(byte[])} can wrap the result.
    */
   public static byte[] writeB3SingleFormatWithoutParentIdAsBytes(TraceContext context) {
-    char[] buffer = getCharBuffer();
-    int length = writeB3SingleFormat(context, 0L, buffer);
-    return asciiToNewByteArray(buffer, length);
+    byte[] result = new byte[length(context, 0L)];
+    writeB3SingleFormat(context, 0L, result, 0);
+    return result;
+  }
+
+  /**
+   * Like {@link #writeB3SingleFormatWithoutParentIdAsBytes(TraceContext)}, except writes into the
+   * destination array, starting at the offset. At most 68 bytes are written.
+   *
+   * @return the count of bytes written
+   * @throws IndexOutOfBoundsException if there's not enough room in the destination
+   * @since 5.9
+   */
+  public static int writeB3SingleFormatWithoutParentId(TraceContext context, byte[] destination,
+    int offset) {
+    return writeB3SingleFormat(context, 0L, destination, offset);
+  }
+
+  /**
+   * Like {@link #writeB3SingleFormatWithoutParentIdAsBytes(TraceContext)}, except writes into the
+   * destination at its position, which is advanced. At most 68 bytes are written.
+   *
+   * @return the count of bytes written
+   * @throws java.nio.BufferOverflowException if there's not enough room in the destination
+   * @since 5.9
+   */
+  public static int writeB3SingleFormatWithoutParentId(TraceContext context,
+    ByteBuffer destination) {
+    return writeB3SingleFormat(context, 0L, destination);
   }
 
   /**
@@ -102,9 +129,91 @@ public final class B3SingleFormat {
    * buffer values. For example, {@link ByteBuffer#wrap(byte[])} can wrap the result.
    */
   public static byte[] writeB3SingleFormatAsBytes(TraceContext context) {
-    char[] buffer = getCharBuffer();
-    int length = writeB3SingleFormat(context, context.parentIdAsLong(), buffer);
-    return asciiToNewByteArray(buffer, length);
+    long parentId = context.parentIdAsLong();
+    byte[] result = new byte[length(context, parentId)];
+    writeB3SingleFormat(context, parentId, result, 0);
+    return result;
+  }
+
+  /**
+   * Like {@link #writeB3SingleFormatAsBytes(TraceContext)}, except writes into the destination
+   * array, starting at the offset. At most 68 bytes are written.
+   *
+   * @return the count of bytes written
+   * @throws IndexOutOfBoundsException if there's not enough room in the destination
+   * @since 5.9
+   */
+  public static int writeB3SingleFormat(TraceContext context, byte[] destination, int offset) {
+    return writeB3SingleFormat(context, context.parentIdAsLong(), destination, offset);
+  }
+
+  /**
+   * Like {@link #writeB3SingleFormatAsBytes(TraceContext)}, except writes into the destination at
+   * its position, which is advanced. At most 68 bytes are written.
+   *
+   * @return the count of bytes written
+   * @throws java.nio.BufferOverflowException if there's not enough room in the destination
+   * @since 5.9
+   */
+  public static int writeB3SingleFormat(TraceContext context, ByteBuffer destination) {
+    return writeB3SingleFormat(context, context.parentIdAsLong(), destination);
+  }
+
+  static int writeB3SingleFormat(TraceContext context, long parentId, ByteBuffer destination) {
+    int length = length(context, parentId);
+    if (destination.remaining() < length) throw new BufferOverflowException();
+    int position = destination.position();
+    if (destination.hasArray()) {
+      writeB3SingleFormat(context, parentId, destination.array(),
+        destination.arrayOffset() + position);
+    } else { // direct or read-only
+      char[] buffer = getCharBuffer();
+      writeB3SingleFormat(context, parentId, buffer);
+      for (int i = 0; i < length; i++) destination.put(position + i, (byte) buffer[i]);
+    }
+    destination.position(position + length);
+    return length;
+  }
+
+  /** Returns the count of characters {@link #writeB3SingleFormat} will write. */
+  static int length(TraceContext context, long parentId) {
+    int length = context.traceIdHigh() != 0L ? 32 : 16;
+    length += 17; // -spanId
+    if (context.sampled() != null) length += 2; // -sampled
+    if (parentId != 0L) length += 17; // -parentId
+    return length;
+  }
+
+  /** Like {@link #writeB3SingleFormat(TraceContext, long, char[])}, except US-ASCII bytes. */
+  static int writeB3SingleFormat(TraceContext context, long parentId, byte[] result, int offset) {
+    int length = length(context, parentId);
+    if (offset < 0 || offset + length > result.length) {
+      throw new IndexOutOfBoundsException(
+        "need " + length + " bytes at offset " + offset + " of " + result.length);
+    }
+    int pos = offset;
+    long traceIdHigh = context.traceIdHigh();
+    if (traceIdHigh != 0L) {
+      writeHexLong(result, pos, traceIdHigh);
+      pos += 16;
+    }
+    writeHexLong(result, pos, context.traceId());
+    pos += 16;
+    result[pos++] = '-';
+    writeHexLong(result, pos, context.spanId());
+    pos += 16;
+
+    Boolean sampled = context.sampled();
+    if (sampled != null) {
+      result[pos++] = '-';
+      result[pos++] = (byte) (context.debug() ? 'd' : sampled ? '1' : '0');
+    }
+
+    if (parentId != 0L) {
+      result[pos++] = '-';
+      writeHexLong(result, pos, parentId);
+    }
+    return length;
   }
 
   static int writeB3SingleFormat(TraceContext context, long parentId, char[] result) {
@@ -139,6 +248,61 @@ public final class B3SingleFormat {
     return parseB3SingleFormat(b3, 0, b3.length());
   }
 
+  /**
+   * Like {@link #parseB3SingleFormat(CharSequence)}, except parses US-ASCII bytes, such as a header
+   * value from a binary carrier, without decoding them into a string.
+   *
+   * @since 5.9
+   */
+  @Nullable public static TraceContextOrSamplingFlags parseB3SingleFormat(byte[] b3) {
+    return parseB3SingleFormat(b3, 0, b3.length);
+  }
+
+  /**
+   * Like {@link #parseB3SingleFormat(CharSequence, int, int)}, except parses US-ASCII bytes.
+   *
+   * @param beginIndex the start index, inclusive
+   * @param endIndex the end index, exclusive
+   * @since 5.9
+   */
+  @Nullable public static TraceContextOrSamplingFlags parseB3SingleFormat(byte[] b3,
+    int beginIndex, int endIndex) {
+    if (beginIndex < 0 || beginIndex > endIndex || endIndex > b3.length) {
+      throw new IndexOutOfBoundsException(
+        "beginIndex " + beginIndex + ", endIndex " + endIndex + ", length " + b3.length);
+    }
+    if (endIndex - beginIndex == 1) { // possibly sampling flags: avoid looking up the view
+      return tryParseSamplingFlags((char) (b3[beginIndex] & 0xff), 0);
+    }
+    AsciiView view = getAsciiView();
+    try {
+      return parseB3SingleFormat(view.set(b3, beginIndex, endIndex - beginIndex), 0, view.length);
+    } finally {
+      view.clear(); // don't retain the caller's bytes
+    }
+  }
+
+  /**
+   * Like {@link #parseB3SingleFormat(CharSequence)}, except parses the remaining US-ASCII bytes in
+   * the buffer. The buffer's position is not changed.
+   *
+   * @since 5.9
+   */
+  @Nullable public static TraceContextOrSamplingFlags parseB3SingleFormat(ByteBuffer b3) {
+    int position = b3.position(), length = b3.remaining();
+    if (b3.hasArray()) {
+      int beginIndex = b3.arrayOffset() + position;
+      return parseB3SingleFormat(b3.array(), beginIndex, beginIndex + length);
+    }
+    if (length == 1) return tryParseSamplingFlags((char) (b3.get(position) & 0xff), 0);
+    AsciiView view = getAsciiView();
+    try {
+      return parseB3SingleFormat(view.set(b3, position, length), 0, length);
+    } finally {
+      view.clear();
+    }
+  }
+
   /**
    * @param beginIndex the start index, inclusive
    * @param endIndex the end index, exclusive
@@ -153,7 +317,7 @@ public final class B3SingleFormat {
 
     int pos = beginIndex;
     if (pos + 1 == endIndex) { // possibly sampling flags
-      return tryParseSamplingFlags(b3, pos);
+      return tryParseSamplingFlags(b3.charAt(pos), pos);
     }
 
     // At this point we minimally expect a traceId-spanId pair
@@ -217,7 +381,7 @@ public final class B3SingleFormat {
       // position, try to read sampled status.
       boolean afterSampledField = notHexFollowsPos(b3, pos, endIndex);
       if (endIndex == pos + 1 || afterSampledField) {
-        flags = parseFlags(b3, pos);
+        flags = parseFlags(b3.charAt(pos), pos);
         if (flags == 0) return null;
         pos++; // consume the sampled status
         if (afterSampledField && !checkHyphen(b3, pos++)) return null; // consume the delimiter
@@ -263,8 +427,8 @@ public final class B3SingleFormat {
     return parentId;
   }
 
-  static TraceContextOrSamplingFlags tryParseSamplingFlags(CharSequence b3, int pos) {
-    int flags = parseFlags(b3, pos);
+  static TraceContextOrSamplingFlags tryParseSamplingFlags(char sampledChar, int pos) {
+    int flags = parseFlags(sampledChar, pos);
     if (flags == 0) return null;
     return TraceContextOrSamplingFlags.create(SamplingFlags.toSamplingFlags(flags));
   }
@@ -285,9 +449,8 @@ public final class B3SingleFormat {
     return HexCodec.lenientLowerHexToUnsignedLong(lowerHex, index, endIndex);
   }
 
-  static int parseFlags(CharSequence b3, int pos) {
+  static int parseFlags(char sampledChar, int pos) {
     int flags;
-    char sampledChar = b3.charAt(pos);
     if (sampledChar == 'd') {
       flags = FLAG_SAMPLED_SET | FLAG_SAMPLED | FLAG_DEBUG;
     } else if (sampledChar == '1') {
@@ -305,14 +468,6 @@ public final class B3SingleFormat {
     Platform.get().log("Invalid input: expected 0, 1 or d for sampled at offset {0}", pos, null);
   }
 
-  static byte[] asciiToNewByteArray(char[] buffer, int length) {
-    byte[] result = new byte[length];
-    for (int i = 0; i < length; i++) {
-      result[i] = (byte) buffer[i];
-    }
-    return result;
-  }
-
   static final ThreadLocal<char[]> CHAR_BUFFER = new ThreadLocal<>();
 
   static char[] getCharBuffer() {
@@ -324,6 +479,63 @@ public final class B3SingleFormat {
     return charBuffer;
   }
 
+  static final ThreadLocal<AsciiView> ASCII_VIEW = new ThreadLocal<>();
+
+  static AsciiView getAsciiView() {
+    AsciiView asciiView = ASCII_VIEW.get();
+    if (asciiView == null) {
+      asciiView = new AsciiView();
+      ASCII_VIEW.set(asciiView);
+    }
+    return asciiView;
+  }
+
+  /** Reads US-ASCII bytes as characters, so that they can be parsed without decoding a string. */
+  static final class AsciiView implements CharSequence {
+    byte[] array;
+    ByteBuffer buffer;
+    int offset, length;
+
+    AsciiView set(byte[] array, int offset, int length) {
+      this.array = array;
+      this.offset = offset;
+      this.length = length;
+      return this;
+    }
+
+    AsciiView set(ByteBuffer buffer, int offset, int length) {
+      this.buffer = buffer;
+      this.offset = offset;
+      this.length = length;
+      return this;
+    }
+
+    void clear() {
+      array = null;
+      buffer = null;
+    }
+
+    @Override public int length() {
+      return length;
+    }
+
+    @Override public char charAt(int index) {
+      if (index < 0 || index >= length) throw new IndexOutOfBoundsException("index " + index);
+      byte b = array != null ? array[offset + index] : buffer.get(offset + index);
+      return (char) (b & 0xff);
+    }
+
+    @Override public CharSequence subSequence(int start, int end) {
+      return toString().substring(start, end);
+    }
+
+    @Override public String toString() {
+      char[] result = new char[length];
+      for (int i = 0; i < length; i++) result[i] = charAt(i);
+      return new String(result);
+    }
+  }
+
   static boolean isLowerHex(char c) {
     return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
   }
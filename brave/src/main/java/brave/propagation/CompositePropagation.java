@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads and writes more than one propagation format, such as when services are migrating from one
+ * format to another.
+ *
+ * <p>For example, the following writes both W3C and B3 headers, and reads whichever is present,
+ * preferring W3C:
+ * <pre>{@code
+ * tracingBuilder.propagationFactory(
+ *   CompositePropagation.newFactory(W3CPropagation.FACTORY, B3Propagation.FACTORY)
+ * );
+ * }</pre>
+ *
+ * <p>Extraction uses the trace identifiers or sampling decision of the first format, in the order
+ * given, that extracted one. Extra data from the other formats, such as {@link
+ * ExtraFieldPropagation baggage}, is added to that result, unless it already has the same type of
+ * extra. Each format is injected in the same order.
+ *
+ * @since 5.9
+ */
+public final class CompositePropagation<K> implements Propagation<K> {
+
+  /** @param factories the formats to propagate, with the one to prefer on extraction first. */
+  public static Propagation.Factory newFactory(Propagation.Factory... factories) {
+    if (factories == null) throw new NullPointerException("factories == null");
+    if (factories.length == 0) throw new IllegalArgumentException("factories are empty");
+    for (Propagation.Factory factory : factories) {
+      if (factory == null) throw new NullPointerException("factory == null");
+    }
+    return new Factory(factories.clone());
+  }
+
+  static final class Factory extends Propagation.Factory {
+    final Propagation.Factory[] factories;
+
+    Factory(Propagation.Factory[] factories) {
+      this.factories = factories;
+    }
+
+    /** Only if all formats do, as otherwise a receiver may not have the parent span ID. */
+    @Override public boolean supportsJoin() {
+      for (Propagation.Factory factory : factories) {
+        if (!factory.supportsJoin()) return false;
+      }
+      return true;
+    }
+
+    @Override public boolean requires128BitTraceId() {
+      for (Propagation.Factory factory : factories) {
+        if (factory.requires128BitTraceId()) return true;
+      }
+      return false;
+    }
+
+    @Override public <K1> Propagation<K1> create(KeyFactory<K1> keyFactory) {
+      return new CompositePropagation<>(this, keyFactory);
+    }
+
+    @Override public TraceContext decorate(TraceContext context) {
+      TraceContext result = context;
+      for (Propagation.Factory factory : factories) {
+        result = factory.decorate(result);
+      }
+      return result;
+    }
+
+    @Override public String toString() {
+      return "CompositePropagationFactory" + Arrays.toString(factories);
+    }
+  }
+
+  final Propagation<K>[] delegates;
+  final List<K> keys;
+
+  @SuppressWarnings("unchecked")
+  CompositePropagation(Factory factory, KeyFactory<K> keyFactory) {
+    int length = factory.factories.length;
+    delegates = new Propagation[length];
+    List<K> keys = new ArrayList<>();
+    for (int i = 0; i < length; i++) {
+      delegates[i] = factory.factories[i].create(keyFactory);
+      for (K key : delegates[i].keys()) {
+        if (!keys.contains(key)) keys.add(key);
+      }
+    }
+    this.keys = Collections.unmodifiableList(keys);
+  }
+
+  @Override public List<K> keys() {
+    return keys;
+  }
+
+  @Override public <C> TraceContext.Injector<C> injector(Setter<C, K> setter) {
+    if (setter == null) throw new NullPointerException("setter == null");
+    TraceContext.Injector<C>[] injectors = new TraceContext.Injector[delegates.length];
+    for (int i = 0; i < delegates.length; i++) {
+      injectors[i] = delegates[i].injector(setter);
+    }
+    return new CompositeInjector<>(injectors);
+  }
+
+  static final class CompositeInjector<C> implements TraceContext.Injector<C> {
+    final TraceContext.Injector<C>[] injectors;
+
+    CompositeInjector(TraceContext.Injector<C>[] injectors) {
+      this.injectors = injectors;
+    }
+
+    @Override public void inject(TraceContext traceContext, C carrier) {
+      for (TraceContext.Injector<C> injector : injectors) {
+        injector.inject(traceContext, carrier);
+      }
+    }
+  }
+
+  @Override public <C> TraceContext.Extractor<C> extractor(Getter<C, K> getter) {
+    if (getter == null) throw new NullPointerException("getter == null");
+    TraceContext.Extractor<C>[] extractors = new TraceContext.Extractor[delegates.length];
+    for (int i = 0; i < delegates.length; i++) {
+      extractors[i] = delegates[i].extractor(getter);
+    }
+    return new CompositeExtractor<>(extractors);
+  }
+
+  static final class CompositeExtractor<C> implements TraceContext.Extractor<C> {
+    final TraceContext.Extractor<C>[] extractors;
+
+    CompositeExtractor(TraceContext.Extractor<C>[] extractors) {
+      this.extractors = extractors;
+    }
+
+    @Override public TraceContextOrSamplingFlags extract(C carrier) {
+      if (carrier == null) throw new NullPointerException("carrier == null");
+      TraceContextOrSamplingFlags result = null;
+      List<TraceContextOrSamplingFlags> others = null; // in format order
+      for (TraceContext.Extractor<C> extractor : extractors) {
+        TraceContextOrSamplingFlags extracted = extractor.extract(carrier);
+        if (extracted.equals(TraceContextOrSamplingFlags.EMPTY)) continue;
+        if (result == null) {
+          result = extracted;
+          continue;
+        }
+        if (others == null) others = new ArrayList<>();
+        // A format wrapped with baggage is never empty, so prefer one that extracted trace state
+        if (!hasTraceState(result) && hasTraceState(extracted)) {
+          others.add(0, result); // only happens once, and the result came before the others
+          result = extracted;
+        } else {
+          others.add(extracted);
+        }
+      }
+      if (result == null) return TraceContextOrSamplingFlags.EMPTY;
+      if (others == null) return result;
+
+      // Other formats don't change the chosen IDs, but they may carry extra, such as baggage
+      List<Object> resultExtra = extraOf(result), added = null;
+      for (int i = 0, length = others.size(); i < length; i++) {
+        for (Object next : extraOf(others.get(i))) {
+          if (containsType(resultExtra, next) || (added != null && containsType(added, next))) {
+            continue;
+          }
+          if (added == null) added = new ArrayList<>();
+          added.add(next);
+        }
+      }
+      if (added == null) return result;
+      TraceContextOrSamplingFlags.Builder builder = result.toBuilder();
+      for (Object next : added) builder.addExtra(next);
+      return builder.build();
+    }
+
+    /** Returns true if trace identifiers or a sampling decision were extracted, not only extra. */
+    static boolean hasTraceState(TraceContextOrSamplingFlags extracted) {
+      return extracted.context() != null || extracted.traceIdContext() != null
+        || extracted.sampled() != null;
+    }
+
+    /** Extra is moved to the context when one was extracted. */
+    static List<Object> extraOf(TraceContextOrSamplingFlags extracted) {
+      TraceContext context = extracted.context();
+      return context != null ? context.extra() : extracted.extra();
+    }
+
+    static boolean containsType(List<Object> extra, Object next) {
+      for (int i = 0, length = extra.size(); i < length; i++) {
+        if (extra.get(i).getClass() == next.getClass()) return true;
+      }
+      return false;
+    }
+  }
+}
@@ -135,12 +135,11 @@ public abstract class CurrentTraceContext {
    * @param currentSpan span to place into scope or null to clear the scope
    * @return a new scope object or {@link Scope#NOOP} if the input is already the case
    */
+  @SuppressWarnings("ReferenceEquality") // intentional: identity is checked before equals
   public Scope maybeScope(@Nullable TraceContext currentSpan) {
     TraceContext currentScope = get();
-    if (currentSpan == null) {
-      if (currentScope == null) return Scope.NOOP;
-      return newScope(null);
-    }
+    if (currentSpan == currentScope) return Scope.NOOP; // includes when both are null
+    if (currentSpan == null) return newScope(null);
     return currentSpan.equals(currentScope) ? Scope.NOOP : newScope(currentSpan);
   }
 
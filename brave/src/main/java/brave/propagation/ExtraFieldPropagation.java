@@ -18,6 +18,7 @@ import brave.internal.Nullable;
 import brave.internal.PredefinedPropagationFields;
 import brave.internal.PropagationFields;
 import brave.internal.PropagationFieldsFactory;
+import brave.propagation.Propagation.EnumeratingGetter;
 import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContext.Injector;
 import java.util.ArrayList;
@@ -96,6 +97,11 @@ import java.util.Set;
  * ExtraFieldPropagation.set(span.context(), "country-code", "FO");
  * String countryCode = ExtraFieldPropagation.get(span.context(), "country-code");
  * }</pre>
+ *
+ * <h3>Extracting many fields</h3>
+ * <p>By default, extraction gets each propagation key from the carrier, including each prefixed
+ * variant. When the {@link Propagation.Getter} is also an {@link EnumeratingGetter}, extraction
+ * instead passes once over the names in the carrier, only getting values of those configured.
  */
 public final class ExtraFieldPropagation<K> implements Propagation<K> {
   /** Wraps an underlying propagation implementation, pushing one or more fields */
@@ -279,6 +285,7 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
     final int[] keyToField;
     final BitSet redacted;
     final ExtraFactory extraFactory;
+    @Nullable final KeyNameIndex keyNameIndex; // for single-pass extraction
 
     Factory(Propagation.Factory delegate, String[] fieldNames, String[] keyNames, BitSet redacted) {
       this(delegate, fieldNames, keyNames, keyToField(keyNames), redacted);
@@ -302,6 +309,7 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
       this.keyNames = keyNames;
       this.redacted = redacted;
       this.extraFactory = new ExtraFactory(fieldNames);
+      this.keyNameIndex = KeyNameIndex.create(keyNames);
     }
 
     @Override public boolean supportsJoin() {
@@ -400,24 +408,65 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
     final ExtraFieldPropagation<K> propagation;
     final Extractor<C> delegate;
     final Propagation.Getter<C, K> getter;
+    @Nullable final EnumeratingGetter<C, K> enumeratingGetter;
 
     ExtraFieldExtractor(ExtraFieldPropagation<K> propagation, Getter<C, K> getter) {
       this.propagation = propagation;
       this.delegate = propagation.delegate.extractor(getter);
       this.getter = getter;
+      this.enumeratingGetter = getter instanceof EnumeratingGetter
+        && propagation.factory.keyNameIndex != null ? (EnumeratingGetter<C, K>) getter : null;
     }
 
     @Override public TraceContextOrSamplingFlags extract(C carrier) {
       TraceContextOrSamplingFlags result = delegate.extract(carrier);
 
+      String[] values;
+      ValuesCollector<C, K> collector = null;
+      if (enumeratingGetter != null) {
+        collector = new ValuesCollector<>(this, carrier);
+        if (!enumeratingGetter.forEachName(carrier, collector)) collector = null;
+      }
+      values = collector != null ? collector.values : getEach(carrier);
+
       // always allocate in case fields are added late
-      Extra fields = propagation.factory.extraFactory.create();
+      Extra fields = propagation.factory.extraFactory.create(values);
+      return result.toBuilder().addExtra(fields).build();
+    }
+
+    /** Looks up each key, which costs in proportion to the count of keys. */
+    @Nullable String[] getEach(C carrier) {
+      // Collect values into one array, instead of copying on each write
+      String[] values = null;
       for (int i = 0, length = propagation.keys.size(); i < length; i++) {
         String maybeValue = getter.get(carrier, propagation.keys.get(i));
         if (maybeValue == null) continue;
-        fields.put(propagation.factory.keyToField[i], maybeValue);
+        if (values == null) values = new String[propagation.factory.fieldNames.length];
+        values[propagation.factory.keyToField[i]] = maybeValue;
       }
-      return result.toBuilder().addExtra(fields).build();
+      return values;
+    }
+  }
+
+  /** Only gets values of keys whose names are present in the carrier. */
+  static final class ValuesCollector<C, K> implements EnumeratingGetter.NameConsumer {
+    final ExtraFieldExtractor<C, K> extractor;
+    final C carrier;
+    String[] values;
+
+    ValuesCollector(ExtraFieldExtractor<C, K> extractor, C carrier) {
+      this.extractor = extractor;
+      this.carrier = carrier;
+    }
+
+    @Override public void accept(String name) {
+      ExtraFieldPropagation<K> propagation = extractor.propagation;
+      int i = propagation.factory.keyNameIndex.indexOf(name);
+      if (i == -1) return;
+      String maybeValue = extractor.getter.get(carrier, propagation.keys.get(i));
+      if (maybeValue == null) return;
+      if (values == null) values = new String[propagation.factory.fieldNames.length];
+      values[propagation.factory.keyToField[i]] = maybeValue;
     }
   }
 
@@ -454,6 +503,11 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
       return new Extra(parent, fieldNames);
     }
 
+    /** Adopts values extracted from a request. */
+    Extra create(@Nullable String[] values) {
+      return new Extra(fieldNames, values);
+    }
+
     @Override protected TraceContext contextWithExtra(TraceContext context, List<Object> extra) {
       return context.withExtra(extra); // more efficient
     }
@@ -467,6 +521,10 @@ public final class ExtraFieldPropagation<K> implements Propagation<K> {
     Extra(Extra parent, String... fieldNames) {
       super(parent, fieldNames);
     }
+
+    Extra(String[] fieldNames, @Nullable String[] values) {
+      super(fieldNames, values);
+    }
   }
 
   static String lowercase(String name) {
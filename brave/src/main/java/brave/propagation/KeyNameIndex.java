@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import brave.internal.Nullable;
+
+/**
+ * Maps lower-case key names to their index with a perfect hash: each name has its own slot, so a
+ * lookup hashes the input once and compares it to at most one name. Lookups ignore ASCII case, as
+ * header names are usually case-insensitive.
+ *
+ * <p>The table is built once per factory, by trying hash multipliers and table sizes until no two
+ * names share a slot.
+ */
+final class KeyNameIndex {
+  static final int MAX_TABLE_SIZE = 1 << 14, MULTIPLIERS_PER_SIZE = 32;
+
+  /** Returns null if no perfect hash was found, such as when names are duplicated. */
+  @Nullable static KeyNameIndex create(String[] names) {
+    int size = Integer.highestOneBit(Math.max(1, names.length * 2 - 1)) << 1;
+    for (; size <= MAX_TABLE_SIZE; size <<= 1) {
+      for (int i = 0; i < MULTIPLIERS_PER_SIZE; i++) {
+        KeyNameIndex result = tryCreate(names, size, 31 + 2 * i); // odd multipliers
+        if (result != null) return result;
+      }
+    }
+    return null;
+  }
+
+  @Nullable static KeyNameIndex tryCreate(String[] names, int size, int multiplier) {
+    String[] slots = new String[size];
+    int[] indices = new int[size];
+    int mask = size - 1;
+    for (int i = 0; i < names.length; i++) {
+      int slot = hash(names[i], multiplier) & mask;
+      if (slots[slot] != null) return null; // collision
+      slots[slot] = names[i];
+      indices[slot] = i;
+    }
+    return new KeyNameIndex(slots, indices, multiplier);
+  }
+
+  final String[] slots;
+  final int[] indices;
+  final int mask, multiplier;
+
+  KeyNameIndex(String[] slots, int[] indices, int multiplier) {
+    this.slots = slots;
+    this.indices = indices;
+    this.mask = slots.length - 1;
+    this.multiplier = multiplier;
+  }
+
+  /** Returns the index of the name, ignoring ASCII case, or -1 if it isn't in this table. */
+  int indexOf(String name) {
+    int slot = hash(name, multiplier) & mask;
+    String candidate = slots[slot];
+    if (candidate == null || candidate.length() != name.length()) return -1;
+    if (!candidate.regionMatches(true, 0, name, 0, name.length())) return -1;
+    return indices[slot];
+  }
+
+  /** Hashes the lower-case form of the input, without allocating it. */
+  static int hash(String name, int multiplier) {
+    int h = 0;
+    for (int i = 0, length = name.length(); i < length; i++) {
+      char c = name.charAt(i);
+      if (c >= 'A' && c <= 'Z') c = (char) (c + ('a' - 'A'));
+      h = h * multiplier + c;
+    }
+    return h ^ (h >>> 16);
+  }
+}
@@ -131,6 +131,26 @@ public interface Propagation<K> {
     @Nullable String get(C carrier, K key);
   }
 
+  /**
+   * Optionally implemented by a {@link Getter} whose carrier can list the names of its fields, such
+   * as request headers. This allows extraction of many optional fields, like {@link
+   * ExtraFieldPropagation extra fields}, to cost in proportion to the fields present, as opposed to
+   * the fields configured.
+   *
+   * @since 5.9
+   */
+  interface EnumeratingGetter<C, K> extends Getter<C, K> {
+    interface NameConsumer {
+      void accept(String name);
+    }
+
+    /**
+     * Invokes the consumer with the name of each field in the carrier, in any case. Returns false
+     * if this carrier can't list its fields, in which case the consumer isn't invoked.
+     */
+    boolean forEachName(C carrier, NameConsumer consumer);
+  }
+
   /**
    * @param getter invoked for each propagation key to get.
    */
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import brave.internal.HexCodec;
+import brave.internal.Nullable;
+import brave.internal.Platform;
+import java.util.Collections;
+import java.util.List;
+
+import static brave.internal.HexCodec.writeHexLong;
+import static brave.internal.InternalPropagation.FLAG_SAMPLED;
+import static brave.internal.InternalPropagation.FLAG_SAMPLED_SET;
+import static brave.propagation.B3SingleFormat.isLowerHex;
+
+/**
+ * This format corresponds to the W3C propagation key "traceparent", which delimits fields in the
+ * following manner.
+ *
+ * <pre>{@code
+ * traceparent: {version}-{trace-id}-{parent-id}-{trace-flags}
+ * }</pre>
+ *
+ * <p>For example, a sampled span would look like:
+ * {@code 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01}
+ *
+ * <p>The trace ID is always 32 characters, so a 64-bit trace ID is left-padded with zeros. The
+ * "parent-id" is the ID of the span that sent the request, which in Brave is {@link
+ * TraceContext#spanId()}. There's no field for Brave's parent span ID.
+ *
+ * <p>Unlike B3, there's no way to propagate only a sampling decision, or to defer it: when {@link
+ * TraceContext#sampled()} is null, the flags are written as "00", which receivers read as not
+ * sampled. There's also no debug flag, so debug is written as sampled.
+ *
+ * <p>See <a href="https://www.w3.org/TR/trace-context/">Trace Context</a>
+ *
+ * @since 5.9
+ */
+public final class TraceparentFormat {
+  static final int FORMAT_LENGTH = 2 + 1 + 32 + 1 + 16 + 1 + 2; // 00-traceid128-spanid-01
+
+  /** Writes the trace ID, span ID and sampled flag of the context as a "traceparent" value. */
+  public static String writeTraceparentFormat(TraceContext context) {
+    char[] buffer = getCharBuffer();
+    writeTraceparentFormat(context, buffer);
+    return new String(buffer, 0, FORMAT_LENGTH);
+  }
+
+  static void writeTraceparentFormat(TraceContext context, char[] result) {
+    result[0] = '0'; // version
+    result[1] = '0';
+    result[2] = '-';
+    writeHexLong(result, 3, context.traceIdHigh());
+    writeHexLong(result, 19, context.traceId());
+    result[35] = '-';
+    writeHexLong(result, 36, context.spanId());
+    result[52] = '-';
+    result[53] = '0';
+    result[54] = Boolean.TRUE.equals(context.sampled()) ? '1' : '0';
+  }
+
+  /** Returns null if the input is malformed, after logging why. */
+  @Nullable public static TraceContext parseTraceparentFormat(CharSequence traceparent) {
+    return parseTraceparentFormat(traceparent, 0, traceparent.length());
+  }
+
+  /**
+   * Like {@link #parseTraceparentFormat(CharSequence)}, except parses a substring.
+   *
+   * @param beginIndex the start index, inclusive
+   * @param endIndex the end index, exclusive
+   */
+  @Nullable public static TraceContext parseTraceparentFormat(CharSequence traceparent,
+    int beginIndex, int endIndex) {
+    return parseTraceparentFormat(traceparent, beginIndex, endIndex,
+      Collections.<Object>emptyList());
+  }
+
+  @Nullable static TraceContext parseTraceparentFormat(CharSequence traceparent, int beginIndex,
+    int endIndex, List<Object> extra) {
+    int length = endIndex - beginIndex;
+    if (length < FORMAT_LENGTH) {
+      Platform.get().log("Invalid input: truncated", null);
+      return null;
+    }
+
+    int pos = beginIndex;
+    char v0 = traceparent.charAt(pos), v1 = traceparent.charAt(pos + 1);
+    if (!isLowerHex(v0) || !isLowerHex(v1) || (v0 == 'f' && v1 == 'f')) {
+      Platform.get().log("Invalid input: expected a version other than ff at offset 0", null);
+      return null;
+    }
+    // Later versions can add fields, but they must keep the ones we know how to read.
+    if (length > FORMAT_LENGTH) {
+      if (v0 == '0' && v1 == '0') {
+        Platform.get().log("Invalid input: too long", null);
+        return null;
+      }
+      if (!checkHyphen(traceparent, pos + FORMAT_LENGTH)) return null;
+    }
+    pos += 2;
+
+    if (!checkHyphen(traceparent, pos++)) return null;
+    long traceIdHigh = HexCodec.lenientLowerHexToUnsignedLong(traceparent, pos, pos + 16);
+    if (traceIdHigh == 0L && !isZeros(traceparent, pos, pos + 16)) {
+      logInvalidTraceId(pos);
+      return null;
+    }
+    pos += 16;
+    long traceId = HexCodec.lenientLowerHexToUnsignedLong(traceparent, pos, pos + 16);
+    if (traceId == 0L) { // Brave requires the lower 64 bits of the trace ID to be set
+      logInvalidTraceId(pos - 16);
+      return null;
+    }
+    pos += 16;
+
+    if (!checkHyphen(traceparent, pos++)) return null;
+    long spanId = HexCodec.lenientLowerHexToUnsignedLong(traceparent, pos, pos + 16);
+    if (spanId == 0L) {
+      Platform.get().log("Invalid input: expected a 16 lower hex parent ID at offset {0}", pos,
+        null);
+      return null;
+    }
+    pos += 16;
+
+    if (!checkHyphen(traceparent, pos++)) return null;
+    char f0 = traceparent.charAt(pos), f1 = traceparent.charAt(pos + 1);
+    if (!isLowerHex(f0) || !isLowerHex(f1)) {
+      Platform.get().log("Invalid input: expected 2 lower hex trace flags at offset {0}", pos,
+        null);
+      return null;
+    }
+    // Only the sampled bit is defined. Other bits are ignored as the spec says.
+    boolean sampled = (Character.digit(f1, 16) & 1) == 1;
+    int flags = FLAG_SAMPLED_SET | (sampled ? FLAG_SAMPLED : 0);
+
+    return new TraceContext(
+      flags,
+      traceIdHigh,
+      traceId,
+      0L, // localRootId is the first ID used in process, not necessarily the one extracted
+      0L, // the parent of the caller's span isn't propagated
+      spanId,
+      extra
+    );
+  }
+
+  static boolean checkHyphen(CharSequence traceparent, int pos) {
+    if (traceparent.charAt(pos) == '-') return true;
+    Platform.get().log("Invalid input: expected a hyphen(-) delimiter at offset {0}", pos, null);
+    return false;
+  }
+
+  static boolean isZeros(CharSequence traceparent, int beginIndex, int endIndex) {
+    for (int i = beginIndex; i < endIndex; i++) {
+      if (traceparent.charAt(i) != '0') return false;
+    }
+    return true;
+  }
+
+  static void logInvalidTraceId(int pos) {
+    Platform.get().log("Invalid input: expected a 32 lower hex trace ID at offset {0}", pos, null);
+  }
+
+  static final ThreadLocal<char[]> CHAR_BUFFER = new ThreadLocal<>();
+
+  static char[] getCharBuffer() {
+    char[] charBuffer = CHAR_BUFFER.get();
+    if (charBuffer == null) {
+      charBuffer = new char[FORMAT_LENGTH];
+      CHAR_BUFFER.set(charBuffer);
+    }
+    return charBuffer;
+  }
+
+  TraceparentFormat() {
+  }
+}
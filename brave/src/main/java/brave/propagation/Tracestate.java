@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import brave.internal.Nullable;
+
+/**
+ * Holds the W3C "tracestate" header of an incoming request in {@link TraceContext#extra()}, so that
+ * it can be propagated downstream with the trace.
+ *
+ * <p>The value is kept as-is, so passing it through costs nothing more than a reference. It is
+ * only parsed when {@link #get(String)} is called, and then only until the entry is found.
+ *
+ * <p>See <a href="https://www.w3.org/TR/trace-context/#tracestate-header">tracestate</a>
+ *
+ * @see W3CPropagation
+ * @since 5.9
+ */
+//@Immutable
+public final class Tracestate {
+  /** Returns null if the input is null or has no entries. */
+  @Nullable public static Tracestate create(@Nullable String value) {
+    if (value == null || isBlank(value)) return null;
+    return new Tracestate(value);
+  }
+
+  final String value;
+
+  Tracestate(String value) {
+    this.value = value;
+  }
+
+  /** Returns the value of the entry with the given key, or null if there isn't one. */
+  @Nullable public String get(String key) {
+    if (key == null) throw new NullPointerException("key == null");
+    int length = value.length(), keyLength = key.length(), pos = 0;
+    while (pos < length) {
+      int end = value.indexOf(',', pos);
+      if (end == -1) end = length;
+
+      int begin = skipWhitespace(pos, end);
+      // Entries are "key=value", so look for the equals sign right after the key
+      if (begin + keyLength < end
+        && value.charAt(begin + keyLength) == '='
+        && value.regionMatches(begin, key, 0, keyLength)) {
+        int valueEnd = end;
+        while (valueEnd > begin && isWhitespace(value.charAt(valueEnd - 1))) valueEnd--;
+        return value.substring(begin + keyLength + 1, valueEnd);
+      }
+      pos = end + 1;
+    }
+    return null;
+  }
+
+  int skipWhitespace(int pos, int end) {
+    while (pos < end && isWhitespace(value.charAt(pos))) pos++;
+    return pos;
+  }
+
+  static boolean isBlank(String value) {
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char c = value.charAt(i);
+      if (!isWhitespace(c) && c != ',') return false;
+    }
+    return true;
+  }
+
+  static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t';
+  }
+
+  /** Returns the value of the "tracestate" header as received. */
+  @Override public String toString() {
+    return value;
+  }
+
+  @Override public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof Tracestate)) return false;
+    return value.equals(((Tracestate) o).value);
+  }
+
+  @Override public int hashCode() {
+    return value.hashCode();
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import brave.internal.Nullable;
+import brave.internal.Platform;
+
+/**
+ * In-process trace context propagation for applications that run many virtual threads. This shares
+ * the same static thread local as {@link ThreadLocalCurrentTraceContext}, so either can see the
+ * other's scopes.
+ *
+ * <h3>Design notes</h3>
+ *
+ * <p>Virtual threads are cheap to create, so there can be millions of them. Each one that sets a
+ * thread local gets its own map entry, and each one started while an inheritable thread local is
+ * set gets a copy of it. This implementation never uses an inheritable thread local. When the
+ * outermost scope on a virtual thread closes, the entry is removed instead of being set to null,
+ * so that parked virtual threads don't retain it. On platform threads, such as carrier or pool
+ * threads, the entry is kept, as it will be reused by the next scope.
+ *
+ * <p>Virtual threads are detected with {@link Platform}. Until the runtime supports them, this
+ * behaves the same as {@link ThreadLocalCurrentTraceContext}, except that scopes which clear the
+ * context don't allocate.
+ *
+ * <p>{@code ScopedValue} is not used, as it only supports lexical scoping via callbacks, whereas
+ * {@link Scope} is closed explicitly, possibly in a different stack frame than it was opened.
+ *
+ * @since 5.9
+ */
+public final class VirtualThreadCurrentTraceContext extends ThreadLocalCurrentTraceContext {
+  public static CurrentTraceContext create() {
+    return new Builder().build();
+  }
+
+  public static CurrentTraceContext.Builder newBuilder() {
+    return new Builder();
+  }
+
+  static final class Builder extends CurrentTraceContext.Builder {
+
+    @Override public CurrentTraceContext build() {
+      return new VirtualThreadCurrentTraceContext(this, Platform.get());
+    }
+
+    Builder() {
+    }
+  }
+
+  final Platform platform;
+  final boolean supportsVirtualThreads;
+  final Scope revertToNull = new RevertToNullScope();
+
+  VirtualThreadCurrentTraceContext(CurrentTraceContext.Builder builder, Platform platform) {
+    super(builder, DEFAULT);
+    this.platform = platform;
+    this.supportsVirtualThreads = platform.supportsVirtualThreads();
+  }
+
+  @Override public Scope newScope(@Nullable TraceContext currentSpan) {
+    final TraceContext previous = local.get();
+    local.set(currentSpan);
+    Scope result = previous != null ? new RevertToPreviousScope(previous) : revertToNull;
+    return decorateScope(currentSpan, result);
+  }
+
+  final class RevertToPreviousScope implements Scope {
+    final TraceContext previous;
+
+    RevertToPreviousScope(TraceContext previous) {
+      this.previous = previous;
+    }
+
+    @Override public void close() {
+      local.set(previous);
+    }
+  }
+
+  /** Stateless, so shared by all scopes opened when there was no current context. */
+  final class RevertToNullScope implements Scope {
+    @Override public void close() {
+      if (supportsVirtualThreads && platform.isVirtual(Thread.currentThread())) {
+        local.remove();
+      } else {
+        local.set(null);
+      }
+    }
+  }
+}
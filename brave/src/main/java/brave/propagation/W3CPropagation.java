@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Implements <a href="https://www.w3.org/TR/trace-context/">W3C Trace Context</a>, using the
+ * "traceparent" and "tracestate" headers.
+ *
+ * <p>"traceparent" is read and written with {@link TraceparentFormat}. An incoming "tracestate" is
+ * carried in {@link TraceContext#extra()} as a {@link Tracestate} and written back as-is, so that
+ * it is passed through to downstream services.
+ *
+ * <p>To read and write both this and B3 while services migrate, use {@link
+ * CompositePropagation#newFactory(Propagation.Factory...)}.
+ *
+ * @since 5.9
+ */
+public final class W3CPropagation<K> implements Propagation<K> {
+
+  public static final Propagation.Factory FACTORY = new Propagation.Factory() {
+    @Override public <K1> Propagation<K1> create(KeyFactory<K1> keyFactory) {
+      return new W3CPropagation<>(keyFactory);
+    }
+
+    /** The receiver of "traceparent" always starts a child span. */
+    @Override public boolean supportsJoin() {
+      return false;
+    }
+
+    @Override public String toString() {
+      return "W3CPropagationFactory";
+    }
+  };
+
+  static final String TRACEPARENT_NAME = "traceparent", TRACESTATE_NAME = "tracestate";
+  final K traceparentKey, tracestateKey;
+  final List<K> fields;
+
+  W3CPropagation(KeyFactory<K> keyFactory) {
+    this.traceparentKey = keyFactory.create(TRACEPARENT_NAME);
+    this.tracestateKey = keyFactory.create(TRACESTATE_NAME);
+    this.fields = Collections.unmodifiableList(asList(traceparentKey, tracestateKey));
+  }
+
+  @Override public List<K> keys() {
+    return fields;
+  }
+
+  @Override public <C> TraceContext.Injector<C> injector(Setter<C, K> setter) {
+    if (setter == null) throw new NullPointerException("setter == null");
+    return new W3CInjector<>(this, setter);
+  }
+
+  static final class W3CInjector<C, K> implements TraceContext.Injector<C> {
+    final W3CPropagation<K> propagation;
+    final Setter<C, K> setter;
+
+    W3CInjector(W3CPropagation<K> propagation, Setter<C, K> setter) {
+      this.propagation = propagation;
+      this.setter = setter;
+    }
+
+    @Override public void inject(TraceContext traceContext, C carrier) {
+      setter.put(carrier, propagation.traceparentKey,
+        TraceparentFormat.writeTraceparentFormat(traceContext));
+      Tracestate tracestate = traceContext.findExtra(Tracestate.class);
+      if (tracestate != null) setter.put(carrier, propagation.tracestateKey, tracestate.value);
+    }
+  }
+
+  @Override public <C> TraceContext.Extractor<C> extractor(Getter<C, K> getter) {
+    if (getter == null) throw new NullPointerException("getter == null");
+    return new W3CExtractor<>(this, getter);
+  }
+
+  static final class W3CExtractor<C, K> implements TraceContext.Extractor<C> {
+    final W3CPropagation<K> propagation;
+    final Getter<C, K> getter;
+
+    W3CExtractor(W3CPropagation<K> propagation, Getter<C, K> getter) {
+      this.propagation = propagation;
+      this.getter = getter;
+    }
+
+    @Override public TraceContextOrSamplingFlags extract(C carrier) {
+      if (carrier == null) throw new NullPointerException("carrier == null");
+      String traceparent = getter.get(carrier, propagation.traceparentKey);
+      if (traceparent == null) return TraceContextOrSamplingFlags.EMPTY;
+
+      // "tracestate" is only meaningful with a valid "traceparent"
+      Tracestate tracestate = Tracestate.create(getter.get(carrier, propagation.tracestateKey));
+      List<Object> extra = tracestate != null
+        ? Collections.<Object>singletonList(tracestate)
+        : Collections.emptyList();
+
+      TraceContext context = TraceparentFormat.parseTraceparentFormat(traceparent, 0,
+        traceparent.length(), extra);
+      // if null, the trace context is malformed so return empty
+      if (context == null) return TraceContextOrSamplingFlags.EMPTY;
+      return TraceContextOrSamplingFlags.create(context);
+    }
+  }
+}
@@ -13,15 +13,19 @@
  */
 package brave;
 
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.TraceContext;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Test;
 import zipkin2.Annotation;
 import zipkin2.Endpoint;
 
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.entry;
 
@@ -125,6 +129,63 @@ public class RealSpanTest {
       .containsExactly(entry("foo", "bar"));
   }
 
+  @Test public void spanFragmentInterval_reportsFragments() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .spanFragmentInterval(1, TimeUnit.SECONDS)
+      .spanReporter(spans::add)
+      .build()) {
+      Span span = tracing.tracer().newTrace().name("stream").start(1_000_000L);
+      span.annotate(1_500_000L, "first");
+      assertThat(spans).isEmpty(); // interval hasn't passed
+
+      span.annotate(2_000_000L, "second");
+      span.annotate(2_500_000L, "third");
+      span.finish(3_000_000L);
+    }
+
+    assertThat(spans).extracting(zipkin2.Span::id).containsOnly(spans.get(0).id());
+    assertThat(spans).extracting(zipkin2.Span::duration)
+      .containsExactly(null, 2_000_000L);
+    assertThat(spans).extracting(s -> s.annotations().size())
+      .containsExactly(2, 1); // annotations are not repeated
+  }
+
+  @Test public void spanFragmentInterval_marksFragments() {
+    List<Boolean> fragments = new ArrayList<>();
+    try (Tracing tracing = Tracing.newBuilder()
+      .spanFragmentInterval(1, TimeUnit.SECONDS)
+      .addFinishedSpanHandler(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          fragments.add(span.isFragment());
+          return true;
+        }
+      })
+      .spanReporter(spans::add)
+      .build()) {
+      Span span = tracing.tracer().newTrace().name("stream").start(1_000_000L);
+      span.annotate(2_000_000L, "first");
+      span.finish(3_000_000L);
+    }
+
+    assertThat(fragments).containsExactly(true, false);
+    assertThat(spans).hasSize(2);
+  }
+
+  @Test public void spanFragmentInterval_tags() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .spanFragmentInterval(1, TimeUnit.SECONDS)
+      .spanReporter(spans::add)
+      .build()) {
+      Span span = tracing.tracer().newTrace().start(1L); // started long ago
+      span.tag("a", "1");
+      span.tag("b", "2"); // less than a second after the last fragment
+      span.finish();
+    }
+
+    assertThat(spans).extracting(zipkin2.Span::tags)
+      .containsExactly(singletonMap("a", "1"), singletonMap("b", "2"));
+  }
+
   @Test public void finished_client_annotation() {
     finish("cs", "cr", zipkin2.Span.Kind.CLIENT);
   }
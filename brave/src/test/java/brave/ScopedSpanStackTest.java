@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.propagation.StrictScopeDecorator;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class ScopedSpanStackTest {
+  List<Span> spans = new ArrayList<>();
+  Tracing tracing = Tracing.newBuilder()
+    .reuseScopedSpans()
+    .recordMetrics()
+    .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+      .addScopeDecorator(StrictScopeDecorator.create())
+      .build())
+    .spanReporter(spans::add)
+    .build();
+  Tracer tracer = tracing.tracer();
+
+  @After public void close() {
+    tracing.close();
+  }
+
+  @Test public void reportsNestedSpans() {
+    ScopedSpan parent = tracer.startScopedSpan("parent");
+    ScopedSpan child = tracer.startScopedSpan("child");
+    assertThat(tracing.currentTraceContext().get()).isSameAs(child.context());
+    child.tag("foo", "bar").annotate("baz").finish();
+    assertThat(tracing.currentTraceContext().get()).isSameAs(parent.context());
+    parent.finish();
+
+    assertThat(tracing.currentTraceContext().get()).isNull();
+    assertThat(spans).extracting(Span::name).containsExactly("child", "parent");
+    assertThat(spans.get(0).parentId()).isEqualTo(spans.get(1).id());
+    assertThat(spans.get(0).tags()).containsExactly(entry("foo", "bar"));
+    assertThat(spans.get(0).annotations()).extracting(a -> a.value()).containsExactly("baz");
+    assertThat(spans.get(0).timestamp()).isGreaterThanOrEqualTo(spans.get(1).timestamp());
+  }
+
+  @Test public void reusesFramesAtTheSameDepth() {
+    ScopedSpan parent = tracer.startScopedSpan("parent");
+    ScopedSpan child1 = tracer.startScopedSpan("child1");
+    child1.finish();
+    ScopedSpan child2 = tracer.startScopedSpan("child2");
+    child2.finish();
+    parent.finish();
+
+    assertThat(((ScopedSpanStack.StackScopedSpan) child2).frame)
+      .isSameAs(((ScopedSpanStack.StackScopedSpan) child1).frame)
+      .isNotSameAs(((ScopedSpanStack.StackScopedSpan) parent).frame);
+    assertThat(spans).extracting(Span::name).containsExactly("child1", "child2", "parent");
+  }
+
+  @Test public void finishedSpan_doesntAffectNextSpanAtTheSameDepth() {
+    ScopedSpan one = tracer.startScopedSpan("one");
+    one.finish();
+    ScopedSpan two = tracer.startScopedSpan("two");
+    one.tag("foo", "bar").annotate("baz").error(new IllegalStateException());
+    one.finish();
+    assertThat(tracing.currentTraceContext().get()).isSameAs(two.context());
+    two.finish();
+
+    assertThat(two).isNotSameAs(one);
+    assertThat(one.context()).isNotEqualTo(two.context());
+    assertThat(spans).extracting(Span::name).containsExactly("one", "two");
+    assertThat(spans.get(1).tags()).isEmpty();
+    assertThat(spans.get(1).annotations()).isEmpty();
+  }
+
+  @Test public void finishedSpan_ignoresCalls() {
+    ScopedSpan span = tracer.startScopedSpan("foo");
+    span.finish();
+
+    span.tag("foo", "bar").annotate("baz").error(new IllegalStateException());
+
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).tags()).isEmpty();
+  }
+
+  @Test public void notInPendingSpans() {
+    ScopedSpan span = tracer.startScopedSpan("foo");
+    try {
+      assertThat(tracer.pendingSpans.size()).isZero();
+    } finally {
+      span.finish();
+    }
+  }
+
+  @Test public void currentSpan_sharesData() {
+    ScopedSpan span = tracer.startScopedSpan("foo");
+    tracer.currentSpan().tag("foo", "bar");
+    tracer.currentSpanCustomizer().tag("baz", "qux");
+    span.finish();
+
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).tags()).containsOnly(entry("foo", "bar"), entry("baz", "qux"));
+    assertThat(tracer.pendingSpans.size()).isZero();
+  }
+
+  @Test public void currentSpan_finishedFirst_reportsOnce() {
+    ScopedSpan span = tracer.startScopedSpan("foo");
+    tracer.currentSpan().finish();
+    span.finish();
+
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test public void finish_twiceReportsOnce() {
+    ScopedSpan span = tracer.startScopedSpan("foo");
+    span.finish();
+    span.finish();
+
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test public void finish_popsUnfinishedChildren() {
+    ScopedSpan parent = tracer.startScopedSpan("parent");
+    TraceContext parentContext = parent.context();
+    tracer.startScopedSpan("leaked"); // never finished, which is a bug
+    parent.finish();
+
+    ScopedSpan next = tracer.startScopedSpan("next");
+    assertThat(next.context().parentIdAsLong()).isZero(); // not a child of the leaked span
+    next.finish();
+
+    assertThat(spans).extracting(Span::name).containsExactly("leaked", "parent", "next");
+    assertThat(spans.get(1).id()).isEqualTo(parentContext.spanIdString());
+  }
+
+  @Test public void finish_reportsUnfinishedChildrenAsOrphans() {
+    ScopedSpan parent = tracer.startScopedSpan("parent");
+    tracer.startScopedSpan("leaked"); // never finished, which is a bug
+    parent.finish();
+
+    assertThat(spans.get(0).annotations()).extracting(a -> a.value())
+      .containsExactly("brave.flush");
+    assertThat(tracing.metrics().spansOrphaned()).isEqualTo(1L);
+  }
+
+  @Test public void maxDepth_tracksDeeperSpansInPendingSpans() {
+    List<ScopedSpan> stack = new ArrayList<>();
+    for (int i = 0; i <= ScopedSpanStack.MAX_DEPTH; i++) {
+      stack.add(tracer.startScopedSpan("span" + i));
+    }
+    assertThat(stack.get(ScopedSpanStack.MAX_DEPTH)).isInstanceOf(RealScopedSpan.class);
+    assertThat(tracer.pendingSpans.size()).isEqualTo(1);
+
+    for (int i = stack.size() - 1; i >= 0; i--) stack.get(i).finish();
+    assertThat(spans).hasSize(ScopedSpanStack.MAX_DEPTH + 1);
+  }
+
+  @Test public void close_stopsUsingStack() {
+    tracing.close();
+
+    ScopedSpan span = tracer.startScopedSpan("foo");
+    span.finish();
+
+    assertThat(span).isInstanceOf(RealScopedSpan.class);
+    assertThat(tracer.scopedSpanStack.frames.get()).isNull();
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test public void recordMetrics() {
+    tracer.startScopedSpan("foo").finish();
+
+    assertThat(tracing.metrics().spansStarted()).isEqualTo(1L);
+    assertThat(tracing.metrics().spansFinished()).isEqualTo(1L);
+  }
+
+  @Test public void noop() {
+    ScopedSpan span = tracer.startScopedSpanWithParent("foo",
+      TraceContext.newBuilder().traceId(1L).spanId(1L).sampled(false).build());
+    span.finish();
+
+    assertThat(span.isNoop()).isTrue();
+    assertThat(spans).isEmpty();
+  }
+}
@@ -617,6 +617,87 @@ public class TracerTest {
     assertThat(tracer.currentSpan()).isNull();
   }
 
+  @Test public void reuseUnsampledContexts_unsampledChildrenReuseParent() {
+    List<TraceContext> decorated = new ArrayList<>();
+    try (Tracing tracing = Tracing.newBuilder()
+      .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+        .addScopeDecorator((context, scope) -> {
+          decorated.add(context);
+          return scope;
+        }).build())
+      .sampler(Sampler.NEVER_SAMPLE)
+      .reuseUnsampledContexts()
+      .build()) {
+      Tracer tracer = tracing.tracer();
+      Span parent = tracer.nextSpan();
+
+      try (SpanInScope ws = tracer.withSpanInScope(parent)) {
+        Span child = tracer.nextSpan();
+        assertThat(child.context()).isSameAs(parent.context());
+        assertThat(tracer.newChild(parent.context()).context()).isSameAs(parent.context());
+
+        try (SpanInScope ws2 = tracer.withSpanInScope(child)) {
+          assertThat(ws2.scope).isSameAs(Scope.NOOP);
+        }
+
+        ScopedSpan scoped = tracer.startScopedSpan("foo");
+        assertThat(scoped.context()).isSameAs(parent.context());
+        scoped.finish();
+
+        assertThat(tracer.currentSpan().context()).isSameAs(parent.context());
+      }
+
+      assertThat(tracer.currentSpan()).isNull();
+      assertThat(decorated).containsExactly(parent.context()); // only the outer scope
+    }
+  }
+
+  @Test public void reuseUnsampledContexts_sampledChildrenAreNew() {
+    try (Tracing tracing = Tracing.newBuilder().reuseUnsampledContexts().build()) {
+      Tracer tracer = tracing.tracer();
+      TraceContext parent = tracer.newTrace().context();
+
+      assertThat(tracer.newChild(parent).context().parentIdAsLong())
+        .isEqualTo(parent.spanId());
+    }
+  }
+
+  @Test public void reuseUnsampledContexts_notWithExtra() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .propagationFactory(ExtraFieldPropagation.newFactory(B3Propagation.FACTORY, "country-code"))
+      .sampler(Sampler.NEVER_SAMPLE)
+      .reuseUnsampledContexts()
+      .build()) {
+      Tracer tracer = tracing.tracer();
+      TraceContext parent = tracer.newTrace().context();
+
+      assertThat(tracer.newChild(parent).context().parentIdAsLong())
+        .isEqualTo(parent.spanId());
+    }
+  }
+
+  @Test public void reuseUnsampledContexts_notWhenAlwaysSampleLocal() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .addFinishedSpanHandler(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          return true;
+        }
+
+        @Override public boolean alwaysSampleLocal() {
+          return true;
+        }
+      })
+      .sampler(Sampler.NEVER_SAMPLE)
+      .reuseUnsampledContexts()
+      .build()) {
+      Tracer tracer = tracing.tracer();
+      TraceContext parent = tracer.newTrace().context();
+
+      assertThat(tracer.newChild(parent).context().parentIdAsLong())
+        .isEqualTo(parent.spanId());
+    }
+  }
+
   @Test public void toString_withSpanInScope() {
     TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(10L).sampled(true).build();
     try (SpanInScope ws = tracer.withSpanInScope(tracer.toSpan(context))) {
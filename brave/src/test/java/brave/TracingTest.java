@@ -15,19 +15,34 @@ package brave;
 
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.handler.SharedSpanMergingFinishedSpanHandler;
+import brave.handler.TailSamplingFinishedSpanHandler;
+import brave.internal.recorder.StripedPendingSpans;
 import brave.propagation.B3SinglePropagation;
 import brave.propagation.Propagation;
 import brave.propagation.TraceContext;
 import brave.sampler.Sampler;
+import brave.sampler.SamplerFunctions;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.assertj.core.api.InstanceOfAssertFactories;
 import org.junit.Test;
+import zipkin2.Call;
 import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.BytesMessageEncoder;
 import zipkin2.reporter.Reporter;
+import zipkin2.reporter.Sender;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.assertj.core.util.introspection.PropertyOrFieldSupport.EXTRACTION;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -306,4 +321,289 @@ public class TracingTest {
         .startsWith(one, three);
     }
   }
+
+  @Test public void stripedPendingSpans() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .stripedPendingSpans()
+      .spanReporter(spans::add)
+      .build()) {
+      assertThat(tracing.tracer().pendingSpans).isInstanceOf(StripedPendingSpans.class);
+
+      ScopedSpan parent = tracing.tracer().startScopedSpan("parent");
+      tracing.tracer().newChild(parent.context()).name("child").start().finish();
+      parent.finish();
+    }
+
+    assertThat(spans).extracting(Span::name).containsExactly("child", "parent");
+  }
+
+  @Test public void reportOrphansInBackground_stopsOnClose() throws InterruptedException {
+    Thread drainerThread;
+    try (Tracing tracing = Tracing.newBuilder().reportOrphansInBackground().build()) {
+      assertThat(tracing.tracer().pendingSpans).extracting("maxOrphansPerCall").isEqualTo(0);
+
+      drainerThread = (Thread) EXTRACTION.getValueOf("orphanedSpansDrainer.thread", tracing);
+      assertThat(drainerThread.isAlive()).isTrue();
+    }
+
+    drainerThread.join(5000L);
+    assertThat(drainerThread.isAlive()).isFalse();
+  }
+
+  @Test public void spanSender_encodesDirectly() {
+    List<byte[]> messages = new ArrayList<>();
+    Sender sender = new Sender() {
+      @Override public Encoding encoding() {
+        return Encoding.PROTO3;
+      }
+
+      @Override public int messageMaxBytes() {
+        return 1024;
+      }
+
+      @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+        return encoding().listSizeInBytes(encodedSpans);
+      }
+
+      @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+        if (!encodedSpans.isEmpty()) messages.add(BytesMessageEncoder.PROTO3.encode(encodedSpans));
+        return Call.create(null);
+      }
+    };
+
+    try (Tracing tracing = Tracing.newBuilder()
+      .localServiceName("favstar")
+      .spanReporter(spans::add) // overridden
+      .spanSender(sender)
+      .build()) {
+      tracing.tracer().newTrace().name("foo").start().finish();
+
+      ((AsyncReporter) EXTRACTION.getValueOf("spanSenderReporter", tracing)).flush();
+    }
+
+    assertThat(spans).isEmpty();
+    assertThat(messages).hasSize(1);
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(messages.get(0)))
+      .extracting(Span::name, s -> s.localServiceName())
+      .containsExactly(tuple("foo", "favstar"));
+  }
+
+  @Test public void spanSender_unsupportedEncoding() {
+    Sender sender = mock(Sender.class);
+    when(sender.encoding()).thenReturn(Encoding.THRIFT);
+
+    assertThatThrownBy(() -> Tracing.newBuilder().spanSender(sender))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void maxOrphansReportedPerCall() {
+    try (Tracing tracing = Tracing.newBuilder().maxOrphansReportedPerCall(10).build()) {
+      assertThat(tracing.tracer().pendingSpans).extracting("maxOrphansPerCall").isEqualTo(10);
+    }
+  }
+
+  @Test public void metrics_nullByDefault() {
+    try (Tracing tracing = Tracing.newBuilder().build()) {
+      assertThat(tracing.metrics()).isNull();
+      assertThat(tracing.tracer().counters).isNull();
+    }
+  }
+
+  @Test public void recordMetrics() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .recordMetrics()
+      .sampler(Sampler.ALWAYS_SAMPLE)
+      .addFinishedSpanHandler(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          if ("bad".equals(span.name())) throw new IllegalStateException("bad span");
+          return true;
+        }
+      })
+      .spanReporter(spans::add)
+      .build()) {
+      Tracer tracer = tracing.tracer();
+
+      tracer.nextSpan().name("finished").start().finish();
+      tracer.nextSpan().start().abandon();
+      tracer.nextSpan().start().flush();
+      tracer.nextSpan().name("bad").start().finish();
+      tracer.nextSpan(SamplerFunctions.neverSample(), "arg").start().finish();
+      tracer.nextSpan(SamplerFunctions.deferDecision(), "arg").start().finish();
+      brave.Span pending = tracer.nextSpan().start();
+
+      TracingMetrics metrics = tracing.metrics();
+      assertThat(metrics.spansStarted()).isEqualTo(6); // unsampled isn't recorded
+      assertThat(metrics.spansFinished()).isEqualTo(3);
+      assertThat(metrics.spansAbandoned()).isEqualTo(1);
+      assertThat(metrics.spansFlushed()).isEqualTo(1);
+      assertThat(metrics.spansOrphaned()).isZero();
+      assertThat(metrics.pendingSpans()).isEqualTo(1);
+      assertThat(metrics.samplerSampled()).isEqualTo(6);
+      assertThat(metrics.samplerNotSampled()).isZero();
+      assertThat(metrics.samplerFunctionSampled()).isZero();
+      assertThat(metrics.samplerFunctionNotSampled()).isEqualTo(1);
+      assertThat(metrics.samplerFunctionDeferred()).isEqualTo(1);
+      assertThat(metrics.handlerErrors()).isEqualTo(1);
+
+      pending.finish();
+      assertThat(tracing.metrics().pendingSpans()).isZero();
+      assertThat(metrics.pendingSpans()).isEqualTo(1); // snapshots don't change
+    }
+  }
+
+  @Test public void tailSampling_reportsKeptTraces() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .sampler(Sampler.NEVER_SAMPLE)
+      .tailSampling(TailSamplingFinishedSpanHandler.newBuilder())
+      .spanReporter(spans::add)
+      .build()) {
+      Tracer tracer = tracing.tracer();
+
+      ScopedSpan ok = tracer.startScopedSpan("ok");
+      tracer.startScopedSpan("ok-child").finish();
+      ok.finish();
+
+      ScopedSpan failed = tracer.startScopedSpan("failed");
+      tracer.startScopedSpan("failed-child").finish();
+      failed.error(new IllegalStateException());
+      failed.finish();
+    }
+
+    assertThat(spans).extracting(Span::name).containsExactly("failed-child", "failed");
+  }
+
+  @Test public void mergeSharedSpans_reportsOneSpan() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .mergeSharedSpans(SharedSpanMergingFinishedSpanHandler.newBuilder())
+      .spanReporter(spans::add)
+      .build()) {
+      Tracer tracer = tracing.tracer();
+
+      brave.Span client = tracer.nextSpan().kind(brave.Span.Kind.CLIENT).name("get").start();
+      brave.Span server = tracer.joinSpan(client.context()).kind(brave.Span.Kind.SERVER).start();
+      server.tag("http.path", "/");
+      server.finish();
+      client.finish();
+    }
+
+    assertThat(spans).hasSize(1).first().satisfies(span -> {
+      assertThat(span.kind()).isEqualTo(Span.Kind.CLIENT);
+      assertThat(span.tags()).containsEntry("http.path", "/");
+      assertThat(span.annotations()).extracting(zipkin2.Annotation::value)
+        .containsExactly("sr", "ss");
+    });
+  }
+
+  @Test public void mergeSharedSpans_closeReportsHeldSpans() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .mergeSharedSpans(SharedSpanMergingFinishedSpanHandler.newBuilder().window(1, TimeUnit.HOURS))
+      .spanReporter(spans::add)
+      .build()) {
+      TraceContext remote =
+        TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+      tracing.tracer().joinSpan(remote).kind(brave.Span.Kind.SERVER).start().finish();
+
+      assertThat(spans).isEmpty();
+    }
+
+    assertThat(spans).extracting(Span::kind).containsExactly(Span.Kind.SERVER);
+  }
+
+  @Test public void spanLimits() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .maxTagsPerSpan(1)
+      .maxAnnotationsPerSpan(1)
+      .maxTagValueLength(3)
+      .spanReporter(spans::add)
+      .build()) {
+      tracing.tracer().newTrace().name("query").start()
+        .tag("sql", "select 1")
+        .tag("sql.params", "1")
+        .annotate("a")
+        .annotate("b")
+        .finish();
+    }
+
+    assertThat(spans).hasSize(1).first().satisfies(span -> {
+      assertThat(span.tags()).containsOnly(
+        entry("sql", "sel"),
+        entry("brave.truncated_tags", "1"),
+        entry("brave.dropped_tags", "1"),
+        entry("brave.dropped_annotations", "1")
+      );
+      assertThat(span.annotations()).extracting(zipkin2.Annotation::value).containsExactly("a");
+    });
+  }
+
+  @Test public void recycleSpans() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .recycleSpans()
+      .spanReporter(spans::add)
+      .build()) {
+      assertThat(tracing.tracer().pendingSpans).extracting("spanPool").isNotNull();
+
+      tracing.tracer().startScopedSpan("first").finish();
+      ScopedSpan second = tracing.tracer().startScopedSpan("second");
+      second.tag("foo", "bar");
+      second.finish();
+    }
+
+    assertThat(spans).extracting(Span::name).containsExactly("first", "second");
+    assertThat(spans.get(0).tags()).isEmpty();
+    assertThat(spans.get(1).tags()).containsOnly(entry("foo", "bar"));
+  }
+
+  @Test public void recycleSpans_ignoresWritesAfterFinish() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .recycleSpans()
+      .spanReporter(spans::add)
+      .build()) {
+      brave.Span first = tracing.tracer().newTrace().name("first").start();
+      brave.Span firstAgain = tracing.tracer().toSpan(first.context());
+      ScopedSpan scoped = tracing.tracer().startScopedSpan("scoped");
+      scoped.finish();
+      first.finish();
+
+      // both were recycled, so the next spans likely reuse their state
+      brave.Span second = tracing.tracer().newTrace().name("second").start();
+      ScopedSpan secondScoped = tracing.tracer().startScopedSpan("secondScoped");
+
+      first.tag("foo", "bar").annotate("baz").name("oops");
+      firstAgain.tag("foo", "bar");
+      firstAgain.flush();
+      scoped.tag("foo", "bar");
+      secondScoped.finish();
+      second.finish();
+    }
+
+    assertThat(spans).extracting(Span::name)
+      .containsExactly("scoped", "first", "secondscoped", "second");
+    assertThat(spans).allSatisfy(s -> {
+      assertThat(s.tags()).isEmpty();
+      assertThat(s.annotations()).isEmpty();
+    });
+  }
+
+  @Test public void recycleSpans_disabledWhenHandlerRetainsSpan() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .recycleSpans()
+      .addFinishedSpanHandler(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          mutableSpans.add(span);
+          return true;
+        }
+
+        @Override public boolean retainsSpan() {
+          return true;
+        }
+      })
+      .build()) {
+      assertThat(tracing.tracer().pendingSpans).extracting("spanPool").isNull();
+
+      tracing.tracer().startScopedSpan("first").finish();
+      tracing.tracer().startScopedSpan("second").finish();
+    }
+
+    assertThat(mutableSpans).extracting(MutableSpan::name).containsExactly("first", "second");
+  }
 }
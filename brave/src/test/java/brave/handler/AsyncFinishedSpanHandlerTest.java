@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.ScopedSpan;
+import brave.Tracing;
+import brave.handler.AsyncFinishedSpanHandler.Backpressure;
+import brave.propagation.TraceContext;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.reporter.Reporter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncFinishedSpanHandlerTest {
+  BlockingQueue<MutableSpan> spans = new LinkedBlockingQueue<>();
+  BlockingQueue<Thread> handlerThreads = new LinkedBlockingQueue<>();
+  CountDownLatch unblock = new CountDownLatch(0);
+  FinishedSpanHandler delegate = new FinishedSpanHandler() {
+    @Override public boolean handle(TraceContext context, MutableSpan span) {
+      try {
+        unblock.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      handlerThreads.add(Thread.currentThread());
+      spans.add(span);
+      return true;
+    }
+  };
+  AsyncFinishedSpanHandler handler;
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+
+  @After public void close() {
+    unblock.countDown();
+    if (handler != null) handler.close();
+  }
+
+  @Test public void handlesOnDaemonThread() throws InterruptedException {
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate).build();
+
+    MutableSpan span = new MutableSpan();
+    span.name("foo");
+    assertThat(handler.handle(context, span)).isTrue();
+
+    MutableSpan handled = spans.poll(5, TimeUnit.SECONDS);
+    assertThat(handled).isNotSameAs(span); // copied
+    assertThat(handled.name()).isEqualTo("foo");
+    assertThat(handlerThreads.poll()).isSameAs(handler.thread);
+    assertThat(handler.thread.isDaemon()).isTrue();
+    handler.close(); // ensures counts are updated
+    assertThat(handler.publishedCount()).isEqualTo(1L);
+    assertThat(handler.handledCount()).isEqualTo(1L);
+  }
+
+  @Test public void handlesBatches() throws InterruptedException {
+    BlockingQueue<Integer> batchSizes = new LinkedBlockingQueue<>();
+    unblock = new CountDownLatch(1);
+    handler = AsyncFinishedSpanHandler.newBuilder(new FinishedSpanHandler() {
+      @Override public boolean handle(TraceContext context, MutableSpan span) {
+        throw new AssertionError("expected handleBatch");
+      }
+
+      @Override public void handleBatch(List<TraceContext> contexts, List<MutableSpan> spans) {
+        try {
+          unblock.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        batchSizes.add(spans.size());
+      }
+    }).build();
+
+    for (int i = 0; i < 3; i++) handler.handle(context, new MutableSpan());
+    unblock.countDown();
+    handler.close();
+
+    int handled = 0;
+    for (Integer size; (size = batchSizes.poll()) != null; ) handled += size;
+    assertThat(handled).isEqualTo(3);
+    assertThat(handler.handledCount()).isEqualTo(3L);
+  }
+
+  @Test public void changesAfterHandleAreInvisible() throws InterruptedException {
+    unblock = new CountDownLatch(1);
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate).build();
+
+    MutableSpan span = new MutableSpan();
+    handler.handle(context, span);
+    span.tag("error", "oops"); // like a later handler would do
+    unblock.countDown();
+
+    assertThat(spans.poll(5, TimeUnit.SECONDS).tag("error")).isNull();
+  }
+
+  @Test public void minimumCapacityIsTwo() throws InterruptedException {
+    unblock = new CountDownLatch(1);
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate).capacity(1).build();
+
+    handler.handle(context, new MutableSpan());
+    awaitConsumerBlocked();
+    for (int i = 0; i < 3; i++) handler.handle(context, new MutableSpan());
+
+    assertThat(handler.droppedCount()).isEqualTo(1L);
+  }
+
+  @Test public void dropNewest() throws InterruptedException {
+    unblock = new CountDownLatch(1);
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate).capacity(2).build();
+
+    MutableSpan first = new MutableSpan();
+    first.name("first");
+    handler.handle(context, first);
+    awaitConsumerBlocked();
+
+    for (int i = 0; i < 3; i++) {
+      MutableSpan span = new MutableSpan();
+      span.name("span" + i);
+      handler.handle(context, span);
+    }
+    assertThat(handler.droppedCount()).isEqualTo(1L);
+
+    unblock.countDown();
+    handler.close();
+    assertThat(spans).extracting(MutableSpan::name).containsExactly("first", "span0", "span1");
+    assertThat(handler.handledCount()).isEqualTo(3L);
+    assertThat(handler.publishedCount()).isEqualTo(3L);
+  }
+
+  @Test public void dropOldest() throws InterruptedException {
+    unblock = new CountDownLatch(1);
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate)
+      .capacity(2).backpressure(Backpressure.DROP_OLDEST).build();
+
+    MutableSpan first = new MutableSpan();
+    first.name("first");
+    handler.handle(context, first);
+    awaitConsumerBlocked();
+
+    for (int i = 0; i < 3; i++) {
+      MutableSpan span = new MutableSpan();
+      span.name("span" + i);
+      handler.handle(context, span);
+    }
+    assertThat(handler.droppedCount()).isEqualTo(1L);
+
+    unblock.countDown();
+    handler.close();
+    assertThat(spans).extracting(MutableSpan::name).containsExactly("first", "span1", "span2");
+    assertThat(handler.publishedCount()).isEqualTo(4L);
+  }
+
+  @Test public void block_dropsAfterTimeout() throws InterruptedException {
+    unblock = new CountDownLatch(1);
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate)
+      .capacity(2).backpressure(Backpressure.BLOCK).blockTimeout(10, TimeUnit.MILLISECONDS)
+      .build();
+
+    handler.handle(context, new MutableSpan());
+    awaitConsumerBlocked();
+    handler.handle(context, new MutableSpan());
+    handler.handle(context, new MutableSpan()); // fills the buffer
+
+    long start = System.nanoTime();
+    handler.handle(context, new MutableSpan());
+    assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+    assertThat(handler.droppedCount()).isEqualTo(1L);
+  }
+
+  @Test public void block_succeedsWhenSpaceFreed() throws InterruptedException {
+    unblock = new CountDownLatch(1);
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate)
+      .capacity(2).backpressure(Backpressure.BLOCK).blockTimeout(10, TimeUnit.SECONDS)
+      .build();
+
+    handler.handle(context, new MutableSpan());
+    awaitConsumerBlocked();
+    handler.handle(context, new MutableSpan());
+    handler.handle(context, new MutableSpan()); // fills the buffer
+
+    new Thread(() -> unblock.countDown()).start();
+    handler.handle(context, new MutableSpan());
+
+    assertThat(handler.droppedCount()).isZero();
+    assertThat(handler.publishedCount()).isEqualTo(4L);
+  }
+
+  @Test public void close_drainsThenDropsNewSpans() throws InterruptedException {
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate).build();
+    for (int i = 0; i < 10; i++) handler.handle(context, new MutableSpan());
+
+    handler.close();
+    assertThat(handler.thread.isAlive()).isFalse();
+    assertThat(spans).hasSize(10);
+
+    handler.handle(context, new MutableSpan());
+    assertThat(handler.droppedCount()).isEqualTo(1L);
+  }
+
+  @Test public void close_waitsForOffersInProgress() throws InterruptedException {
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate).build();
+    handler.producing.increment(); // a producer which saw the handler open, but hasn't offered
+
+    Thread closer = new Thread(handler::close);
+    closer.start();
+    while (!handler.closed) Thread.sleep(1L);
+    Thread.sleep(10L); // give the consumer a chance to exit early, which would be a bug
+    assertThat(handler.thread.isAlive()).isTrue();
+
+    handler.buffer.offer(context, new MutableSpan());
+    handler.producing.add(-1L);
+    closer.join();
+
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test public void delegateErrorsDontStopConsumer() throws InterruptedException {
+    handler = AsyncFinishedSpanHandler.newBuilder(new FinishedSpanHandler() {
+      @Override public boolean handle(TraceContext context, MutableSpan span) {
+        if (span.name() == null) throw new IllegalStateException("oops");
+        return delegate.handle(context, span);
+      }
+    }).build();
+
+    handler.handle(context, new MutableSpan());
+    MutableSpan span = new MutableSpan();
+    span.name("foo");
+    handler.handle(context, span);
+
+    assertThat(spans.poll(5, TimeUnit.SECONDS).name()).isEqualTo("foo");
+    handler.close(); // ensures counts are updated
+    assertThat(handler.handledCount()).isEqualTo(2L);
+  }
+
+  @Test public void delegatesFlags() {
+    handler = AsyncFinishedSpanHandler.newBuilder(new FinishedSpanHandler() {
+      @Override public boolean handle(TraceContext context, MutableSpan span) {
+        return true;
+      }
+
+      @Override public boolean alwaysSampleLocal() {
+        return true;
+      }
+
+      @Override public boolean supportsOrphans() {
+        return true;
+      }
+    }).build();
+
+    assertThat(handler.alwaysSampleLocal()).isTrue();
+    assertThat(handler.supportsOrphans()).isTrue();
+    assertThat(handler.retainsSpan()).isFalse(); // as we copy
+  }
+
+  @Test public void worksWithTracing() throws InterruptedException {
+    handler = AsyncFinishedSpanHandler.newBuilder(delegate).build();
+    try (Tracing tracing = Tracing.newBuilder()
+      .addFinishedSpanHandler(handler)
+      .spanReporter(Reporter.NOOP)
+      .recycleSpans()
+      .build()) {
+      ScopedSpan span = tracing.tracer().startScopedSpan("foo");
+      span.finish();
+    }
+
+    assertThat(spans.poll(5, TimeUnit.SECONDS).name()).isEqualTo("foo");
+  }
+
+  /** Waits until the consumer has taken the first span and is blocked in the delegate. */
+  void awaitConsumerBlocked() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (handler.buffer.size() > 0 && System.nanoTime() < deadline) Thread.sleep(1);
+    Thread.sleep(10); // the consumer is now in the delegate, or just about to be
+  }
+}
@@ -14,6 +14,7 @@
 package brave.handler;
 
 import brave.Span;
+import brave.internal.SpanLimits;
 import brave.propagation.TraceContext;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -26,6 +27,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.junit.Test;
 
+import static java.lang.Integer.MAX_VALUE;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.entry;
 
@@ -271,6 +273,189 @@ public class MutableSpanTest {
     assertThat(span.tag("whoops")).isNull();
   }
 
+  @Test public void accessorScansTags_notSameInstance() {
+    MutableSpan span = new MutableSpan();
+    span.tag("http.path", "/api");
+
+    assertThat(span.tag(new String("http.path"))).isEqualTo("/api");
+  }
+
+  @Test public void tag_replacesValue() {
+    MutableSpan span = new MutableSpan();
+    span.tag("http.path", "/api");
+    span.tag(new String("http.path"), "/");
+
+    assertThat(tagsToMap(span)).containsOnly(entry("http.path", "/"));
+  }
+
+  @Test public void tag_growsPastInitialCapacity() {
+    MutableSpan span = new MutableSpan();
+    Map<String, String> expected = new LinkedHashMap<>();
+    for (int i = 0; i < 30; i++) {
+      span.tag("key" + i, "value" + i);
+      expected.put("key" + i, "value" + i);
+    }
+
+    assertThat(tagsToMap(span)).containsExactlyEntriesOf(expected);
+    assertThat(span.tag("key29")).isEqualTo("value29");
+  }
+
+  @Test public void annotate_growsPastInitialCapacity() {
+    MutableSpan span = new MutableSpan();
+    List<Map.Entry<Long, String>> expected = new ArrayList<>();
+    for (long i = 1; i <= 30; i++) {
+      span.annotate(i, "value" + i);
+      expected.add(entry(i, "value" + i));
+    }
+
+    assertThat(annotationsToList(span)).containsExactlyElementsOf(expected);
+    assertThat(span.containsAnnotation("value30")).isTrue();
+  }
+
+  @Test public void forEachTag_updater_removesAllThenAdds() {
+    MutableSpan span = new MutableSpan();
+    span.tag("a", "1");
+    span.tag("b", "2");
+
+    span.forEachTag((key, value) -> null);
+    assertThat(span.isEmpty()).isTrue();
+
+    span.tag("c", "3");
+    assertThat(tagsToMap(span)).containsOnly(entry("c", "3"));
+  }
+
+  @Test public void forEachAnnotation_updater_removesMiddle() {
+    MutableSpan span = new MutableSpan();
+    span.annotate(1L, "a");
+    span.annotate(2L, "b");
+    span.annotate(3L, "c");
+
+    span.forEachAnnotation((timestamp, value) -> value.equals("b") ? null : value);
+
+    assertThat(annotationsToList(span)).containsExactly(entry(1L, "a"), entry(3L, "c"));
+    assertThat(span.containsAnnotation("b")).isFalse();
+  }
+
+  @Test public void copy() {
+    MutableSpan span = new MutableSpan();
+    span.name("foo");
+    span.kind(Span.Kind.SERVER);
+    span.setShared();
+    span.startTimestamp(1L);
+    span.finishTimestamp(2L);
+    span.localServiceName("favstar");
+    span.localIp("1.2.3.4");
+    span.localPort(80);
+    span.remoteServiceName("backend");
+    span.remoteIpAndPort("5.6.7.8", 443);
+    span.annotate(1L, "a");
+    span.tag("1", "1");
+    span.error(new RuntimeException());
+
+    MutableSpan copy = new MutableSpan(span);
+    assertThat(copy).isEqualToIgnoringGivenFields(span,
+      "tags", "annotationTimestamps", "annotationValues");
+    assertThat(tagsToMap(copy)).isEqualTo(tagsToMap(span));
+    assertThat(annotationsToList(copy)).isEqualTo(annotationsToList(span));
+
+    // changes to the copy don't affect the original
+    copy.tag("2", "2");
+    copy.annotate(2L, "b");
+    assertThat(tagsToMap(span)).containsOnly(entry("1", "1"));
+    assertThat(annotationsToList(span)).containsExactly(entry(1L, "a"));
+  }
+
+  @Test public void copy_empty() {
+    assertThat(new MutableSpan(new MutableSpan()).isEmpty()).isTrue();
+  }
+
+  @Test public void limits_maxTags() {
+    MutableSpan span = new MutableSpan();
+    span.limits = SpanLimits.create(2, MAX_VALUE, MAX_VALUE, MAX_VALUE);
+
+    span.tag("1", "1");
+    span.tag("2", "2");
+    span.tag("3", "3");
+    span.tag("4", "4");
+    span.tag("1", "one"); // replacing is allowed
+
+    assertThat(tagsToMap(span)).containsExactly(
+      entry("1", "one"), entry("2", "2"), entry(SpanLimits.DROPPED_TAGS, "2")
+    );
+  }
+
+  @Test public void limits_maxAnnotations() {
+    MutableSpan span = new MutableSpan();
+    span.limits = SpanLimits.create(MAX_VALUE, 1, MAX_VALUE, MAX_VALUE);
+
+    span.annotate(1L, "a");
+    span.annotate(2L, "b");
+
+    assertThat(annotationsToList(span)).containsExactly(entry(1L, "a"));
+    assertThat(span.tag(SpanLimits.DROPPED_ANNOTATIONS)).isEqualTo("1");
+  }
+
+  @Test public void limits_maxTagValueLength() {
+    MutableSpan span = new MutableSpan();
+    span.limits = SpanLimits.create(MAX_VALUE, MAX_VALUE, 6, MAX_VALUE);
+
+    span.tag("sql", "select * from users");
+    span.tag("emoji", "hello\uD83D\uDE00"); // doesn't split the surrogate pair
+    span.tag("short", "ok");
+
+    assertThat(tagsToMap(span)).containsExactly(
+      entry(SpanLimits.TRUNCATED_TAGS, "2"),
+      entry("sql", "select"),
+      entry("emoji", "hello"),
+      entry("short", "ok")
+    );
+  }
+
+  @Test public void limits_maxSpanBytes() {
+    MutableSpan span = new MutableSpan();
+    span.limits = SpanLimits.create(MAX_VALUE, MAX_VALUE, MAX_VALUE, 20);
+
+    span.tag("key", "value"); // 8
+    span.annotate(1L, "foo"); // 11
+    span.tag("k", "v"); // 2, which would exceed 20
+    span.annotate(2L, "a"); // 9, which would exceed 20
+
+    assertThat(tagsToMap(span)).containsExactly(
+      entry("key", "value"),
+      entry(SpanLimits.DROPPED_TAGS, "1"),
+      entry(SpanLimits.DROPPED_ANNOTATIONS, "1")
+    );
+    assertThat(annotationsToList(span)).containsExactly(entry(1L, "foo"));
+  }
+
+  @Test public void limits_notCopied() {
+    MutableSpan span = new MutableSpan();
+    span.limits = SpanLimits.create(0, 0, 0, 0);
+    span.tag("1", "1");
+
+    MutableSpan copy = new MutableSpan(span);
+    copy.tag("1", "1");
+
+    assertThat(tagsToMap(copy)).containsExactly(
+      entry(SpanLimits.DROPPED_TAGS, "1"), entry("1", "1")
+    );
+  }
+
+  @Test public void limits_resetByFragment() {
+    MutableSpan span = new MutableSpan();
+    span.limits = SpanLimits.create(1, MAX_VALUE, MAX_VALUE, MAX_VALUE);
+    span.tag("1", "1");
+    span.tag("2", "2");
+
+    MutableSpan fragment = span.fragment();
+    span.tag("3", "3");
+
+    assertThat(tagsToMap(fragment)).containsExactly(
+      entry("1", "1"), entry(SpanLimits.DROPPED_TAGS, "1")
+    );
+    assertThat(tagsToMap(span)).containsExactly(entry("3", "3"));
+  }
+
   static Map<String, String> tagsToMap(MutableSpan span) {
     Map<String, String> map = new LinkedHashMap<>();
     span.forEachTag(Map::put, map);
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.Tracing;
+import brave.handler.RedMetricsFinishedSpanHandler.Metric;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import java.util.List;
+import org.junit.Test;
+
+import static brave.handler.RedMetricsFinishedSpanHandler.BUCKET_COUNT;
+import static brave.handler.RedMetricsFinishedSpanHandler.MAX_DURATION_MICROS;
+import static brave.handler.RedMetricsFinishedSpanHandler.bucketIndex;
+import static brave.handler.RedMetricsFinishedSpanHandler.bucketLowerBound;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class RedMetricsFinishedSpanHandlerTest {
+  RedMetricsFinishedSpanHandler handler = RedMetricsFinishedSpanHandler.newBuilder().build();
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(1L).sampled(false).build();
+
+  @Test public void alwaysSampleLocal() {
+    assertThat(handler.alwaysSampleLocal()).isTrue();
+    assertThat(handler.retainsSpan()).isFalse();
+  }
+
+  @Test public void groupsByNameKindServicesAndError() {
+    assertThat(handler.handle(context, span("get", Kind.SERVER, 100L))).isTrue();
+    handler.handle(context, span("get", Kind.SERVER, 200L));
+    handler.handle(context, span("get", Kind.CLIENT, 300L));
+    MutableSpan error = span("get", Kind.SERVER, 400L);
+    error.tag("error", "500");
+    handler.handle(context, error);
+
+    assertThat(handler.snapshot())
+      .extracting(Metric::kind, Metric::error, Metric::count)
+      .containsExactlyInAnyOrder(
+        tuple(Kind.SERVER, false, 2L),
+        tuple(Kind.CLIENT, false, 1L),
+        tuple(Kind.SERVER, true, 1L)
+      );
+  }
+
+  @Test public void errorField() {
+    MutableSpan span = span("get", Kind.SERVER, 100L);
+    span.error(new IllegalStateException());
+    handler.handle(context, span);
+
+    assertThat(handler.snapshot().get(0).error()).isTrue();
+  }
+
+  @Test public void duration() {
+    for (long i = 1; i <= 100; i++) handler.handle(context, span("get", null, i * 1000L));
+
+    Metric metric = handler.snapshot().get(0);
+    assertThat(metric.count()).isEqualTo(100L);
+    assertThat(metric.durationCount()).isEqualTo(100L);
+    assertThat(metric.durationSumMicros()).isEqualTo(5050_000L);
+    assertThat(metric.percentileMicros(0.5)).isBetween(50_000L, 50_000L + 50_000L / 16);
+    assertThat(metric.percentileMicros(0.99)).isBetween(99_000L, 99_000L + 99_000L / 16);
+    assertThat(metric.percentileMicros(1.0)).isBetween(100_000L, 100_000L + 100_000L / 16);
+  }
+
+  @Test public void duration_unknownStillCounted() {
+    MutableSpan span = new MutableSpan();
+    span.name("get");
+    handler.handle(context, span);
+
+    Metric metric = handler.snapshot().get(0);
+    assertThat(metric.count()).isEqualTo(1L);
+    assertThat(metric.durationCount()).isZero();
+    assertThat(metric.percentileMicros(0.99)).isZero();
+  }
+
+  @Test public void skipsFragments() {
+    MutableSpan span = span("stream", Kind.SERVER, 100L);
+    span.error(new IllegalStateException());
+    handler.handle(context, span.fragment());
+    handler.handle(context, span.fragment());
+    handler.handle(context, span);
+
+    Metric metric = handler.snapshot().get(0);
+    assertThat(metric.count()).isEqualTo(1L);
+    assertThat(metric.durationCount()).isEqualTo(1L);
+  }
+
+  @Test public void percentileMicros_invalid() {
+    handler.handle(context, span("get", null, 1L));
+
+    assertThatThrownBy(() -> handler.snapshot().get(0).percentileMicros(1.1))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void maxKeys_countsOverflow() {
+    handler = RedMetricsFinishedSpanHandler.newBuilder().maxKeys(1).build();
+
+    handler.handle(context, span("get", null, 1L));
+    handler.handle(context, span("post", null, 1L));
+    handler.handle(context, span("get", null, 1L));
+
+    assertThat(handler.snapshot()).extracting(Metric::name, Metric::count)
+      .containsExactly(tuple("get", 2L));
+    assertThat(handler.overflowCount()).isEqualTo(1L);
+  }
+
+  @Test public void buckets_contiguousAndBounded() {
+    for (int i = 1; i < BUCKET_COUNT; i++) {
+      long lowerBound = bucketLowerBound(i);
+      assertThat(bucketIndex(lowerBound)).isEqualTo(i);
+      assertThat(bucketIndex(lowerBound - 1)).isEqualTo(i - 1);
+      // relative error of a bucket is at most 1/16
+      assertThat(bucketLowerBound(i + 1) - lowerBound)
+        .isLessThanOrEqualTo(Math.max(1, lowerBound / 16));
+    }
+    assertThat(bucketIndex(MAX_DURATION_MICROS)).isEqualTo(BUCKET_COUNT - 1);
+  }
+
+  @Test public void recordsUnsampledSpans() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .sampler(Sampler.NEVER_SAMPLE)
+      .addFinishedSpanHandler(handler)
+      .build()) {
+      tracing.tracer().newTrace().name("get").start().finish();
+    }
+
+    List<Metric> snapshot = handler.snapshot();
+    assertThat(snapshot).extracting(Metric::name, Metric::count)
+      .containsExactly(tuple("get", 1L));
+  }
+
+  static MutableSpan span(String name, Kind kind, long durationMicros) {
+    MutableSpan result = new MutableSpan();
+    result.name(name);
+    result.kind(kind);
+    result.startTimestamp(1000L);
+    result.finishTimestamp(1000L + durationMicros);
+    return result;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedSpanMergingFinishedSpanHandlerTest {
+  List<MutableSpan> spans = new ArrayList<>();
+  FinishedSpanHandler delegate = new FinishedSpanHandler() {
+    @Override public boolean handle(TraceContext context, MutableSpan span) {
+      spans.add(span);
+      return true;
+    }
+  };
+  SharedSpanMergingFinishedSpanHandler.Builder builder =
+    SharedSpanMergingFinishedSpanHandler.newBuilder();
+  SharedSpanMergingFinishedSpanHandler handler = builder.build(delegate);
+
+  TraceContext client = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+  TraceContext server = client.toBuilder().shared(true).build();
+  MutableSpan clientSpan = span(Kind.CLIENT, 10L, 40L), serverSpan = span(Kind.SERVER, 20L, 30L);
+
+  @Test public void retainsSpan() {
+    assertThat(handler.retainsSpan()).isTrue();
+  }
+
+  @Test public void mergesSharedIntoCaller() {
+    serverSpan.tag("http.path", "/");
+    serverSpan.annotate(25L, "foo");
+    serverSpan.error(new IllegalStateException());
+
+    handler.handle(server, serverSpan);
+    assertThat(spans).isEmpty();
+    assertThat(handler.bufferedCount()).isEqualTo(1);
+
+    handler.handle(client, clientSpan);
+
+    assertThat(spans).containsExactly(clientSpan);
+    assertThat(clientSpan.tag("http.path")).isEqualTo("/");
+    assertThat(clientSpan.error()).isSameAs(serverSpan.error());
+    List<String> annotations = new ArrayList<>();
+    clientSpan.forEachAnnotation((target, timestamp, value) -> target.add(timestamp + value),
+      annotations);
+    assertThat(annotations).containsExactly("25foo", "20sr", "30ss");
+    assertThat(handler.mergedCount()).isEqualTo(1L);
+    assertThat(handler.bufferedCount()).isZero();
+  }
+
+  @Test public void callerTagsWin() {
+    clientSpan.tag("http.path", "/client");
+    serverSpan.tag("http.path", "/server");
+
+    handler.handle(server, serverSpan);
+    handler.handle(client, clientSpan);
+
+    assertThat(clientSpan.tag("http.path")).isEqualTo("/client");
+  }
+
+  @Test public void unmatchedCaller_passesThrough() {
+    handler.handle(client, clientSpan);
+
+    assertThat(spans).containsExactly(clientSpan);
+    assertThat(handler.mergedCount()).isZero();
+  }
+
+  @Test public void unmatchedCaller_whileOtherSpansHeld_passesThrough() {
+    TraceContext otherServer = server.toBuilder().spanId(3L).build();
+    handler.handle(otherServer, serverSpan);
+
+    handler.handle(client, clientSpan);
+
+    assertThat(spans).containsExactly(clientSpan);
+    assertThat(handler.bufferedCount()).isEqualTo(1);
+  }
+
+  @Test public void flushExpired_resetsBufferedCount() throws Exception {
+    handler = builder.window(1, TimeUnit.NANOSECONDS).build(delegate);
+    handler.handle(server, serverSpan);
+
+    Thread.sleep(1L);
+    handler.flushExpired();
+
+    assertThat(handler.bufferedCount()).isZero();
+    handler.handle(client, clientSpan);
+    assertThat(spans).containsExactly(serverSpan, clientSpan);
+  }
+
+  @Test public void window_expiresSharedSpans() throws Exception {
+    handler = builder.window(1, TimeUnit.NANOSECONDS).build(delegate);
+
+    handler.handle(server, serverSpan);
+    Thread.sleep(1L);
+    handler.handle(client, clientSpan);
+
+    assertThat(spans).containsExactly(serverSpan, clientSpan);
+    assertThat(handler.mergedCount()).isZero();
+  }
+
+  @Test public void maxSpans_forwardsOldest() {
+    handler = builder.maxSpans(1).build(delegate);
+    TraceContext otherServer = server.toBuilder().spanId(3L).build();
+    MutableSpan otherSpan = span(Kind.SERVER, 20L, 30L);
+
+    handler.handle(server, serverSpan);
+    handler.handle(otherServer, otherSpan);
+
+    assertThat(spans).containsExactly(serverSpan);
+    assertThat(handler.bufferedCount()).isEqualTo(1);
+  }
+
+  @Test public void window_flushesWhenIdle() throws Exception {
+    handler = builder.window(1, TimeUnit.MILLISECONDS).build(delegate);
+    spans = Collections.synchronizedList(spans);
+
+    handler.handle(server, serverSpan);
+
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (handler.bufferedCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1L);
+    }
+    assertThat(spans).containsExactly(serverSpan);
+    handler.close();
+  }
+
+  @Test public void close_forwardsHeldSpans() {
+    handler.handle(server, serverSpan);
+
+    handler.close();
+
+    assertThat(spans).containsExactly(serverSpan);
+    assertThat(handler.bufferedCount()).isZero();
+  }
+
+  @Test public void close_sharedSpansAfterwardsPassThrough() {
+    handler.close();
+
+    handler.handle(server, serverSpan);
+
+    assertThat(spans).containsExactly(serverSpan);
+    assertThat(handler.flusher).isNull();
+  }
+
+  static MutableSpan span(Kind kind, long start, long finish) {
+    MutableSpan result = new MutableSpan();
+    result.kind(kind);
+    result.startTimestamp(start);
+    result.finishTimestamp(finish);
+    return result;
+  }
+}
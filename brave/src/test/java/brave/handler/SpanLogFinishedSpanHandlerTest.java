@@ -0,0 +1,282 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.ErrorParser;
+import brave.Span.Kind;
+import brave.Tracing;
+import brave.internal.handler.MutableSpanBytesEncoder;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import zipkin2.codec.Encoding;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpanLogFinishedSpanHandlerTest {
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(333L).traceId(1L).parentId(2L).spanId(3L).sampled(true).shared(true).build();
+
+  @Test public void roundTrip() throws IOException {
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(out);
+    MutableSpan span = span();
+    assertThat(handler.handle(context, span)).isTrue();
+
+    SpanLogReader reader = reader();
+    assertThat(reader.next()).isTrue();
+    assertThat(reader.context()).isEqualTo(context);
+    assertThat(reader.context().sampled()).isTrue();
+    assertThat(reader.context().shared()).isTrue();
+    assertSameData(reader.span(), span);
+    assertThat(reader.next()).isFalse();
+  }
+
+  @Test public void roundTrip_minimalSpan() throws IOException {
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(out);
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(1L).build();
+    handler.handle(context, new MutableSpan());
+
+    SpanLogReader reader = reader();
+    assertThat(reader.next()).isTrue();
+    assertThat(reader.context()).isEqualTo(context);
+    assertThat(reader.context().sampled()).isNull();
+    assertThat(reader.span().isEmpty()).isTrue();
+  }
+
+  @Test public void error_writtenAsTag() throws IOException {
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(out);
+    MutableSpan span = new MutableSpan();
+    span.error(new IllegalStateException("oops"));
+    handler.handle(context, span);
+
+    SpanLogReader reader = reader();
+    reader.next();
+    assertThat(reader.span().error()).isNull();
+    assertThat(reader.span().tag("error")).isEqualTo("oops");
+  }
+
+  @Test public void dictionary_writesStringsOnce() throws IOException {
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(out);
+    handler.handle(context, span());
+    int firstSize = out.size();
+    handler.handle(context, span());
+    int secondSize = out.size() - firstSize;
+
+    assertThat(secondSize).isLessThan(firstSize / 2);
+
+    SpanLogReader reader = reader();
+    List<String> names = new ArrayList<>();
+    while (reader.next()) names.add(reader.span().name());
+    assertThat(names).containsExactly("get /users/{id}", "get /users/{id}");
+  }
+
+  @Test public void dictionary_full_writesInline() throws IOException {
+    SpanLogFinishedSpanHandler handler =
+      SpanLogFinishedSpanHandler.newBuilder().maxDictionarySize(1).build(out);
+    for (String name : Arrays.asList("foo", "bar", "foo")) {
+      MutableSpan span = new MutableSpan();
+      span.name(name);
+      handler.handle(context, span);
+    }
+
+    assertThat(handler.dictionary).containsOnlyKeys("foo");
+    SpanLogReader reader = reader();
+    List<String> names = new ArrayList<>();
+    while (reader.next()) names.add(reader.span().name());
+    assertThat(names).containsExactly("foo", "bar", "foo");
+  }
+
+  /** The point of this format is to be much smaller than JSON */
+  @Test public void smallerThanJson() throws IOException {
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(out);
+    MutableSpanBytesEncoder json = MutableSpanBytesEncoder.create(
+      Encoding.JSON, new ErrorParser(), "unknown", null, 0);
+
+    int jsonSize = 0;
+    for (int i = 0; i < 100; i++) {
+      MutableSpan span = span();
+      handler.handle(context, span);
+      jsonSize += json.encode(context, span).length;
+    }
+
+    assertThat(out.size()).isLessThan(jsonSize / 4);
+  }
+
+  @Test public void writeError_dropsSubsequentSpans() throws IOException {
+    OutputStream broken = new OutputStream() {
+      boolean headerWritten;
+
+      @Override public void write(int b) throws IOException {
+        throw new IOException("disk full");
+      }
+
+      @Override public void write(byte[] b, int off, int len) throws IOException {
+        if (headerWritten) throw new IOException("disk full");
+        headerWritten = true;
+      }
+    };
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(broken);
+
+    assertThat(handler.handle(context, span())).isTrue();
+    handler.handle(context, span());
+
+    assertThat(handler.droppedCount()).isEqualTo(2L);
+  }
+
+  @Test public void writeSpanError_forgetsDictionaryEntries() throws IOException {
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(out);
+    MutableSpan broken = new MutableSpan();
+    broken.name("foo");
+    broken.error(new IllegalStateException() {
+      @Override public String getMessage() {
+        throw new UnsupportedOperationException();
+      }
+    });
+    MutableSpan span = new MutableSpan();
+    span.name("foo");
+
+    handler.handle(context, broken);
+    handler.handle(context, span);
+
+    assertThat(handler.droppedCount()).isEqualTo(1L);
+    SpanLogReader reader = reader();
+    assertThat(reader.next()).isTrue();
+    assertThat(reader.span().name()).isEqualTo("foo");
+    assertThat(reader.next()).isFalse();
+  }
+
+  @Test public void writeRuntimeException_dropsSubsequentSpans() throws IOException {
+    OutputStream broken = new OutputStream() {
+      @Override public void write(int b) {
+        throw new IllegalStateException("closed");
+      }
+
+      @Override public void write(byte[] b, int off, int len) {
+        if (len != SpanLogFinishedSpanHandler.HEADER.length) throw new IllegalStateException();
+      }
+    };
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(broken);
+
+    handler.handle(context, span());
+    handler.handle(context, span());
+
+    assertThat(handler.droppedCount()).isEqualTo(2L);
+    assertThat(handler.closed).isTrue();
+  }
+
+  @Test public void reader_badHeader() {
+    assertThatThrownBy(() -> SpanLogReader.create(new ByteArrayInputStream(new byte[] {'{', '}'})))
+      .isInstanceOf(IOException.class);
+  }
+
+  @Test public void reader_truncated() throws IOException {
+    SpanLogFinishedSpanHandler.newBuilder().build(out).handle(context, span());
+    byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+
+    SpanLogReader reader = SpanLogReader.create(new ByteArrayInputStream(truncated));
+    assertThatThrownBy(reader::next).isInstanceOf(EOFException.class);
+  }
+
+  @Test public void alwaysSampleLocal() throws IOException {
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder()
+      .alwaysSampleLocal(true)
+      .build(out);
+
+    try (Tracing tracing = Tracing.newBuilder()
+      .sampler(Sampler.NEVER_SAMPLE)
+      .addFinishedSpanHandler(handler)
+      .build()) {
+      tracing.tracer().newTrace().name("foo").start().finish();
+    }
+
+    SpanLogReader reader = reader();
+    assertThat(reader.next()).isTrue();
+    assertThat(reader.context().sampled()).isFalse();
+    assertThat(reader.span())
+      .extracting(MutableSpan::name, MutableSpan::kind)
+      .containsExactly("foo", null);
+  }
+
+  @Test public void close_dropsSpans() throws IOException {
+    SpanLogFinishedSpanHandler handler = SpanLogFinishedSpanHandler.newBuilder().build(out);
+    handler.close();
+    handler.handle(context, span());
+
+    assertThat(handler.droppedCount()).isEqualTo(1L);
+    assertThat(reader().next()).isFalse();
+  }
+
+  static void assertSameData(MutableSpan actual, MutableSpan expected) {
+    assertThat(actual).extracting(
+      MutableSpan::name, MutableSpan::kind, MutableSpan::startTimestamp,
+      MutableSpan::finishTimestamp, MutableSpan::localServiceName, MutableSpan::localIp,
+      MutableSpan::localPort, MutableSpan::remoteServiceName, MutableSpan::remoteIp,
+      MutableSpan::remotePort, MutableSpan::shared
+    ).containsExactly(
+      expected.name(), expected.kind(), expected.startTimestamp(),
+      expected.finishTimestamp(), expected.localServiceName(), expected.localIp(),
+      expected.localPort(), expected.remoteServiceName(), expected.remoteIp(),
+      expected.remotePort(), expected.shared()
+    );
+    assertThat(tags(actual)).isEqualTo(tags(expected));
+    assertThat(annotations(actual)).isEqualTo(annotations(expected));
+  }
+
+  static Map<String, String> tags(MutableSpan span) {
+    Map<String, String> result = new LinkedHashMap<>();
+    span.forEachTag((target, key, value) -> target.put(key, value), result);
+    return result;
+  }
+
+  static List<String> annotations(MutableSpan span) {
+    List<String> result = new ArrayList<>();
+    span.forEachAnnotation((target, timestamp, value) -> target.add(timestamp + value), result);
+    return result;
+  }
+
+  SpanLogReader reader() throws IOException {
+    return SpanLogReader.create(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  static MutableSpan span() {
+    MutableSpan span = new MutableSpan();
+    span.name("get /users/{id}");
+    span.kind(Kind.SERVER);
+    span.startTimestamp(1472470996199000L);
+    span.finishTimestamp(1472470996406000L);
+    span.localServiceName("frontend");
+    span.localIp("10.0.0.1");
+    span.localPort(8080);
+    span.remoteServiceName("backend");
+    span.remoteIpAndPort("192.168.99.101", 9000);
+    span.annotate(1472470996238000L, "foo");
+    span.tag("http.method", "GET");
+    span.tag("http.path", "/users/1234");
+    span.tag("clnt/finagle.version", "6.45.0");
+    span.setShared();
+    return span;
+  }
+}
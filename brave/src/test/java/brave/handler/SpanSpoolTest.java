@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Tracing;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.Sender;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpanSpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  FakeSender sender = new FakeSender();
+  SpanSpool spool;
+
+  @After public void close() {
+    if (spool != null) spool.close();
+  }
+
+  @Test public void sendsSpooledSpans() throws Exception {
+    spool = SpanSpool.newBuilder(folder.getRoot()).build(sender);
+
+    spool.report(bytes("a"));
+    spool.report(bytes("bb"));
+
+    assertThat(takeSpans(2)).containsExactly("a", "bb");
+    assertThat(spool.spooledCount()).isEqualTo(2L);
+  }
+
+  @Test public void retriesAfterFailure() throws Exception {
+    sender.fail = true;
+    spool = SpanSpool.newBuilder(folder.getRoot())
+      .retryInterval(10, TimeUnit.MILLISECONDS)
+      .build(sender);
+
+    spool.report(bytes("a"));
+    assertThat(sender.attempts.poll(5, TimeUnit.SECONDS)).isNotNull(); // failed once
+    sender.fail = false;
+
+    assertThat(takeSpans(1)).containsExactly("a");
+    spool.close(); // waits for the sender thread to finish accounting
+    assertThat(spool.sentCount()).isEqualTo(1L);
+  }
+
+  @Test public void dropsWhenOverBudget() throws Exception {
+    sender.fail = true;
+    spool = SpanSpool.newBuilder(folder.getRoot())
+      .segmentSize(64)
+      .maxSegments(2)
+      .retryInterval(1, TimeUnit.DAYS)
+      .build(sender);
+
+    // After a 4 byte header, each record is 4 bytes of length and 12 of data, so 3 fit per segment
+    for (int i = 0; i < 10; i++) spool.report(bytes("abcdefghijkl"));
+
+    assertThat(spool.spooledCount()).isEqualTo(6L);
+    assertThat(spool.droppedCount()).isEqualTo(4L);
+    assertThat(spool.segmentCount()).isEqualTo(2);
+  }
+
+  @Test public void dropsSpansLargerThanAMessage() throws Exception {
+    sender.messageMaxBytes = 10;
+    spool = SpanSpool.newBuilder(folder.getRoot()).build(sender);
+
+    spool.report(bytes("abcdefghijkl"));
+
+    assertThat(spool.spooledCount()).isZero();
+    assertThat(spool.droppedCount()).isEqualTo(1L);
+  }
+
+  @Test public void batchesUpToMessageMaxBytes() throws Exception {
+    sender.fail = true;
+    sender.messageMaxBytes = 20;
+    spool = SpanSpool.newBuilder(folder.getRoot())
+      .retryInterval(10, TimeUnit.MILLISECONDS)
+      .build(sender);
+
+    for (int i = 0; i < 3; i++) spool.report(bytes("abcdefgh"));
+    sender.attempts.poll(5, TimeUnit.SECONDS);
+    sender.fail = false;
+
+    assertThat(sender.messages.poll(5, TimeUnit.SECONDS)).hasSize(1);
+    assertThat(sender.messages.poll(5, TimeUnit.SECONDS)).hasSize(1);
+    assertThat(sender.messages.poll(5, TimeUnit.SECONDS)).hasSize(1);
+  }
+
+  @Test public void deletesSentSegments() throws Exception {
+    spool = SpanSpool.newBuilder(folder.getRoot()).segmentSize(64).build(sender);
+
+    for (int i = 0; i < 10; i++) spool.report(bytes("abcdefghijkl"));
+    takeSpans(10);
+
+    // the sender thread deletes a segment after sending its last span
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (spool.segmentCount() > 1 && System.nanoTime() < deadline) Thread.sleep(10L);
+    assertThat(spool.segmentCount()).isEqualTo(1);
+    assertThat(folder.getRoot().list()).hasSize(1);
+  }
+
+  @Test public void recoversUnsentSpans() throws Exception {
+    sender.fail = true;
+    spool = SpanSpool.newBuilder(folder.getRoot())
+      .retryInterval(1, TimeUnit.DAYS)
+      .build(sender);
+    spool.report(bytes("a"));
+    spool.report(bytes("bb"));
+    spool.close();
+
+    sender = new FakeSender();
+    spool = SpanSpool.newBuilder(folder.getRoot()).build(sender);
+    spool.report(bytes("ccc"));
+
+    assertThat(takeSpans(3)).containsExactly("a", "bb", "ccc");
+  }
+
+  @Test public void recovery_doesntResendSentSpans() throws Exception {
+    spool = SpanSpool.newBuilder(folder.getRoot()).build(sender);
+    spool.report(bytes("a"));
+    assertThat(takeSpans(1)).containsExactly("a");
+    spool.close();
+
+    sender = new FakeSender();
+    spool = SpanSpool.newBuilder(folder.getRoot()).build(sender);
+    spool.report(bytes("bb"));
+
+    assertThat(takeSpans(1)).containsExactly("bb");
+  }
+
+  @Test public void readsCommittedSpans_whileWriteInProgress() throws Exception {
+    SpanSpool.Segment segment = SpanSpool.Segment.map(folder.newFile(), 64, false);
+    segment.tryAppend(bytes("a"), SpanSpool.Segment.recordSize(1));
+    segment.reserved.addAndGet(8); // a writer which hasn't finished yet
+
+    List<byte[]> batch = new ArrayList<>();
+    segment.readBatch(batch, 1024);
+
+    assertThat(batch).extracting(b -> new String(b, UTF_8)).containsExactly("a");
+    assertThat(segment.isDrained()).isFalse();
+  }
+
+  @Test public void seal_failsAppends() throws Exception {
+    SpanSpool.Segment segment = SpanSpool.Segment.map(folder.newFile(), 64, false);
+    segment.tryAppend(bytes("a"), SpanSpool.Segment.recordSize(1));
+
+    segment.seal();
+
+    assertThat(segment.tryAppend(bytes("b"), SpanSpool.Segment.recordSize(1))).isFalse();
+    assertThat(segment.written.get()).isEqualTo(segment.reserved.get());
+  }
+
+  @Test public void closed_drops() throws Exception {
+    spool = SpanSpool.newBuilder(folder.getRoot()).build(sender);
+    spool.close();
+
+    spool.report(bytes("a"));
+
+    assertThat(spool.droppedCount()).isEqualTo(1L);
+  }
+
+  @Test public void build_notDirectory() throws Exception {
+    File file = folder.newFile();
+
+    assertThatThrownBy(() -> SpanSpool.newBuilder(file).build(sender))
+      .isInstanceOf(IOException.class);
+  }
+
+  @Test public void tracing_spoolSpans() throws Exception {
+    try (Tracing tracing = Tracing.newBuilder()
+      .localServiceName("favstar")
+      .spanSender(sender)
+      .spoolSpans(SpanSpool.newBuilder(folder.getRoot()))
+      .build()) {
+      tracing.tracer().newTrace().name("foo").start().finish();
+
+      List<byte[]> message = sender.messages.poll(5, TimeUnit.SECONDS);
+      assertThat(message).hasSize(1);
+      Span span = SpanBytesDecoder.JSON_V2.decodeOne(message.get(0));
+      assertThat(span.name()).isEqualTo("foo");
+      assertThat(span.localServiceName()).isEqualTo("favstar");
+    }
+  }
+
+  @Test public void tracing_spoolSpansRequiresSender() {
+    assertThatThrownBy(() -> Tracing.newBuilder()
+      .spoolSpans(SpanSpool.newBuilder(folder.getRoot()))
+      .build()
+    ).isInstanceOf(IllegalStateException.class);
+  }
+
+  List<String> takeSpans(int count) throws InterruptedException {
+    List<String> result = new ArrayList<>();
+    while (result.size() < count) {
+      List<byte[]> message = sender.messages.poll(5, TimeUnit.SECONDS);
+      assertThat(message).withFailMessage("timeout waiting for spans: " + result).isNotNull();
+      for (byte[] span : message) result.add(new String(span, UTF_8));
+    }
+    return result;
+  }
+
+  static byte[] bytes(String span) {
+    return span.getBytes(UTF_8);
+  }
+
+  static final class FakeSender extends Sender {
+    final BlockingQueue<List<byte[]>> messages = new LinkedBlockingQueue<>();
+    final BlockingQueue<List<byte[]>> attempts = new LinkedBlockingQueue<>();
+    volatile boolean fail;
+    volatile int messageMaxBytes = 1024;
+
+    @Override public Encoding encoding() {
+      return Encoding.JSON;
+    }
+
+    @Override public int messageMaxBytes() {
+      return messageMaxBytes;
+    }
+
+    @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+      return encoding().listSizeInBytes(encodedSpans);
+    }
+
+    @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+      List<byte[]> copy = new ArrayList<>(encodedSpans); // the caller reuses the list
+      attempts.add(copy);
+      if (fail) throw new IllegalStateException("collector unavailable");
+      messages.add(copy);
+      return Call.create(null);
+    }
+
+    @Override public String toString() {
+      return "FakeSender";
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.InternalPropagation;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static brave.internal.InternalPropagation.FLAG_LOCAL_ROOT;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TailSamplingFinishedSpanHandlerTest {
+  List<MutableSpan> spans = new ArrayList<>();
+  FinishedSpanHandler delegate = new FinishedSpanHandler() {
+    @Override public boolean handle(TraceContext context, MutableSpan span) {
+      spans.add(span);
+      return true;
+    }
+  };
+  TailSamplingFinishedSpanHandler.Builder builder = TailSamplingFinishedSpanHandler.newBuilder();
+  TailSamplingFinishedSpanHandler handler = builder.build(delegate);
+
+  TraceContext root = unsampled(1L, 1L), child = unsampled(1L, 2L);
+  MutableSpan rootSpan = span("root"), childSpan = span("child");
+
+  @Test public void alwaysSampleLocal() {
+    assertThat(handler.alwaysSampleLocal()).isTrue();
+    assertThat(handler.retainsSpan()).isTrue();
+  }
+
+  @Test public void sampledPassesThrough() {
+    TraceContext sampled = root.toBuilder().sampled(true).build();
+
+    assertThat(handler.handle(sampled, rootSpan)).isTrue();
+
+    assertThat(spans).containsExactly(rootSpan);
+    assertThat(handler.bufferedCount()).isZero();
+  }
+
+  @Test public void unsampled_droppedByDefault() {
+    handler.handle(child, childSpan);
+    assertThat(handler.bufferedCount()).isEqualTo(1);
+
+    handler.handle(root, rootSpan);
+
+    assertThat(spans).isEmpty();
+    assertThat(handler.droppedCount()).isEqualTo(2);
+    assertThat(handler.bufferedCount()).isZero();
+  }
+
+  @Test public void keepsErrors() {
+    childSpan.error(new IllegalStateException());
+
+    handler.handle(child, childSpan);
+    handler.handle(root, rootSpan);
+
+    assertThat(spans).containsExactly(childSpan, rootSpan);
+    assertThat(handler.keptCount()).isEqualTo(2);
+  }
+
+  @Test public void keepsErrors_tag() {
+    rootSpan.tag("error", "500");
+
+    handler.handle(root, rootSpan);
+
+    assertThat(spans).containsExactly(rootSpan);
+  }
+
+  @Test public void keepErrors_disabled() {
+    handler = builder.keepErrors(false).build(delegate);
+    rootSpan.tag("error", "500");
+
+    handler.handle(root, rootSpan);
+
+    assertThat(spans).isEmpty();
+  }
+
+  @Test public void keepSlowerThan() {
+    handler = builder.keepSlowerThan(1, TimeUnit.SECONDS).build(delegate);
+
+    rootSpan.startTimestamp(1000L);
+    rootSpan.finishTimestamp(1000L + 999_999L);
+    handler.handle(root, rootSpan);
+    assertThat(spans).isEmpty();
+
+    TraceContext slowRoot = unsampled(3L, 3L);
+    MutableSpan slowSpan = span("slow");
+    slowSpan.startTimestamp(1000L);
+    slowSpan.finishTimestamp(1000L + 1_000_000L);
+    handler.handle(slowRoot, slowSpan);
+    assertThat(spans).containsExactly(slowSpan);
+  }
+
+  @Test public void addPredicate() {
+    List<List<MutableSpan>> tested = new ArrayList<>();
+    handler = builder.addPredicate(spans -> {
+      tested.add(new ArrayList<>(spans));
+      return "child".equals(spans.get(0).name());
+    }).build(delegate);
+
+    handler.handle(child, childSpan);
+    handler.handle(root, rootSpan);
+
+    assertThat(tested).containsExactly(asList(childSpan, rootSpan));
+    assertThat(spans).containsExactly(childSpan, rootSpan);
+  }
+
+  @Test public void addPredicate_errorMeansDrop() {
+    handler = builder.addPredicate(spans -> {
+      throw new IllegalStateException();
+    }).build(delegate);
+
+    handler.handle(root, rootSpan);
+
+    assertThat(spans).isEmpty();
+    assertThat(handler.droppedCount()).isEqualTo(1);
+  }
+
+  @Test public void stragglers_followDecision() {
+    rootSpan.tag("error", "500");
+    handler.handle(root, rootSpan);
+    handler.handle(child, childSpan);
+
+    assertThat(spans).containsExactly(rootSpan, childSpan);
+
+    TraceContext droppedRoot = unsampled(3L, 3L), droppedChild = unsampled(3L, 4L);
+    handler.handle(droppedRoot, span("droppedRoot"));
+    handler.handle(droppedChild, span("droppedChild"));
+
+    assertThat(spans).hasSize(2);
+    assertThat(handler.droppedCount()).isEqualTo(2);
+    assertThat(handler.bufferedCount()).isZero();
+  }
+
+  /** Simulates a child finishing on another thread, between the root's removal and decision */
+  @Test public void stragglers_whileDeciding_followDecision() {
+    TailSamplingFinishedSpanHandler[] self = new TailSamplingFinishedSpanHandler[1];
+    self[0] = handler = builder.addPredicate(spans -> {
+      self[0].handle(child, childSpan);
+      return true;
+    }).build(delegate);
+
+    handler.handle(root, rootSpan);
+
+    assertThat(spans).containsExactly(rootSpan, childSpan);
+    assertThat(handler.keptCount()).isEqualTo(2);
+    assertThat(handler.bufferedCount()).isZero();
+  }
+
+  @Test public void stragglers_whileDeciding_dropped() {
+    TailSamplingFinishedSpanHandler[] self = new TailSamplingFinishedSpanHandler[1];
+    self[0] = handler = builder.addPredicate(spans -> {
+      self[0].handle(child, childSpan);
+      return false;
+    }).build(delegate);
+
+    handler.handle(root, rootSpan);
+    handler.handle(child, span("lateChild"));
+
+    assertThat(spans).isEmpty();
+    assertThat(handler.droppedCount()).isEqualTo(3);
+    assertThat(handler.bufferedCount()).isZero();
+  }
+
+  @Test public void fragmentOfLocalRoot_doesntDecide() {
+    rootSpan.tag("error", "500");
+    MutableSpan fragment = rootSpan.fragment();
+
+    handler.handle(root, fragment);
+    assertThat(spans).isEmpty();
+    assertThat(handler.bufferedCount()).isEqualTo(1);
+
+    handler.handle(root, rootSpan);
+    assertThat(spans).containsExactly(fragment, rootSpan);
+  }
+
+  @Test public void maxSpans_evictsOldestTrace() {
+    builder.stripes = 1;
+    handler = builder.maxSpans(2).build(delegate);
+
+    handler.handle(unsampled(1L, 2L), span("1"));
+    handler.handle(unsampled(3L, 4L), span("3"));
+    handler.handle(unsampled(3L, 5L), span("3"));
+
+    assertThat(handler.evictedCount()).isEqualTo(1);
+    assertThat(handler.bufferedCount()).isEqualTo(2);
+
+    // The oldest trace was evicted, so its local root has nothing to keep but itself
+    MutableSpan errorRoot = span("1");
+    errorRoot.tag("error", "500");
+    handler.handle(unsampled(1L, 1L), errorRoot);
+
+    assertThat(spans).containsExactly(errorRoot);
+  }
+
+  @Test public void maxSpansPerTrace_dropsExcess() {
+    handler = builder.maxSpansPerTrace(1).build(delegate);
+    rootSpan.tag("error", "500");
+
+    handler.handle(child, childSpan);
+    handler.handle(unsampled(1L, 3L), span("child2"));
+    handler.handle(root, rootSpan); // the local root is always added
+
+    assertThat(handler.evictedCount()).isEqualTo(1);
+    assertThat(spans).containsExactly(childSpan, rootSpan);
+  }
+
+  static TraceContext unsampled(long localRootId, long spanId) {
+    TraceContext context = TraceContext.newBuilder().traceId(10L).spanId(spanId)
+      .parentId(spanId == localRootId ? 0L : localRootId).sampled(false).build();
+    int flags = InternalPropagation.instance.flags(context);
+    if (localRootId == spanId) flags |= FLAG_LOCAL_ROOT;
+    return InternalPropagation.instance.newTraceContext(flags, 0L, 10L, localRootId,
+      context.parentIdAsLong(), spanId, Collections.emptyList());
+  }
+
+  static MutableSpan span(String name) {
+    MutableSpan result = new MutableSpan();
+    result.name(name);
+    return result;
+  }
+}
@@ -13,6 +13,7 @@
  */
 package brave.internal;
 
+import java.nio.charset.Charset;
 import org.junit.Test;
 
 import static brave.internal.HexCodec.lowerHexToUnsignedLong;
@@ -100,4 +101,13 @@ public class HexCodecTest {
   public void toLowerHex_fixedLength() {
     assertThat(toLowerHex(0L)).isEqualTo("0000000000000000");
   }
+
+  @Test
+  public void writeHexLong_bytes() {
+    byte[] data = new byte[18];
+    HexCodec.writeHexLong(data, 1, 3405691582L);
+
+    assertThat(new String(data, 1, 16, Charset.forName("US-ASCII")))
+      .isEqualTo(toLowerHex(3405691582L));
+  }
 }
@@ -18,6 +18,7 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -56,6 +57,51 @@ public class PlatformTest {
       .hasToString("Clock.systemUTC().instant()");
   }
 
+  @Test public void isVirtual_falseBeforeJre21() {
+    assertThat(platform.supportsVirtualThreads()).isFalse();
+    assertThat(platform.isVirtual(Thread.currentThread())).isFalse();
+  }
+
+  /** Uses {@link Thread#isDaemon()} as a stand-in, as the build doesn't run JRE 21 */
+  @Test public void isVirtual_jre21() throws Exception {
+    Platform platform = new Platform.Jre21(Thread.class.getMethod("isDaemon"));
+    Thread daemon = new Thread(), nonDaemon = new Thread();
+    daemon.setDaemon(true);
+    nonDaemon.setDaemon(false);
+
+    assertThat(platform.supportsVirtualThreads()).isTrue();
+    assertThat(platform.isVirtual(daemon)).isTrue();
+    assertThat(platform.isVirtual(nonDaemon)).isFalse();
+  }
+
+  @Test public void unmap_jre9() {
+    Platform platform = new Platform.Jre9();
+
+    assertThat(platform.unmap(ByteBuffer.allocateDirect(8))).isTrue();
+  }
+
+  @Test public void unmap_falseWhenNotDirect() {
+    assertThat(platform.unmap(ByteBuffer.allocate(8))).isFalse();
+  }
+
+  @Test public void putIntRelease_isBigEndian() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+    platform.putIntRelease(buffer, 4, 0x01020304);
+
+    assertThat(buffer.getInt(4)).isEqualTo(0x01020304);
+    assertThat(platform.getIntAcquire(buffer, 4)).isEqualTo(0x01020304);
+  }
+
+  @Test public void putIntRelease_jre9() {
+    Platform.Jre9 platform = new Platform.Jre9();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+    platform.putIntRelease(buffer, 4, 0x01020304);
+
+    assertThat(platform.setRelease).isNotNull(); // as opposed to falling back to a lock
+    assertThat(buffer.getInt(4)).isEqualTo(0x01020304);
+    assertThat(platform.getIntAcquire(buffer, 4)).isEqualTo(0x01020304);
+  }
+
   // example from X-Amzn-Trace-Id: Root=1-5759e988-bd862e3fe1be46a994272793;Sampled=1
   @Test public void randomLong_epochSecondsPlusRandom() {
     mockStatic(System.class);
@@ -97,4 +97,37 @@ public class PredefinedPropagationFieldsTest
       .containsEntry(keyOne, "1")
       .containsEntry(keyTwo, "a");
   }
+
+  @Test public void child_sharesValues() {
+    PredefinedPropagationFields parent = factory.create();
+    parent.put(keyOne, "red");
+
+    PredefinedPropagationFields child = new PredefinedPropagationFields(parent, parent.fieldNames);
+    assertThat(child.values).isSameAs(parent.values);
+
+    child.put(keyOne, "blue");
+    assertThat(child.values).isNotSameAs(parent.values);
+    assertThat(parent.get(keyOne)).isEqualTo("red");
+  }
+
+  @Test public void putAllIfAbsent_sharesParentValuesWhenEmpty() {
+    PredefinedPropagationFields parent = factory.create(), fields = factory.create();
+    parent.put(keyOne, "red");
+
+    fields.putAllIfAbsent(parent);
+
+    assertThat(fields.values).isSameAs(parent.values);
+  }
+
+  @Test public void putAllIfAbsent_extractedWins() {
+    PredefinedPropagationFields parent = factory.create(), fields = factory.create();
+    parent.put(0, "red");
+    parent.put(1, "green");
+    fields.put(0, "blue");
+
+    fields.putAllIfAbsent(parent);
+
+    assertThat(fields.values).containsExactly("blue", "green");
+    assertThat(parent.values).containsExactly("red", "green");
+  }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.ErrorParser;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static brave.Span.Kind.CLIENT;
+import static brave.Span.Kind.CONSUMER;
+import static brave.Span.Kind.SERVER;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MutableSpanBytesEncoderTest {
+  ErrorParser errorParser = new ErrorParser();
+  MutableSpanConverter converter =
+    new MutableSpanConverter(errorParser, "fooservice", "1.2.3.4", 80);
+  MutableSpanBytesEncoder json =
+    MutableSpanBytesEncoder.create(Encoding.JSON, errorParser, "fooservice", "1.2.3.4", 80);
+  MutableSpanBytesEncoder proto3 =
+    MutableSpanBytesEncoder.create(Encoding.PROTO3, errorParser, "fooservice", "1.2.3.4", 80);
+
+  TraceContext context =
+    TraceContext.newBuilder().traceId(1L).parentId(2L).spanId(3L).sampled(true).build();
+  MutableSpan span = new MutableSpan();
+
+  @Test public void create_unsupportedEncoding() {
+    assertThatThrownBy(() -> MutableSpanBytesEncoder.create(Encoding.THRIFT, errorParser,
+      "fooservice", null, 0))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void minimal() {
+    context = TraceContext.newBuilder().traceId(1L).spanId(3L).build();
+
+    assertSameBytes();
+    assertThat(new String(json.encode(context, new MutableSpan()), StandardCharsets.UTF_8))
+      .isEqualTo("{\"traceId\":\"0000000000000001\",\"id\":\"0000000000000003\","
+        + "\"localEndpoint\":{\"serviceName\":\"fooservice\",\"ipv4\":\"1.2.3.4\",\"port\":80}}");
+  }
+
+  @Test public void serverSpan() {
+    span.name("get /");
+    span.kind(SERVER);
+    span.startTimestamp(1472470996199000L);
+    span.finishTimestamp(1472470996199000L + 207000L);
+    span.remoteIpAndPort("192.168.99.101", 9000);
+    span.tag("http.path", "/api");
+    span.tag("clnt/finagle.version", "6.45.0");
+    span.setShared();
+
+    assertSameBytes();
+  }
+
+  @Test public void bigClientSpan() {
+    context = context.toBuilder().traceIdHigh(0x463ac35c9f6413adL).debug(true).build();
+    span.name("getOrCreate");
+    span.kind(CLIENT);
+    span.localServiceName("frontend");
+    span.localIp("127.0.0.1");
+    span.remoteServiceName("backend");
+    span.remoteIpAndPort("192.168.99.101", 9000);
+    span.startTimestamp(1472470996199000L);
+    span.finishTimestamp(1472470996199000L + 207000L);
+    span.annotate(1472470996238000L, "foo");
+    span.annotate(1472470996403000L, "bar");
+    span.tag("clnt/finagle.version", "6.45.0");
+    span.tag("http.path", "/api");
+    span.tag("http.status_code", "200");
+    span.tag("srv/finagle.version", "6.44.0");
+    span.setShared(); // ignored on client spans
+
+    assertSameBytes();
+  }
+
+  @Test public void error() {
+    span.name("send");
+    span.kind(CONSUMER);
+    span.error(new IllegalStateException("oops"));
+
+    assertSameBytes();
+  }
+
+  @Test public void unicodeAndEscapes() {
+    span.name("☃ \"snow\" man 💩");
+    span.tag("é\n", "tab\tbackslash\\\u0001");
+    span.annotate(1L, "😀 smile");
+    span.tag("lonely", "surrogate\uD83D");
+
+    assertSameBytes();
+  }
+
+  @Test public void ipv6() {
+    span.localIp("2001:db8:0:0:0:0:0:1");
+    span.remoteIpAndPort("::ffff:192.168.99.101", 0);
+
+    assertSameBytes();
+
+    span.remoteIpAndPort("2001:0db8::c001", 443);
+
+    assertSameBytes();
+  }
+
+  @Test public void remoteEndpoint_onlyServiceName() {
+    span.remoteServiceName("BaCkEnD");
+
+    assertSameBytes();
+  }
+
+  @Test public void parentIdSameAsSpanId() {
+    context = context.toBuilder().parentId(3L).build();
+
+    assertSameBytes();
+  }
+
+  @Test public void annotations_sortedAndDeduped() {
+    span.annotate(3L, "c");
+    span.annotate(1L, "b");
+    span.annotate(1L, "a");
+    span.annotate(3L, "c");
+    span.annotate(0L, "zero");
+    span.annotate(2L, "");
+
+    assertSameBytes();
+  }
+
+  @Test public void tags_sortedWithEmptyValue() {
+    for (int i = 20; i > 0; i--) span.tag("tag" + i, i % 5 == 0 ? "" : "value" + i);
+
+    assertSameBytes();
+  }
+
+  @Test public void uppercaseName() {
+    span.name("GET");
+
+    assertSameBytes();
+  }
+
+  @Test public void reusesBufferAcrossSpans() {
+    span.tag("big", new String(new char[MutableSpanBytesEncoder.MAX_REUSED_BUFFER_SIZE]));
+    json.encode(context, span);
+
+    assertThat(MutableSpanBytesEncoder.scratch().buffer.buf)
+      .hasSizeLessThanOrEqualTo(MutableSpanBytesEncoder.MAX_REUSED_BUFFER_SIZE);
+
+    span = new MutableSpan();
+    assertSameBytes();
+    assertThat(MutableSpanBytesEncoder.scratch().tags).containsOnlyNulls();
+  }
+
+  void assertSameBytes() {
+    Span.Builder builder = Span.newBuilder()
+      .traceId(context.traceIdString())
+      .parentId(context.parentIdString())
+      .id(context.spanIdString());
+    if (context.debug()) builder.debug(true);
+    converter.convert(span, builder);
+    Span converted = builder.build(); // the error parser may have added a tag
+
+    assertThat(new String(json.encode(context, span), StandardCharsets.UTF_8))
+      .isEqualTo(new String(SpanBytesEncoder.JSON_V2.encode(converted), StandardCharsets.UTF_8));
+    assertThat(proto3.encode(context, span))
+      .containsExactly(SpanBytesEncoder.PROTO3.encode(converted));
+  }
+}
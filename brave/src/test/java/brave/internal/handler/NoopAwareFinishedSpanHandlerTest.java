@@ -15,7 +15,9 @@ package brave.internal.handler;
 
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.internal.recorder.TracingCounters;
 import brave.propagation.TraceContext;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -69,15 +71,18 @@ public class NoopAwareFinishedSpanHandlerTest {
 
   @Test public void single_options() {
     assertThat(NoopAwareFinishedSpanHandler.create(asList(one), noop))
-      .extracting(FinishedSpanHandler::alwaysSampleLocal, FinishedSpanHandler::supportsOrphans)
-      .containsExactly(false, false);
+      .extracting(FinishedSpanHandler::alwaysSampleLocal, FinishedSpanHandler::supportsOrphans,
+        FinishedSpanHandler::retainsSpan)
+      .containsExactly(false, false, false);
 
     when(one.alwaysSampleLocal()).thenReturn(true);
     when(one.supportsOrphans()).thenReturn(true);
+    when(one.retainsSpan()).thenReturn(true);
 
     assertThat(NoopAwareFinishedSpanHandler.create(asList(one), noop))
-      .extracting(FinishedSpanHandler::alwaysSampleLocal, FinishedSpanHandler::supportsOrphans)
-      .containsExactly(true, true);
+      .extracting(FinishedSpanHandler::alwaysSampleLocal, FinishedSpanHandler::supportsOrphans,
+        FinishedSpanHandler::retainsSpan)
+      .containsExactly(true, true, true);
   }
 
   @Test public void create_multiple() {
@@ -89,17 +94,20 @@ public class NoopAwareFinishedSpanHandlerTest {
 
   @Test public void multiple_options() {
     assertThat(NoopAwareFinishedSpanHandler.create(asList(one, two), noop))
-      .extracting(FinishedSpanHandler::alwaysSampleLocal, FinishedSpanHandler::supportsOrphans)
-      .containsExactly(false, false);
+      .extracting(FinishedSpanHandler::alwaysSampleLocal, FinishedSpanHandler::supportsOrphans,
+        FinishedSpanHandler::retainsSpan)
+      .containsExactly(false, false, false);
 
     when(one.alwaysSampleLocal()).thenReturn(true);
     when(one.supportsOrphans()).thenReturn(true);
     when(two.alwaysSampleLocal()).thenReturn(true);
     when(two.supportsOrphans()).thenReturn(true);
+    when(two.retainsSpan()).thenReturn(true);
 
     assertThat(NoopAwareFinishedSpanHandler.create(asList(one, two), noop))
-      .extracting(FinishedSpanHandler::alwaysSampleLocal, FinishedSpanHandler::supportsOrphans)
-      .containsExactly(true, true);
+      .extracting(FinishedSpanHandler::alwaysSampleLocal, FinishedSpanHandler::supportsOrphans,
+        FinishedSpanHandler::retainsSpan)
+      .containsExactly(true, true, true);
   }
 
   @Test public void multiple_callInSequence() {
@@ -119,6 +127,33 @@ public class NoopAwareFinishedSpanHandlerTest {
     verify(two, never()).handle(context, span);
   }
 
+  @Test public void single_passesBatchThrough() {
+    FinishedSpanHandler handler = NoopAwareFinishedSpanHandler.create(asList(one), noop);
+
+    handler.handleBatch(asList(context), asList(span));
+    verify(one).handleBatch(asList(context), asList(span));
+  }
+
+  @Test public void batch_honorsNoop() {
+    FinishedSpanHandler handler = NoopAwareFinishedSpanHandler.create(asList(one), noop);
+
+    noop.set(true);
+
+    handler.handleBatch(asList(context), asList(span));
+    verify(one, never()).handleBatch(asList(context), asList(span));
+  }
+
+  @Test public void multiple_batchShortCircuitsPerSpan() {
+    MutableSpan span2 = new MutableSpan();
+    FinishedSpanHandler handler = NoopAwareFinishedSpanHandler.create(asList(one, two), noop);
+    when(one.handle(context, span2)).thenReturn(true);
+
+    handler.handleBatch(asList(context, context), asList(span, span2));
+
+    verify(two, never()).handle(context, span);
+    verify(two).handle(context, span2);
+  }
+
   @Test public void doesntCrashOnNonFatalThrowable() {
     Throwable[] toThrow = new Throwable[1];
     FinishedSpanHandler handler =
@@ -146,6 +181,40 @@ public class NoopAwareFinishedSpanHandlerTest {
     }
   }
 
+  @Test public void countsErrors() {
+    TracingCounters counters = new TracingCounters();
+    FinishedSpanHandler handler =
+      NoopAwareFinishedSpanHandler.create(asList(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          throw new RuntimeException();
+        }
+      }), counters, noop);
+
+    handler.handle(context, span);
+    handler.handle(context, span);
+
+    assertThat(counters.handlerErrors.sum()).isEqualTo(2);
+  }
+
+  @Test public void countsErrors_batch() {
+    TracingCounters counters = new TracingCounters();
+    FinishedSpanHandler handler =
+      NoopAwareFinishedSpanHandler.create(asList(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          return true;
+        }
+
+        @Override
+        public void handleBatch(List<TraceContext> contexts, List<MutableSpan> spans) {
+          throw new RuntimeException();
+        }
+      }), counters, noop);
+
+    handler.handleBatch(asList(context), asList(span));
+
+    assertThat(counters.handlerErrors.sum()).isEqualTo(1);
+  }
+
   // Trick from Armeria: This black magic causes the Java compiler to believe E is unchecked.
   static <E extends Throwable> void doThrowUnsafely(Throwable cause) throws E {
     throw (E) cause;
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanRingBufferTest {
+  SpanRingBuffer buffer = new SpanRingBuffer(4);
+  TraceContext[] contexts = new TraceContext[8];
+  MutableSpan[] spans = new MutableSpan[8];
+
+  @Test public void capacity_roundsUpToPowerOfTwo() {
+    assertThat(new SpanRingBuffer(1).capacity()).isEqualTo(2);
+    assertThat(new SpanRingBuffer(5).capacity()).isEqualTo(8);
+  }
+
+  @Test public void offer_falseWhenFull() {
+    for (int i = 0; i < 4; i++) assertThat(buffer.offer(context(i), new MutableSpan())).isTrue();
+
+    assertThat(buffer.offer(context(4), new MutableSpan())).isFalse();
+    assertThat(buffer.size()).isEqualTo(4);
+  }
+
+  @Test public void drainTo_fifo() {
+    for (int i = 0; i < 3; i++) buffer.offer(context(i), new MutableSpan());
+
+    assertThat(buffer.drainTo(contexts, spans, 2)).isEqualTo(2);
+    assertThat(contexts).extracting(c -> c != null ? c.spanId() : null)
+      .startsWith(1L, 2L);
+
+    assertThat(buffer.drainTo(contexts, spans, 8)).isEqualTo(1);
+    assertThat(contexts[0].spanId()).isEqualTo(3L);
+    assertThat(buffer.drainTo(contexts, spans, 8)).isZero();
+  }
+
+  @Test public void drainTo_releasesReferences() {
+    buffer.offer(context(0), new MutableSpan());
+    buffer.drainTo(contexts, spans, 8);
+
+    assertThat(buffer.contexts).containsOnlyNulls();
+    assertThat(buffer.spans).containsOnlyNulls();
+  }
+
+  @Test public void dropOldest_makesRoom() {
+    for (int i = 0; i < 4; i++) buffer.offer(context(i), new MutableSpan());
+
+    assertThat(buffer.dropOldest()).isTrue();
+    assertThat(buffer.offer(context(4), new MutableSpan())).isTrue();
+
+    assertThat(buffer.drainTo(contexts, spans, 8)).isEqualTo(4);
+    assertThat(contexts).extracting(c -> c != null ? c.spanId() : null)
+      .startsWith(2L, 3L, 4L, 5L);
+    assertThat(buffer.dropOldest()).isFalse();
+  }
+
+  @Test public void wrapsAround() {
+    for (int lap = 0; lap < 10; lap++) {
+      for (int i = 0; i < 4; i++) assertThat(buffer.offer(context(i), new MutableSpan())).isTrue();
+      assertThat(buffer.drainTo(contexts, spans, 8)).isEqualTo(4);
+    }
+  }
+
+  @Test public void multipleProducers() throws InterruptedException {
+    buffer = new SpanRingBuffer(1024);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int p = 0; p < 4; p++) {
+      int producer = p;
+      executor.execute(() -> {
+        for (int i = 0; i < 200; i++) buffer.offer(context(producer * 200 + i), new MutableSpan());
+      });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    List<Long> spanIds = new ArrayList<>();
+    contexts = new TraceContext[1024];
+    spans = new MutableSpan[1024];
+    int count = buffer.drainTo(contexts, spans, 1024);
+    for (int i = 0; i < count; i++) spanIds.add(contexts[i].spanId());
+
+    assertThat(spanIds).hasSize(800).doesNotHaveDuplicates();
+  }
+
+  static TraceContext context(int i) {
+    return TraceContext.newBuilder().traceId(1L).spanId(i + 1).build();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.Span;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MutableSpanPoolTest {
+  MutableSpanPool pool = new MutableSpanPool(MutableSpanPool.PROBES);
+
+  @Test public void size_roundsUpToPowerOfTwo() {
+    assertThat(MutableSpanPool.size(4)).isEqualTo(4);
+    assertThat(MutableSpanPool.size(5)).isEqualTo(8);
+    assertThat(MutableSpanPool.size(Integer.MAX_VALUE)).isEqualTo(1 << 16);
+  }
+
+  @Test public void acquire_allocatesWhenEmpty() {
+    assertThat(pool.acquire()).isNotSameAs(pool.acquire());
+  }
+
+  @Test public void release_clearsSpan() {
+    MutableSpan span = pool.acquire();
+    span.name("foo");
+    span.kind(Span.Kind.CLIENT);
+    span.setShared();
+    span.startTimestamp(1L);
+    span.annotate(2L, "bar");
+    span.tag("baz", "qux");
+    span.error(new RuntimeException());
+    span.remoteIpAndPort("1.2.3.4", 80);
+
+    pool.release(span);
+
+    MutableSpan recycled = pool.acquire();
+    assertThat(recycled).isSameAs(span);
+    assertThat(recycled.isEmpty()).isTrue();
+  }
+
+  @Test public void release_dropsWhenFull() {
+    List<MutableSpan> spans = new ArrayList<>();
+    for (int i = 0; i < MutableSpanPool.PROBES + 1; i++) spans.add(new MutableSpan());
+    for (MutableSpan span : spans) pool.release(span);
+
+    List<MutableSpan> acquired = new ArrayList<>();
+    for (int i = 0; i < MutableSpanPool.PROBES; i++) acquired.add(pool.acquire());
+
+    assertThat(acquired)
+      .containsExactlyInAnyOrderElementsOf(spans.subList(0, MutableSpanPool.PROBES));
+    assertThat(pool.acquire()).isNotIn(spans);
+  }
+
+  @Test public void pendingSpans_recyclesAfterRemove() {
+    PendingSpans pendingSpans =
+      PendingSpans.newBuilder(() -> 1L, FinishedSpanHandler.NOOP, new AtomicBoolean())
+        .spanPool(pool)
+        .build();
+    TraceContext context = TraceContext.newBuilder().traceId(1).spanId(2).sampled(true).build();
+
+    MutableSpan state = pendingSpans.getOrCreate(context, false).state();
+    state.name("foo");
+    assertThat(pendingSpans.remove(context)).isTrue();
+    pendingSpans.recycle(state);
+
+    TraceContext context2 = context.toBuilder().spanId(3).build();
+    assertThat(pendingSpans.getOrCreate(context2, false).state())
+      .isSameAs(state)
+      .extracting(MutableSpan::name).isNull();
+  }
+}
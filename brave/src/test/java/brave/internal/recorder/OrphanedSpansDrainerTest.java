@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.GarbageCollectors;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OrphanedSpansDrainerTest {
+  BlockingQueue<Thread> handlerThreads = new LinkedBlockingQueue<>();
+  PendingSpans pendingSpans = PendingSpans.newBuilder(() -> 1L, new FinishedSpanHandler() {
+    @Override public boolean handle(TraceContext context, MutableSpan span) {
+      handlerThreads.add(Thread.currentThread());
+      return true;
+    }
+  }, new AtomicBoolean()).maxOrphansPerCall(0).build();
+  OrphanedSpansDrainer drainer = OrphanedSpansDrainer.start(pendingSpans);
+
+  @After public void close() {
+    drainer.close();
+  }
+
+  @Test public void reportsOrphansOnDaemonThread() throws InterruptedException {
+    TraceContext context = TraceContext.newBuilder().traceId(1).spanId(2).sampled(true).build();
+    pendingSpans.getOrCreate(context, false).state().name("foo");
+    context = null; // clear reference so GC occurs
+
+    GarbageCollectors.blockOnGC();
+
+    Thread handlerThread = handlerThreads.poll(5, TimeUnit.SECONDS);
+    assertThat(handlerThread).isSameAs(drainer.thread);
+    assertThat(handlerThread.isDaemon()).isTrue();
+  }
+
+  @Test public void close_stopsThread() throws InterruptedException {
+    drainer.close();
+    drainer.thread.join(5000L);
+
+    assertThat(drainer.thread.isAlive()).isFalse();
+    assertThat(drainer).hasToString("OrphanedSpansDrainer{closed}");
+  }
+}
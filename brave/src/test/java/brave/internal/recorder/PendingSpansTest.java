@@ -30,6 +30,7 @@ import zipkin2.Span;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class PendingSpansTest {
   List<zipkin2.Span> spans = new ArrayList<>();
@@ -56,6 +57,34 @@ public class PendingSpansTest {
       zipkinFinishedSpanHandler, trackOrphans, new AtomicBoolean());
   }
 
+  @Test
+  public void newBuilder_striped() {
+    assertThat(PendingSpans.newBuilder(() -> 1L, FinishedSpanHandler.NOOP, new AtomicBoolean())
+      .striped(true)
+      .build()
+    ).isInstanceOf(StripedPendingSpans.class);
+  }
+
+  @Test
+  public void newBuilder_maxOrphansPerCall_notNegative() {
+    assertThatThrownBy(
+      () -> PendingSpans.newBuilder(() -> 1L, FinishedSpanHandler.NOOP, new AtomicBoolean())
+        .maxOrphansPerCall(-1)
+    ).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void getUnshared_reusesLookupKey() {
+    TraceContext shared = context.toBuilder().shared(true).build();
+    PendingSpan span = pendingSpans.getOrCreate(context, false);
+    pendingSpans.getOrCreate(shared, false);
+
+    assertThat(pendingSpans.getUnshared(0L, 1L, 2L)).isSameAs(span);
+    PendingSpans.LookupKey lookupKey = PendingSpans.LookupKey.current();
+    assertThat(pendingSpans.getUnshared(0L, 1L, 3L)).isNull();
+    assertThat(PendingSpans.LookupKey.current()).isSameAs(lookupKey);
+  }
+
   @Test
   public void getOrCreate_lazyCreatesASpan() {
     PendingSpan span = pendingSpans.getOrCreate(context, false);
@@ -220,6 +249,104 @@ public class PendingSpansTest {
       .containsExactly(Annotation.create((initialClockVal + 1) * 1000, "brave.flush"));
   }
 
+  @Test
+  public void reportOrphanedSpans_boundedPerCall() {
+    pendingSpans = PendingSpans.newBuilder(() -> clock.incrementAndGet() * 1000L,
+      pendingSpans.orphanedSpanHandler, new AtomicBoolean()).maxOrphansPerCall(2).build();
+
+    for (int i = 1; i <= 3; i++) {
+      pendingSpans.getOrCreate(context.toBuilder().traceId(i).spanId(i).build(), false)
+        .state().name("foo");
+    }
+
+    // By not retaining references to the contexts, they are collected on the next GC
+    GarbageCollectors.blockOnGC();
+
+    pendingSpans.reportOrphanedSpans();
+    assertThat(spans).hasSize(2);
+
+    // The next caller reports the remaining orphan
+    pendingSpans.reportOrphanedSpans();
+    assertThat(spans).hasSize(3);
+  }
+
+  @Test
+  public void reportOrphanedSpans_batch() {
+    List<Integer> batchSizes = new ArrayList<>();
+    pendingSpans = new PendingSpans(() -> clock.incrementAndGet() * 1000L,
+      new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          throw new AssertionError("expected handleBatch");
+        }
+
+        @Override
+        public void handleBatch(List<TraceContext> contexts, List<MutableSpan> spans) {
+          assertThat(spans)
+            .allSatisfy(s -> assertThat(s.containsAnnotation("brave.flush")).isTrue());
+          batchSizes.add(spans.size());
+        }
+      }, false, new AtomicBoolean());
+
+    for (int i = 1; i <= 3; i++) {
+      pendingSpans.getOrCreate(context.toBuilder().traceId(i).spanId(i).build(), false)
+        .state().name("foo");
+    }
+    pendingSpans.getOrCreate(context.toBuilder().traceId(4).spanId(4).build(), false); // empty
+
+    GarbageCollectors.blockOnGC();
+
+    pendingSpans.reportOrphanedSpans();
+    assertThat(batchSizes).containsExactly(3);
+  }
+
+  @Test
+  public void reportOrphanedSpans_zeroPerCall() throws InterruptedException {
+    pendingSpans = PendingSpans.newBuilder(() -> clock.incrementAndGet() * 1000L,
+      pendingSpans.orphanedSpanHandler, new AtomicBoolean()).maxOrphansPerCall(0).build();
+
+    pendingSpans.getOrCreate(context.toBuilder().build(), false).state().name("foo");
+    GarbageCollectors.blockOnGC();
+
+    // Normal operations don't report orphans
+    pendingSpans.getOrCreate(context, false);
+    pendingSpans.remove(context);
+    assertThat(spans).isEmpty();
+
+    // Only the blocking variant does
+    assertThat(pendingSpans.reportOrphanedSpans(1000L)).isTrue();
+    assertThat(spans).hasSize(1);
+    assertThat(pendingSpans.reportOrphanedSpans(1L)).isFalse();
+  }
+
+  @Test
+  public void counters() {
+    TracingCounters counters = new TracingCounters();
+    pendingSpans = PendingSpans.newBuilder(() -> clock.incrementAndGet() * 1000L,
+      pendingSpans.orphanedSpanHandler, new AtomicBoolean()).counters(counters).build();
+
+    for (int i = 1; i <= 4; i++) {
+      pendingSpans.getOrCreate(context.toBuilder().spanId(i).build(), false);
+    }
+    pendingSpans.getOrCreate(context.toBuilder().spanId(1).build(), false); // not a new span
+    assertThat(pendingSpans.size()).isEqualTo(4);
+
+    pendingSpans.finish(context.toBuilder().spanId(1).build());
+    pendingSpans.finish(context.toBuilder().spanId(1).build()); // redundant
+    pendingSpans.remove(context.toBuilder().spanId(2).build());
+    pendingSpans.flush(context.toBuilder().spanId(3).build());
+
+    // The remaining span is orphaned as we didn't retain a reference to its context
+    GarbageCollectors.blockOnGC();
+    pendingSpans.reportOrphanedSpans();
+
+    assertThat(pendingSpans.size()).isZero();
+    assertThat(counters.spansStarted.sum()).isEqualTo(4);
+    assertThat(counters.spansFinished.sum()).isEqualTo(1);
+    assertThat(counters.spansAbandoned.sum()).isEqualTo(1);
+    assertThat(counters.spansFlushed.sum()).isEqualTo(1);
+    assertThat(counters.spansOrphaned.sum()).isEqualTo(1);
+  }
+
   @Test
   public void noop_afterGC() {
     TraceContext context1 = context.toBuilder().spanId(1).build();
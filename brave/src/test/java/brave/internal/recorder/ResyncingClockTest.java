@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.handler.FinishedSpanHandler;
+import brave.propagation.TraceContext;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResyncingClockTest {
+  AtomicInteger wallClockReads = new AtomicInteger();
+
+  @Test public void sharesTickClockWithinInterval() {
+    ResyncingClock clock = new ResyncingClock(this::wallClock, Long.MAX_VALUE);
+
+    TickClock tickClock = clock.tickClock();
+    assertThat(clock.tickClock()).isSameAs(tickClock);
+    assertThat(clock.currentTimeMicroseconds()).isGreaterThanOrEqualTo(1_000_000L);
+    assertThat(wallClockReads).hasValue(1);
+  }
+
+  @Test public void resyncsAfterInterval() {
+    ResyncingClock clock = new ResyncingClock(this::wallClock, 0L);
+
+    TickClock tickClock = clock.tickClock();
+    assertThat(clock.tickClock()).isNotSameAs(tickClock);
+    assertThat(clock.current.baseEpochMicros).isEqualTo(3_000_000L);
+  }
+
+  @Test public void pendingSpans_localRootsShareClock() {
+    ResyncingClock clock = new ResyncingClock(this::wallClock, Long.MAX_VALUE);
+    PendingSpans pendingSpans =
+      new PendingSpans(clock, FinishedSpanHandler.NOOP, false, new AtomicBoolean());
+
+    TraceContext trace1 = TraceContext.newBuilder().traceId(1L).spanId(1L).build();
+    TraceContext trace2 = TraceContext.newBuilder().traceId(2L).spanId(2L).build();
+    PendingSpan span1 = pendingSpans.getOrCreate(trace1, true);
+    PendingSpan span2 = pendingSpans.getOrCreate(trace2, true);
+
+    assertThat(span1.clock).isSameAs(span2.clock).isSameAs(clock.current);
+    assertThat(span1.state.startTimestamp()).isGreaterThanOrEqualTo(1_000_000L);
+    assertThat(span2.state.startTimestamp())
+      .isGreaterThanOrEqualTo(span1.state.startTimestamp());
+    assertThat(wallClockReads).hasValue(1); // only read on construction
+  }
+
+  long wallClock() {
+    return wallClockReads.incrementAndGet() * 1_000_000L;
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StripedCounterTest {
+  StripedCounter counter = new StripedCounter(4);
+
+  @Test public void cellCount_roundsUpToPowerOfTwo() {
+    assertThat(StripedCounter.cellCount(1)).isEqualTo(1);
+    assertThat(StripedCounter.cellCount(3)).isEqualTo(4);
+    assertThat(StripedCounter.cellCount(Integer.MAX_VALUE)).isEqualTo(StripedCounter.MAX_CELLS);
+  }
+
+  @Test public void cellIndex_isPadded() {
+    for (long threadId = 0; threadId < 16; threadId++) {
+      int index = counter.cellIndex(threadId);
+      assertThat(index % 8).isZero();
+      assertThat(index).isLessThan(counter.cells.length());
+    }
+  }
+
+  @Test public void sum() {
+    counter.increment();
+    counter.add(41L);
+
+    assertThat(counter.sum()).isEqualTo(42L);
+    assertThat(counter).hasToString("42");
+  }
+
+  @Test public void sum_concurrent() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 8; i++) {
+      executor.execute(() -> {
+        for (int j = 0; j < 10_000; j++) counter.increment();
+      });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(counter.sum()).isEqualTo(80_000L);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StripedLongArrayTest {
+  StripedLongArray array = new StripedLongArray(3, 4);
+
+  @Test public void cellsAreAllocatedOnFirstUse() {
+    assertThat(array.cells.length()).isEqualTo(4);
+    for (int i = 0; i < 4; i++) assertThat(array.cells.get(i)).isNull();
+
+    array.increment(1);
+
+    int used = array.cellIndex(Thread.currentThread().getId());
+    for (int i = 0; i < 4; i++) {
+      if (i == used) {
+        assertThat(array.cells.get(i)).isNotNull();
+      } else {
+        assertThat(array.cells.get(i)).isNull();
+      }
+    }
+  }
+
+  @Test public void sumTo() {
+    array.increment(0);
+    array.increment(2);
+    array.increment(2);
+
+    long[] result = {10L, 0L, 0L};
+    array.sumTo(result);
+    assertThat(result).containsExactly(11L, 0L, 2L);
+  }
+
+  @Test public void sumTo_concurrent() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 8; i++) {
+      int index = i % 3;
+      executor.execute(() -> {
+        for (int j = 0; j < 10_000; j++) array.increment(index);
+      });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    long[] result = new long[3];
+    array.sumTo(result);
+    assertThat(result).containsExactly(30_000L, 30_000L, 20_000L);
+  }
+}
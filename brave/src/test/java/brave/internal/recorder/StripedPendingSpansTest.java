@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.GarbageCollectors;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.internal.recorder.StripedPendingSpans.Entry;
+import brave.internal.recorder.StripedPendingSpans.Stripe;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StripedPendingSpansTest {
+  List<TraceContext> orphans = new ArrayList<>();
+  List<MutableSpan> orphanedSpans = new ArrayList<>();
+  TraceContext context = TraceContext.newBuilder().traceId(1).spanId(2).sampled(true).build();
+  AtomicInteger clock = new AtomicInteger();
+  StripedPendingSpans pendingSpans;
+
+  @Before public void init() {
+    pendingSpans = (StripedPendingSpans) PendingSpans.newBuilder(
+      () -> clock.incrementAndGet() * 1000L,
+      new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          orphans.add(context);
+          orphanedSpans.add(span);
+          return true;
+        }
+      }, new AtomicBoolean()).stripeCount(4).build();
+  }
+
+  @Test public void stripeCount_roundsUpToPowerOfTwo() {
+    assertThat(StripedPendingSpans.stripeCount(1)).isEqualTo(1);
+    assertThat(StripedPendingSpans.stripeCount(3)).isEqualTo(4);
+    assertThat(StripedPendingSpans.stripeCount(64)).isEqualTo(64);
+    assertThat(StripedPendingSpans.stripeCount(Integer.MAX_VALUE))
+      .isEqualTo(StripedPendingSpans.MAX_STRIPES);
+  }
+
+  @Test public void size() {
+    pendingSpans.getOrCreate(context, false);
+    pendingSpans.getOrCreate(context.toBuilder().spanId(3).build(), false);
+    assertThat(pendingSpans.size()).isEqualTo(2);
+
+    pendingSpans.remove(context);
+    assertThat(pendingSpans.size()).isEqualTo(1);
+  }
+
+  @Test public void getOrCreate_cachesReference() {
+    PendingSpan span = pendingSpans.getOrCreate(context, false);
+    assertThat(pendingSpans.getOrCreate(context, false)).isSameAs(span);
+  }
+
+  /** Ensure we use the same clock for traces that started in-process */
+  @Test public void getOrCreate_reusesClockFromParent() {
+    TraceContext trace = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+    TraceContext traceJoin = trace.toBuilder().shared(true).build();
+    TraceContext trace2 = TraceContext.newBuilder().traceId(2L).spanId(2L).build();
+    TraceContext traceChild =
+      TraceContext.newBuilder().traceId(1L).parentId(2L).spanId(3L).build();
+
+    PendingSpan traceSpan = pendingSpans.getOrCreate(trace, false);
+    PendingSpan traceJoinSpan = pendingSpans.getOrCreate(traceJoin, false);
+    PendingSpan trace2Span = pendingSpans.getOrCreate(trace2, false);
+    PendingSpan traceChildSpan = pendingSpans.getOrCreate(traceChild, false);
+
+    assertThat(traceSpan.clock).isSameAs(traceChildSpan.clock);
+    assertThat(traceSpan.clock).isSameAs(traceJoinSpan.clock);
+    assertThat(traceSpan.clock).isNotSameAs(trace2Span.clock);
+  }
+
+  @Test public void getOrCreate_resolvesHashCodeCollisions() {
+    // intentionally clash on hashCode, but not equals
+    TraceContext context1 = context.toBuilder().spanId(1).build();
+    TraceContext context2 = context.toBuilder().spanId(-2L).build();
+
+    // sanity check
+    assertThat(context1.hashCode()).isEqualTo(context2.hashCode());
+    assertThat(context1).isNotEqualTo(context2);
+
+    PendingSpan span1 = pendingSpans.getOrCreate(context1, false);
+    PendingSpan span2 = pendingSpans.getOrCreate(context2, false);
+    assertThat(span1).isNotSameAs(span2);
+
+    assertThat(pendingSpans.remove(context1)).isTrue();
+    assertThat(pendingSpans.getOrCreate(context2, false)).isSameAs(span2);
+  }
+
+  @Test public void getOrCreate_splitsSharedServerDataFromClient() {
+    TraceContext context2 = context.toBuilder().shared(true).build();
+
+    assertThat(pendingSpans.getOrCreate(context, false)).isNotEqualTo(
+      pendingSpans.getOrCreate(context2, false));
+  }
+
+  @Test public void getOrCreate_growsStripes() {
+    List<TraceContext> contexts = new ArrayList<>();
+    for (int i = 1; i <= 1000; i++) {
+      TraceContext next = context.toBuilder().spanId(i).build();
+      contexts.add(next);
+      pendingSpans.getOrCreate(next, false);
+    }
+
+    assertThat(entries()).hasSize(1000);
+    for (TraceContext next : contexts) {
+      assertThat(pendingSpans.get(next)).isNotNull();
+    }
+  }
+
+  @Test public void remove_clearsReference() {
+    pendingSpans.getOrCreate(context, false);
+    assertThat(pendingSpans.remove(context)).isTrue();
+
+    assertThat(entries()).isEmpty();
+    assertThat(pendingSpans.poll()).isNull();
+  }
+
+  @Test public void remove_okWhenDoesntExist() {
+    assertThat(pendingSpans.remove(context)).isFalse();
+  }
+
+  /**
+   * This is the key feature. Spans orphaned via GC are reported on the next action.
+   */
+  @Test public void reportOrphanedSpans_afterGC() {
+    TraceContext context1 = context.toBuilder().traceId(1).spanId(1).build();
+    pendingSpans.getOrCreate(context1, false).state().name("foo");
+    TraceContext context2 = context.toBuilder().traceId(2).spanId(2).build();
+    pendingSpans.getOrCreate(context2, false);
+    TraceContext context3 = context.toBuilder().traceId(3).spanId(3).build();
+    pendingSpans.getOrCreate(context3, false);
+
+    // By clearing strong references in this test, we are left with the weak ones in the table
+    context1 = context2 = null;
+    GarbageCollectors.blockOnGC();
+
+    pendingSpans.reportOrphanedSpans();
+
+    // only the remaining context is left, without lookups resurrecting cleared entries
+    assertThat(entries()).extracting(Entry::get).containsExactly(context3);
+
+    // We only expect the span containing data to have been reported
+    assertThat(orphans).extracting(TraceContext::spanId).containsExactly(1L);
+    assertThat(orphanedSpans.get(0).name()).isEqualTo("foo");
+    assertThat(orphanedSpans.get(0).containsAnnotation("brave.flush")).isTrue();
+  }
+
+  @Test public void toString_saysWhatReferentsAre() {
+    assertThat(pendingSpans.toString())
+      .isEqualTo("StripedPendingSpans[]");
+
+    pendingSpans.getOrCreate(context, false);
+
+    assertThat(pendingSpans.toString())
+      .isEqualTo("StripedPendingSpans[WeakReference(" + context + ")]");
+  }
+
+  List<Entry> entries() {
+    List<Entry> result = new ArrayList<>();
+    for (Stripe stripe : pendingSpans.stripes) {
+      for (Entry head : stripe.table) {
+        for (Entry e = head; e != null; e = e.next) result.add(e);
+      }
+    }
+    return result;
+  }
+}
@@ -14,6 +14,8 @@
 package brave.propagation;
 
 import brave.internal.Platform;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import org.junit.After;
@@ -367,4 +369,87 @@ public class B3SingleFormatTest {
 
     verify(platform).log("Invalid input: parent ID is too long", null);
   }
+
+  @Test public void writeB3SingleFormat_byteArray() {
+    TraceContext context =
+      TraceContext.newBuilder().traceIdHigh(9).traceId(1).parentId(2).spanId(3).debug(true).build();
+    byte[] destination = new byte[100];
+
+    int length = writeB3SingleFormat(context, destination, 10);
+    assertThat(new String(destination, 10, length, UTF_8))
+      .isEqualTo(writeB3SingleFormat(context));
+
+    length = B3SingleFormat.writeB3SingleFormatWithoutParentId(context, destination, 0);
+    assertThat(new String(destination, 0, length, UTF_8))
+      .isEqualTo(writeB3SingleFormatWithoutParentId(context));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void writeB3SingleFormat_byteArray_tooSmall() {
+    TraceContext context = TraceContext.newBuilder().traceId(1).spanId(3).build();
+
+    writeB3SingleFormat(context, new byte[33], 1);
+  }
+
+  @Test public void writeB3SingleFormat_byteBuffer() {
+    TraceContext context =
+      TraceContext.newBuilder().traceId(1).parentId(2).spanId(3).sampled(false).build();
+
+    for (ByteBuffer buffer
+      : Arrays.asList(ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100))) {
+      buffer.position(5);
+      int length = writeB3SingleFormat(context, buffer);
+      assertThat(buffer.position()).isEqualTo(5 + length);
+
+      byte[] written = new byte[length];
+      buffer.position(5);
+      buffer.get(written);
+      assertThat(new String(written, UTF_8)).isEqualTo(writeB3SingleFormat(context));
+    }
+  }
+
+  @Test(expected = BufferOverflowException.class)
+  public void writeB3SingleFormat_byteBuffer_tooSmall() {
+    TraceContext context = TraceContext.newBuilder().traceId(1).spanId(3).build();
+
+    writeB3SingleFormat(context, ByteBuffer.allocate(32));
+  }
+
+  @Test public void parseB3SingleFormat_bytes() {
+    String b3 = traceIdHigh + traceId + "-" + spanId + "-d-" + parentId;
+    TraceContextOrSamplingFlags expected = parseB3SingleFormat(b3);
+
+    assertThat(parseB3SingleFormat(b3.getBytes(UTF_8))).isEqualTo(expected);
+    assertThat(parseB3SingleFormat(("xx" + b3 + "x").getBytes(UTF_8), 2, 2 + b3.length()))
+      .isEqualTo(expected);
+    assertThat(parseB3SingleFormat(ByteBuffer.wrap(b3.getBytes(UTF_8)))).isEqualTo(expected);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(b3.length());
+    direct.put(b3.getBytes(UTF_8)).flip();
+    assertThat(parseB3SingleFormat(direct)).isEqualTo(expected);
+    assertThat(direct.position()).isZero(); // unchanged
+  }
+
+  /** Sampling flags are constants, so parsing them from bytes doesn't allocate */
+  @Test public void parseB3SingleFormat_bytes_samplingFlags() {
+    assertThat(parseB3SingleFormat(new byte[] {'1'}))
+      .isSameAs(TraceContextOrSamplingFlags.SAMPLED);
+    assertThat(parseB3SingleFormat(ByteBuffer.wrap(new byte[] {'0'})))
+      .isSameAs(TraceContextOrSamplingFlags.NOT_SAMPLED);
+    assertThat(parseB3SingleFormat(new byte[] {'x', 'd'}, 1, 2))
+      .isSameAs(TraceContextOrSamplingFlags.DEBUG);
+  }
+
+  @Test public void parseB3SingleFormat_bytes_malformed() {
+    assertThat(parseB3SingleFormat((traceId + "-" + spanId + "a").getBytes(UTF_8)))
+      .isNull(); // instead of raising exception
+
+    verify(platform).log("Invalid input: span ID is too long", null);
+  }
+
+  @Test public void parseB3SingleFormat_bytes_doesntRetainInput() {
+    parseB3SingleFormat((traceId + "-" + spanId).getBytes(UTF_8));
+
+    assertThat(B3SingleFormat.getAsciiView().array).isNull();
+  }
 }
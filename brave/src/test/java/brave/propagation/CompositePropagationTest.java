@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static brave.propagation.Propagation.KeyFactory.STRING;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+public class CompositePropagationTest {
+  Propagation.Factory factory =
+    CompositePropagation.newFactory(W3CPropagation.FACTORY, B3SinglePropagation.FACTORY);
+  Propagation<String> propagation = factory.create(STRING);
+  TraceContext.Injector<Map<String, String>> injector = propagation.injector(Map::put);
+  TraceContext.Extractor<Map<String, String>> extractor = propagation.extractor(Map::get);
+  Map<String, String> carrier = new LinkedHashMap<>();
+
+  TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(1L).traceId(2L).parentId(3L).spanId(4L).sampled(true).build();
+
+  @Test public void newFactory_empty() {
+    assertThatThrownBy(CompositePropagation::newFactory)
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void keys() {
+    assertThat(propagation.keys()).containsExactly("traceparent", "tracestate", "b3");
+  }
+
+  @Test public void keys_deduplicated() {
+    assertThat(CompositePropagation.newFactory(B3Propagation.FACTORY, B3SinglePropagation.FACTORY)
+      .create(STRING).keys())
+      .isEqualTo(B3Propagation.FACTORY.create(STRING).keys());
+  }
+
+  @Test public void supportsJoin_onlyIfAllDo() {
+    assertThat(factory.supportsJoin()).isFalse();
+    assertThat(CompositePropagation.newFactory(B3Propagation.FACTORY, B3SinglePropagation.FACTORY)
+      .supportsJoin()).isTrue();
+  }
+
+  @Test public void inject_all() {
+    injector.inject(context, carrier);
+
+    assertThat(carrier).containsExactly(
+      entry("traceparent", TraceparentFormat.writeTraceparentFormat(context)),
+      entry("b3", B3SingleFormat.writeB3SingleFormat(context))
+    );
+  }
+
+  @Test public void extract_either() {
+    carrier.put("b3", B3SingleFormat.writeB3SingleFormat(context));
+
+    assertThat(extractor.extract(carrier).context()).isEqualTo(context);
+
+    carrier.clear();
+    carrier.put("traceparent", TraceparentFormat.writeTraceparentFormat(context));
+
+    assertThat(extractor.extract(carrier).context())
+      .isEqualTo(context.toBuilder().parentId(0L).build());
+  }
+
+  @Test public void extract_prefersFirst() {
+    carrier.put("b3", "0000000000000009-0000000000000009-1");
+    carrier.put("traceparent", TraceparentFormat.writeTraceparentFormat(context));
+
+    assertThat(extractor.extract(carrier).context().spanId()).isEqualTo(4L);
+  }
+
+  @Test public void extract_mergesExtraFromLaterFormats() {
+    Propagation<String> propagation = CompositePropagation.newFactory(W3CPropagation.FACTORY,
+      ExtraFieldPropagation.newFactory(B3SinglePropagation.FACTORY, "user-id")
+    ).create(STRING);
+    carrier.put("b3", "0000000000000009-0000000000000009-1");
+    carrier.put("traceparent", TraceparentFormat.writeTraceparentFormat(context));
+    carrier.put("user-id", "bob");
+
+    TraceContext extracted = propagation.extractor(Map<String, String>::get)
+      .extract(carrier).context();
+
+    assertThat(extracted.spanId()).isEqualTo(4L);
+    assertThat(ExtraFieldPropagation.get(extracted, "user-id")).isEqualTo("bob");
+  }
+
+  @Test public void extract_prefersExtraOfFirstFormat() {
+    Propagation<String> propagation = CompositePropagation.newFactory(
+      ExtraFieldPropagation.newFactory(W3CPropagation.FACTORY, "user-id"),
+      ExtraFieldPropagation.newFactory(B3SinglePropagation.FACTORY, "user-id")
+    ).create(STRING);
+    carrier.put("b3", B3SingleFormat.writeB3SingleFormat(context));
+    carrier.put("traceparent", TraceparentFormat.writeTraceparentFormat(context));
+    carrier.put("user-id", "bob");
+
+    TraceContext extracted = propagation.extractor(Map<String, String>::get)
+      .extract(carrier).context();
+
+    assertThat(extracted.extra())
+      .filteredOn(e -> e.getClass().getSimpleName().contains("Extra")).hasSize(1);
+  }
+
+  @Test public void extract_skipsFormatThatOnlyExtractedExtra() {
+    Propagation<String> propagation = CompositePropagation.newFactory(
+      ExtraFieldPropagation.newFactory(B3Propagation.FACTORY, "user-id"),
+      W3CPropagation.FACTORY
+    ).create(STRING);
+    carrier.put("traceparent", TraceparentFormat.writeTraceparentFormat(context));
+    carrier.put("user-id", "bob");
+
+    TraceContext extracted = propagation.extractor(Map<String, String>::get)
+      .extract(carrier).context();
+
+    assertThat(extracted).isEqualTo(context.toBuilder().parentId(0L).build());
+    assertThat(ExtraFieldPropagation.get(extracted, "user-id")).isEqualTo("bob");
+  }
+
+  @Test public void extract_samplingFlagsFromLaterFormat() {
+    carrier.put("b3", "0");
+
+    assertThat(extractor.extract(carrier)).isSameAs(TraceContextOrSamplingFlags.NOT_SAMPLED);
+  }
+
+  @Test public void extract_nothing() {
+    assertThat(extractor.extract(carrier)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+}
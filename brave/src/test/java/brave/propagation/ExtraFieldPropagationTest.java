@@ -15,8 +15,10 @@ package brave.propagation;
 
 import brave.Tracing;
 import brave.propagation.ExtraFieldPropagation.Extra;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import org.junit.Before;
@@ -26,6 +28,7 @@ import static brave.propagation.Propagation.KeyFactory.STRING;
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.util.introspection.PropertyOrFieldSupport.EXTRACTION;
 
 public class ExtraFieldPropagationTest {
   String awsTraceId =
@@ -386,6 +389,87 @@ public class ExtraFieldPropagationTest {
     );
   }
 
+  @Test public void extract_twoFields_oneArray() {
+    injector.inject(context, carrier);
+    carrier.put("x-vcap-request-id", uuid);
+    carrier.put("x-amzn-trace-id", awsTraceId);
+
+    Extra extra = extractor.extract(carrier).context().findExtra(Extra.class);
+    assertThat(values(extra)).containsExactly(uuid, awsTraceId);
+  }
+
+  @Test public void children_shareValuesUntilWritten() {
+    try (Tracing t = Tracing.newBuilder().propagationFactory(factory).build()) {
+      TraceContext parent = t.tracer().nextSpan(extractor.extract(carrier)).context();
+      ExtraFieldPropagation.set(parent, "x-vcap-request-id", uuid);
+      TraceContext child = t.tracer().newChild(parent).context();
+      TraceContext grandchild = t.tracer().newChild(child).context();
+
+      String[] parentValues = values(parent.findExtra(Extra.class));
+      assertThat(values(grandchild.findExtra(Extra.class)))
+        .isSameAs(values(child.findExtra(Extra.class)))
+        .isSameAs(parentValues);
+
+      ExtraFieldPropagation.set(child, "x-vcap-request-id", "foo");
+
+      assertThat(values(child.findExtra(Extra.class))).isNotSameAs(parentValues);
+      assertThat(ExtraFieldPropagation.get(parent, "x-vcap-request-id")).isEqualTo(uuid);
+      assertThat(ExtraFieldPropagation.get(grandchild, "x-vcap-request-id")).isEqualTo(uuid);
+    }
+  }
+
+  @Test public void extract_enumeratingGetter_onlyGetsPresentKeys() {
+    injector.inject(context, carrier);
+    carrier.put("X-Amzn-Trace-Id", awsTraceId);
+    List<String> gotten = new ArrayList<>();
+    Propagation.EnumeratingGetter<Map<String, String>, String> getter =
+      new Propagation.EnumeratingGetter<Map<String, String>, String>() {
+        @Override public boolean forEachName(Map<String, String> carrier, NameConsumer consumer) {
+          for (String name : carrier.keySet()) consumer.accept(name);
+          return true;
+        }
+
+        @Override public String get(Map<String, String> carrier, String key) {
+          gotten.add(key);
+          for (Map.Entry<String, String> entry : carrier.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(key)) return entry.getValue();
+          }
+          return null;
+        }
+      };
+
+    TraceContext extracted = factory.create(STRING).extractor(getter).extract(carrier).context();
+
+    assertThat(ExtraFieldPropagation.get(extracted, "x-amzn-trace-id"))
+      .isEqualTo(awsTraceId);
+    assertThat(gotten) // the "b3" header is gotten by the delegate
+      .containsExactly("b3", "x-amzn-trace-id");
+  }
+
+  @Test public void extract_enumeratingGetter_fallsBackWhenUnsupported() {
+    injector.inject(context, carrier);
+    carrier.put("x-amzn-trace-id", awsTraceId);
+    Propagation.EnumeratingGetter<Map<String, String>, String> getter =
+      new Propagation.EnumeratingGetter<Map<String, String>, String>() {
+        @Override public boolean forEachName(Map<String, String> carrier, NameConsumer consumer) {
+          return false;
+        }
+
+        @Override public String get(Map<String, String> carrier, String key) {
+          return carrier.get(key);
+        }
+      };
+
+    TraceContext extracted = factory.create(STRING).extractor(getter).extract(carrier).context();
+
+    assertThat(ExtraFieldPropagation.get(extracted, "x-amzn-trace-id"))
+      .isEqualTo(awsTraceId);
+  }
+
+  static String[] values(Extra extra) {
+    return (String[]) EXTRACTION.getValueOf("values", extra);
+  }
+
   TraceContext extractWithAmazonTraceId() {
     injector.inject(context, carrier);
     carrier.put("x-amzn-trace-id", awsTraceId);
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyNameIndexTest {
+  String[] names = {"country-code", "user-id", "baggage-country-code", "baggage-user-id"};
+  KeyNameIndex index = KeyNameIndex.create(names);
+
+  @Test public void indexOf() {
+    for (int i = 0; i < names.length; i++) {
+      assertThat(index.indexOf(names[i])).isEqualTo(i);
+    }
+  }
+
+  @Test public void indexOf_ignoresCase() {
+    assertThat(index.indexOf("Baggage-User-ID")).isEqualTo(3);
+  }
+
+  @Test public void indexOf_absent() {
+    assertThat(index.indexOf("b3")).isEqualTo(-1);
+    assertThat(index.indexOf("user-i")).isEqualTo(-1);
+    assertThat(index.indexOf("")).isEqualTo(-1);
+  }
+
+  @Test public void create_manyNames() {
+    String[] names = new String[60];
+    for (int i = 0; i < 20; i++) {
+      names[i] = "field-" + i;
+      names[i + 20] = "baggage-field-" + i;
+      names[i + 40] = "baggage_field-" + i;
+    }
+
+    KeyNameIndex index = KeyNameIndex.create(names);
+    for (int i = 0; i < names.length; i++) {
+      assertThat(index.indexOf(names[i])).isEqualTo(i);
+    }
+  }
+
+  /** Duplicate names can't have their own slot */
+  @Test public void create_nullOnDuplicates() {
+    assertThat(KeyNameIndex.create(new String[] {"user-id", "user-id"})).isNull();
+  }
+}
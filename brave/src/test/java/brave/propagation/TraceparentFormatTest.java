@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import brave.internal.Platform;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static brave.propagation.TraceparentFormat.parseTraceparentFormat;
+import static brave.propagation.TraceparentFormat.writeTraceparentFormat;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+// Added to declutter console: tells power mock not to mess with implicit classes we aren't testing
+@PowerMockIgnore({"org.apache.logging.*", "javax.script.*"})
+@PrepareForTest({Platform.class, TraceparentFormat.class})
+public class TraceparentFormatTest {
+  String traceIdHigh = "0000000000000009";
+  String traceId = "0000000000000001";
+  String spanId = "0000000000000003";
+
+  Platform platform = mock(Platform.class);
+
+  @Before public void setupLogger() {
+    mockStatic(Platform.class);
+    when(Platform.get()).thenReturn(platform);
+  }
+
+  /** Either we asserted on the log messages or there weren't any */
+  @After public void verifyNoOtherLogging() {
+    verifyNoMoreInteractions(platform);
+  }
+
+  @Test public void writeTraceparentFormat_sampled() {
+    TraceContext context = TraceContext.newBuilder()
+      .traceIdHigh(9L).traceId(1L).parentId(2L).spanId(3L).sampled(true).build();
+
+    assertThat(writeTraceparentFormat(context))
+      .isEqualTo("00-" + traceIdHigh + traceId + "-" + spanId + "-01");
+  }
+
+  @Test public void writeTraceparentFormat_notSampled() {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(3L).sampled(false).build();
+
+    assertThat(writeTraceparentFormat(context))
+      .isEqualTo("00-0000000000000000" + traceId + "-" + spanId + "-00");
+  }
+
+  /** There's no way to defer the sampling decision */
+  @Test public void writeTraceparentFormat_unsampled() {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(3L).build();
+
+    assertThat(writeTraceparentFormat(context)).endsWith("-00");
+  }
+
+  /** There's no debug flag, so it is sent as sampled */
+  @Test public void writeTraceparentFormat_debug() {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(3L).debug(true).build();
+
+    assertThat(writeTraceparentFormat(context)).endsWith("-01");
+  }
+
+  @Test public void parseTraceparentFormat_sampled() {
+    assertThat(parseTraceparentFormat("00-" + traceIdHigh + traceId + "-" + spanId + "-01"))
+      .isEqualToComparingFieldByField(TraceContext.newBuilder()
+        .traceIdHigh(9L).traceId(1L).spanId(3L).sampled(true).build());
+  }
+
+  @Test public void parseTraceparentFormat_notSampled() {
+    TraceContext context =
+      parseTraceparentFormat("00-0000000000000000" + traceId + "-" + spanId + "-00");
+
+    assertThat(context.traceIdHigh()).isZero();
+    assertThat(context.sampled()).isFalse();
+  }
+
+  @Test public void parseTraceparentFormat_ignoresUnknownFlags() {
+    TraceContext context =
+      parseTraceparentFormat("00-" + traceIdHigh + traceId + "-" + spanId + "-ff");
+
+    assertThat(context.sampled()).isTrue();
+    assertThat(context.debug()).isFalse();
+  }
+
+  @Test public void parseTraceparentFormat_substring() {
+    String traceparent = "00-" + traceIdHigh + traceId + "-" + spanId + "-01";
+    String input = "foo " + traceparent + " bar";
+
+    assertThat(parseTraceparentFormat(input, 4, 4 + traceparent.length()))
+      .isEqualToComparingFieldByField(parseTraceparentFormat(traceparent));
+  }
+
+  @Test public void parseTraceparentFormat_laterVersionMayAddFields() {
+    assertThat(parseTraceparentFormat("cc-" + traceIdHigh + traceId + "-" + spanId + "-01-what"))
+      .isNotNull();
+  }
+
+  @Test public void parseTraceparentFormat_malformed_version00TooLong() {
+    assertThat(parseTraceparentFormat("00-" + traceIdHigh + traceId + "-" + spanId + "-01-what"))
+      .isNull();
+
+    verify(platform).log("Invalid input: too long", null);
+  }
+
+  @Test public void parseTraceparentFormat_malformed_invalidVersion() {
+    assertThat(parseTraceparentFormat("ff-" + traceIdHigh + traceId + "-" + spanId + "-01"))
+      .isNull();
+
+    verify(platform).log("Invalid input: expected a version other than ff at offset 0", null);
+  }
+
+  @Test public void parseTraceparentFormat_malformed_truncated() {
+    assertThat(parseTraceparentFormat("00-" + traceId + "-" + spanId + "-01"))
+      .isNull();
+
+    verify(platform).log("Invalid input: truncated", null);
+  }
+
+  @Test public void parseTraceparentFormat_malformed_upperHex() {
+    assertThat(parseTraceparentFormat("00-" + traceIdHigh + "A" + traceId.substring(1)
+      + "-" + spanId + "-01"))
+      .isNull();
+
+    verify(platform).log("Invalid input: expected a 32 lower hex trace ID at offset {0}", 3, null);
+  }
+
+  @Test public void parseTraceparentFormat_malformed_traceIdHigh() {
+    assertThat(parseTraceparentFormat("00-000000000000000z" + traceId + "-" + spanId + "-01"))
+      .isNull();
+
+    verify(platform).log("Invalid input: expected a 32 lower hex trace ID at offset {0}", 3, null);
+  }
+
+  @Test public void parseTraceparentFormat_malformed_zeroTraceId() {
+    assertThat(parseTraceparentFormat("00-" + traceIdHigh + "0000000000000000-" + spanId + "-01"))
+      .isNull();
+
+    verify(platform).log("Invalid input: expected a 32 lower hex trace ID at offset {0}", 3, null);
+  }
+
+  @Test public void parseTraceparentFormat_malformed_zeroSpanId() {
+    assertThat(parseTraceparentFormat("00-" + traceIdHigh + traceId + "-0000000000000000-01"))
+      .isNull();
+
+    verify(platform)
+      .log("Invalid input: expected a 16 lower hex parent ID at offset {0}", 36, null);
+  }
+
+  @Test public void parseTraceparentFormat_malformed_flags() {
+    assertThat(parseTraceparentFormat("00-" + traceIdHigh + traceId + "-" + spanId + "-0x"))
+      .isNull();
+
+    verify(platform)
+      .log("Invalid input: expected 2 lower hex trace flags at offset {0}", 53, null);
+  }
+
+  @Test public void parseTraceparentFormat_malformed_hyphen() {
+    assertThat(parseTraceparentFormat("00-" + traceIdHigh + traceId + "+" + spanId + "-01"))
+      .isNull();
+
+    verify(platform)
+      .log("Invalid input: expected a hyphen(-) delimiter at offset {0}", 35, null);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TracestateTest {
+  Tracestate tracestate = Tracestate.create("rojo=00f067aa0ba902b7, congo = t61rcWkgMzE ,x=");
+
+  @Test public void create_nullOrBlank() {
+    assertThat(Tracestate.create(null)).isNull();
+    assertThat(Tracestate.create("")).isNull();
+    assertThat(Tracestate.create(" ,\t")).isNull();
+  }
+
+  @Test public void get() {
+    assertThat(tracestate.get("rojo")).isEqualTo("00f067aa0ba902b7");
+    assertThat(tracestate.get("congo")).isNull(); // whitespace isn't allowed before the equals
+    assertThat(tracestate.get("x")).isEmpty();
+  }
+
+  @Test public void get_trimsWhitespace() {
+    assertThat(Tracestate.create("\trojo=1 ,congo=2\t").get("congo")).isEqualTo("2");
+    assertThat(Tracestate.create("\trojo=1 ,congo=2\t").get("rojo")).isEqualTo("1");
+  }
+
+  @Test public void get_doesntMatchPrefix() {
+    assertThat(tracestate.get("roj")).isNull();
+    assertThat(tracestate.get("rojo=0")).isNull();
+  }
+
+  @Test public void get_absent() {
+    assertThat(tracestate.get("blanco")).isNull();
+  }
+
+  @Test public void toString_isValueAsReceived() {
+    assertThat(tracestate)
+      .hasToString("rojo=00f067aa0ba902b7, congo = t61rcWkgMzE ,x=");
+  }
+
+  @Test public void equalsAndHashCode() {
+    assertThat(Tracestate.create("rojo=1"))
+      .isEqualTo(Tracestate.create("rojo=1"))
+      .hasSameHashCodeAs(Tracestate.create("rojo=1"))
+      .isNotEqualTo(Tracestate.create("rojo=2"));
+  }
+}
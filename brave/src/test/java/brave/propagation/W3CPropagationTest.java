@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation;
+
+import brave.Span;
+import brave.Tracing;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static brave.propagation.Propagation.KeyFactory.STRING;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class W3CPropagationTest {
+  static final String TRACEPARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+  Propagation<String> propagation = W3CPropagation.FACTORY.create(STRING);
+  TraceContext.Injector<Map<String, String>> injector = propagation.injector(Map::put);
+  TraceContext.Extractor<Map<String, String>> extractor = propagation.extractor(Map::get);
+  Map<String, String> carrier = new LinkedHashMap<>();
+
+  @Test public void keys() {
+    assertThat(propagation.keys()).containsExactly("traceparent", "tracestate");
+  }
+
+  @Test public void doesntSupportJoin() {
+    assertThat(W3CPropagation.FACTORY.supportsJoin()).isFalse();
+  }
+
+  @Test public void extract() {
+    carrier.put("traceparent", TRACEPARENT);
+
+    TraceContext context = extractor.extract(carrier).context();
+    assertThat(context.traceIdString()).isEqualTo("4bf92f3577b34da6a3ce929d0e0e4736");
+    assertThat(context.spanIdString()).isEqualTo("00f067aa0ba902b7");
+    assertThat(context.sampled()).isTrue();
+    assertThat(context.extra()).isEmpty();
+  }
+
+  @Test public void extract_nothing() {
+    assertThat(extractor.extract(carrier)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test public void extract_malformed() {
+    carrier.put("traceparent", "b970dafd-0d95-40aa-95d8-1d8725aebe40");
+
+    assertThat(extractor.extract(carrier)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test public void extract_ignoresTracestateWithoutTraceparent() {
+    carrier.put("tracestate", "rojo=00f067aa0ba902b7");
+
+    assertThat(extractor.extract(carrier)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test public void extract_tracestate() {
+    carrier.put("traceparent", TRACEPARENT);
+    carrier.put("tracestate", "rojo=00f067aa0ba902b7,congo=t61rcWkgMzE");
+
+    TraceContext context = extractor.extract(carrier).context();
+    assertThat(context.findExtra(Tracestate.class).get("congo")).isEqualTo("t61rcWkgMzE");
+  }
+
+  @Test public void inject() {
+    TraceContext context = TraceContext.newBuilder()
+      .traceIdHigh(1L).traceId(2L).parentId(3L).spanId(4L).sampled(false).build();
+
+    injector.inject(context, carrier);
+
+    assertThat(carrier).containsExactly(
+      entry("traceparent", "00-00000000000000010000000000000002-0000000000000004-00"));
+  }
+
+  @Test public void roundTrip_passesTracestateToChild() {
+    carrier.put("traceparent", TRACEPARENT);
+    carrier.put("tracestate", "rojo=00f067aa0ba902b7");
+
+    try (Tracing tracing = Tracing.newBuilder()
+      .propagationFactory(W3CPropagation.FACTORY)
+      .build()) {
+      Span child = tracing.tracer().nextSpan(extractor.extract(carrier));
+
+      Map<String, String> downstream = new LinkedHashMap<>();
+      injector.inject(child.context(), downstream);
+
+      assertThat(downstream.get("traceparent"))
+        .startsWith("00-4bf92f3577b34da6a3ce929d0e0e4736-")
+        .endsWith("-01")
+        .doesNotContain("00f067aa0ba902b7");
+      assertThat(downstream.get("tracestate"))
+        .isSameAs(carrier.get("tracestate"));
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.concurrent;
+
+import brave.internal.Nullable;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.TraceContext;
+import java.util.concurrent.Callable;
+
+final class TraceContextCallable<V> implements Callable<V> {
+  final CurrentTraceContext currentTraceContext;
+  @Nullable final TraceContext invocationContext;
+  final Callable<V> delegate;
+
+  TraceContextCallable(CurrentTraceContext currentTraceContext,
+    @Nullable TraceContext invocationContext, Callable<V> delegate) {
+    this.currentTraceContext = currentTraceContext;
+    this.invocationContext = invocationContext;
+    this.delegate = delegate;
+  }
+
+  @Override public V call() throws Exception {
+    if (TraceContextExecutors.isCurrent(currentTraceContext, invocationContext)) {
+      return delegate.call();
+    }
+    try (Scope scope = currentTraceContext.newScope(invocationContext)) {
+      return delegate.call();
+    }
+  }
+
+  @Override public String toString() {
+    return delegate.toString();
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.concurrent;
+
+import brave.internal.WrappingExecutorService;
+import brave.propagation.CurrentTraceContext;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+final class TraceContextExecutorService extends WrappingExecutorService {
+  final CurrentTraceContext currentTraceContext;
+  final ExecutorService delegate;
+
+  TraceContextExecutorService(CurrentTraceContext currentTraceContext, ExecutorService delegate) {
+    this.currentTraceContext = currentTraceContext;
+    this.delegate = delegate;
+  }
+
+  @Override protected ExecutorService delegate() {
+    return delegate;
+  }
+
+  @Override protected <C> Callable<C> wrap(Callable<C> task) {
+    return TraceContextExecutors.wrap(currentTraceContext, task);
+  }
+
+  @Override protected Runnable wrap(Runnable task) {
+    return TraceContextExecutors.wrap(currentTraceContext, task);
+  }
+
+  @Override public String toString() {
+    return "TraceContextExecutorService{" + delegate + "}";
+  }
+}
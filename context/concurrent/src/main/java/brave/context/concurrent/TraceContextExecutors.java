@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.concurrent;
+
+import brave.internal.Nullable;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Executors which run tasks in the {@link CurrentTraceContext#get() trace context} that was current
+ * when they were submitted.
+ *
+ * <p>Like {@link CurrentTraceContext#executorService(ExecutorService)}, these skip scope work when
+ * the worker thread is already in the submitted context, such as when a task submits another to
+ * the same pool. In addition, tasks which were already wrapped are not wrapped again, and fork/join
+ * pools are supported.
+ *
+ * <h3>CompletableFuture</h3>
+ * Pass these executors to {@link CompletableFuture} methods that end in "Async". A stage is
+ * submitted when its predecessor completes, which in this pool is inside the predecessor's
+ * context. Consequently, the context flows through a chain of async stages:
+ * <pre>{@code
+ * ForkJoinPool pool = TraceContextExecutors.newForkJoinPool(tracing.currentTraceContext());
+ * CompletableFuture.supplyAsync(this::load, pool)
+ *   .thenApplyAsync(this::transform, pool); // both stages see the caller's context
+ * }</pre>
+ *
+ * @since 5.9
+ */
+public final class TraceContextExecutors {
+
+  /**
+   * Decorates the input such that the {@link CurrentTraceContext#get() current trace context} at
+   * the time a task is scheduled is made current when the task is executed.
+   */
+  public static ExecutorService executorService(CurrentTraceContext currentTraceContext,
+    ExecutorService delegate) {
+    if (currentTraceContext == null) throw new NullPointerException("currentTraceContext == null");
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    if (delegate instanceof TraceContextExecutorService
+      && ((TraceContextExecutorService) delegate).currentTraceContext == currentTraceContext) {
+      return delegate;
+    }
+    return new TraceContextExecutorService(currentTraceContext, delegate);
+  }
+
+  /** Like {@link #newForkJoinPool(CurrentTraceContext, int)}, using all available processors. */
+  public static ForkJoinPool newForkJoinPool(CurrentTraceContext currentTraceContext) {
+    return newForkJoinPool(currentTraceContext, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Returns a new fork/join pool which runs externally submitted tasks in the context they were
+   * submitted with. Submitted {@linkplain java.util.concurrent.ForkJoinTask fork/join tasks} are
+   * returned as-is, so they can be joined.
+   *
+   * <p>Subtasks {@linkplain java.util.concurrent.ForkJoinTask#fork() forked} inside a task don't
+   * pass through the pool's submission methods. When stolen by another worker, they run in that
+   * worker's context. If that matters, submit subtasks to the pool instead of forking them.
+   */
+  public static ForkJoinPool newForkJoinPool(CurrentTraceContext currentTraceContext,
+    int parallelism) {
+    if (currentTraceContext == null) throw new NullPointerException("currentTraceContext == null");
+    return new TraceContextForkJoinPool(currentTraceContext, parallelism);
+  }
+
+  static Runnable wrap(CurrentTraceContext currentTraceContext, Runnable task) {
+    if (task == null) throw new NullPointerException("task == null");
+    // The context of an already wrapped task would override any outer one, so reuse it.
+    if (task instanceof TraceContextRunnable
+      && ((TraceContextRunnable) task).currentTraceContext == currentTraceContext) {
+      return task;
+    }
+    return new TraceContextRunnable(currentTraceContext, currentTraceContext.get(), task);
+  }
+
+  static <V> Callable<V> wrap(CurrentTraceContext currentTraceContext, Callable<V> task) {
+    if (task == null) throw new NullPointerException("task == null");
+    if (task instanceof TraceContextCallable
+      && ((TraceContextCallable<V>) task).currentTraceContext == currentTraceContext) {
+      return task;
+    }
+    return new TraceContextCallable<>(currentTraceContext, currentTraceContext.get(), task);
+  }
+
+  /** Same check as {@link CurrentTraceContext#maybeScope}, inlined to avoid the scope call. */
+  @SuppressWarnings("ReferenceEquality") // intentional: identity is checked before equals
+  static boolean isCurrent(CurrentTraceContext currentTraceContext,
+    @Nullable TraceContext invocationContext) {
+    TraceContext current = currentTraceContext.get();
+    if (current == invocationContext) return true;
+    return invocationContext != null && invocationContext.equals(current);
+  }
+
+  TraceContextExecutors() {
+  }
+}
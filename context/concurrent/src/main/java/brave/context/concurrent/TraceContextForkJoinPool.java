@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.concurrent;
+
+import brave.propagation.CurrentTraceContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+/**
+ * Fork/join pool which runs externally submitted tasks in the context they were submitted with.
+ * Methods not overridden here, such as {@link #invokeAny(Collection)}, delegate to {@link
+ * #execute(Runnable)}.
+ */
+final class TraceContextForkJoinPool extends ForkJoinPool {
+  final CurrentTraceContext currentTraceContext;
+
+  TraceContextForkJoinPool(CurrentTraceContext currentTraceContext, int parallelism) {
+    super(parallelism);
+    this.currentTraceContext = currentTraceContext;
+  }
+
+  @Override public void execute(ForkJoinTask<?> task) {
+    super.execute(wrap(task));
+  }
+
+  @Override public void execute(Runnable task) {
+    super.execute(TraceContextExecutors.wrap(currentTraceContext, task));
+  }
+
+  @Override public <T> T invoke(ForkJoinTask<T> task) {
+    super.execute(wrap(task));
+    return task.join();
+  }
+
+  @Override public <T> ForkJoinTask<T> submit(ForkJoinTask<T> task) {
+    super.execute(wrap(task));
+    return task;
+  }
+
+  @Override public <T> ForkJoinTask<T> submit(Callable<T> task) {
+    return super.submit(TraceContextExecutors.wrap(currentTraceContext, task));
+  }
+
+  @Override public <T> ForkJoinTask<T> submit(Runnable task, T result) {
+    return super.submit(TraceContextExecutors.wrap(currentTraceContext, task), result);
+  }
+
+  @Override public ForkJoinTask<?> submit(Runnable task) {
+    return super.submit(TraceContextExecutors.wrap(currentTraceContext, task));
+  }
+
+  @Override public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) {
+    List<Callable<T>> wrapped = new ArrayList<>(tasks.size());
+    for (Callable<T> task : tasks) {
+      wrapped.add(TraceContextExecutors.wrap(currentTraceContext, task));
+    }
+    return super.invokeAll(wrapped);
+  }
+
+  ForkJoinTask<?> wrap(ForkJoinTask<?> task) {
+    if (task == null) throw new NullPointerException("task == null");
+    return new TraceContextForkJoinTask(currentTraceContext, currentTraceContext.get(), task);
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.concurrent;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.StrictScopeDecorator;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceContextExecutorsTest {
+  CurrentTraceContext currentTraceContext = ThreadLocalCurrentTraceContext.newBuilder()
+    .addScopeDecorator(StrictScopeDecorator.create())
+    .build();
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(1L).build();
+
+  ExecutorService delegate = Executors.newSingleThreadExecutor();
+  ExecutorService executor = TraceContextExecutors.executorService(currentTraceContext, delegate);
+  ForkJoinPool pool = TraceContextExecutors.newForkJoinPool(currentTraceContext, 2);
+
+  @After public void shutdown() {
+    executor.shutdownNow();
+    pool.shutdownNow();
+  }
+
+  @Test public void executorService_attachesContext() throws Exception {
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      assertThat(executor.submit(currentTraceContext::get).get()).isSameAs(context);
+    }
+    assertThat(executor.submit(currentTraceContext::get).get()).isNull();
+  }
+
+  @Test public void executorService_clearsLeakedContext() throws Exception {
+    delegate.submit(() -> currentTraceContext.newScope(context)).get(); // leak a scope
+
+    assertThat(executor.submit(currentTraceContext::get).get()).isNull();
+  }
+
+  @Test public void executorService_invokeAll() throws Exception {
+    List<Future<TraceContext>> futures;
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      futures =
+        executor.invokeAll(Arrays.asList(currentTraceContext::get, currentTraceContext::get));
+    }
+    for (Future<TraceContext> future : futures) assertThat(future.get()).isSameAs(context);
+  }
+
+  @Test public void executorService_doesntWrapTwice() {
+    assertThat(TraceContextExecutors.executorService(currentTraceContext, executor))
+      .isSameAs(executor);
+  }
+
+  @Test public void wrap_doesntWrapTwice() {
+    Runnable runnable = TraceContextExecutors.wrap(currentTraceContext, () -> {
+    });
+    Callable<String> callable = TraceContextExecutors.wrap(currentTraceContext, () -> "");
+
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      assertThat(TraceContextExecutors.wrap(currentTraceContext, runnable)).isSameAs(runnable);
+      assertThat(TraceContextExecutors.wrap(currentTraceContext, callable)).isSameAs(callable);
+    }
+  }
+
+  @Test public void skipsScopeWhenUnchanged() {
+    AtomicInteger scopes = new AtomicInteger();
+    CurrentTraceContext countingScopes = ThreadLocalCurrentTraceContext.newBuilder()
+      .addScopeDecorator((context, scope) -> {
+        scopes.incrementAndGet();
+        return scope;
+      }).build();
+
+    TraceContextExecutors.wrap(countingScopes, (Runnable) () -> {
+    }).run();
+    try (Scope scope = countingScopes.newScope(context)) {
+      TraceContextExecutors.wrap(countingScopes, (Runnable) () -> {
+      }).run();
+    }
+
+    assertThat(scopes.get()).isEqualTo(1); // only the explicit one
+  }
+
+  @Test public void forkJoinPool_execute() throws Exception {
+    AtomicReference<TraceContext> result = new AtomicReference<>();
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      pool.execute(() -> result.set(currentTraceContext.get()));
+    }
+    pool.shutdown();
+    pool.awaitTermination(1, TimeUnit.SECONDS);
+
+    assertThat(result.get()).isSameAs(context);
+  }
+
+  @Test public void forkJoinPool_submitCallable() throws Exception {
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      assertThat(pool.submit(currentTraceContext::get).get()).isSameAs(context);
+    }
+  }
+
+  @Test public void forkJoinPool_invokeAll() throws Exception {
+    List<Future<TraceContext>> futures;
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      futures = pool.invokeAll(Arrays.asList(currentTraceContext::get, currentTraceContext::get));
+    }
+    for (Future<TraceContext> future : futures) assertThat(future.get()).isSameAs(context);
+  }
+
+  @Test public void forkJoinPool_submitForkJoinTask_returnsSameTask() throws Exception {
+    CurrentContextTask task = new CurrentContextTask();
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      assertThat(pool.submit(task)).isSameAs(task);
+    }
+    assertThat(task.get()).isSameAs(context);
+  }
+
+  @Test public void forkJoinPool_invokeForkJoinTask() {
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      assertThat(pool.invoke(new CurrentContextTask())).isSameAs(context);
+    }
+  }
+
+  @Test public void forkJoinPool_completableFutureStages() throws Exception {
+    CompletableFuture<List<TraceContext>> future;
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      future = CompletableFuture.supplyAsync(currentTraceContext::get, pool)
+        .thenApplyAsync(first -> Arrays.asList(first, currentTraceContext.get()), pool);
+    }
+
+    assertThat(future.get()).containsExactly(context, context);
+  }
+
+  @Test public void executorService_completableFutureStages() throws Exception {
+    CompletableFuture<List<TraceContext>> future;
+    try (Scope scope = currentTraceContext.newScope(context)) {
+      future = CompletableFuture.supplyAsync(currentTraceContext::get, executor)
+        .thenApplyAsync(first -> Arrays.asList(first, currentTraceContext.get()), executor);
+    }
+
+    assertThat(future.get()).containsExactly(context, context);
+  }
+
+  class CurrentContextTask extends RecursiveTask<TraceContext> {
+    @Override protected TraceContext compute() {
+      return currentTraceContext.get();
+    }
+  }
+}
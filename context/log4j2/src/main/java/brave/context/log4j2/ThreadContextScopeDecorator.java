@@ -13,8 +13,10 @@
  */
 package brave.context.log4j2;
 
-import brave.internal.propagation.CorrelationFieldScopeDecorator;
+import brave.internal.propagation.CachingCorrelationFieldScopeDecorator;
 import brave.propagation.CurrentTraceContext.ScopeDecorator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.apache.logging.log4j.ThreadContext;
 
 /**
@@ -33,8 +35,13 @@ import org.apache.logging.log4j.ThreadContext;
  *                  ...
  *                  .build();
  * }</pre>
+ *
+ * <p>When more than one property is added or changed, they are written with {@link
+ * ThreadContext#putAll(Map)}, so that a copy-on-write context map is only copied once.
  */
-public final class ThreadContextScopeDecorator extends CorrelationFieldScopeDecorator {
+public final class ThreadContextScopeDecorator extends CachingCorrelationFieldScopeDecorator {
+  /** {@link ThreadContext#putAll(Map)} was added in Log4J 2.7 */
+  static final boolean SUPPORTS_PUT_ALL = supportsPutAll();
 
   public static ScopeDecorator create() {
     return new ThreadContextScopeDecorator();
@@ -52,6 +59,33 @@ public final class ThreadContextScopeDecorator extends CorrelationFieldScopeDeco
     ThreadContext.remove(key);
   }
 
+  @Override protected void replaceAll(String[] values, int changed) {
+    if (!SUPPORTS_PUT_ALL || Integer.bitCount(changed) < 2) {
+      super.replaceAll(values, changed);
+      return;
+    }
+
+    Map<String, String> toPut = new LinkedHashMap<>(values.length);
+    for (int i = 0; i < values.length; i++) {
+      if (!isChanged(changed, i)) continue;
+      if (values[i] != null) {
+        toPut.put(fieldName(i), values[i]);
+      } else {
+        ThreadContext.remove(fieldName(i));
+      }
+    }
+    if (!toPut.isEmpty()) ThreadContext.putAll(toPut);
+  }
+
+  static boolean supportsPutAll() {
+    try {
+      ThreadContext.class.getMethod("putAll", Map.class);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
   ThreadContextScopeDecorator() {
   }
 }
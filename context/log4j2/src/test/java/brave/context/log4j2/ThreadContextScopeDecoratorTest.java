@@ -13,17 +13,14 @@
  */
 package brave.context.log4j2;
 
-import brave.internal.Nullable;
 import brave.propagation.CurrentTraceContext;
+import brave.propagation.CurrentTraceContext.ScopeDecorator;
 import brave.propagation.ThreadLocalCurrentTraceContext;
-import brave.propagation.TraceContext;
-import brave.test.propagation.CurrentTraceContextTest;
+import brave.test.propagation.CorrelationFieldScopeDecoratorTest;
 import java.util.function.Supplier;
 import org.apache.logging.log4j.ThreadContext;
 
-import static org.assertj.core.api.Assertions.assertThat;
-
-public class ThreadContextScopeDecoratorTest extends CurrentTraceContextTest {
+public class ThreadContextScopeDecoratorTest extends CorrelationFieldScopeDecoratorTest {
 
   @Override protected Class<? extends Supplier<CurrentTraceContext>> currentSupplier() {
     return CurrentSupplier.class;
@@ -37,25 +34,19 @@ public class ThreadContextScopeDecoratorTest extends CurrentTraceContextTest {
     }
   }
 
-  @Override protected void verifyImplicitContext(@Nullable TraceContext context) {
-    if (context != null) {
-      assertThat(ThreadContext.get("traceId"))
-        .isEqualTo(context.traceIdString());
-      assertThat(ThreadContext.get("parentId"))
-        .isEqualTo(context.parentIdString());
-      assertThat(ThreadContext.get("spanId"))
-        .isEqualTo(context.spanIdString());
-      assertThat(ThreadContext.get("sampled"))
-        .isEqualTo(context.sampled() != null ? context.sampled().toString() : null);
-    } else {
-      assertThat(ThreadContext.get("traceId"))
-        .isNull();
-      assertThat(ThreadContext.get("parentId"))
-        .isNull();
-      assertThat(ThreadContext.get("spanId"))
-        .isNull();
-      assertThat(ThreadContext.get("sampled"))
-        .isNull();
-    }
+  @Override protected ScopeDecorator newDecorator() {
+    return ThreadContextScopeDecorator.create();
+  }
+
+  @Override protected String get(String name) {
+    return ThreadContext.get(name);
+  }
+
+  @Override protected void put(String name, String value) {
+    ThreadContext.put(name, value);
+  }
+
+  @Override protected void clear() {
+    ThreadContext.clearMap();
   }
 }
@@ -13,7 +13,7 @@
  */
 package brave.context.slf4j;
 
-import brave.internal.propagation.CorrelationFieldScopeDecorator;
+import brave.internal.propagation.CachingCorrelationFieldScopeDecorator;
 import brave.propagation.CurrentTraceContext;
 import org.slf4j.MDC;
 
@@ -34,7 +34,7 @@ import org.slf4j.MDC;
  *                  .build();
  * }</pre>
  */
-public final class MDCScopeDecorator extends CorrelationFieldScopeDecorator {
+public final class MDCScopeDecorator extends CachingCorrelationFieldScopeDecorator {
   public static CurrentTraceContext.ScopeDecorator create() {
     return new MDCScopeDecorator();
   }
@@ -13,17 +13,14 @@
  */
 package brave.context.slf4j;
 
-import brave.internal.Nullable;
 import brave.propagation.CurrentTraceContext;
+import brave.propagation.CurrentTraceContext.ScopeDecorator;
 import brave.propagation.ThreadLocalCurrentTraceContext;
-import brave.propagation.TraceContext;
-import brave.test.propagation.CurrentTraceContextTest;
+import brave.test.propagation.CorrelationFieldScopeDecoratorTest;
 import java.util.function.Supplier;
 import org.slf4j.MDC;
 
-import static org.assertj.core.api.Assertions.assertThat;
-
-public class MDCScopeDecoratorTest extends CurrentTraceContextTest {
+public class MDCScopeDecoratorTest extends CorrelationFieldScopeDecoratorTest {
 
   @Override protected Class<? extends Supplier<CurrentTraceContext>> currentSupplier() {
     return CurrentSupplier.class;
@@ -37,25 +34,19 @@ public class MDCScopeDecoratorTest extends CurrentTraceContextTest {
     }
   }
 
-  @Override protected void verifyImplicitContext(@Nullable TraceContext context) {
-    if (context != null) {
-      assertThat(MDC.get("traceId"))
-        .isEqualTo(context.traceIdString());
-      assertThat(MDC.get("parentId"))
-        .isEqualTo(context.parentIdString());
-      assertThat(MDC.get("spanId"))
-        .isEqualTo(context.spanIdString());
-      assertThat(MDC.get("sampled"))
-        .isEqualTo(context.sampled() != null ? context.sampled().toString() : null);
-    } else {
-      assertThat(MDC.get("traceId"))
-        .isNull();
-      assertThat(MDC.get("parentId"))
-        .isNull();
-      assertThat(MDC.get("spanId"))
-        .isNull();
-      assertThat(MDC.get("sampled"))
-        .isNull();
-    }
+  @Override protected ScopeDecorator newDecorator() {
+    return MDCScopeDecorator.create();
+  }
+
+  @Override protected String get(String name) {
+    return MDC.get(name);
+  }
+
+  @Override protected void put(String name, String value) {
+    MDC.put(name, value);
+  }
+
+  @Override protected void clear() {
+    MDC.clear();
   }
 }
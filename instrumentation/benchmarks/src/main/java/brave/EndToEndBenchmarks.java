@@ -43,6 +43,7 @@ import okhttp3.Call;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
@@ -91,6 +92,31 @@ public class EndToEndBenchmarks extends HttpServerBenchmarks {
     }
   }
 
+  public static class UnsampledCorrelated extends ForwardingTracingFilter {
+    public UnsampledCorrelated() {
+      super(Tracing.newBuilder()
+        .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+          .addScopeDecorator(ThreadContextScopeDecorator.create())
+          .build())
+        .sampler(Sampler.NEVER_SAMPLE)
+        .spanReporter(AsyncReporter.create(new NoopSender()))
+        .build());
+    }
+  }
+
+  public static class UnsampledCorrelatedReused extends ForwardingTracingFilter {
+    public UnsampledCorrelatedReused() {
+      super(Tracing.newBuilder()
+        .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+          .addScopeDecorator(ThreadContextScopeDecorator.create())
+          .build())
+        .sampler(Sampler.NEVER_SAMPLE)
+        .reuseUnsampledContexts()
+        .spanReporter(AsyncReporter.create(new NoopSender()))
+        .build());
+    }
+  }
+
   public static class OnlySampledLocal extends ForwardingTracingFilter {
     public OnlySampledLocal() {
       super(Tracing.newBuilder()
@@ -156,6 +182,12 @@ public class EndToEndBenchmarks extends HttpServerBenchmarks {
     servletBuilder.addFilter(new FilterInfo("Unsampled", Unsampled.class))
       .addFilterUrlMapping("Unsampled", "/unsampled", REQUEST)
       .addFilterUrlMapping("Unsampled", "/unsampled/api", REQUEST)
+      .addFilter(new FilterInfo("UnsampledCorrelated", UnsampledCorrelated.class))
+      .addFilterUrlMapping("UnsampledCorrelated", "/unsampledcorrelated", REQUEST)
+      .addFilterUrlMapping("UnsampledCorrelated", "/unsampledcorrelated/api", REQUEST)
+      .addFilter(new FilterInfo("UnsampledCorrelatedReused", UnsampledCorrelatedReused.class))
+      .addFilterUrlMapping("UnsampledCorrelatedReused", "/unsampledcorrelatedreused", REQUEST)
+      .addFilterUrlMapping("UnsampledCorrelatedReused", "/unsampledcorrelatedreused/api", REQUEST)
       .addFilter(new FilterInfo("OnlySampledLocal", OnlySampledLocal.class))
       .addFilterUrlMapping("OnlySampledLocal", "/onlysampledlocal", REQUEST)
       .addFilterUrlMapping("OnlySampledLocal", "/onlysampledlocal/api", REQUEST)
@@ -174,6 +206,14 @@ public class EndToEndBenchmarks extends HttpServerBenchmarks {
       .addServlets(Servlets.servlet("HelloServlet", HelloServlet.class).addMapping("/*"));
   }
 
+  @Benchmark public void unsampledCorrelatedServer_get() throws Exception {
+    get("/unsampledcorrelated");
+  }
+
+  @Benchmark public void unsampledCorrelatedReusedServer_get() throws Exception {
+    get("/unsampledcorrelatedreused");
+  }
+
   @Override protected int initServer() throws Exception {
     return PORT = super.initServer();
   }
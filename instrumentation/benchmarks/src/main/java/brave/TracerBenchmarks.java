@@ -72,6 +72,9 @@ public class TracerBenchmarks {
 
   Tracer tracer;
   Tracer tracerExtra;
+  Tracer tracerRecycled;
+  Tracer tracerReused;
+  TraceContext unsampledContextReused;
 
   @Setup(Level.Trial) public void init() {
     tracer = Tracing.newBuilder()
@@ -90,6 +93,24 @@ public class TracerBenchmarks {
         }
       })
       .spanReporter(Reporter.NOOP).build().tracer();
+    tracerRecycled = Tracing.newBuilder()
+      .recycleSpans()
+      .addFinishedSpanHandler(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          return true; // anonymous subtype prevents all recording from being no-op
+        }
+      })
+      .spanReporter(Reporter.NOOP).build().tracer();
+    tracerReused = Tracing.newBuilder()
+      .reuseUnsampledContexts()
+      .addFinishedSpanHandler(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          return true; // anonymous subtype prevents all recording from being no-op
+        }
+      })
+      .spanReporter(Reporter.NOOP).build().tracer();
+    // only contexts decorated by the tracer are reused
+    unsampledContextReused = tracerReused.toSpan(unsampledContext).context();
   }
 
   @TearDown(Level.Trial) public void close() {
@@ -100,6 +121,10 @@ public class TracerBenchmarks {
     startScopedSpanWithParent(tracer, context);
   }
 
+  @Benchmark public void startScopedSpanWithParent_recycled() {
+    startScopedSpanWithParent(tracerRecycled, context);
+  }
+
   @Benchmark public void startScopedSpanWithParent_extra() {
     startScopedSpanWithParent(tracerExtra, contextExtra);
   }
@@ -108,6 +133,10 @@ public class TracerBenchmarks {
     startScopedSpanWithParent(tracer, unsampledContext);
   }
 
+  @Benchmark public void startScopedSpanWithParent_unsampled_reused() {
+    startScopedSpanWithParent(tracerReused, unsampledContextReused);
+  }
+
   @Benchmark public void startScopedSpanWithParent_unsampled_extra() {
     startScopedSpanWithParent(tracerExtra, unsampledContextExtra);
   }
@@ -142,6 +171,10 @@ public class TracerBenchmarks {
     newChildWithSpanInScope(tracer, unsampledContext);
   }
 
+  @Benchmark public void newChildWithSpanInScope_unsampled_reused() {
+    newChildWithSpanInScope(tracerReused, unsampledContextReused);
+  }
+
   @Benchmark public void newChildWithSpanInScope_unsampled_extra() {
     newChildWithSpanInScope(tracerExtra, unsampledContextExtra);
   }
@@ -164,6 +197,27 @@ public class TracerBenchmarks {
     }
   }
 
+  @Benchmark public void nextWithParentInScope_unsampled() {
+    nextWithParentInScope(tracer, tracer.toSpan(unsampledContext).context());
+  }
+
+  @Benchmark public void nextWithParentInScope_unsampled_reused() {
+    nextWithParentInScope(tracerReused, unsampledContextReused);
+  }
+
+  /** This shows the overhead of a child span when its parent is already in scope */
+  void nextWithParentInScope(Tracer tracer, TraceContext parent) {
+    try (CurrentTraceContext.Scope parentScope = tracer.currentTraceContext.newScope(parent)) {
+      Span span = tracer.nextSpan().name("encode").start();
+      try (Tracer.SpanInScope scope = tracer.withSpanInScope(span)) {
+        span.tag("foo", "bar");
+        span.tag("baz", "qux");
+      } finally {
+        span.finish();
+      }
+    }
+  }
+
   @Benchmark public void joinWithSpanInScope() {
     joinWithSpanInScope(tracer, context);
   }
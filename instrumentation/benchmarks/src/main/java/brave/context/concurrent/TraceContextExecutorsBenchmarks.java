@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.concurrent;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the overhead per task of context propagation. The "wrapAndRun" benchmarks isolate the
+ * wrapper from the cost of handing off to another thread.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TraceContextExecutorsBenchmarks {
+  static final CurrentTraceContext currentTraceContext = ThreadLocalCurrentTraceContext.create();
+  static final TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(1L).build();
+  static final Runnable task = () -> {
+  };
+
+  ForkJoinPool pool, tracedPool;
+  ExecutorService coreWrappedPool;
+
+  @Setup public void init() {
+    pool = new ForkJoinPool(1);
+    tracedPool = TraceContextExecutors.newForkJoinPool(currentTraceContext, 1);
+    coreWrappedPool = currentTraceContext.executorService(new ForkJoinPool(1));
+  }
+
+  @TearDown public void close() {
+    pool.shutdownNow();
+    tracedPool.shutdownNow();
+    coreWrappedPool.shutdownNow();
+  }
+
+  @Benchmark public void wrapAndRun_unchanged_core() {
+    try (CurrentTraceContext.Scope ws = currentTraceContext.newScope(context)) {
+      currentTraceContext.wrap(task).run();
+    }
+  }
+
+  @Benchmark public void wrapAndRun_unchanged_concurrent() {
+    try (CurrentTraceContext.Scope ws = currentTraceContext.newScope(context)) {
+      TraceContextExecutors.wrap(currentTraceContext, task).run();
+    }
+  }
+
+  @Benchmark public void wrapAndRun_changed_core() {
+    Runnable wrapped;
+    try (CurrentTraceContext.Scope ws = currentTraceContext.newScope(context)) {
+      wrapped = currentTraceContext.wrap(task);
+    }
+    wrapped.run();
+  }
+
+  @Benchmark public void wrapAndRun_changed_concurrent() {
+    Runnable wrapped;
+    try (CurrentTraceContext.Scope ws = currentTraceContext.newScope(context)) {
+      wrapped = TraceContextExecutors.wrap(currentTraceContext, task);
+    }
+    wrapped.run();
+  }
+
+  @Benchmark public void forkJoinPool_submit_unwrapped() throws Exception {
+    try (CurrentTraceContext.Scope ws = currentTraceContext.newScope(context)) {
+      pool.submit(task).get();
+    }
+  }
+
+  @Benchmark public void forkJoinPool_submit_core() throws Exception {
+    try (CurrentTraceContext.Scope ws = currentTraceContext.newScope(context)) {
+      coreWrappedPool.submit(task).get();
+    }
+  }
+
+  @Benchmark public void forkJoinPool_submit_concurrent() throws Exception {
+    try (CurrentTraceContext.Scope ws = currentTraceContext.newScope(context)) {
+      tracedPool.submit(task).get();
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws Exception {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + TraceContextExecutorsBenchmarks.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -82,6 +82,60 @@ public class MutableSpanBenchmarks {
     return span;
   }
 
+  /** Typical of a gateway span, with many tags added by instrumentation and handlers */
+  public static MutableSpan newSpanWithTags(int tagCount) {
+    MutableSpan span = newServerMutableSpan();
+    for (int i = 4; i < tagCount; i++) { // the server span already has 4 tags
+      span.tag(TAG_KEYS[i], "value" + i);
+    }
+    span.annotate(1533706251750058L, "wr");
+    span.annotate(1533706251935295L, "ws");
+    return span;
+  }
+
+  static final String[] TAG_KEYS = new String[30];
+
+  static {
+    for (int i = 0; i < TAG_KEYS.length; i++) TAG_KEYS[i] = "tag" + i;
+  }
+
+  final MutableSpan span10Tags = newSpanWithTags(10), span30Tags = newSpanWithTags(30);
+  final MutableSpan.TagConsumer<int[]> tagCounter =
+    (target, key, value) -> target[0] += value.length();
+  final MutableSpan.AnnotationConsumer<long[]> annotationSummer =
+    (target, timestamp, value) -> target[0] += timestamp;
+
+  @Benchmark public MutableSpan makeSpan_10Tags() {
+    return newSpanWithTags(10);
+  }
+
+  @Benchmark public MutableSpan makeSpan_30Tags() {
+    return newSpanWithTags(30);
+  }
+
+  @Benchmark public int forEachTag_10Tags() {
+    int[] count = new int[1];
+    span10Tags.forEachTag(tagCounter, count);
+    return count[0];
+  }
+
+  @Benchmark public int forEachTag_30Tags() {
+    int[] count = new int[1];
+    span30Tags.forEachTag(tagCounter, count);
+    return count[0];
+  }
+
+  @Benchmark public long forEachAnnotation() {
+    long[] sum = new long[1];
+    span30Tags.forEachAnnotation(annotationSummer, sum);
+    return sum[0];
+  }
+
+  /** Looks up the last tag, which is the worst case of the linear scan */
+  @Benchmark public String tag_30Tags() {
+    return span30Tags.tag("tag29");
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt = new OptionsBuilder()
@@ -15,6 +15,7 @@ package brave.internal.handler;
 
 import brave.ErrorParser;
 import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
@@ -31,6 +32,8 @@ import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
 
 import static brave.handler.MutableSpanBenchmarks.newBigClientMutableSpan;
 import static brave.handler.MutableSpanBenchmarks.newServerMutableSpan;
@@ -47,6 +50,13 @@ public class MutableSpanConverterBenchmarks {
     new MutableSpanConverter(new ErrorParser(), "unknown", "127.0.0.1", 0);
   final MutableSpan serverMutableSpan = newServerMutableSpan();
   final MutableSpan bigClientMutableSpan = newBigClientMutableSpan();
+  final TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(0x463ac35c9f6413adL).traceId(0x463ac35c9f6413adL)
+    .parentId(0x463ac35c9f6413adL).spanId(0x72485a3953bb6124L).sampled(true).build();
+  final MutableSpanBytesEncoder jsonEncoder = MutableSpanBytesEncoder.create(Encoding.JSON,
+    new ErrorParser(), "unknown", "127.0.0.1", 0);
+  final MutableSpanBytesEncoder proto3Encoder = MutableSpanBytesEncoder.create(Encoding.PROTO3,
+    new ErrorParser(), "unknown", "127.0.0.1", 0);
 
   /**
    * Tests converting into a builder type. This isolates the performance of walking over the mutable
@@ -64,6 +74,49 @@ public class MutableSpanConverterBenchmarks {
     return builder;
   }
 
+  /** Tests the path used by {@link ZipkinFinishedSpanHandler} followed by a reporter */
+  @Benchmark public byte[] convertAndEncodeServerSpan_json() {
+    return SpanBytesEncoder.JSON_V2.encode(convert(serverMutableSpan));
+  }
+
+  @Benchmark public byte[] convertAndEncodeBigClientSpan_json() {
+    return SpanBytesEncoder.JSON_V2.encode(convert(bigClientMutableSpan));
+  }
+
+  @Benchmark public byte[] convertAndEncodeServerSpan_proto3() {
+    return SpanBytesEncoder.PROTO3.encode(convert(serverMutableSpan));
+  }
+
+  @Benchmark public byte[] convertAndEncodeBigClientSpan_proto3() {
+    return SpanBytesEncoder.PROTO3.encode(convert(bigClientMutableSpan));
+  }
+
+  /** Tests the path used by {@link ZipkinBytesFinishedSpanHandler}, which skips {@link Span} */
+  @Benchmark public byte[] encodeServerSpan_json() {
+    return jsonEncoder.encode(context, serverMutableSpan);
+  }
+
+  @Benchmark public byte[] encodeBigClientSpan_json() {
+    return jsonEncoder.encode(context, bigClientMutableSpan);
+  }
+
+  @Benchmark public byte[] encodeServerSpan_proto3() {
+    return proto3Encoder.encode(context, serverMutableSpan);
+  }
+
+  @Benchmark public byte[] encodeBigClientSpan_proto3() {
+    return proto3Encoder.encode(context, bigClientMutableSpan);
+  }
+
+  Span convert(MutableSpan span) {
+    Span.Builder builder = Span.newBuilder()
+      .traceId(context.traceIdString())
+      .parentId(context.parentIdString())
+      .id(context.spanIdString());
+    converter.convert(span, builder);
+    return builder.build();
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt = new OptionsBuilder()
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.handler.FinishedSpanHandler;
+import brave.internal.Platform;
+import brave.propagation.TraceContext;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the default weak-keyed map against {@link StripedPendingSpans} at increasing thread
+ * counts. Run with the gc profiler to see allocation per span.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class PendingSpansBenchmarks {
+  final PendingSpans weak = new PendingSpans(Platform.get().clock(),
+    FinishedSpanHandler.NOOP, false, new AtomicBoolean());
+  final PendingSpans striped = PendingSpans.newBuilder(Platform.get().clock(),
+    FinishedSpanHandler.NOOP, new AtomicBoolean()).striped(true).build();
+
+  /** Each thread works on its own trace, where a local root is parent to the measured span. */
+  @State(Scope.Thread)
+  public static class ThreadTrace {
+    final long traceId = Platform.get().randomLong();
+    final TraceContext root = TraceContext.newBuilder().traceId(traceId).spanId(traceId).build();
+    final TraceContext child =
+      root.toBuilder().parentId(traceId).spanId(Platform.get().randomLong()).build();
+  }
+
+  @Benchmark @Threads(1) public boolean weak_1(ThreadTrace trace) {
+    return startAndFinishChild(weak, trace);
+  }
+
+  @Benchmark @Threads(8) public boolean weak_8(ThreadTrace trace) {
+    return startAndFinishChild(weak, trace);
+  }
+
+  @Benchmark @Threads(64) public boolean weak_64(ThreadTrace trace) {
+    return startAndFinishChild(weak, trace);
+  }
+
+  @Benchmark @Threads(1) public boolean striped_1(ThreadTrace trace) {
+    return startAndFinishChild(striped, trace);
+  }
+
+  @Benchmark @Threads(8) public boolean striped_8(ThreadTrace trace) {
+    return startAndFinishChild(striped, trace);
+  }
+
+  @Benchmark @Threads(64) public boolean striped_64(ThreadTrace trace) {
+    return startAndFinishChild(striped, trace);
+  }
+
+  /** The root stays in-flight, so the child reads its clock from the parent. */
+  static boolean startAndFinishChild(PendingSpans pendingSpans, ThreadTrace trace) {
+    pendingSpans.getOrCreate(trace.root, false);
+    pendingSpans.getOrCreate(trace.child, true);
+    return pendingSpans.remove(trace.child);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + PendingSpansBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
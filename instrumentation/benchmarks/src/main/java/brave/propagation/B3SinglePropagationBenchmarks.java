@@ -26,6 +26,8 @@ import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Warmup;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
@@ -37,6 +39,7 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 @Fork(3)
 @BenchmarkMode(Mode.SampleTime)
 @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
 public class B3SinglePropagationBenchmarks {
   static final Propagation<String> b3 = Propagation.B3_SINGLE_STRING;
   static final Injector<Map<String, String>> b3Injector = b3.injector(Map::put);
@@ -69,11 +72,21 @@ public class B3SinglePropagationBenchmarks {
 
   static final Map<String, String> nothingIncoming = Collections.emptyMap();
 
+  static final byte[] incomingBytes = B3SingleFormat.writeB3SingleFormatAsBytes(context);
+  static final byte[] incomingNotSampledBytes = {'0'};
+
+  // reused across invocations, as a transport would its header buffer
+  final byte[] destination = new byte[128];
+
   @Benchmark public void inject() {
     Map<String, String> carrier = new LinkedHashMap<>();
     b3Injector.inject(context, carrier);
   }
 
+  @Benchmark public int inject_bytes() {
+    return B3SingleFormat.writeB3SingleFormat(context, destination, 0);
+  }
+
   @Benchmark public TraceContextOrSamplingFlags extract() {
     return b3Extractor.extract(incoming);
   }
@@ -90,6 +103,15 @@ public class B3SinglePropagationBenchmarks {
     return b3Extractor.extract(incomingMalformed);
   }
 
+  @Benchmark public TraceContextOrSamplingFlags extract_bytes() {
+    return B3SingleFormat.parseB3SingleFormat(incomingBytes);
+  }
+
+  /** Should not allocate, as the result is a constant */
+  @Benchmark public TraceContextOrSamplingFlags extract_unsampled_bytes() {
+    return B3SingleFormat.parseB3SingleFormat(incomingNotSampledBytes);
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt = new OptionsBuilder()
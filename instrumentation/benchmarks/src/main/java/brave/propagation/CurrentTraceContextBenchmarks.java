@@ -15,6 +15,10 @@ package brave.propagation;
 
 import brave.context.log4j2.ThreadContextScopeDecorator;
 import brave.internal.HexCodec;
+import brave.internal.Platform;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
@@ -23,6 +27,7 @@ import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Warmup;
@@ -38,6 +43,8 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 @State(Scope.Thread)
 public class CurrentTraceContextBenchmarks {
   static final CurrentTraceContext base = ThreadLocalCurrentTraceContext.create();
+  static final CurrentTraceContext inheritable = CurrentTraceContext.Default.inheritable();
+  static final CurrentTraceContext virtual = VirtualThreadCurrentTraceContext.create();
   static final CurrentTraceContext log4j2 = ThreadLocalCurrentTraceContext.newBuilder()
     .addScopeDecorator(ThreadContextScopeDecorator.create())
     .build();
@@ -59,6 +66,70 @@ public class CurrentTraceContextBenchmarks {
     log4j2Scope.close();
   }
 
+  @Benchmark public void newScope_virtual() {
+    try (CurrentTraceContext.Scope ws = virtual.newScope(contextWithParent)) {
+    }
+  }
+
+  @Benchmark public void newScope_clear_virtual() {
+    try (CurrentTraceContext.Scope ws = virtual.newScope(null)) {
+    }
+  }
+
+  static final int VIRTUAL_THREAD_COUNT = 100_000;
+
+  /**
+   * Runs {@link #VIRTUAL_THREAD_COUNT} tasks at the same time, each of which opens nested scopes.
+   * This uses virtual threads when the runtime supports them, or a fixed pool otherwise.
+   */
+  @State(Scope.Benchmark)
+  public static class VirtualThreads {
+    ExecutorService executor;
+
+    @Setup public void init() throws Exception {
+      executor = Platform.get().supportsVirtualThreads()
+        ? (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+        .invoke(null)
+        : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown public void close() {
+      executor.shutdownNow();
+    }
+
+    void run(CurrentTraceContext current) throws Exception {
+      Future<?>[] futures = new Future<?>[VIRTUAL_THREAD_COUNT];
+      for (int i = 0; i < VIRTUAL_THREAD_COUNT; i++) {
+        futures[i] = executor.submit(() -> {
+          try (CurrentTraceContext.Scope parent = current.newScope(context)) {
+            Thread.yield(); // allows other virtual threads to mount while the scope is open
+            try (CurrentTraceContext.Scope child = current.newScope(contextWithParent)) {
+            }
+          }
+        });
+      }
+      for (Future<?> future : futures) future.get();
+    }
+  }
+
+  @Benchmark @BenchmarkMode(Mode.SingleShotTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void virtualThreads_default(VirtualThreads threads) throws Exception {
+    threads.run(base);
+  }
+
+  @Benchmark @BenchmarkMode(Mode.SingleShotTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void virtualThreads_inheritable(VirtualThreads threads) throws Exception {
+    // parent context is set while the virtual threads are created, so each inherits a copy
+    try (CurrentTraceContext.Scope ws = inheritable.newScope(context)) {
+      threads.run(inheritable);
+    }
+  }
+
+  @Benchmark @BenchmarkMode(Mode.SingleShotTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void virtualThreads_virtual(VirtualThreads threads) throws Exception {
+    threads.run(virtual);
+  }
+
   @Benchmark public void newScope_default() {
     try (CurrentTraceContext.Scope ws = base.newScope(contextWithParent)) {
     }
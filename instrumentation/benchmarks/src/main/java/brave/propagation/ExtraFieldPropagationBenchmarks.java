@@ -16,8 +16,10 @@ package brave.propagation;
 import brave.internal.HexCodec;
 import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContext.Injector;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
@@ -69,6 +71,44 @@ public class ExtraFieldPropagationBenchmarks {
 
   static final Map<String, String> nothingIncoming = Collections.emptyMap();
 
+  /** 20 fields, each also with two prefixes, for 60 keys. Only two are present in requests. */
+  static final Propagation<String> manyExtra;
+
+  static {
+    ExtraFieldPropagation.FactoryBuilder builder =
+      ExtraFieldPropagation.newFactoryBuilder(B3Propagation.FACTORY);
+    List<String> fieldNames = new ArrayList<>();
+    for (int i = 0; i < 20; i++) fieldNames.add("field-" + i);
+    for (String fieldName : fieldNames) builder.addField(fieldName);
+    builder.addPrefixedFields("baggage-", fieldNames);
+    builder.addPrefixedFields("baggage_", fieldNames);
+    manyExtra = builder.build().create(Propagation.KeyFactory.STRING);
+  }
+
+  static final Extractor<Map<String, String>> manyExtractor = manyExtra.extractor(Map::get);
+  static final Extractor<Map<String, String>> manyEnumeratingExtractor =
+    manyExtra.extractor(new Propagation.EnumeratingGetter<Map<String, String>, String>() {
+      @Override public boolean forEachName(Map<String, String> carrier, NameConsumer consumer) {
+        for (String name : carrier.keySet()) consumer.accept(name);
+        return true;
+      }
+
+      @Override public String get(Map<String, String> carrier, String key) {
+        return carrier.get(key);
+      }
+    });
+
+  static final Map<String, String> incomingMany = new LinkedHashMap<String, String>() {
+    {
+      extraInjector.inject(context, this);
+      put("field-3", "216a2aea45d08fc9");
+      put("baggage-field-7", "bob");
+    }
+  };
+
+  static final TraceContext extracted =
+    factory.decorate(extraExtractor.extract(incoming).context());
+
   @Benchmark public void inject() {
     Map<String, String> carrier = new LinkedHashMap<>();
     extraInjector.inject(context, carrier);
@@ -86,6 +126,31 @@ public class ExtraFieldPropagationBenchmarks {
     return extraExtractor.extract(incomingNoExtra);
   }
 
+  /** Gets each of the 60 keys from the carrier */
+  @Benchmark public TraceContextOrSamplingFlags extract_manyFields() {
+    return manyExtractor.extract(incomingMany);
+  }
+
+  /** Only gets the 2 keys that are present */
+  @Benchmark public TraceContextOrSamplingFlags extract_manyFields_enumerating() {
+    return manyEnumeratingExtractor.extract(incomingMany);
+  }
+
+  /**
+   * Like a call tree that doesn't change extra fields. Each child allocates its fields object, but
+   * shares the values extracted for the root.
+   */
+  @Benchmark public TraceContext decorate_childrenDepth10() {
+    TraceContext context = extracted;
+    for (int i = 0; i < 10; i++) {
+      context = factory.decorate(context.toBuilder()
+        .parentId(context.spanId())
+        .spanId(context.spanId() + 1)
+        .build());
+    }
+    return context;
+  }
+
   @Benchmark public void redacted_inject() {
     Map<String, String> carrier = new LinkedHashMap<>();
     redactedInjector.inject(context, carrier);
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.grpc;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.B3SingleFormat;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import io.grpc.InternalMetadata;
+import io.grpc.Metadata;
+
+/**
+ * Reads and writes the "b3" header as bytes, which avoids converting to and from strings. This is
+ * only used when the propagation format is B3, as otherwise there may be other fields to handle.
+ */
+final class B3SingleMetadata {
+  /** The value is passed through as-is, as the B3 single format is US-ASCII. */
+  static final Metadata.Key<byte[]> B3 =
+    InternalMetadata.keyOf("b3", new InternalMetadata.TrustedAsciiMarshaller<byte[]>() {
+      @Override public byte[] toAsciiString(byte[] value) {
+        return value;
+      }
+
+      @Override public byte[] parseAsciiString(byte[] serialized) {
+        return serialized;
+      }
+    });
+
+  /** Parses the "b3" header if the propagation format is B3 or else returns the delegate. */
+  static Extractor<GrpcServerRequest> extractor(Propagation.Factory propagationFactory,
+    Extractor<GrpcServerRequest> delegate) {
+    if (propagationFactory != B3Propagation.FACTORY
+      && propagationFactory != B3SinglePropagation.FACTORY) {
+      return delegate;
+    }
+    return new B3SingleExtractor(delegate);
+  }
+
+  /** Writes the "b3" header if the propagation format is B3 single or else returns the delegate. */
+  static Injector<GrpcClientRequest> injector(Propagation.Factory propagationFactory,
+    Injector<GrpcClientRequest> delegate) {
+    if (propagationFactory != B3SinglePropagation.FACTORY) return delegate;
+    return B3SingleInjector.INSTANCE;
+  }
+
+  /** Falls back to the delegate when the header is absent or malformed. */
+  static final class B3SingleExtractor implements Extractor<GrpcServerRequest> {
+    final Extractor<GrpcServerRequest> delegate;
+
+    B3SingleExtractor(Extractor<GrpcServerRequest> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public TraceContextOrSamplingFlags extract(GrpcServerRequest request) {
+      byte[] b3 = request.getMetadata(B3);
+      if (b3 != null) {
+        TraceContextOrSamplingFlags extracted = B3SingleFormat.parseB3SingleFormat(b3);
+        if (extracted != null) return extracted;
+      }
+      return delegate.extract(request);
+    }
+
+    @Override public String toString() {
+      return "GrpcServerRequest::getMetadata(b3)";
+    }
+  }
+
+  enum B3SingleInjector implements Injector<GrpcClientRequest> {
+    INSTANCE;
+
+    @Override public void inject(TraceContext traceContext, GrpcClientRequest request) {
+      request.setMetadata(B3, B3SingleFormat.writeB3SingleFormatAsBytes(traceContext));
+    }
+
+    @Override public String toString() {
+      return "GrpcClientRequest::setMetadata(b3)";
+    }
+  }
+
+  B3SingleMetadata() {
+  }
+}
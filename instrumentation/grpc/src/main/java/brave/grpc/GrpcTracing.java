@@ -98,6 +98,7 @@ public final class GrpcTracing {
   }
 
   final RpcTracing rpcTracing;
+  final Propagation.Factory propagationFactory;
   final Propagation<Metadata.Key<String>> propagation;
   final GrpcClientParser clientParser;
   final GrpcServerParser serverParser;
@@ -110,6 +111,7 @@ public final class GrpcTracing {
     if (grpcPropagationFormatEnabled) {
       propagationFactory = GrpcPropagation.newFactory(propagationFactory);
     }
+    this.propagationFactory = propagationFactory;
     propagation = propagationFactory.create(AsciiMetadataKeyFactory.INSTANCE);
     clientParser = builder.clientParser;
     serverParser = builder.serverParser;
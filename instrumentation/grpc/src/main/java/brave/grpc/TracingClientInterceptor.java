@@ -41,7 +41,8 @@ final class TracingClientInterceptor implements ClientInterceptor {
   TracingClientInterceptor(GrpcTracing grpcTracing) {
     tracer = grpcTracing.rpcTracing.tracing().tracer();
     sampler = grpcTracing.rpcTracing.clientSampler();
-    injector = grpcTracing.propagation.injector(SETTER);
+    injector = B3SingleMetadata.injector(grpcTracing.propagationFactory,
+      grpcTracing.propagation.injector(SETTER));
     parser = grpcTracing.clientParser;
   }
 
@@ -42,7 +42,8 @@ final class TracingServerInterceptor implements ServerInterceptor {
 
   TracingServerInterceptor(GrpcTracing grpcTracing) {
     tracer = grpcTracing.rpcTracing.tracing().tracer();
-    extractor = grpcTracing.propagation.extractor(GETTER);
+    extractor = B3SingleMetadata.extractor(grpcTracing.propagationFactory,
+      grpcTracing.propagation.extractor(GETTER));
     sampler = grpcTracing.rpcTracing.serverSampler();
     parser = grpcTracing.serverParser;
     grpcPropagationFormatEnabled = grpcTracing.grpcPropagationFormatEnabled;
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.grpc;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.B3SinglePropagation;
+import brave.propagation.Propagation;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import io.grpc.Metadata;
+import org.junit.Test;
+
+import static brave.grpc.TestObjects.METHOD_DESCRIPTOR;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class B3SingleMetadataTest {
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+  Metadata.Key<String> b3Key = AsciiMetadataKeyFactory.INSTANCE.create("b3");
+  Metadata metadata = new Metadata();
+
+  Propagation<Metadata.Key<String>> b3 =
+    B3Propagation.FACTORY.create(AsciiMetadataKeyFactory.INSTANCE);
+  Extractor<GrpcServerRequest> extractor = B3SingleMetadata.extractor(B3Propagation.FACTORY,
+    b3.extractor(GrpcServerRequest.GETTER));
+
+  @Test public void extractor_readsBytes() {
+    metadata.put(b3Key, "0000000000000001-0000000000000002-1");
+
+    assertThat(extractor.extract(new GrpcServerRequest(METHOD_DESCRIPTOR, metadata)))
+      .isEqualTo(TraceContextOrSamplingFlags.create(context));
+  }
+
+  @Test public void extractor_samplingFlags() {
+    metadata.put(b3Key, "0");
+
+    assertThat(extractor.extract(new GrpcServerRequest(METHOD_DESCRIPTOR, metadata)))
+      .isSameAs(TraceContextOrSamplingFlags.NOT_SAMPLED);
+  }
+
+  @Test public void extractor_fallsBackToMultipleHeaders() {
+    b3.injector(GrpcClientRequest.SETTER)
+      .inject(context, new GrpcClientRequest(METHOD_DESCRIPTOR).metadata(metadata));
+
+    assertThat(extractor.extract(new GrpcServerRequest(METHOD_DESCRIPTOR, metadata)))
+      .isEqualTo(TraceContextOrSamplingFlags.create(context));
+  }
+
+  @Test public void extractor_fallsBackWhenMalformed() {
+    metadata.put(b3Key, "bad");
+
+    assertThat(extractor.extract(new GrpcServerRequest(METHOD_DESCRIPTOR, metadata)))
+      .isEqualTo(TraceContextOrSamplingFlags.create(SamplingFlags.EMPTY));
+  }
+
+  @Test public void extractor_delegatesWhenNotB3() {
+    Extractor<GrpcServerRequest> delegate = b3.extractor(GrpcServerRequest.GETTER);
+
+    assertThat(B3SingleMetadata.extractor(GrpcPropagation.newFactory(B3Propagation.FACTORY),
+      delegate)).isSameAs(delegate);
+  }
+
+  @Test public void injector_writesBytes() {
+    Injector<GrpcClientRequest> injector = B3SingleMetadata.injector(B3SinglePropagation.FACTORY,
+      null);
+    injector.inject(context, new GrpcClientRequest(METHOD_DESCRIPTOR).metadata(metadata));
+
+    assertThat(new String(metadata.get(B3SingleMetadata.B3), US_ASCII))
+      .isEqualTo(metadata.get(b3Key))
+      .isEqualTo("0000000000000001-0000000000000002-1");
+  }
+
+  @Test public void injector_delegatesWhenMultipleHeaders() {
+    Injector<GrpcClientRequest> delegate = b3.injector(GrpcClientRequest.SETTER);
+
+    assertThat(B3SingleMetadata.injector(B3Propagation.FACTORY, delegate)).isSameAs(delegate);
+  }
+}
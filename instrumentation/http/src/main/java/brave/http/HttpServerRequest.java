@@ -14,6 +14,8 @@
 package brave.http;
 
 import brave.Span;
+import brave.propagation.Propagation.EnumeratingGetter;
+import brave.propagation.Propagation.EnumeratingGetter.NameConsumer;
 import brave.propagation.Propagation.Getter;
 
 /**
@@ -24,15 +26,31 @@ import brave.propagation.Propagation.Getter;
  * @since 5.7
  */
 public abstract class HttpServerRequest extends HttpRequest {
-  static final Getter<HttpServerRequest, String> GETTER = new Getter<HttpServerRequest, String>() {
-    @Override public String get(HttpServerRequest carrier, String key) {
-      return carrier.header(key);
-    }
+  static final Getter<HttpServerRequest, String> GETTER =
+    new EnumeratingGetter<HttpServerRequest, String>() {
+      @Override public boolean forEachName(HttpServerRequest carrier, NameConsumer consumer) {
+        return carrier.forEachHeaderName(consumer);
+      }
 
-    @Override public String toString() {
-      return "HttpServerRequest::header";
-    }
-  };
+      @Override public String get(HttpServerRequest carrier, String key) {
+        return carrier.header(key);
+      }
+
+      @Override public String toString() {
+        return "HttpServerRequest::header";
+      }
+    };
+
+  /**
+   * Override to invoke the consumer with the name of each request header, and return true. This
+   * allows extraction of many optional fields, such as extra fields, to only look up headers that
+   * are present. Defaults to false, which means header names can't be listed.
+   *
+   * @since 5.9
+   */
+  public boolean forEachHeaderName(NameConsumer consumer) {
+    return false;
+  }
 
   /**
    * Override and return true when it is possible to parse the {@link Span#remoteIpAndPort(String,
@@ -14,6 +14,8 @@
 package brave.http;
 
 import brave.Span;
+import brave.propagation.Propagation.EnumeratingGetter;
+import brave.propagation.Propagation.EnumeratingGetter.NameConsumer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -66,6 +68,15 @@ public class HttpServerRequestTest {
     verify(serverRequest).parseClientIpAndPort(span);
   }
 
+  @Test public void getter_forEachName_delegatesToServerRequest() {
+    NameConsumer consumer = name -> {
+    };
+    when(serverRequest.forEachHeaderName(consumer)).thenReturn(true);
+
+    assertThat(((EnumeratingGetter<HttpServerRequest, String>) HttpServerRequest.GETTER)
+      .forEachName(serverRequest, consumer)).isTrue();
+  }
+
   @Test public void toAdapter_startTimestamp_zeroOnNoMatch() {
     assertThat(toAdapter.startTimestamp(request)).isZero();
   }
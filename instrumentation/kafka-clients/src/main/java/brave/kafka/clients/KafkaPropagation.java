@@ -13,10 +13,13 @@
  */
 package brave.kafka.clients;
 
+import brave.propagation.B3SingleFormat;
 import brave.propagation.Propagation.Getter;
 import brave.propagation.Propagation.Setter;
 import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.Headers;
@@ -42,6 +45,32 @@ final class KafkaPropagation {
     }
   };
 
+  /**
+   * Parses the "b3" header directly from its bytes, instead of decoding a string first. This falls
+   * back to the delegate when the header is absent or malformed, for example to read multi-header
+   * B3.
+   */
+  static final class B3SingleExtractor implements Extractor<Headers> {
+    final Extractor<Headers> delegate;
+
+    B3SingleExtractor(Extractor<Headers> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public TraceContextOrSamplingFlags extract(Headers carrier) {
+      Header header = carrier.lastHeader("b3");
+      if (header != null && header.value() != null) {
+        TraceContextOrSamplingFlags extracted = B3SingleFormat.parseB3SingleFormat(header.value());
+        if (extracted != null) return extracted;
+      }
+      return delegate.extract(carrier);
+    }
+
+    @Override public String toString() {
+      return "Headers::lastHeader(\"b3\")";
+    }
+  }
+
   static final Setter<Headers, String> SETTER = (carrier, key, value) -> {
     carrier.remove(key);
     carrier.add(key, value.getBytes(UTF_8));
@@ -16,7 +16,9 @@ package brave.kafka.clients;
 import brave.Span;
 import brave.SpanCustomizer;
 import brave.Tracing;
+import brave.propagation.B3Propagation;
 import brave.propagation.B3SingleFormat;
+import brave.propagation.B3SinglePropagation;
 import brave.propagation.Propagation;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContext.Extractor;
@@ -89,7 +91,14 @@ public final class KafkaTracing {
 
   KafkaTracing(Builder builder) { // intentionally hidden constructor
     this.tracing = builder.tracing;
-    this.extractor = tracing.propagation().extractor(KafkaPropagation.GETTER);
+    Extractor<Headers> extractor = tracing.propagation().extractor(KafkaPropagation.GETTER);
+    // Skip decoding strings when there are no propagation fields besides B3
+    Propagation.Factory propagationFactory = tracing.propagationFactory();
+    if (propagationFactory == B3Propagation.FACTORY
+      || propagationFactory == B3SinglePropagation.FACTORY) {
+      extractor = new KafkaPropagation.B3SingleExtractor(extractor);
+    }
+    this.extractor = extractor;
     List<String> keyList = builder.tracing.propagation().keys();
     // Use a more efficient injector if we are only propagating a single header
     if (builder.writeB3SingleFormat || keyList.equals(Propagation.B3_SINGLE_STRING.keys())) {
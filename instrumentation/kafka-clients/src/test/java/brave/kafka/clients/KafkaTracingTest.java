@@ -45,6 +45,35 @@ public class KafkaTracingTest extends BaseTracingTest {
       .isEqualTo(2L);
   }
 
+  @Test public void extractor_parsesB3Bytes_whenOnlyB3() {
+    assertThat(kafkaTracing.extractor).isInstanceOf(KafkaPropagation.B3SingleExtractor.class);
+  }
+
+  @Test public void extractor_delegates_whenExtraFields() {
+    tracing = Tracing.newBuilder()
+      .propagationFactory(ExtraFieldPropagation.newFactory(B3Propagation.FACTORY, "user-id"))
+      .build();
+    kafkaTracing = KafkaTracing.create(tracing);
+
+    assertThat(kafkaTracing.extractor)
+      .isNotInstanceOf(KafkaPropagation.B3SingleExtractor.class);
+  }
+
+  @Test public void nextSpan_b3Bytes_fallsBackToMultipleHeaders() {
+    addB3Headers(fakeRecord);
+
+    assertThat(kafkaTracing.nextSpan(fakeRecord).context().parentIdString())
+      .isEqualTo(SPAN_ID);
+  }
+
+  @Test public void nextSpan_b3Bytes_fallsBackWhenMalformed() {
+    addB3Headers(fakeRecord);
+    fakeRecord.headers().add("b3", "not-b3".getBytes(UTF_8));
+
+    assertThat(kafkaTracing.nextSpan(fakeRecord).context().parentIdString())
+      .isEqualTo(SPAN_ID);
+  }
+
   @Test public void nextSpan_uses_current_context() {
     Span child;
     try (CurrentTraceContext.Scope ws = tracing.currentTraceContext()
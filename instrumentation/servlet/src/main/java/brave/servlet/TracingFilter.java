@@ -20,9 +20,11 @@ import brave.http.HttpServerHandler;
 import brave.http.HttpTracing;
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.Propagation.EnumeratingGetter.NameConsumer;
 import brave.propagation.TraceContext;
 import brave.servlet.internal.ServletRuntime;
 import java.io.IOException;
+import java.util.Enumeration;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -133,5 +135,12 @@ public final class TracingFilter implements Filter {
     @Override public String header(String name) {
       return delegate.getHeader(name);
     }
+
+    @Override public boolean forEachHeaderName(NameConsumer consumer) {
+      Enumeration<String> names = delegate.getHeaderNames();
+      if (names == null) return false; // the container doesn't allow access
+      while (names.hasMoreElements()) consumer.accept(names.nextElement());
+      return true;
+    }
   }
 }